@@ -0,0 +1,118 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.regions.Regions;
+import com.meloselo.storage.CloudException;
+import com.meloselo.storage.LocalS3Server;
+import com.meloselo.storage.S3CloudStorage;
+
+/**
+ * scaling of one shared S3CloudStorage with the number of concurrent callers, each thread count has
+ * its own benchmark method.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+public class ConcurrentClientBenchmark {
+
+    @Param({"65536"})
+    public long size;
+
+    private LocalS3Server server;
+    private S3CloudStorage storage;
+    private String fileUri;
+    private final AtomicLong names = new AtomicLong();
+
+    @Setup
+    public void setUp() throws Exception {
+        server = new LocalS3Server();
+        storage = new S3CloudStorage(server.newClient(), null, Regions.US_EAST_1);
+        fileUri = storage.storeFile(TransferBenchmark.BUCKET, new PatternInputStream(size), "shared",
+                "application/octet-stream", size, null);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long getFile01() throws CloudException, IOException {
+        return getFile();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long getFile04() throws CloudException, IOException {
+        return getFile();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public long getFile16() throws CloudException, IOException {
+        return getFile();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public long getFile64() throws CloudException, IOException {
+        return getFile();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String storeFile01() throws CloudException {
+        return storeFile();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String storeFile04() throws CloudException {
+        return storeFile();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public String storeFile16() throws CloudException {
+        return storeFile();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public String storeFile64() throws CloudException {
+        return storeFile();
+    }
+
+    private long getFile() throws CloudException, IOException {
+        return TransferBenchmark.drain(storage.getFile(fileUri).getInputStream(), new byte[16 * 1024]);
+    }
+
+    private String storeFile() throws CloudException {
+        return storage.storeFile(TransferBenchmark.BUCKET, new PatternInputStream(size),
+                "concurrent-" + (names.incrementAndGet() % 256), "application/octet-stream", size, null);
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage.benchmark;
+
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.regions.Regions;
+import com.meloselo.storage.CloudException;
+import com.meloselo.storage.LocalS3Server;
+import com.meloselo.storage.PresignedUrlCache;
+import com.meloselo.storage.S3CloudStorage;
+
+/**
+ * cost of signing expiring urls, with and without the presigned url cache. Signing is local, the
+ * server is only needed for the client endpoint.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExpiringUrlBenchmark {
+
+    private static final String FILE_URI = "s3://US_EAST_1/bench/images/file.jpg";
+
+    @Param({"false", "true"})
+    public boolean cached;
+
+    private LocalS3Server server;
+    private S3CloudStorage storage;
+
+    @Setup
+    public void setUp() throws Exception {
+        server = new LocalS3Server();
+        storage = new S3CloudStorage(server.newClient(), null, Regions.US_EAST_1);
+        if (cached) {
+            storage.setPresignedUrlCache(new PresignedUrlCache(10000, 3600));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    @Benchmark
+    public URL getExpiringUrl() throws CloudException {
+        return storage.getExpiringUrl(FILE_URI, 3600);
+    }
+}
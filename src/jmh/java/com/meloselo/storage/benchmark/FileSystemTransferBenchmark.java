@@ -0,0 +1,93 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.meloselo.storage.CloudException;
+import com.meloselo.storage.CloudFile;
+import com.meloselo.storage.FileSystemCloudStorage;
+
+/**
+ * storeFile, storeFileFrom, getFile and getFileTo of FileSystemCloudStorage for object sizes from 1 KB to
+ * 1 GB, to compare with raw disk throughput and with TransferBenchmark. Files are not synced on store.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+public class FileSystemTransferBenchmark {
+
+    @Param({"1024", "1048576", "67108864", "1073741824"})
+    public long size;
+
+    private Path root;
+    private Path source;
+    private Path target;
+    private FileSystemCloudStorage storage;
+    private String fileUri;
+    private byte[] buffer;
+
+    @Setup
+    public void setUp() throws Exception {
+        root = Files.createTempDirectory("fs-bench");
+        storage = new FileSystemCloudStorage(root).setSyncOnStore(false);
+        source = Files.createTempFile("fs-bench", ".src");
+        Files.copy(new PatternInputStream(size), source, StandardCopyOption.REPLACE_EXISTING);
+        target = Files.createTempFile("fs-bench", ".dst");
+        fileUri = storage.storeFileFrom(TransferBenchmark.BUCKET, source, "read-" + size, "application/octet-stream",
+                null);
+        buffer = new byte[64 * 1024];
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        storage.deleteFile(fileUri);
+        storage.deleteFile(storage.parseFileLocation(fileUri).toUri().replace("read-", "write-"));
+        Files.deleteIfExists(source);
+        Files.deleteIfExists(target);
+    }
+
+    @Benchmark
+    public String storeFile() throws CloudException {
+        return storage.storeFile(TransferBenchmark.BUCKET, new PatternInputStream(size), "write-" + size,
+                "application/octet-stream", size, null);
+    }
+
+    @Benchmark
+    public String storeFileFrom() throws CloudException {
+        return storage.storeFileFrom(TransferBenchmark.BUCKET, source, "write-" + size, "application/octet-stream",
+                null);
+    }
+
+    @Benchmark
+    public long getFile() throws CloudException, IOException {
+        CloudFile file = storage.getFile(fileUri);
+        return TransferBenchmark.drain(file.getInputStream(), buffer);
+    }
+
+    @Benchmark
+    public long getFileTo() throws CloudException {
+        return storage.getFileTo(fileUri, target).getContentLength();
+    }
+}
@@ -0,0 +1,58 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage.benchmark;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.regions.Regions;
+import com.meloselo.storage.FileLocation;
+import com.meloselo.storage.S3CloudStorage;
+
+/**
+ * cost of parsing file uris, no requests are made
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileUriBenchmark {
+
+    @Param({"s3://US_EAST_1/bucket/file.txt", "s3://US_EAST_1/bucket/some/deeply/nested/path/to/a/file.txt"})
+    public String fileUri;
+
+    private S3CloudStorage storage;
+
+    @Setup
+    public void setUp() {
+        BasicAWSCredentials credentials = new BasicAWSCredentials("local", "local");
+        storage = new S3CloudStorage(credentials, credentials, Regions.US_EAST_1);
+    }
+
+    @SuppressWarnings("deprecation")
+    @Benchmark
+    public Map<String, String> parseFileUri() {
+        return storage.parseFileUri(fileUri);
+    }
+
+    @Benchmark
+    public FileLocation parseFileLocation() {
+        return storage.parseFileLocation(fileUri);
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage.benchmark;
+
+import java.io.InputStream;
+
+/**
+ * stream of a fixed number of generated bytes, so large uploads can be benchmarked without holding
+ * the content in memory. Supports mark/reset for client retries.
+ */
+public class PatternInputStream extends InputStream {
+
+    private final long length;
+    private long position;
+    private long mark;
+
+    /**
+     * @param length the number of bytes the stream returns
+     */
+    public PatternInputStream(long length) {
+        this.length = length;
+    }
+
+    @Override
+    public int read() {
+        if (position >= length) {
+            return -1;
+        }
+        return (int) (position++ & 0x7f);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+        if (position >= length) {
+            return -1;
+        }
+        int count = (int) Math.min(len, length - position);
+        for (int i = 0; i < count; i++) {
+            b[off + i] = (byte) ((position + i) & 0x7f);
+        }
+        position += count;
+        return count;
+    }
+
+    @Override
+    public long skip(long n) {
+        long skipped = Math.max(0, Math.min(n, length - position));
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, length - position);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+        mark = position;
+    }
+
+    @Override
+    public synchronized void reset() {
+        position = mark;
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.regions.Regions;
+import com.meloselo.storage.ChunkedDownloadConfig;
+import com.meloselo.storage.CloudException;
+import com.meloselo.storage.CloudFile;
+import com.meloselo.storage.LocalS3Server;
+import com.meloselo.storage.MultipartUploadConfig;
+import com.meloselo.storage.S3CloudStorage;
+
+/**
+ * storeFile and getFile against the local S3 server for object sizes from 1 KB to 1 GB. Reports
+ * operations per second and the latency distribution, bytes per second is size times operations per
+ * second. With parallel set uploads are multipart and downloads chunked.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+public class TransferBenchmark {
+
+    static final String BUCKET = "bench";
+
+    @Param({"1024", "1048576", "67108864", "1073741824"})
+    public long size;
+
+    @Param({"false", "true"})
+    public boolean parallel;
+
+    private LocalS3Server server;
+    private S3CloudStorage storage;
+    private String fileUri;
+    private byte[] buffer;
+
+    @Setup
+    public void setUp() throws Exception {
+        server = new LocalS3Server();
+        storage = new S3CloudStorage(server.newClient(), null, Regions.US_EAST_1);
+        if (parallel) {
+            storage.setMultipartUploadConfig(new MultipartUploadConfig());
+            storage.setChunkedDownloadConfig(new ChunkedDownloadConfig());
+        }
+        fileUri = storage.storeFile(BUCKET, new PatternInputStream(size), "read-" + size, "application/octet-stream",
+                size, null);
+        buffer = new byte[64 * 1024];
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    @Benchmark
+    public String storeFile() throws CloudException {
+        return storage.storeFile(BUCKET, new PatternInputStream(size), "write-" + size, "application/octet-stream",
+                size, null);
+    }
+
+    @Benchmark
+    public long getFile() throws CloudException, IOException {
+        CloudFile file = storage.getFile(fileUri);
+        return drain(file.getInputStream(), buffer);
+    }
+
+    static long drain(InputStream is, byte[] buffer) throws IOException {
+        long total = 0;
+        try {
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                total += read;
+            }
+        } finally {
+            is.close();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,56 @@
+package com.meloselo.storage;
+
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Map;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * non blocking counterpart of CloudStorage. Operations run on an executor and complete the returned
+ * future, failures complete it with the CloudException as cause. Implementations bound the number of
+ * operations in flight, operations beyond the bound are queued until one completes.
+ */
+public interface AsyncCloudStorage {
+
+    /**
+     * store file in the cloud. The InputStream is read on another thread and must not be used by
+     * the caller until the future completes.
+     *
+     * @param bucket the cloud bucket/store name
+     * @param is the file InputStream
+     * @param filename the name to store the file as
+     * @param contentType the contentType for file
+     * @param contentLength the contentLength for file
+     * @param metaData additional meta data to attach to file
+     * @return future of file uri after storage e.g. for S3 s3://{region}/{bucket}/{filename}
+     */
+    ListenableFuture<String> storeFileAsync(String bucket, InputStream is, String filename, String contentType,
+            long contentLength, Map<String, String> metaData);
+
+    /**
+     * fetch file using file uri. Care must be taken to consume and close the input stream from
+     * the CloudFile as soon as possible.
+     *
+     * @param fileUri the uri of file
+     * @return future of the CloudFile object with file input stream and file metadata
+     */
+    ListenableFuture<CloudFile> getFileAsync(String fileUri);
+
+    /**
+     * delete file using file uri
+     *
+     * @param fileUri the uri of the file to delete
+     * @return future completed when the file is deleted
+     */
+    ListenableFuture<Void> deleteFileAsync(String fileUri);
+
+    /**
+     * create url for a file which will expire in specified seconds.
+     *
+     * @param fileUri the uri of file
+     * @param expirySeconds the number of seconds after which this url will expire
+     * @return future of the url
+     */
+    ListenableFuture<URL> getExpiringUrlAsync(String fileUri, long expirySeconds);
+}
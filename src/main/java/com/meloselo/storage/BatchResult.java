@@ -0,0 +1,80 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * per file outcome of a batch operation. Files are identified by the uri they were passed in as.
+ */
+public class BatchResult {
+
+    private final List<String> succeeded = new ArrayList<String>();
+    private final Map<String, CloudException> failed = new LinkedHashMap<String, CloudException>();
+
+    public BatchResult() {
+        //do nothing
+    }
+
+    /**
+     * @return the uris of files the operation succeeded for
+     */
+    public List<String> getSucceeded() {
+        return Collections.unmodifiableList(succeeded);
+    }
+
+    /**
+     * @return the uris of files the operation failed for mapped to the error
+     */
+    public Map<String, CloudException> getFailed() {
+        return Collections.unmodifiableMap(failed);
+    }
+
+    /**
+     * @return true if the operation succeeded for all files
+     */
+    public boolean isSuccess() {
+        return failed.isEmpty();
+    }
+
+    /**
+     * @param fileUri the uri of file the operation succeeded for
+     * @return this object
+     */
+    public BatchResult addSucceeded(String fileUri) {
+        succeeded.add(fileUri);
+        return this;
+    }
+
+    /**
+     * @param fileUri the uri of file the operation failed for
+     * @param error the error
+     * @return this object
+     */
+    public BatchResult addFailed(String fileUri, CloudException error) {
+        failed.put(fileUri, error);
+        return this;
+    }
+
+    /**
+     * add all outcomes of another result to this one
+     *
+     * @param other the result to add
+     * @return this object
+     */
+    public BatchResult addAll(BatchResult other) {
+        succeeded.addAll(other.succeeded);
+        failed.putAll(other.failed);
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("BatchResult[succeeded=%d, failed=%d]", succeeded.size(), failed.size());
+    }
+}
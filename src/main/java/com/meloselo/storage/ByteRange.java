@@ -0,0 +1,86 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * an inclusive range of byte positions in a file, like the HTTP Range header. The last position may
+ * be left open to read up to the end of the file.
+ */
+public final class ByteRange {
+
+    private static final long OPEN = -1;
+
+    private final long first;
+    private final long last;
+
+    private ByteRange(long first, long last) {
+        this.first = first;
+        this.last = last;
+    }
+
+    /**
+     * @param first the first byte position, 0 based
+     * @param last the last byte position, inclusive
+     * @return the range first..last
+     */
+    public static ByteRange of(long first, long last) {
+        checkArgument(first >= 0, "first %s is negative", first);
+        checkArgument(last >= first, "last %s is before first %s", last, first);
+        return new ByteRange(first, last);
+    }
+
+    /**
+     * @param first the first byte position, 0 based
+     * @return the range from first to the end of the file
+     */
+    public static ByteRange from(long first) {
+        checkArgument(first >= 0, "first %s is negative", first);
+        return new ByteRange(first, OPEN);
+    }
+
+    /**
+     * @return the first byte position
+     */
+    public long getFirst() {
+        return first;
+    }
+
+    /**
+     * @return the last byte position, or -1 if the range is open ended
+     */
+    public long getLast() {
+        return last;
+    }
+
+    /**
+     * @return true if the range has a last byte position
+     */
+    public boolean hasLast() {
+        return last != OPEN;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (! (obj instanceof ByteRange)) {
+            return false;
+        }
+        ByteRange other = (ByteRange) obj;
+        return first == other.first && last == other.last;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (first ^ (first >>> 32)) * 31 + (int) (last ^ (last >>> 32));
+    }
+
+    /**
+     * @return the range in HTTP Range header format e.g. bytes=0-99 or bytes=100-
+     */
+    @Override
+    public String toString() {
+        return hasLast() ? "bytes=" + first + "-" + last : "bytes=" + first + "-";
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * copies file content to channels. Local files are sent with FileChannel.transferTo so the bytes do not
+ * pass through the java heap. Streams are copied through pooled buffers instead of a buffer per call.
+ */
+final class ChannelTransfers {
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    /** the most buffers kept for reuse */
+    private static final int MAX_POOLED = 64;
+
+    private static final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    private ChannelTransfers() {
+        //do nothing
+    }
+
+    /**
+     * copy a stream to the end of the data written to a channel so far
+     *
+     * @return the number of bytes copied
+     */
+    static long copy(InputStream in, WritableByteChannel out) throws IOException {
+        ByteBuffer buffer = acquire();
+        try {
+            long total = 0;
+            int read;
+            while ((read = in.read(buffer.array(), 0, buffer.capacity())) >= 0) {
+                buffer.limit(read);
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                buffer.clear();
+                total += read;
+            }
+            return total;
+        } finally {
+            release(buffer);
+        }
+    }
+
+    /**
+     * copy a stream to a file at a position, the position of the channel is not changed. Safe to call
+     * from many threads on one channel for distinct ranges.
+     *
+     * @return the number of bytes copied
+     */
+    static long copy(InputStream in, FileChannel out, long position) throws IOException {
+        ByteBuffer buffer = acquire();
+        try {
+            long total = 0;
+            int read;
+            while ((read = in.read(buffer.array(), 0, buffer.capacity())) >= 0) {
+                buffer.limit(read);
+                while (buffer.hasRemaining()) {
+                    total += out.write(buffer, position + total);
+                }
+                buffer.clear();
+            }
+            return total;
+        } finally {
+            release(buffer);
+        }
+    }
+
+    /**
+     * send count bytes of a file from position to a channel without copying them through the heap
+     *
+     * @return the number of bytes sent, less than count only if the file is shorter
+     */
+    static long transfer(FileChannel in, long position, long count, WritableByteChannel out) throws IOException {
+        long sent = 0;
+        while (sent < count) {
+            long n = in.transferTo(position + sent, count - sent, out);
+            if (n <= 0) {
+                if (position + sent >= in.size()) {
+                    break;
+                }
+                continue;
+            }
+            sent += n;
+        }
+        return sent;
+    }
+
+    private static ByteBuffer acquire() {
+        ByteBuffer buffer = pool.poll();
+        return buffer != null ? buffer : ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    private static void release(ByteBuffer buffer) {
+        buffer.clear();
+        if (pool.size() < MAX_POOLED) {
+            pool.offer(buffer);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * settings for parallel chunked downloads done by S3CloudStorage. The first chunk of a file is
+ * streamed straight from the first ranged GET while the following chunks are fetched ahead in
+ * parallel, at most chunkSize * maxChunksAhead bytes are buffered per download.
+ */
+public class ChunkedDownloadConfig {
+
+    private int chunkSize = 8 * 1024 * 1024;
+    private int maxChunksAhead = 4;
+
+    public ChunkedDownloadConfig() {
+        //do nothing
+    }
+
+    /**
+     * @return the size of each ranged GET in bytes
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @param chunkSize the size of each ranged GET in bytes
+     * @return this object
+     */
+    public ChunkedDownloadConfig setChunkSize(int chunkSize) {
+        checkArgument(chunkSize > 0, "chunkSize %s is not positive", chunkSize);
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    /**
+     * @return the number of chunks fetched ahead of the reader
+     */
+    public int getMaxChunksAhead() {
+        return maxChunksAhead;
+    }
+
+    /**
+     * @param maxChunksAhead the number of chunks fetched ahead of the reader, bounds memory and the
+     *      number of parallel GETs per download
+     * @return this object
+     */
+    public ChunkedDownloadConfig setMaxChunksAhead(int maxChunksAhead) {
+        checkArgument(maxChunksAhead > 0, "maxChunksAhead %s is not positive", maxChunksAhead);
+        this.maxChunksAhead = maxChunksAhead;
+        return this;
+    }
+}
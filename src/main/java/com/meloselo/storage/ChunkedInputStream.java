@@ -0,0 +1,159 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.google.common.io.Closeables;
+
+/**
+ * presents a file fetched as ordered ranged chunks as one InputStream. The first chunk is read from an
+ * already open stream while up to maxChunksAhead following chunks are fetched in parallel on the
+ * executor.
+ */
+class ChunkedInputStream extends InputStream {
+
+    /**
+     * fetches one chunk of a file
+     */
+    interface ChunkFetcher {
+
+        /**
+         * @param first the first byte position of the chunk
+         * @param last the last byte position of the chunk, inclusive
+         * @return the bytes of the chunk
+         * @throws Exception on fetch errors
+         */
+        byte[] fetch(long first, long last) throws Exception;
+    }
+
+    private final ChunkFetcher fetcher;
+    private final ExecutorService executor;
+    private final int chunkSize;
+    private final int maxChunksAhead;
+    private final long last;
+    private final Queue<Future<byte[]>> ahead = new ArrayDeque<Future<byte[]>>();
+
+    private InputStream current;
+    private long nextChunk;
+    private volatile boolean closed;
+
+    /**
+     * @param first the stream of the first chunk
+     * @param fetcher the fetcher for the following chunks
+     * @param executor the executor to fetch chunks on
+     * @param next the position of the first byte after the first chunk
+     * @param last the last byte position to read, inclusive
+     * @param chunkSize the size of each fetched chunk
+     * @param maxChunksAhead the number of chunks fetched ahead of the reader
+     */
+    ChunkedInputStream(InputStream first, ChunkFetcher fetcher, ExecutorService executor, long next, long last,
+            int chunkSize, int maxChunksAhead) {
+        this.current = first;
+        this.fetcher = fetcher;
+        this.executor = executor;
+        this.nextChunk = next;
+        this.last = last;
+        this.chunkSize = chunkSize;
+        this.maxChunksAhead = maxChunksAhead;
+        fillAhead();
+    }
+
+    @Override
+    public int read() throws IOException {
+        while (true) {
+            int b = current().read();
+            if (b >= 0 || ! advance()) {
+                return b;
+            }
+        }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (true) {
+            int read = current().read(b, off, len);
+            if (read >= 0 || ! advance()) {
+                return read;
+            }
+        }
+    }
+
+    @Override
+    public int available() throws IOException {
+        return closed ? 0 : current.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (Future<byte[]> future : ahead) {
+            future.cancel(false);
+        }
+        ahead.clear();
+        current.close();
+    }
+
+    private InputStream current() throws IOException {
+        if (closed) {
+            throw new IOException("stream closed");
+        }
+        return current;
+    }
+
+    /**
+     * move to the next fetched chunk
+     *
+     * @return false at the end of the file
+     */
+    private boolean advance() throws IOException {
+        Future<byte[]> future = ahead.poll();
+        if (future == null) {
+            return false;
+        }
+        Closeables.close(current, true);
+        try {
+            current = new ByteArrayInputStream(future.get());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for chunk");
+        } catch (ExecutionException ex) {
+            throw new IOException("error fetching chunk", ex.getCause());
+        }
+        fillAhead();
+        return true;
+    }
+
+    private void fillAhead() {
+        while (ahead.size() < maxChunksAhead && nextChunk <= last) {
+            final long first = nextChunk;
+            final long chunkLast = Math.min(last, first + chunkSize - 1);
+            ahead.add(executor.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws Exception {
+                    if (closed) {
+                        throw new IOException("stream closed");
+                    }
+                    return fetcher.fetch(first, chunkLast);
+                }
+            }));
+            nextChunk = chunkLast + 1;
+        }
+    }
+}
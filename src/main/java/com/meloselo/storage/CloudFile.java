@@ -16,7 +16,9 @@ public class CloudFile {
 
     private InputStream inputStream;
     private long contentLength;
+    private long totalLength;
     private String contentType;
+    private String eTag;
     private Map<String, String> metaData;
     
     public CloudFile() {
@@ -55,6 +57,22 @@ public class CloudFile {
         return this;
     }
 
+    /**
+     * @return the length of the whole file, differs from contentLength when a range was fetched
+     */
+    public long getTotalLength() {
+        return totalLength;
+    }
+
+    /**
+     * @param totalLength the length of the whole file
+     * @return this object
+     */
+    public CloudFile setTotalLength(long totalLength) {
+        this.totalLength = totalLength;
+        return this;
+    }
+
     /**
      * @return the contentType
      */
@@ -71,6 +89,22 @@ public class CloudFile {
         return this;
     }
 
+    /**
+     * @return the eTag identifying this version of the file, may be null
+     */
+    public String getETag() {
+        return eTag;
+    }
+
+    /**
+     * @param eTag the eTag to set
+     * @return this object
+     */
+    public CloudFile setETag(String eTag) {
+        this.eTag = eTag;
+        return this;
+    }
+
     /**
      * @return the metaData
      */
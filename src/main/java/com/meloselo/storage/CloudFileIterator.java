@@ -0,0 +1,17 @@
+package com.meloselo.storage;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * lazily fetched listing of files. Errors fetching the listing are thrown from hasNext and next as
+ * UncheckedCloudException. Close the iterator if it is not read to the end so background fetches stop.
+ */
+public interface CloudFileIterator extends Iterator<CloudFileSummary>, Closeable {
+
+    /**
+     * stop fetching the listing, does not throw
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,61 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+/**
+ * lightweight listing entry of a file in cloud storage
+ */
+public final class CloudFileSummary {
+
+    private final String fileUri;
+    private final long size;
+    private final String eTag;
+    private final long lastModified;
+
+    /**
+     * @param fileUri the uri of file
+     * @param size the size of file in bytes
+     * @param eTag the eTag of file
+     * @param lastModified the time the file was last modified in millis
+     */
+    public CloudFileSummary(String fileUri, long size, String eTag, long lastModified) {
+        this.fileUri = fileUri;
+        this.size = size;
+        this.eTag = eTag;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * @return the uri of file
+     */
+    public String getFileUri() {
+        return fileUri;
+    }
+
+    /**
+     * @return the size of file in bytes
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the eTag of file
+     */
+    public String getETag() {
+        return eTag;
+    }
+
+    /**
+     * @return the time the file was last modified in millis
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CloudFileSummary[%s, size=%d, eTag=%s]", fileUri, size, eTag);
+    }
+}
@@ -0,0 +1,200 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.amazonaws.AmazonServiceException;
+
+/**
+ * CloudStorageListener keeping per operation and per bucket latency histograms, error counts, in-flight
+ * gauges and transfer rates. Recording is lock free and does not allocate once a bucket has been seen.
+ * Stats can be read directly or through JMX after registerMBean.
+ */
+public class CloudMetrics implements CloudStorageListener, CloudMetricsMXBean {
+
+    /** the bucket name of the totals of an operation over all buckets */
+    public static final String ALL_BUCKETS = "*";
+
+    private final Map<CloudOperation, OperationEntry> operations =
+            new EnumMap<CloudOperation, OperationEntry>(CloudOperation.class);
+
+    public CloudMetrics() {
+        for (CloudOperation operation : CloudOperation.values()) {
+            operations.put(operation, new OperationEntry(operation));
+        }
+    }
+
+    @Override
+    public void onStart(CloudOperation operation, String bucket) {
+        OperationEntry entry = operations.get(operation);
+        entry.total.start();
+        if (bucket != null) {
+            entry.forBucket(bucket).start();
+        }
+    }
+
+    @Override
+    public void onComplete(CloudOperation operation, String bucket, long nanos, Throwable error) {
+        OperationEntry entry = operations.get(operation);
+        String cause = error == null ? null : causeOf(error);
+        entry.total.complete(nanos, cause);
+        if (bucket != null) {
+            entry.forBucket(bucket).complete(nanos, cause);
+        }
+    }
+
+    @Override
+    public void onTransfer(CloudOperation operation, String bucket, long bytes, long nanos) {
+        OperationEntry entry = operations.get(operation);
+        entry.total.transfer(bytes, nanos);
+        if (bucket != null) {
+            entry.forBucket(bucket).transfer(bytes, nanos);
+        }
+    }
+
+    /**
+     * @param operation the operation
+     * @return the latency histogram of the operation over all buckets
+     */
+    public LatencyHistogram getLatency(CloudOperation operation) {
+        return operations.get(operation).total.getLatency();
+    }
+
+    /**
+     * @param operation the operation
+     * @param bucket the bucket
+     * @return the latency histogram of the operation on the bucket
+     */
+    public LatencyHistogram getLatency(CloudOperation operation, String bucket) {
+        return operations.get(operation).forBucket(bucket).getLatency();
+    }
+
+    /**
+     * @param operation the operation
+     * @return the stats of the operation over all buckets
+     */
+    public OperationStats getStats(CloudOperation operation) {
+        return operations.get(operation).total.snapshot();
+    }
+
+    /**
+     * @param operation the operation
+     * @param bucket the bucket
+     * @return the stats of the operation on the bucket
+     */
+    public OperationStats getStats(CloudOperation operation, String bucket) {
+        return operations.get(operation).forBucket(bucket).snapshot();
+    }
+
+    @Override
+    public List<OperationStats> getOperations() {
+        List<OperationStats> stats = new ArrayList<OperationStats>();
+        for (OperationEntry entry : operations.values()) {
+            if (entry.total.getLatency().getCount() == 0 && entry.total.getInFlight() == 0) {
+                continue;
+            }
+            stats.add(entry.total.snapshot());
+            for (OperationMetrics metrics : entry.buckets.values()) {
+                stats.add(metrics.snapshot());
+            }
+        }
+        return stats;
+    }
+
+    @Override
+    public long getInFlight() {
+        long inFlight = 0;
+        for (OperationEntry entry : operations.values()) {
+            inFlight += entry.total.getInFlight();
+        }
+        return inFlight;
+    }
+
+    @Override
+    public long getErrors() {
+        long errors = 0;
+        for (OperationEntry entry : operations.values()) {
+            errors += entry.total.getErrors();
+        }
+        return errors;
+    }
+
+    /**
+     * register with the platform MBeanServer as com.meloselo.storage:type=CloudMetrics,name={name}
+     * 
+     * @param name the name to tell storages apart
+     * @return the name registered as
+     * @throws JMException if the name is invalid or already registered
+     */
+    public ObjectName registerMBean(String name) throws JMException {
+        ObjectName objectName = objectName(name);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+
+    /**
+     * @param name the name given to registerMBean
+     * @throws JMException if the name is invalid or not registered
+     */
+    public void unregisterMBean(String name) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName(name));
+    }
+
+    private static ObjectName objectName(String name) throws JMException {
+        return new ObjectName("com.meloselo.storage:type=CloudMetrics,name=" + ObjectName.quote(name));
+    }
+
+    /**
+     * @return the S3 error code or class name of the underlying cause of an error
+     */
+    static String causeOf(Throwable error) {
+        Throwable cause = error;
+        while ((cause instanceof CloudException || cause instanceof UncheckedCloudException
+                || cause instanceof ExecutionException) && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        if (cause instanceof AmazonServiceException) {
+            AmazonServiceException serviceError = (AmazonServiceException) cause;
+            return serviceError.getErrorCode() != null
+                    ? serviceError.getErrorCode() : "HTTP " + serviceError.getStatusCode();
+        }
+        return cause.getClass().getSimpleName();
+    }
+
+    private static class OperationEntry {
+
+        private final CloudOperation operation;
+        private final OperationMetrics total;
+        private final ConcurrentMap<String, OperationMetrics> buckets =
+                new ConcurrentHashMap<String, OperationMetrics>();
+
+        OperationEntry(CloudOperation operation) {
+            this.operation = operation;
+            this.total = new OperationMetrics(operation, ALL_BUCKETS);
+        }
+
+        OperationMetrics forBucket(String bucket) {
+            OperationMetrics metrics = buckets.get(bucket);
+            if (metrics == null) {
+                OperationMetrics created = new OperationMetrics(operation, bucket);
+                metrics = buckets.putIfAbsent(bucket, created);
+                if (metrics == null) {
+                    metrics = created;
+                }
+            }
+            return metrics;
+        }
+    }
+}
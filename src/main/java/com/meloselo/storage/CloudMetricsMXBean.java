@@ -0,0 +1,27 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import java.util.List;
+
+/**
+ * JMX view of CloudMetrics
+ */
+public interface CloudMetricsMXBean {
+
+    /**
+     * @return the stats of every operation seen, the totals for all buckets followed by each bucket
+     */
+    List<OperationStats> getOperations();
+
+    /**
+     * @return the number of calls in progress over all operations
+     */
+    long getInFlight();
+
+    /**
+     * @return the number of failed calls over all operations
+     */
+    long getErrors();
+}
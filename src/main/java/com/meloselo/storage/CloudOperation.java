@@ -0,0 +1,25 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+/**
+ * the CloudStorage operations reported to a CloudStorageListener
+ */
+public enum CloudOperation {
+    STORE_FILE,
+    STORE_FILE_FROM,
+    OPEN_FOR_WRITE,
+    GET_FILE,
+    GET_FILE_TO,
+    GET_FILE_IF_CHANGED,
+    GET_FILE_METADATA,
+    EXISTS,
+    DELETE_FILE,
+    DELETE_FILES,
+    COPY_FILE,
+    MOVE_FILE,
+    COPY_FILES,
+    LIST_FILES,
+    GET_EXPIRING_URL
+}
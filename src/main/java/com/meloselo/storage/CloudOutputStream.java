@@ -0,0 +1,112 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * stream writing a file to the cloud, returned by CloudStorage.openForWrite. close stores the bytes
+ * written so far and getFileUri then returns the uri of the stored file. Call abort instead of close if
+ * the data is incomplete, nothing is stored then. If a write fails the stream is aborted and close
+ * throws. Not safe for use by more than one thread.
+ */
+public abstract class CloudOutputStream extends OutputStream {
+
+    private final byte[] single = new byte[1];
+    private boolean closed;
+    private boolean failed;
+    private String fileUri;
+
+    protected CloudOutputStream() {
+        //do nothing
+    }
+
+    /**
+     * @return file uri after close e.g. for S3 s3://{region}/{bucket}/{filename}, null until closed
+     */
+    public String getFileUri() {
+        return fileUri;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        single[0] = (byte) b;
+        write(single, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (closed) {
+            throw new IOException(failed ? "stream aborted after write error" : "stream closed");
+        }
+        if (len == 0) {
+            return;
+        }
+        try {
+            writeBytes(b, off, len);
+        } catch (IOException | RuntimeException ex) {
+            failed = true;
+            abort();
+            throw ex;
+        }
+    }
+
+    /**
+     * store the bytes written, safe to call more than once
+     *
+     * @throws IOException if the file could not be stored, the cause is the CloudException
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            if (failed) {
+                throw new IOException("stream aborted after write error");
+            }
+            return;
+        }
+        closed = true;
+        try {
+            fileUri = complete();
+        } catch (CloudException ex) {
+            failed = true;
+            throw new IOException(ex.getMessage(), ex);
+        } catch (RuntimeException ex) {
+            failed = true;
+            throw ex;
+        }
+    }
+
+    /**
+     * discard the bytes written without storing them, does nothing once closed
+     */
+    public void abort() {
+        if (! closed) {
+            closed = true;
+            discard();
+        }
+    }
+
+    /**
+     * @param b the bytes to add to the file
+     * @param off the offset of the first byte
+     * @param len the number of bytes, more than 0
+     * @throws IOException on errors sending or buffering the bytes
+     */
+    protected abstract void writeBytes(byte[] b, int off, int len) throws IOException;
+
+    /**
+     * @return file uri after storage
+     * @throws CloudException on Cloud Storage Service/Client errors
+     */
+    protected abstract String complete() throws CloudException;
+
+    /**
+     * release what is held for the file, called once instead of complete
+     */
+    protected abstract void discard();
+}
@@ -2,6 +2,9 @@ package com.meloselo.storage;
 
 import java.io.InputStream;
 import java.net.URL;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.Collection;
 import java.util.Map;
 
 public interface CloudStorage {
@@ -11,9 +14,19 @@ public interface CloudStorage {
      * 
      * @param fileUri the uri of file
      * @return Map<String, String> with keys region, bucket and filename mapped to values in uri 
+     * @deprecated use parseFileLocation
      */
+    @Deprecated
     Map<String, String> parseFileUri(String fileUri);
 
+    /**
+     * parse fileUri to its location
+     * 
+     * @param fileUri the uri of file
+     * @return the location with region, bucket and key in uri
+     */
+    FileLocation parseFileLocation(String fileUri);
+
     /**
      * store file in the cloud
      * 
@@ -28,6 +41,36 @@ public interface CloudStorage {
      */
     String storeFile(String bucket, InputStream is, String filename, String contentType,
             long contentLength, Map<String, String> metaData) throws CloudException;
+
+    /**
+     * store a local file in the cloud, reading it straight from disk without copying it through an
+     * InputStream where the implementation allows
+     * 
+     * @param bucket the cloud bucket/store name
+     * @param path the local file
+     * @param filename the name to store the file as
+     * @param contentType the contentType for file
+     * @param metaData additional meta data to attach to file
+     * @return file uri after storage e.g. for S3 s3://{region}/{bucket}/{filename}
+     * @throws CloudException on Cloud Storage Service/Client errors or if the local file can not be read
+     */
+    String storeFileFrom(String bucket, Path path, String filename, String contentType,
+            Map<String, String> metaData) throws CloudException;
+    
+    /**
+     * open a stream to store a file in the cloud as it is written, for data produced on the fly. The file
+     * is stored by close of the stream, its uri is then returned by getFileUri. Where the implementation
+     * allows the file is uploaded in parts while it is written.
+     * 
+     * @param bucket the cloud bucket/store name
+     * @param filename the name to store the file as
+     * @param contentType the contentType for file
+     * @param metaData additional meta data to attach to file
+     * @return the stream to write the file to, must be closed or aborted
+     * @throws CloudException on Cloud Storage Service/Client errors
+     */
+    CloudOutputStream openForWrite(String bucket, String filename, String contentType,
+            Map<String, String> metaData) throws CloudException;
     
     /**
      * fetch file using file uri. Care must be taken to consume and close the input stream from 
@@ -40,6 +83,89 @@ public interface CloudStorage {
      */
     CloudFile getFile(String fileUri) throws CloudException;
 
+    /**
+     * fetch part of a file using file uri. The contentLength of the returned CloudFile is the length
+     * of the range read, totalLength is the length of the whole file. Care must be taken to consume
+     * and close the input stream as with getFile(fileUri).
+     * 
+     * @param fileUri the uri of file
+     * @param range the byte range to read, last position may be beyond the end of file
+     * @return the CloudFile object with input stream of the range and file metadata 
+     * @throws CloudException on Cloud Storage Service/Client errors
+     */
+    CloudFile getFile(String fileUri, ByteRange range) throws CloudException;
+
+    /**
+     * fetch file using file uri unless it still has the given eTag, i.e. a conditional GET. Care must 
+     * be taken to consume and close the input stream as with getFile(fileUri).
+     * 
+     * @param fileUri the uri of file
+     * @param eTag the eTag of the version of the file the caller has
+     * @return the CloudFile object with file input stream and file metadata, or null if the file 
+     *      has not changed
+     * @throws CloudException on Cloud Storage Service/Client errors
+     */
+    CloudFile getFileIfChanged(String fileUri, String eTag) throws CloudException;
+
+    /**
+     * fetch only the metadata of a file using file uri, without opening its content
+     * 
+     * @param fileUri the uri of file
+     * @return the CloudFile object with file metadata and no input stream, or null if the file 
+     *      does not exist
+     * @throws CloudException on Cloud Storage Service/Client errors
+     */
+    CloudFile getFileMetadata(String fileUri) throws CloudException;
+
+    /**
+     * check if a file exists using file uri, without opening its content
+     * 
+     * @param fileUri the uri of file
+     * @return true if the file exists
+     * @throws CloudException on Cloud Storage Service/Client errors
+     */
+    boolean exists(String fileUri) throws CloudException;
+
+    /**
+     * fetch file using its parsed location, see getFile(fileUri)
+     * 
+     * @param location the location of file
+     * @return the CloudFile object with file input stream and file metadata 
+     * @throws CloudException on Cloud Storage Service/Client errors
+     */
+    CloudFile getFile(FileLocation location) throws CloudException;
+
+    /**
+     * fetch part of a file using its parsed location, see getFile(fileUri, range)
+     * 
+     * @param location the location of file
+     * @param range the byte range to read
+     * @return the CloudFile object with input stream of the range and file metadata 
+     * @throws CloudException on Cloud Storage Service/Client errors
+     */
+    CloudFile getFile(FileLocation location, ByteRange range) throws CloudException;
+
+    /**
+     * fetch file using file uri and write it to a local file, replacing its content
+     * 
+     * @param fileUri the uri of file
+     * @param path the local file to write
+     * @return the CloudFile object with file metadata and no input stream
+     * @throws CloudException on Cloud Storage Service/Client errors or if the local file can not be written
+     */
+    CloudFile getFileTo(String fileUri, Path path) throws CloudException;
+
+    /**
+     * fetch file using file uri and write it to a channel, e.g. a socket or a FileChannel at its current
+     * position. The channel is not closed.
+     * 
+     * @param fileUri the uri of file
+     * @param channel the channel to write the file to
+     * @return the CloudFile object with file metadata and no input stream
+     * @throws CloudException on Cloud Storage Service/Client errors or if the channel can not be written
+     */
+    CloudFile getFileTo(String fileUri, WritableByteChannel channel) throws CloudException;
+
     /**
      * delete file using file uri
      * 
@@ -48,6 +174,69 @@ public interface CloudStorage {
      */
     void deleteFile(String fileUri) throws CloudException;
 
+    /**
+     * delete file using its parsed location
+     * 
+     * @param location the location of the file to delete
+     * @throws CloudException on Cloud Storage Service/Client errors
+     */
+    void deleteFile(FileLocation location) throws CloudException;
+
+    /**
+     * delete many files using file uris. Failures are reported per file, the batch does not stop
+     * at the first error.
+     * 
+     * @param fileUris the uris of the files to delete
+     * @return the uris deleted and the uris failed with their error
+     * @throws CloudException if the batch as a whole could not be run
+     */
+    BatchResult deleteFiles(Collection<String> fileUris) throws CloudException;
+
+    /**
+     * copy a file to another name, within the cloud storage without reading it through the client where
+     * the implementation allows. Content type and meta data are copied with the file.
+     * 
+     * @param srcUri the uri of the file to copy
+     * @param dstBucket the cloud bucket/store name to copy to
+     * @param dstFilename the name to store the copy as
+     * @return file uri of the copy
+     * @throws CloudException on Cloud Storage Service/Client errors
+     */
+    String copyFile(String srcUri, String dstBucket, String dstFilename) throws CloudException;
+
+    /**
+     * move a file to another name, as copyFile followed by deleteFile of the source unless the
+     * implementation can rename files
+     * 
+     * @param srcUri the uri of the file to move
+     * @param dstBucket the cloud bucket/store name to move to
+     * @param dstFilename the name to store the file as
+     * @return file uri after the move
+     * @throws CloudException on Cloud Storage Service/Client errors
+     */
+    String moveFile(String srcUri, String dstBucket, String dstFilename) throws CloudException;
+
+    /**
+     * copy many files, running the copies concurrently where the implementation allows. Failures are
+     * reported per file, the batch does not stop at the first error.
+     * 
+     * @param fileUris the uris of the files to copy mapped to the uris to copy them to
+     * @return the source uris copied and the source uris failed with their error
+     * @throws CloudException if the batch as a whole could not be run
+     */
+    BatchResult copyFiles(Map<String, String> fileUris) throws CloudException;
+
+    /**
+     * list files in a bucket whose names start with prefix. The listing is fetched lazily page by
+     * page while iterating.
+     * 
+     * @param bucket the cloud bucket/store name
+     * @param prefix the filename prefix, null or empty to list all files
+     * @return iterator over the files, close it if not read to the end
+     * @throws CloudException on Cloud Storage Service/Client errors fetching the first page
+     */
+    CloudFileIterator listFiles(String bucket, String prefix) throws CloudException;
+
     /**
      * create url for a file which will expire in specified seconds.
      * 
@@ -57,4 +246,14 @@ public interface CloudStorage {
      */
     URL getExpiringUrl(String fileUri, long expirySeconds)
             throws CloudException;
+
+    /**
+     * create url for a file which will expire in specified seconds.
+     * 
+     * @param location the location of file
+     * @param expirySeconds the number of seconds after which this url will expire
+     * @return the url
+     */
+    URL getExpiringUrl(FileLocation location, long expirySeconds)
+            throws CloudException;
 }
\ No newline at end of file
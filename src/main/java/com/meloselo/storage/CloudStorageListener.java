@@ -0,0 +1,40 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+/**
+ * receives the timings of CloudStorage operations from InstrumentedCloudStorage. Methods are called on
+ * the thread making the call and must be fast and thread safe, they must not throw.
+ */
+public interface CloudStorageListener {
+
+    /**
+     * an operation started
+     * 
+     * @param operation the operation
+     * @param bucket the bucket the operation is on, null if it spans buckets
+     */
+    void onStart(CloudOperation operation, String bucket);
+
+    /**
+     * an operation started with onStart completed
+     * 
+     * @param operation the operation
+     * @param bucket the bucket the operation is on, null if it spans buckets
+     * @param nanos the time the call took in nanoseconds, for getFile until the stream was returned
+     * @param error the error the operation failed with, null if it succeeded
+     */
+    void onComplete(CloudOperation operation, String bucket, long nanos, Throwable error);
+
+    /**
+     * file content was uploaded or downloaded. For uploads this is reported when storeFile returns, for
+     * downloads when the returned stream is read to the end or closed.
+     * 
+     * @param operation STORE_FILE for uploads, GET_FILE or GET_FILE_IF_CHANGED for downloads
+     * @param bucket the bucket of the file
+     * @param bytes the number of bytes transferred
+     * @param nanos the time from the start of the operation to the end of the transfer in nanoseconds
+     */
+    void onTransfer(CloudOperation operation, String bucket, long bytes, long nanos);
+}
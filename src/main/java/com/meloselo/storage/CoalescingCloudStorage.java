@@ -0,0 +1,428 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.base.Strings;
+import com.google.common.io.Closeables;
+
+/**
+ * CloudStorage sending one GET at a time per file uri. A getFile of a uri whose body is still being read
+ * from the cloud joins that fetch instead of sending its own GET. The body is kept in a buffer shared by
+ * all readers of the fetch, the first maxMemoryBytes in memory and the rest in a temporary file, and is
+ * released when the last reader closes its stream. Each reader gets its own CloudFile and stream reading
+ * from the start of the body, the fastest reader pulls the body from the cloud.
+ *
+ * Only getFile is coalesced, ranged and conditional gets are forwarded.
+ */
+public class CoalescingCloudStorage extends ForwardingCloudStorage {
+
+    private static final Log log = LogFactory.getLog(CoalescingCloudStorage.class);
+
+    private static final int BLOCK_SIZE = ChannelTransfers.BUFFER_SIZE;
+
+    private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+    private final AtomicLong fetches = new AtomicLong();
+    private final AtomicLong joins = new AtomicLong();
+    private volatile long maxMemoryBytes = 1024 * 1024;
+    private volatile Path spillDir;
+
+    /**
+     * @param delegate the storage to fetch files from, required
+     */
+    public CoalescingCloudStorage(CloudStorage delegate) {
+        super(delegate);
+    }
+
+    /**
+     * @param maxMemoryBytes the bytes of each shared body kept in memory, the rest is spilled to a file
+     * @return this object
+     */
+    public CoalescingCloudStorage setMaxMemoryBytes(long maxMemoryBytes) {
+        checkArgument(maxMemoryBytes >= 0, "maxMemoryBytes %s is negative", maxMemoryBytes);
+        this.maxMemoryBytes = maxMemoryBytes;
+        return this;
+    }
+
+    /**
+     * @param spillDir the directory for spilled bodies, null for the default temporary directory
+     * @return this object
+     */
+    public CoalescingCloudStorage setSpillDir(Path spillDir) {
+        this.spillDir = spillDir;
+        return this;
+    }
+
+    /**
+     * @return the number of getFile calls that sent a GET
+     */
+    public long getFetchCount() {
+        return fetches.get();
+    }
+
+    /**
+     * @return the number of getFile calls that joined the GET of another call
+     */
+    public long getCoalescedCount() {
+        return joins.get();
+    }
+
+    /**
+     * @return the number of uris with a shared fetch open to new readers
+     */
+    public int getInFlightCount() {
+        return flights.size();
+    }
+
+    /**
+     * fetch file, joining the fetch of another caller for the same uri if one is in progress
+     */
+    @Override
+    public CloudFile getFile(String fileUri) throws CloudException {
+        checkArgument(! Strings.isNullOrEmpty(fileUri), "fileUri is null");
+        while (true) {
+            Flight flight = flights.get(fileUri);
+            if (flight == null) {
+                flight = new Flight(fileUri);
+                if (flights.putIfAbsent(fileUri, flight) == null) {
+                    fetches.incrementAndGet();
+                    return flight.open();
+                }
+            } else if (flight.join()) {
+                joins.incrementAndGet();
+                return flight.await();
+            } else {
+                flights.remove(fileUri, flight);
+            }
+        }
+    }
+
+    @Override
+    public CloudFile getFile(FileLocation location) throws CloudException {
+        checkArgument(location != null, "location is null");
+        return getFile(location.toUri());
+    }
+
+    /**
+     * one GET and the body read so far, shared by its readers. Bytes below available never change, so
+     * readers copy them outside the lock. Only the reader holding filling reads from the cloud.
+     */
+    private class Flight {
+
+        private final String fileUri;
+        private final long memoryCapacity;
+        private final Path spillDir;
+
+        private final List<byte[]> chunks = new ArrayList<byte[]>();
+        private byte[] scratch;
+        private int refs = 1;
+        private boolean joinable = true;
+        private boolean opened;
+        private Exception openError;
+        private CloudFile file;
+        private InputStream upstream;
+        private long available;
+        private boolean filling;
+        private boolean eof;
+        private IOException readError;
+        private Path spill;
+        private FileChannel spillChannel;
+
+        Flight(String fileUri) {
+            this.fileUri = fileUri;
+            long max = maxMemoryBytes;
+            this.memoryCapacity = (max + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+            this.spillDir = CoalescingCloudStorage.this.spillDir;
+        }
+
+        /**
+         * send the GET, called by the reader that created this flight
+         */
+        CloudFile open() throws CloudException {
+            CloudFile source;
+            try {
+                source = delegate().getFile(fileUri);
+            } catch (CloudException | RuntimeException ex) {
+                synchronized (this) {
+                    openError = ex;
+                    opened = true;
+                    joinable = false;
+                    notifyAll();
+                }
+                flights.remove(fileUri, this);
+                throw ex;
+            }
+            synchronized (this) {
+                file = source;
+                upstream = source == null ? null : source.getInputStream();
+                opened = true;
+                if (upstream == null) {
+                    joinable = false;
+                }
+                notifyAll();
+            }
+            if (upstream == null) {
+                flights.remove(fileUri, this);
+                return source;
+            }
+            return newReaderFile();
+        }
+
+        synchronized boolean join() {
+            if (! joinable) {
+                return false;
+            }
+            refs++;
+            return true;
+        }
+
+        /**
+         * wait for the GET sent by the reader that created this flight
+         */
+        CloudFile await() throws CloudException {
+            synchronized (this) {
+                try {
+                    while (! opened) {
+                        wait();
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    release();
+                    throw new CloudException(String.format("Interrupted waiting for fetch of file %s", fileUri), ex);
+                }
+                if (openError != null) {
+                    throw new CloudException(String.format("Error fetching file %s", fileUri), openError);
+                }
+                if (upstream == null) {
+                    return file;
+                }
+            }
+            return newReaderFile();
+        }
+
+        private CloudFile newReaderFile() {
+            return new CloudFile()
+                .setInputStream(new Reader(this))
+                .setContentLength(file.getContentLength())
+                .setTotalLength(file.getTotalLength())
+                .setContentType(file.getContentType())
+                .setETag(file.getETag())
+                .setMetaData(file.getMetaData() == null ? null : new HashMap<String, String>(file.getMetaData()));
+        }
+
+        /**
+         * read bytes at position, pulling more of the body from the cloud if no other reader is
+         *
+         * @return the number of bytes read, -1 at the end of the body
+         */
+        int read(long position, byte[] b, int off, int len) throws IOException {
+            while (true) {
+                long end;
+                byte[] chunk = null;
+                FileChannel channel;
+                synchronized (this) {
+                    try {
+                        while (position >= available && filling && ! eof && readError == null) {
+                            wait();
+                        }
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted reading file " + fileUri);
+                    }
+                    end = available;
+                    channel = spillChannel;
+                    if (position < end) {
+                        if (position < memoryCapacity) {
+                            chunk = chunks.get((int) (position / BLOCK_SIZE));
+                        }
+                    } else if (readError != null) {
+                        throw new IOException("Error reading file " + fileUri, readError);
+                    } else if (eof) {
+                        return -1;
+                    } else {
+                        filling = true;
+                    }
+                }
+                if (position >= end) {
+                    fill();
+                } else if (chunk != null) {
+                    int offset = (int) (position % BLOCK_SIZE);
+                    int count = (int) Math.min(Math.min(len, BLOCK_SIZE - offset), end - position);
+                    System.arraycopy(chunk, offset, b, off, count);
+                    return count;
+                } else {
+                    int count = (int) Math.min(len, end - position);
+                    return channel.read(ByteBuffer.wrap(b, off, count), position - memoryCapacity);
+                }
+            }
+        }
+
+        /**
+         * read the next block of the body from the cloud, called with filling set
+         */
+        private void fill() {
+            long at;
+            byte[] chunk = null;
+            synchronized (this) {
+                at = available;
+                if (at < memoryCapacity) {
+                    if (at % BLOCK_SIZE == 0) {
+                        chunks.add(new byte[BLOCK_SIZE]);
+                    }
+                    chunk = chunks.get((int) (at / BLOCK_SIZE));
+                } else if (scratch == null) {
+                    scratch = new byte[BLOCK_SIZE];
+                }
+            }
+            int read = 0;
+            IOException error = null;
+            try {
+                if (chunk != null) {
+                    int offset = (int) (at % BLOCK_SIZE);
+                    read = upstream.read(chunk, offset, BLOCK_SIZE - offset);
+                } else {
+                    read = upstream.read(scratch, 0, BLOCK_SIZE);
+                    if (read > 0) {
+                        spill(at - memoryCapacity, read);
+                    }
+                }
+            } catch (IOException ex) {
+                error = ex;
+            }
+            boolean done;
+            synchronized (this) {
+                filling = false;
+                if (error != null) {
+                    readError = error;
+                } else if (read < 0) {
+                    eof = true;
+                } else {
+                    available += read;
+                }
+                done = error != null || read < 0;
+                if (done) {
+                    joinable = false;
+                }
+                notifyAll();
+            }
+            if (done) {
+                flights.remove(fileUri, this);
+            }
+        }
+
+        private void spill(long position, int count) throws IOException {
+            FileChannel channel;
+            synchronized (this) {
+                if (spillChannel == null) {
+                    spill = spillDir == null ? Files.createTempFile("coalesce-", ".spill")
+                            : Files.createTempFile(spillDir, "coalesce-", ".spill");
+                    spillChannel = FileChannel.open(spill, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                }
+                channel = spillChannel;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(scratch, 0, count);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, position + buffer.position());
+            }
+        }
+
+        synchronized long available(long position) {
+            return Math.max(0, available - position);
+        }
+
+        /**
+         * drop a reader, the last one closes the GET and frees the buffer
+         */
+        void release() {
+            synchronized (this) {
+                if (--refs > 0) {
+                    return;
+                }
+                joinable = false;
+                chunks.clear();
+            }
+            flights.remove(fileUri, this);
+            Closeables.closeQuietly(upstream);
+            if (spillChannel != null) {
+                try {
+                    spillChannel.close();
+                    Files.deleteIfExists(spill);
+                } catch (IOException ex) {
+                    log.warn("Error deleting spill file " + spill, ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * stream of one reader over the shared body
+     */
+    private static class Reader extends InputStream {
+
+        private final Flight flight;
+        private long position;
+        private boolean closed;
+
+        Reader(Flight flight) {
+            this.flight = flight;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n;
+            while ((n = read(b, 0, 1)) == 0) {
+                // retry
+            }
+            return n < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("stream closed");
+            }
+            if (len == 0) {
+                return 0;
+            }
+            int n = flight.read(position, b, off, len);
+            if (n > 0) {
+                position += n;
+            }
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return closed ? 0 : (int) Math.min(Integer.MAX_VALUE, flight.available(position));
+        }
+
+        @Override
+        public void close() {
+            if (! closed) {
+                closed = true;
+                flight.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * settings for the adaptive limit on concurrent S3 requests of S3CloudStorage. Reads and writes of each
+ * bucket and key prefix have their own limit, found by additive increase and multiplicative decrease: a
+ * request completing while the limit is at least half used raises it by 1/limit, about one per round trip,
+ * a request answered 503 SlowDown or a read slower than slowLatencyMillis multiplies it by backoffRatio,
+ * once per round trip. Requests over the limit wait up to queueTimeoutMillis for a slot.
+ */
+public class ConcurrencyLimitConfig {
+
+    private int initialLimit = 20;
+    private int minLimit = 1;
+    private int maxLimit = 500;
+    private double backoffRatio = 0.9;
+    private long slowLatencyMillis = 5000;
+    private long queueTimeoutMillis = 30 * 1000;
+    private int prefixLength;
+
+    public ConcurrencyLimitConfig() {
+        //do nothing
+    }
+
+    /**
+     * @return the limit of a bucket and prefix before its first request
+     */
+    public int getInitialLimit() {
+        return initialLimit;
+    }
+
+    /**
+     * @param initialLimit the limit of a bucket and prefix before its first request
+     * @return this object
+     */
+    public ConcurrencyLimitConfig setInitialLimit(int initialLimit) {
+        checkArgument(initialLimit > 0, "initialLimit %s is not positive", initialLimit);
+        this.initialLimit = initialLimit;
+        return this;
+    }
+
+    /**
+     * @return the smallest limit throttling can bring a bucket and prefix to
+     */
+    public int getMinLimit() {
+        return minLimit;
+    }
+
+    /**
+     * @param minLimit the smallest limit throttling can bring a bucket and prefix to
+     * @return this object
+     */
+    public ConcurrencyLimitConfig setMinLimit(int minLimit) {
+        checkArgument(minLimit > 0, "minLimit %s is not positive", minLimit);
+        this.minLimit = minLimit;
+        return this;
+    }
+
+    /**
+     * @return the largest limit of a bucket and prefix
+     */
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * @param maxLimit the largest limit of a bucket and prefix
+     * @return this object
+     */
+    public ConcurrencyLimitConfig setMaxLimit(int maxLimit) {
+        checkArgument(maxLimit > 0, "maxLimit %s is not positive", maxLimit);
+        this.maxLimit = maxLimit;
+        return this;
+    }
+
+    /**
+     * @return the factor the limit is multiplied by when S3 throttles
+     */
+    public double getBackoffRatio() {
+        return backoffRatio;
+    }
+
+    /**
+     * @param backoffRatio the factor the limit is multiplied by when S3 throttles, between 0 and 1
+     * @return this object
+     */
+    public ConcurrencyLimitConfig setBackoffRatio(double backoffRatio) {
+        checkArgument(backoffRatio > 0 && backoffRatio < 1, "backoffRatio %s is not between 0 and 1",
+                backoffRatio);
+        this.backoffRatio = backoffRatio;
+        return this;
+    }
+
+    /**
+     * @return the latency in milliseconds above which a read request lowers the limit as if throttled
+     */
+    public long getSlowLatencyMillis() {
+        return slowLatencyMillis;
+    }
+
+    /**
+     * @param slowLatencyMillis the latency in milliseconds above which a read request lowers the limit as
+     *      if throttled, 0 to only back off on SlowDown. Writes are not timed as their latency grows with
+     *      the size of the file.
+     * @return this object
+     */
+    public ConcurrencyLimitConfig setSlowLatencyMillis(long slowLatencyMillis) {
+        checkArgument(slowLatencyMillis >= 0, "slowLatencyMillis %s is negative", slowLatencyMillis);
+        this.slowLatencyMillis = slowLatencyMillis;
+        return this;
+    }
+
+    /**
+     * @return the time a request waits for a slot before failing in milliseconds
+     */
+    public long getQueueTimeoutMillis() {
+        return queueTimeoutMillis;
+    }
+
+    /**
+     * @param queueTimeoutMillis the time a request waits for a slot before failing in milliseconds
+     * @return this object
+     */
+    public ConcurrencyLimitConfig setQueueTimeoutMillis(long queueTimeoutMillis) {
+        checkArgument(queueTimeoutMillis >= 0, "queueTimeoutMillis %s is negative", queueTimeoutMillis);
+        this.queueTimeoutMillis = queueTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * @return the number of leading characters of a key selecting its limit, 0 for one limit per bucket
+     */
+    public int getPrefixLength() {
+        return prefixLength;
+    }
+
+    /**
+     * @param prefixLength the number of leading characters of a key selecting its limit, 0 for one limit
+     *      per bucket
+     * @return this object
+     */
+    public ConcurrencyLimitConfig setPrefixLength(int prefixLength) {
+        checkArgument(prefixLength >= 0, "prefixLength %s is negative", prefixLength);
+        this.prefixLength = prefixLength;
+        return this;
+    }
+}
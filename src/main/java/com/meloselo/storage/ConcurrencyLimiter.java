@@ -0,0 +1,225 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * adaptive limits on concurrent S3 requests, one for the reads and one for the writes of each bucket and key
+ * prefix, as S3 scales its request rate per prefix and separately for GET and PUT. A limit grows while it is
+ * used and shrinks when S3 throttles, see ConcurrencyLimitConfig. Limits not used for ten minutes are
+ * forgotten.
+ */
+class ConcurrencyLimiter {
+
+    private final int initialLimit;
+    private final int minLimit;
+    private final int maxLimit;
+    private final double backoffRatio;
+    private final long slowLatencyNanos;
+    private final long queueTimeoutNanos;
+    private final int prefixLength;
+    private final Cache<String, Limit> limits;
+
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong queueTimeouts = new AtomicLong();
+
+    ConcurrencyLimiter(ConcurrencyLimitConfig config) {
+        checkArgument(config.getMinLimit() <= config.getMaxLimit(), "minLimit %s is above maxLimit %s",
+                config.getMinLimit(), config.getMaxLimit());
+        this.minLimit = config.getMinLimit();
+        this.maxLimit = config.getMaxLimit();
+        this.initialLimit = Math.max(minLimit, Math.min(maxLimit, config.getInitialLimit()));
+        this.backoffRatio = config.getBackoffRatio();
+        this.slowLatencyNanos = TimeUnit.MILLISECONDS.toNanos(config.getSlowLatencyMillis());
+        this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getQueueTimeoutMillis());
+        this.prefixLength = config.getPrefixLength();
+        this.limits = CacheBuilder.newBuilder().expireAfterAccess(10, TimeUnit.MINUTES).build();
+    }
+
+    /**
+     * @param ex the error a request failed with
+     * @return true if S3 asked to slow down
+     */
+    static boolean isThrottled(AmazonClientException ex) {
+        if (! (ex instanceof AmazonServiceException)) {
+            return false;
+        }
+        AmazonServiceException serviceError = (AmazonServiceException) ex;
+        return serviceError.getStatusCode() == 503 || "SlowDown".equals(serviceError.getErrorCode());
+    }
+
+    /**
+     * wait for a slot under the limit of a request
+     *
+     * @param operation the operation sending the request
+     * @param bucket the bucket of the request
+     * @param key the key of the request, null for requests on many keys of the bucket
+     * @return the slot to release when the request completes
+     * @throws AmazonClientException if no slot frees up within the queue timeout or the thread is interrupted
+     */
+    Permit acquire(CloudOperation operation, String bucket, String key) {
+        boolean read = isRead(operation);
+        String name = name(bucket, key, read);
+        Limit limit = limits.getIfPresent(name);
+        if (limit == null) {
+            Limit created = new Limit(name);
+            limit = limits.asMap().putIfAbsent(name, created);
+            if (limit == null) {
+                limit = created;
+            }
+        }
+        return new Permit(limit, limit.acquire(), read && slowLatencyNanos > 0);
+    }
+
+    /**
+     * @return the current limit of requests of an operation on a key
+     */
+    int getLimit(CloudOperation operation, String bucket, String key) {
+        Limit limit = limits.getIfPresent(name(bucket, key, isRead(operation)));
+        return limit == null ? initialLimit : limit.get();
+    }
+
+    /**
+     * @return the number of requests S3 answered with SlowDown
+     */
+    long getThrottledCount() {
+        return throttled.get();
+    }
+
+    /**
+     * @return the number of requests which failed waiting for a slot
+     */
+    long getQueueTimeoutCount() {
+        return queueTimeouts.get();
+    }
+
+    private String name(String bucket, String key, boolean read) {
+        String prefix = key == null ? "" : key.substring(0, Math.min(prefixLength, key.length()));
+        return (read ? "read " : "write ") + bucket + "/" + prefix;
+    }
+
+    private static boolean isRead(CloudOperation operation) {
+        return operation == CloudOperation.GET_FILE || operation == CloudOperation.GET_FILE_TO
+                || operation == CloudOperation.GET_FILE_IF_CHANGED || operation == CloudOperation.GET_FILE_METADATA
+                || operation == CloudOperation.EXISTS;
+    }
+
+    /**
+     * the slot of one request
+     */
+    class Permit {
+
+        private final Limit limit;
+        private final long start;
+        private final boolean timed;
+
+        Permit(Limit limit, long start, boolean timed) {
+            this.limit = limit;
+            this.start = start;
+            this.timed = timed;
+        }
+
+        /**
+         * @param failure the error the request failed with, null if it succeeded
+         */
+        void release(AmazonClientException failure) {
+            if (failure != null && isThrottled(failure)) {
+                throttled.incrementAndGet();
+                limit.backOff(start);
+            } else if (failure != null && ! (failure instanceof AmazonServiceException
+                    && ((AmazonServiceException) failure).getStatusCode() < 500)) {
+                // the request did not reach S3 or failed there, it says nothing about the rate
+                limit.release(false);
+            } else if (timed && System.nanoTime() - start > slowLatencyNanos) {
+                limit.backOff(start);
+            } else {
+                limit.release(true);
+            }
+        }
+    }
+
+    /**
+     * the limit of one bucket, prefix and kind of request
+     */
+    private class Limit {
+
+        private final String name;
+        private double limit = initialLimit;
+        private int inFlight;
+        private long lastBackoff = System.nanoTime() - 1;
+
+        Limit(String name) {
+            this.name = name;
+        }
+
+        synchronized int get() {
+            return (int) limit;
+        }
+
+        synchronized long acquire() {
+            long deadline = System.nanoTime() + queueTimeoutNanos;
+            while (inFlight >= (int) limit) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    queueTimeouts.incrementAndGet();
+                    throw new AmazonClientException(String.format(
+                            "timed out after %d ms waiting for one of %d concurrent %s requests",
+                            TimeUnit.NANOSECONDS.toMillis(queueTimeoutNanos), (int) limit, name));
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new AmazonClientException(
+                            String.format("interrupted waiting for a slot of %s requests", name), ex);
+                }
+            }
+            inFlight++;
+            return System.nanoTime();
+        }
+
+        /**
+         * free the slot of a completed request, growing the limit if the request is a sample of a used limit
+         */
+        synchronized void release(boolean sample) {
+            int slots = (int) limit;
+            if (sample && inFlight * 2 >= limit) {
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+            inFlight--;
+            wake(slots);
+        }
+
+        /**
+         * free the slot of a throttled request, shrinking the limit unless it already shrank since the request
+         * was sent
+         */
+        synchronized void backOff(long start) {
+            int slots = (int) limit;
+            if (start - lastBackoff > 0) {
+                limit = Math.max(minLimit, limit * backoffRatio);
+                lastBackoff = System.nanoTime();
+            }
+            inFlight--;
+            wake(slots);
+        }
+
+        private void wake(int slots) {
+            if ((int) limit > slots) {
+                notifyAll();
+            } else if (inFlight < (int) limit) {
+                notify();
+            }
+        }
+    }
+}
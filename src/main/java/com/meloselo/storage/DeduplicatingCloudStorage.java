@@ -0,0 +1,432 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+
+/**
+ * CloudStorage storing each distinct content once per bucket. storeFile spools the file to a local
+ * temporary file computing its SHA-256 and MD5 in the same pass, uploads the content to
+ * {bucket}/.cas/{sha256} unless an object of that digest is already there, and stores an empty reference
+ * object under the filename whose metadata names the digest. Digests known to be stored are remembered,
+ * others are checked with a HEAD of the content object.
+ *
+ * getFile of a reference reads the content object and verifies its SHA-256 when the stream is read to the
+ * end. The eTag of a reference is the MD5 hex of its content, as S3 gives files uploaded with a single put.
+ * Files smaller than minFileSize are stored as they are.
+ *
+ * Deletes, copies and moves act on the references. Content objects are never deleted by this storage,
+ * listFiles lists references with size 0 and the content objects under CONTENT_PREFIX.
+ */
+public class DeduplicatingCloudStorage extends ForwardingCloudStorage {
+
+    private static final Log log = LogFactory.getLog(DeduplicatingCloudStorage.class);
+
+    /** the prefix of the keys of content objects in each bucket */
+    public static final String CONTENT_PREFIX = ".cas/";
+
+    /** metadata key of the SHA-256 hex of the content of a reference and of a content object */
+    public static final String SHA256_KEY = "dedup-sha256";
+
+    private static final String MD5_KEY = "dedup-md5";
+    private static final String LENGTH_KEY = "dedup-length";
+
+    private final String scheme;
+    private final String region;
+    private final Cache<String, Boolean> stored = CacheBuilder.newBuilder().maximumSize(100000).build();
+
+    private volatile long minFileSize = 64 * 1024;
+    private volatile boolean verifyOnRead = true;
+    private volatile Path spoolDir;
+
+    private final AtomicLong uploads = new AtomicLong();
+    private final AtomicLong deduplicated = new AtomicLong();
+    private final AtomicLong deduplicatedBytes = new AtomicLong();
+
+    /**
+     * @param delegate the S3 storage to store content and references in, required
+     * @param region the region name of the delegate
+     */
+    public DeduplicatingCloudStorage(CloudStorage delegate, String region) {
+        this(delegate, FileLocation.S3_SCHEME, region);
+    }
+
+    /**
+     * @param delegate the storage to store content and references in, required
+     * @param scheme the uri scheme of the delegate e.g. s3
+     * @param region the region name of the delegate
+     */
+    public DeduplicatingCloudStorage(CloudStorage delegate, String scheme, String region) {
+        super(delegate);
+        checkArgument(! Strings.isNullOrEmpty(scheme), "scheme is null or empty");
+        checkArgument(! Strings.isNullOrEmpty(region), "region is null or empty");
+        this.scheme = scheme;
+        this.region = region;
+    }
+
+    /**
+     * @param minFileSize the smallest file deduplicated, smaller files are stored as they are
+     * @return this object
+     */
+    public DeduplicatingCloudStorage setMinFileSize(long minFileSize) {
+        checkArgument(minFileSize >= 0, "minFileSize %s is negative", minFileSize);
+        this.minFileSize = minFileSize;
+        return this;
+    }
+
+    /**
+     * @param verifyOnRead true to check the SHA-256 of content read to the end by getFile
+     * @return this object
+     */
+    public DeduplicatingCloudStorage setVerifyOnRead(boolean verifyOnRead) {
+        this.verifyOnRead = verifyOnRead;
+        return this;
+    }
+
+    /**
+     * @param spoolDir the directory for files being hashed, null for the default temporary directory
+     * @return this object
+     */
+    public DeduplicatingCloudStorage setSpoolDir(Path spoolDir) {
+        this.spoolDir = spoolDir;
+        return this;
+    }
+
+    /**
+     * @return the number of content objects uploaded
+     */
+    public long getUploadCount() {
+        return uploads.get();
+    }
+
+    /**
+     * @return the number of stored files whose content was already stored
+     */
+    public long getDeduplicatedCount() {
+        return deduplicated.get();
+    }
+
+    /**
+     * @return the bytes not uploaded because the content was already stored
+     */
+    public long getDeduplicatedBytes() {
+        return deduplicatedBytes.get();
+    }
+
+    /**
+     * store file, spooling it to compute its digests. Files of known length below minFileSize are stored
+     * as they are.
+     */
+    @Override
+    public String storeFile(String bucket, InputStream is, String filename, String contentType,
+            long contentLength, Map<String, String> metaData) throws CloudException {
+        if (contentLength >= 0 && contentLength < minFileSize) {
+            return super.storeFile(bucket, is, filename, contentType, contentLength, metaData);
+        }
+        checkArgument(! Strings.isNullOrEmpty(bucket), "bucket is null");
+        checkArgument(is != null, "is, inputstream to store is null");
+        checkArgument(! Strings.isNullOrEmpty(filename), "filename is null");
+
+        Path spool = null;
+        try {
+            Path dir = spoolDir;
+            spool = dir == null ? Files.createTempFile("dedup-", ".spool")
+                    : Files.createTempFile(dir, "dedup-", ".spool");
+            HashingInputStream md5 = new HashingInputStream(Hashing.md5(), is);
+            HashingInputStream sha256 = new HashingInputStream(Hashing.sha256(), md5);
+            Files.copy(sha256, spool, StandardCopyOption.REPLACE_EXISTING);
+            return store(bucket, spool, filename, contentType, metaData, sha256.hash().toString(),
+                    md5.hash().toString());
+        } catch (IOException ex) {
+            throw new CloudException(String.format("Error spooling file %s for bucket %s", filename, bucket), ex);
+        } finally {
+            delete(spool);
+        }
+    }
+
+    /**
+     * store a local file, hashing it in one read and uploading it from the path if its content is new
+     */
+    @Override
+    public String storeFileFrom(String bucket, Path path, String filename, String contentType,
+            Map<String, String> metaData) throws CloudException {
+        checkArgument(! Strings.isNullOrEmpty(bucket), "bucket is null");
+        checkArgument(path != null, "path is null");
+        checkArgument(! Strings.isNullOrEmpty(filename), "filename is null");
+        try {
+            if (Files.size(path) < minFileSize) {
+                return super.storeFileFrom(bucket, path, filename, contentType, metaData);
+            }
+            HashingInputStream md5;
+            HashingInputStream sha256;
+            InputStream is = Files.newInputStream(path);
+            try {
+                md5 = new HashingInputStream(Hashing.md5(), is);
+                sha256 = new HashingInputStream(Hashing.sha256(), md5);
+                ByteStreams.copy(sha256, ByteStreams.nullOutputStream());
+            } finally {
+                is.close();
+            }
+            return store(bucket, path, filename, contentType, metaData, sha256.hash().toString(),
+                    md5.hash().toString());
+        } catch (IOException ex) {
+            throw new CloudException(String.format("Error reading file %s to store in bucket %s", path, bucket), ex);
+        }
+    }
+
+    /**
+     * upload the content unless it is stored, then store the reference
+     */
+    private String store(String bucket, Path content, String filename, String contentType,
+            Map<String, String> metaData, String sha256, String md5) throws CloudException, IOException {
+        long length = Files.size(content);
+        String contentKey = CONTENT_PREFIX + sha256;
+        String storedKey = bucket + "/" + sha256;
+        if (stored.getIfPresent(storedKey) != null || isStored(bucket, contentKey, sha256)) {
+            deduplicated.incrementAndGet();
+            deduplicatedBytes.addAndGet(length);
+        } else {
+            delegate().storeFileFrom(bucket, content, contentKey, contentType,
+                    singletonMeta(SHA256_KEY, sha256));
+            uploads.incrementAndGet();
+        }
+        stored.put(storedKey, Boolean.TRUE);
+
+        Map<String, String> refMeta = metaData == null ? new HashMap<String, String>()
+                : new HashMap<String, String>(metaData);
+        refMeta.put(SHA256_KEY, sha256);
+        refMeta.put(MD5_KEY, md5);
+        refMeta.put(LENGTH_KEY, Long.toString(length));
+        return delegate().storeFile(bucket, new ByteArrayInputStream(new byte[0]), filename, contentType, 0,
+                refMeta);
+    }
+
+    private boolean isStored(String bucket, String contentKey, String sha256) throws CloudException {
+        CloudFile file = delegate().getFileMetadata(new FileLocation(scheme, region, bucket, contentKey).toUri());
+        return file != null && file.getMetaData() != null && sha256.equals(file.getMetaData().get(SHA256_KEY));
+    }
+
+    /**
+     * fetch file, the content of a reference is verified when read to the end
+     */
+    @Override
+    public CloudFile getFile(String fileUri) throws CloudException {
+        CloudFile file = super.getFile(fileUri);
+        String sha256 = sha256Of(file);
+        if (sha256 == null) {
+            return file;
+        }
+        Closeables.closeQuietly(file.getInputStream());
+        CloudFile content = super.getFile(contentUri(fileUri, sha256));
+        InputStream is = content.getInputStream();
+        if (verifyOnRead) {
+            is = new VerifyingInputStream(is, fileUri, sha256);
+        }
+        return resolve(file).setInputStream(is);
+    }
+
+    /**
+     * fetch part of a file, the content of a reference is not verified
+     */
+    @Override
+    public CloudFile getFile(String fileUri, ByteRange range) throws CloudException {
+        checkArgument(range != null, "range is null");
+        CloudFile ref = super.getFileMetadata(fileUri);
+        String sha256 = sha256Of(ref);
+        if (sha256 == null) {
+            return super.getFile(fileUri, range);
+        }
+        CloudFile content = super.getFile(contentUri(fileUri, sha256), range);
+        return resolve(ref).setInputStream(content.getInputStream())
+            .setContentLength(content.getContentLength());
+    }
+
+    @Override
+    public CloudFile getFile(FileLocation location) throws CloudException {
+        checkArgument(location != null, "location is null");
+        return getFile(location.toUri());
+    }
+
+    @Override
+    public CloudFile getFile(FileLocation location, ByteRange range) throws CloudException {
+        checkArgument(location != null, "location is null");
+        return getFile(location.toUri(), range);
+    }
+
+    @Override
+    public CloudFile getFileIfChanged(String fileUri, String eTag) throws CloudException {
+        CloudFile ref = super.getFileMetadata(fileUri);
+        if (sha256Of(ref) == null) {
+            return super.getFileIfChanged(fileUri, eTag);
+        }
+        return ref.getMetaData().get(MD5_KEY).equals(eTag) ? null : getFile(fileUri);
+    }
+
+    @Override
+    public CloudFile getFileMetadata(String fileUri) throws CloudException {
+        CloudFile file = super.getFileMetadata(fileUri);
+        return sha256Of(file) == null ? file : resolve(file);
+    }
+
+    /**
+     * create url of the content object of a reference
+     */
+    @Override
+    public URL getExpiringUrl(String fileUri, long expirySeconds) throws CloudException {
+        String sha256 = sha256Of(super.getFileMetadata(fileUri));
+        return super.getExpiringUrl(sha256 == null ? fileUri : contentUri(fileUri, sha256), expirySeconds);
+    }
+
+    @Override
+    public URL getExpiringUrl(FileLocation location, long expirySeconds) throws CloudException {
+        checkArgument(location != null, "location is null");
+        return getExpiringUrl(location.toUri(), expirySeconds);
+    }
+
+    /**
+     * @return the SHA-256 of the content of a reference, null if file is not a reference
+     */
+    private static String sha256Of(CloudFile file) {
+        if (file == null || file.getMetaData() == null || file.getMetaData().get(MD5_KEY) == null) {
+            return null;
+        }
+        return file.getMetaData().get(SHA256_KEY);
+    }
+
+    /**
+     * @return the reference as the file it stands for, without its digest metadata
+     */
+    private static CloudFile resolve(CloudFile ref) {
+        Map<String, String> metaData = new HashMap<String, String>(ref.getMetaData());
+        String md5 = metaData.remove(MD5_KEY);
+        String length = metaData.remove(LENGTH_KEY);
+        metaData.remove(SHA256_KEY);
+        long contentLength = length == null ? 0 : Long.parseLong(length);
+        return new CloudFile()
+            .setContentType(ref.getContentType())
+            .setContentLength(contentLength)
+            .setTotalLength(contentLength)
+            .setETag(md5)
+            .setMetaData(metaData);
+    }
+
+    private String contentUri(String fileUri, String sha256) {
+        FileLocation location = parseFileLocation(fileUri);
+        return new FileLocation(location.getScheme(), location.getRegion(), location.getBucket(),
+                CONTENT_PREFIX + sha256).toUri();
+    }
+
+    private static Map<String, String> singletonMeta(String key, String value) {
+        Map<String, String> metaData = new HashMap<String, String>();
+        metaData.put(key, value);
+        return metaData;
+    }
+
+    private static void delete(Path path) {
+        if (path != null) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException ex) {
+                log.warn("Error deleting spool file " + path, ex);
+            }
+        }
+    }
+
+    /**
+     * hashes the bytes read and fails the read reaching the end of the stream if the SHA-256 differs
+     */
+    private static class VerifyingInputStream extends FilterInputStream {
+
+        private final String fileUri;
+        private final String sha256;
+        private final Hasher hasher = Hashing.sha256().newHasher();
+        private boolean verified;
+
+        VerifyingInputStream(InputStream in, String fileUri, String sha256) {
+            super(in);
+            this.fileUri = fileUri;
+            this.sha256 = sha256;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b < 0) {
+                verify();
+            } else {
+                hasher.putByte((byte) b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, len);
+            if (read < 0) {
+                verify();
+            } else {
+                hasher.putBytes(b, off, read);
+            }
+            return read;
+        }
+
+        /**
+         * skipped bytes are read, they are part of the digest
+         */
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] buffer = new byte[(int) Math.min(n, 8192)];
+            long skipped = 0;
+            while (skipped < n) {
+                int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+                if (read < 0) {
+                    break;
+                }
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void verify() throws IOException {
+            if (verified) {
+                return;
+            }
+            verified = true;
+            String actual = hasher.hash().toString();
+            if (! actual.equals(sha256)) {
+                throw new IOException(String.format("content of %s has sha256 %s, expected %s", fileUri, actual,
+                        sha256));
+            }
+        }
+    }
+}
@@ -0,0 +1,492 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+
+/**
+ * CloudStorage keeping the bodies of recently used files in a size bounded LRU cache on local disk.
+ * Cache hits are served from the local file through a FileChannel. Entries older than revalidateAfterMillis
+ * are checked with a conditional GET on the eTag before use. Files stored through this storage are
+ * written through to the cache and files deleted through it are removed from the cache. A store does not
+ * tell the eTag the cloud gave the file, so written through files are cached without one, they are served
+ * from the cache until revalidateAfterMillis and fetched again after.
+ *
+ * The cache index is kept in memory, cache files left in the cache directory by an earlier process are
+ * deleted on construction. Files larger than maxEntrySize are never cached.
+ */
+public class DiskCachingCloudStorage extends ForwardingCloudStorage {
+
+    private static final Log log = LogFactory.getLog(DiskCachingCloudStorage.class);
+
+    private static final String SUFFIX = ".cache";
+
+    private final Path cacheDir;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long cachedBytes;
+
+    private final AtomicLong fileCounter = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private volatile long maxEntrySize = 16 * 1024 * 1024;
+    private volatile long revalidateAfterMillis = 60 * 1000;
+
+    /**
+     * @param delegate the storage to cache files of, required
+     * @param cacheDir the directory to keep cached files in, created if missing
+     * @param maxBytes the maximum total size of cached files
+     * @throws IOException if the cache directory can not be created or cleaned
+     */
+    public DiskCachingCloudStorage(CloudStorage delegate, Path cacheDir, long maxBytes) throws IOException {
+        super(delegate);
+        checkArgument(cacheDir != null, "cacheDir is null");
+        checkArgument(maxBytes > 0, "maxBytes %s is not positive", maxBytes);
+        this.cacheDir = Files.createDirectories(cacheDir);
+        this.maxBytes = maxBytes;
+
+        DirectoryStream<Path> stale = Files.newDirectoryStream(cacheDir, "*" + SUFFIX);
+        try {
+            for (Path path : stale) {
+                Files.deleteIfExists(path);
+            }
+        } finally {
+            stale.close();
+        }
+    }
+
+    /**
+     * @param maxEntrySize the size above which files are not cached
+     * @return this object
+     */
+    public DiskCachingCloudStorage setMaxEntrySize(long maxEntrySize) {
+        checkArgument(maxEntrySize > 0, "maxEntrySize %s is not positive", maxEntrySize);
+        this.maxEntrySize = maxEntrySize;
+        return this;
+    }
+
+    /**
+     * @param revalidateAfterMillis the age after which a cached file is checked against the cloud before use
+     * @return this object
+     */
+    public DiskCachingCloudStorage setRevalidateAfterMillis(long revalidateAfterMillis) {
+        checkArgument(revalidateAfterMillis >= 0, "revalidateAfterMillis %s is negative", revalidateAfterMillis);
+        this.revalidateAfterMillis = revalidateAfterMillis;
+        return this;
+    }
+
+    /**
+     * @return the number of getFile calls served from the cache
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of getFile calls fetched from the cloud
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return the total size of cached files
+     */
+    public long getCachedBytes() {
+        synchronized (entries) {
+            return cachedBytes;
+        }
+    }
+
+    /**
+     * @return the number of cached files
+     */
+    public int getEntryCount() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * remove a file from the cache
+     *
+     * @param fileUri the uri of file
+     */
+    public void invalidate(String fileUri) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.remove(fileUri);
+            if (entry != null) {
+                cachedBytes -= entry.length;
+            }
+        }
+        if (entry != null) {
+            delete(entry.path);
+        }
+    }
+
+    /**
+     * store file in the cloud, files of known contentLength up to maxEntrySize are spooled to the cache
+     * first and uploaded from there. The entry has no eTag, the MD5 of the content is not the eTag of
+     * multipart or encrypted uploads and a HEAD after the store could see the file of a concurrent writer.
+     */
+    @Override
+    public String storeFile(String bucket, InputStream is, String filename, String contentType,
+            long contentLength, Map<String, String> metaData) throws CloudException {
+        if (contentLength <= 0 || contentLength > maxEntrySize || is == null) {
+            String fileUri = delegate().storeFile(bucket, is, filename, contentType, contentLength, metaData);
+            invalidate(fileUri);
+            return fileUri;
+        }
+
+        Path path = newCachePath();
+        String fileUri;
+        long length;
+        try {
+            length = Files.copy(is, path);
+            InputStream spooled = Files.newInputStream(path);
+            try {
+                fileUri = delegate().storeFile(bucket, spooled, filename, contentType, length, metaData);
+            } finally {
+                Closeables.closeQuietly(spooled);
+            }
+        } catch (IOException ex) {
+            delete(path);
+            throw new CloudException(String.format("Error spooling file %s for bucket %s to cache",
+                    filename, bucket), ex);
+        } catch (CloudException ex) {
+            delete(path);
+            throw ex;
+        } catch (RuntimeException ex) {
+            delete(path);
+            throw ex;
+        }
+
+        put(fileUri, new Entry(path, length, contentType, null, metaData));
+        return fileUri;
+    }
+
+    @Override
+    public CloudFile getFile(String fileUri) throws CloudException {
+        Entry entry = lookup(fileUri);
+        if (entry != null) {
+            CloudFile file = null;
+            if (isFresh(entry)) {
+                file = open(entry, null);
+            } else if (entry.eTag != null) {
+                CloudFile changed = delegate().getFileIfChanged(fileUri, entry.eTag);
+                if (changed != null) {
+                    misses.incrementAndGet();
+                    return cache(fileUri, changed);
+                }
+                entry.validatedMillis = System.currentTimeMillis();
+                file = open(entry, null);
+            }
+            if (file != null) {
+                hits.incrementAndGet();
+                return file;
+            }
+        }
+        misses.incrementAndGet();
+        return cache(fileUri, delegate().getFile(fileUri));
+    }
+
+    /**
+     * fetch file and write it to a channel, cache hits are sent from the cache file with transferTo
+     */
+    @Override
+    public CloudFile getFileTo(String fileUri, WritableByteChannel channel) throws CloudException {
+        Entry entry = lookup(fileUri);
+        if (entry != null && isFresh(entry)) {
+            CloudFile file = transfer(entry, channel);
+            if (file != null) {
+                hits.incrementAndGet();
+                return file;
+            }
+        }
+        return super.getFileTo(fileUri, channel);
+    }
+
+    /**
+     * fetch part of a file, served from the cache only if the cached file does not need revalidation
+     */
+    @Override
+    public CloudFile getFile(String fileUri, ByteRange range) throws CloudException {
+        Entry entry = lookup(fileUri);
+        if (entry != null && isFresh(entry)) {
+            CloudFile file = open(entry, range);
+            if (file != null) {
+                hits.incrementAndGet();
+                return file;
+            }
+        }
+        misses.incrementAndGet();
+        return delegate().getFile(fileUri, range);
+    }
+
+    /**
+     * fetch the metadata of a file, served from the cache if the cached file does not need revalidation and
+     * has an eTag
+     */
+    @Override
+    public CloudFile getFileMetadata(String fileUri) throws CloudException {
+        Entry entry = lookup(fileUri);
+        if (entry != null && entry.eTag != null && isFresh(entry)) {
+            return new CloudFile()
+                .setContentType(entry.contentType)
+                .setContentLength(entry.length)
+                .setTotalLength(entry.length)
+                .setETag(entry.eTag)
+                .setMetaData(entry.metaData);
+        }
+        return delegate().getFileMetadata(fileUri);
+    }
+
+    @Override
+    public boolean exists(String fileUri) throws CloudException {
+        Entry entry = lookup(fileUri);
+        return (entry != null && isFresh(entry)) || delegate().exists(fileUri);
+    }
+
+    @Override
+    public CloudFile getFile(FileLocation location) throws CloudException {
+        return getFile(location.toUri());
+    }
+
+    @Override
+    public CloudFile getFile(FileLocation location, ByteRange range) throws CloudException {
+        return getFile(location.toUri(), range);
+    }
+
+    @Override
+    public void deleteFile(String fileUri) throws CloudException {
+        invalidate(fileUri);
+        delegate().deleteFile(fileUri);
+    }
+
+    @Override
+    public void deleteFile(FileLocation location) throws CloudException {
+        invalidate(location.toUri());
+        delegate().deleteFile(location);
+    }
+
+    @Override
+    public BatchResult deleteFiles(Collection<String> fileUris) throws CloudException {
+        for (String fileUri : fileUris) {
+            invalidate(fileUri);
+        }
+        return delegate().deleteFiles(fileUris);
+    }
+
+    @Override
+    public String copyFile(String srcUri, String dstBucket, String dstFilename) throws CloudException {
+        String fileUri = delegate().copyFile(srcUri, dstBucket, dstFilename);
+        invalidate(fileUri);
+        return fileUri;
+    }
+
+    @Override
+    public String moveFile(String srcUri, String dstBucket, String dstFilename) throws CloudException {
+        invalidate(srcUri);
+        String fileUri = delegate().moveFile(srcUri, dstBucket, dstFilename);
+        invalidate(fileUri);
+        return fileUri;
+    }
+
+    @Override
+    public BatchResult copyFiles(Map<String, String> fileUris) throws CloudException {
+        BatchResult result = delegate().copyFiles(fileUris);
+        for (String fileUri : fileUris.values()) {
+            invalidate(fileUri);
+        }
+        return result;
+    }
+
+    private boolean isFresh(Entry entry) {
+        return System.currentTimeMillis() - entry.validatedMillis <= revalidateAfterMillis;
+    }
+
+    private Entry lookup(String fileUri) {
+        synchronized (entries) {
+            return entries.get(fileUri);
+        }
+    }
+
+    /**
+     * copy a fetched file to the cache and serve it from there
+     */
+    private CloudFile cache(String fileUri, CloudFile file) throws CloudException {
+        if (file.getInputStream() == null || file.getContentLength() < 0 || file.getContentLength() > maxEntrySize
+                || file.getContentLength() != file.getTotalLength()) {
+            return file;
+        }
+
+        Path path = newCachePath();
+        long length;
+        try {
+            length = Files.copy(file.getInputStream(), path);
+        } catch (IOException ex) {
+            delete(path);
+            throw new CloudException(String.format("Error caching file %s", fileUri), ex);
+        } finally {
+            Closeables.closeQuietly(file.getInputStream());
+        }
+
+        Entry entry = new Entry(path, length, file.getContentType(), file.getETag(), file.getMetaData());
+        //open before publishing so eviction can not remove the file under us
+        CloudFile cached = open(entry, null);
+        put(fileUri, entry);
+        if (cached == null) {
+            throw new CloudException(String.format("cache file %s for %s missing", path, fileUri));
+        }
+        return cached;
+    }
+
+    /**
+     * @return the cached file or null if the cache file is gone
+     */
+    private CloudFile open(Entry entry, ByteRange range) throws CloudException {
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(entry.path, StandardOpenOption.READ);
+            long first = 0;
+            long length = entry.length;
+            if (range != null) {
+                if (range.getFirst() >= entry.length) {
+                    throw new CloudException(String.format("range %s not satisfiable for file of length %d",
+                            range, entry.length));
+                }
+                long last = range.hasLast() ? Math.min(range.getLast(), entry.length - 1) : entry.length - 1;
+                first = range.getFirst();
+                length = last - first + 1;
+                channel.position(first);
+            }
+            InputStream is = ByteStreams.limit(Channels.newInputStream(channel), length);
+            channel = null;
+            return new CloudFile()
+                .setInputStream(is)
+                .setContentType(entry.contentType)
+                .setContentLength(length)
+                .setTotalLength(entry.length)
+                .setETag(entry.eTag)
+                .setMetaData(entry.metaData);
+        } catch (NoSuchFileException ex) {
+            return null;
+        } catch (IOException ex) {
+            throw new CloudException(String.format("Error reading cache file %s", entry.path), ex);
+        } finally {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ex) {
+                    log.debug("error closing cache file channel", ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the metadata of the cached file sent to channel, or null if the cache file is gone
+     */
+    private CloudFile transfer(Entry entry, WritableByteChannel channel) throws CloudException {
+        try {
+            FileChannel in = FileChannel.open(entry.path, StandardOpenOption.READ);
+            try {
+                ChannelTransfers.transfer(in, 0, entry.length, channel);
+            } finally {
+                in.close();
+            }
+        } catch (NoSuchFileException ex) {
+            return null;
+        } catch (IOException ex) {
+            throw new CloudException(String.format("Error sending cache file %s", entry.path), ex);
+        }
+        return new CloudFile()
+            .setContentType(entry.contentType)
+            .setContentLength(entry.length)
+            .setTotalLength(entry.length)
+            .setETag(entry.eTag)
+            .setMetaData(entry.metaData);
+    }
+
+    private void put(String fileUri, Entry entry) {
+        List<Path> evicted = new ArrayList<Path>();
+        synchronized (entries) {
+            Entry old = entries.put(fileUri, entry);
+            if (old != null) {
+                cachedBytes -= old.length;
+                evicted.add(old.path);
+            }
+            cachedBytes += entry.length;
+            Iterator<Entry> eldest = entries.values().iterator();
+            while (cachedBytes > maxBytes && eldest.hasNext()) {
+                Entry evict = eldest.next();
+                eldest.remove();
+                cachedBytes -= evict.length;
+                evicted.add(evict.path);
+            }
+        }
+        for (Path path : evicted) {
+            delete(path);
+        }
+    }
+
+    private Path newCachePath() {
+        return cacheDir.resolve(fileCounter.incrementAndGet() + SUFFIX);
+    }
+
+    private void delete(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException ex) {
+            log.warn(String.format("Error deleting cache file %s", path), ex);
+        }
+    }
+
+    private static class Entry {
+
+        private final Path path;
+        private final long length;
+        private final String contentType;
+        private final String eTag;
+        private final Map<String, String> metaData;
+        private volatile long validatedMillis;
+
+        Entry(Path path, long length, String contentType, String eTag, Map<String, String> metaData) {
+            this.path = path;
+            this.length = length;
+            this.contentType = contentType;
+            this.eTag = eTag;
+            this.metaData = metaData == null ? null
+                    : Collections.unmodifiableMap(new HashMap<String, String>(metaData));
+            this.validatedMillis = System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * AsyncCloudStorage running the blocking operations of a CloudStorage on an executor. At most
+ * maxInFlight operations run at a time, further operations are queued without blocking the caller and
+ * submitted as running ones complete. An operation holds its slot until it returns, even when its future
+ * is cancelled while it runs. Queued operations are cancelled if the executor rejects them.
+ */
+public class ExecutorAsyncCloudStorage implements AsyncCloudStorage {
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 256;
+
+    private final CloudStorage storage;
+    private final ExecutorService executor;
+    private final int maxInFlight;
+    private final Queue<ListenableFutureTask<?>> pending = new ArrayDeque<ListenableFutureTask<?>>();
+    private int running;
+
+    /**
+     * async storage on the default executor, see defaultExecutor
+     *
+     * @param storage the storage to run operations on, required
+     * @param maxInFlight the maximum number of operations in flight
+     */
+    public ExecutorAsyncCloudStorage(CloudStorage storage, int maxInFlight) {
+        this(storage, defaultExecutor(maxInFlight), maxInFlight);
+    }
+
+    /**
+     * @param storage the storage to run operations on, required
+     * @param executor the executor to run operations on, required
+     * @param maxInFlight the maximum number of operations in flight
+     */
+    public ExecutorAsyncCloudStorage(CloudStorage storage, ExecutorService executor, int maxInFlight) {
+        checkArgument(storage != null, "storage is null");
+        checkArgument(executor != null, "executor is null");
+        checkArgument(maxInFlight > 0, "maxInFlight %s is not positive", maxInFlight);
+        this.storage = storage;
+        this.executor = executor;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * create an executor starting a virtual thread per task when the JVM supports them, otherwise a pool
+     * of maxThreads daemon threads
+     *
+     * @param maxThreads the number of threads if virtual threads are not available
+     * @return the executor
+     */
+    public static ExecutorService defaultExecutor(int maxThreads) {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (Exception ex) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("cloudstorage-async-%d").build());
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
+    }
+
+    /**
+     * @return the number of operations submitted to the executor and not yet completed
+     */
+    public synchronized int getInFlight() {
+        return running;
+    }
+
+    /**
+     * @return the number of operations waiting for an operation in flight to complete
+     */
+    public synchronized int getQueued() {
+        return pending.size();
+    }
+
+    /**
+     * @return the maximum number of operations in flight
+     */
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    @Override
+    public ListenableFuture<String> storeFileAsync(final String bucket, final InputStream is,
+            final String filename, final String contentType, final long contentLength,
+            final Map<String, String> metaData) {
+        return submit(new Callable<String>() {
+            @Override
+            public String call() throws CloudException {
+                return storage.storeFile(bucket, is, filename, contentType, contentLength, metaData);
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<CloudFile> getFileAsync(final String fileUri) {
+        return submit(new Callable<CloudFile>() {
+            @Override
+            public CloudFile call() throws CloudException {
+                return storage.getFile(fileUri);
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<Void> deleteFileAsync(final String fileUri) {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() throws CloudException {
+                storage.deleteFile(fileUri);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<URL> getExpiringUrlAsync(final String fileUri, final long expirySeconds) {
+        return submit(new Callable<URL>() {
+            @Override
+            public URL call() throws CloudException {
+                return storage.getExpiringUrl(fileUri, expirySeconds);
+            }
+        });
+    }
+
+    private <T> ListenableFuture<T> submit(Callable<T> operation) {
+        ListenableFutureTask<T> task = ListenableFutureTask.create(operation);
+        synchronized (this) {
+            if (running >= maxInFlight) {
+                pending.add(task);
+                return task;
+            }
+            running++;
+        }
+        try {
+            dispatch(task);
+        } catch (RejectedExecutionException ex) {
+            release();
+            return Futures.immediateFailedFuture(new CloudException("operation rejected by executor", ex));
+        }
+        return task;
+    }
+
+    /**
+     * run a task on the executor holding one of the slots, the slot is released when the task returns
+     */
+    private void dispatch(final ListenableFutureTask<?> task) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // does nothing if the task was cancelled before it started
+                    task.run();
+                } finally {
+                    release();
+                }
+            }
+        });
+    }
+
+    /**
+     * pass the slot of a completed task to the next queued task that is not cancelled, or free it
+     */
+    private void release() {
+        while (true) {
+            ListenableFutureTask<?> next;
+            synchronized (this) {
+                do {
+                    next = pending.poll();
+                } while (next != null && next.isDone());
+                if (next == null) {
+                    running--;
+                    return;
+                }
+            }
+            try {
+                dispatch(next);
+                return;
+            } catch (RejectedExecutionException ex) {
+                next.cancel(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.base.Strings;
+
+/**
+ * immutable location of a file in cloud storage, the parsed form of a {scheme}://{region}/{bucket}/{key}
+ * file uri. The key may contain '/'.
+ */
+public final class FileLocation {
+
+    public static final String S3_SCHEME = "s3";
+
+    private static final String SEPARATOR = "://";
+
+    private final String scheme;
+    private final String region;
+    private final String bucket;
+    private final String key;
+    private String uri;
+
+    /**
+     * location of a file in S3
+     *
+     * @param region the region name
+     * @param bucket the bucket name
+     * @param key the file name
+     */
+    public FileLocation(String region, String bucket, String key) {
+        this(S3_SCHEME, region, bucket, key);
+    }
+
+    /**
+     * @param scheme the uri scheme of the storage e.g. s3
+     * @param region the region name
+     * @param bucket the bucket name
+     * @param key the file name
+     */
+    public FileLocation(String scheme, String region, String bucket, String key) {
+        checkArgument(! Strings.isNullOrEmpty(scheme), "scheme is null or empty");
+        checkArgument(! Strings.isNullOrEmpty(region), "region is null or empty");
+        checkArgument(! Strings.isNullOrEmpty(bucket), "bucket is null or empty");
+        checkArgument(! Strings.isNullOrEmpty(key), "key is null or empty");
+        this.scheme = scheme;
+        this.region = region;
+        this.bucket = bucket;
+        this.key = key;
+    }
+
+    private FileLocation(String uri, String scheme, String region, String bucket, String key) {
+        this.uri = uri;
+        this.scheme = scheme;
+        this.region = region;
+        this.bucket = bucket;
+        this.key = key;
+    }
+
+    /**
+     * parse a file uri in {scheme}://{region}/{bucket}/{key} format
+     *
+     * @param fileUri the uri of file
+     * @return the location
+     * @throws IllegalArgumentException if fileUri is empty or not in the expected format
+     */
+    public static FileLocation parse(String fileUri) {
+        checkArgument(! Strings.isNullOrEmpty(fileUri), "file uri is empty");
+
+        int schemeEnd = fileUri.indexOf(SEPARATOR);
+        int regionStart = schemeEnd + SEPARATOR.length();
+        int regionEnd = schemeEnd > 0 ? fileUri.indexOf('/', regionStart) : -1;
+        int bucketEnd = regionEnd > regionStart ? fileUri.indexOf('/', regionEnd + 1) : -1;
+        if (bucketEnd <= regionEnd + 1 || bucketEnd == fileUri.length() - 1) {
+            throw new IllegalArgumentException(String.format(
+                    "fileUri %s not in {scheme}://{region}/{bucket}/{filename} format", fileUri));
+        }
+
+        return new FileLocation(fileUri,
+                fileUri.substring(0, schemeEnd),
+                fileUri.substring(regionStart, regionEnd),
+                fileUri.substring(regionEnd + 1, bucketEnd),
+                fileUri.substring(bucketEnd + 1));
+    }
+
+    /**
+     * @return the uri scheme e.g. s3
+     */
+    public String getScheme() {
+        return scheme;
+    }
+
+    /**
+     * @return the region name
+     */
+    public String getRegion() {
+        return region;
+    }
+
+    /**
+     * @return the bucket name
+     */
+    public String getBucket() {
+        return bucket;
+    }
+
+    /**
+     * @return the file name in the bucket
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return the file uri in {scheme}://{region}/{bucket}/{key} format
+     */
+    public String toUri() {
+        String result = uri;
+        if (result == null) {
+            result = new StringBuilder(scheme.length() + region.length() + bucket.length() + key.length() + 5)
+                .append(scheme).append(SEPARATOR).append(region).append('/').append(bucket).append('/').append(key)
+                .toString();
+            uri = result;
+        }
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (! (obj instanceof FileLocation)) {
+            return false;
+        }
+        FileLocation other = (FileLocation) obj;
+        return key.equals(other.key) && bucket.equals(other.bucket) && region.equals(other.region)
+                && scheme.equals(other.scheme);
+    }
+
+    @Override
+    public int hashCode() {
+        return ((scheme.hashCode() * 31 + region.hashCode()) * 31 + bucket.hashCode()) * 31 + key.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return toUri();
+    }
+}
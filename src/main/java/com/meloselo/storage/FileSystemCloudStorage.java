@@ -0,0 +1,943 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.base.Strings;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.Striped;
+
+/**
+ * CloudStorage keeping files on a local file system, for development, tests and nodes without S3. Each
+ * bucket is a directory under the root and each file is stored at {root}/{bucket}/{filename}, so keys
+ * with '/' are nested directories and a key can not also be a directory of other keys. Content type, eTag
+ * and user metadata are kept in a sidecar properties file under {root}/.meta.
+ *
+ * Files are written to {root}/.tmp, synced and renamed over the target, so readers see either the old or
+ * the new content. The sidecar and the data file of a key are replaced and read under a lock of the key,
+ * so a reader never pairs the data of one store with the eTag of another. The locks are per storage
+ * object, processes sharing a root are not coordinated. Local files and channels are copied with FileChannel.transferTo and transferFrom so
+ * the bytes stay in the kernel, copies are hard links and moves are renames. Expiring urls are signed
+ * with HmacSHA256 and checked by FileSystemUrlHandler.
+ */
+public class FileSystemCloudStorage implements CloudStorage {
+
+    /** the uri scheme of files in this storage unless another is given */
+    public static final String FS_SCHEME = "fs";
+
+    /** the region name of files in this storage unless another is given */
+    public static final String LOCAL_REGION = "local";
+
+    private static final Log log = LogFactory.getLog(FileSystemCloudStorage.class);
+
+    private static final String META_DIR = ".meta";
+    private static final String TMP_DIR = ".tmp";
+    private static final String CONTENT_TYPE_KEY = "contentType";
+    private static final String ETAG_KEY = "eTag";
+    private static final String USER_META_PREFIX = "meta.";
+    private static final String HMAC = "HmacSHA256";
+
+    private final Path root;
+    private final Path metaRoot;
+    private final Path tmpDir;
+    private final String scheme;
+    private final String region;
+    private volatile boolean syncOnStore = true;
+    private volatile String urlBase;
+    private volatile SecretKeySpec urlKey;
+    private final Striped<ReadWriteLock> locks = Striped.readWriteLock(64);
+
+    /**
+     * storage with fs://local/{bucket}/{filename} uris
+     *
+     * @param root the directory holding the buckets, created if missing
+     * @throws IOException if the directories can not be created
+     */
+    public FileSystemCloudStorage(Path root) throws IOException {
+        this(root, FS_SCHEME, LOCAL_REGION);
+    }
+
+    /**
+     * storage with {scheme}://{region}/{bucket}/{filename} uris, e.g. s3 and US_EAST_1 to stand in for
+     * an S3CloudStorage
+     *
+     * @param root the directory holding the buckets, created if missing
+     * @param scheme the uri scheme of files
+     * @param region the region name of files
+     * @throws IOException if the directories can not be created
+     */
+    public FileSystemCloudStorage(Path root, String scheme, String region) throws IOException {
+        checkArgument(root != null, "root is null");
+        checkArgument(! Strings.isNullOrEmpty(scheme), "scheme is null");
+        checkArgument(! Strings.isNullOrEmpty(region), "region is null");
+        this.root = Files.createDirectories(root);
+        this.metaRoot = Files.createDirectories(root.resolve(META_DIR));
+        this.tmpDir = Files.createDirectories(root.resolve(TMP_DIR));
+        this.scheme = scheme;
+        this.region = region;
+    }
+
+    /**
+     * @param syncOnStore true to sync files to disk before they are renamed into place, the default
+     * @return this object
+     */
+    public FileSystemCloudStorage setSyncOnStore(boolean syncOnStore) {
+        this.syncOnStore = syncOnStore;
+        return this;
+    }
+
+    /**
+     * set how expiring urls are made, required for getExpiringUrl
+     *
+     * @param urlBase the url FileSystemUrlHandler is served at, e.g. http://host:8080/files
+     * @param secret the key urls are signed with
+     * @return this object
+     */
+    public FileSystemCloudStorage setUrlSigning(String urlBase, byte[] secret) {
+        checkArgument(! Strings.isNullOrEmpty(urlBase), "urlBase is null");
+        checkArgument(secret != null && secret.length > 0, "secret is null or empty");
+        this.urlBase = urlBase.endsWith("/") ? urlBase.substring(0, urlBase.length() - 1) : urlBase;
+        this.urlKey = new SecretKeySpec(secret.clone(), HMAC);
+        return this;
+    }
+
+    /**
+     * @return the directory holding the buckets
+     */
+    public Path getRoot() {
+        return root;
+    }
+
+    @Deprecated
+    @Override
+    public Map<String, String> parseFileUri(String fileUri) {
+        FileLocation location = parseFileLocation(fileUri);
+
+        Map<String, String> fileInfo = new HashMap<String, String>();
+        fileInfo.put("region", location.getRegion());
+        fileInfo.put("bucket", location.getBucket());
+        fileInfo.put("filename", location.getKey());
+
+        return fileInfo;
+    }
+
+    @Override
+    public FileLocation parseFileLocation(String fileUri) {
+        FileLocation location = FileLocation.parse(fileUri);
+        checkLocation(location);
+        return location;
+    }
+
+    @Override
+    public String storeFile(String bucket, InputStream is, String filename, String contentType,
+            long contentLength, Map<String, String> metaData) throws CloudException {
+        checkArgument(is != null, "is, inputstream to store is null");
+        Path target = dataPath(bucket, filename);
+        Path tmp = null;
+        try {
+            tmp = Files.createTempFile(tmpDir, "store-", ".tmp");
+            FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE);
+            long written;
+            try {
+                written = receive(is, out);
+                if (syncOnStore) {
+                    out.force(true);
+                }
+            } finally {
+                out.close();
+            }
+            if (contentLength > 0 && written != contentLength) {
+                throw new CloudException(String.format("read %d bytes for file %s in bucket %s, expected %d",
+                        written, filename, bucket, contentLength));
+            }
+            commit(tmp, target, bucket, filename, contentType, metaData);
+            tmp = null;
+            return toUri(bucket, filename);
+        } catch (IOException ex) {
+            throw new CloudException(String.format("Error storing file %s type %s in bucket %s",
+                    filename, contentType, bucket), ex);
+        } finally {
+            delete(tmp);
+        }
+    }
+
+    @Override
+    public String storeFileFrom(String bucket, Path path, String filename, String contentType,
+            Map<String, String> metaData) throws CloudException {
+        checkArgument(path != null, "path is null");
+        Path target = dataPath(bucket, filename);
+        Path tmp = null;
+        try {
+            FileChannel in = FileChannel.open(path, StandardOpenOption.READ);
+            try {
+                tmp = Files.createTempFile(tmpDir, "store-", ".tmp");
+                FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE);
+                try {
+                    ChannelTransfers.transfer(in, 0, in.size(), out);
+                    if (syncOnStore) {
+                        out.force(true);
+                    }
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+            commit(tmp, target, bucket, filename, contentType, metaData);
+            tmp = null;
+            return toUri(bucket, filename);
+        } catch (IOException ex) {
+            throw new CloudException(String.format("Error storing file %s from %s in bucket %s",
+                    filename, path, bucket), ex);
+        } finally {
+            delete(tmp);
+        }
+    }
+
+    /**
+     * the file is written to a temporary file in the storage and renamed into place on close
+     */
+    @Override
+    public CloudOutputStream openForWrite(String bucket, String filename, String contentType,
+            Map<String, String> metaData) throws CloudException {
+        Path target = dataPath(bucket, filename);
+        try {
+            return new FileOutputStream(target, bucket, filename, contentType, metaData);
+        } catch (IOException ex) {
+            throw new CloudException(String.format("Error opening file %s in bucket %s for write",
+                    filename, bucket), ex);
+        }
+    }
+
+    @Override
+    public CloudFile getFile(String fileUri) throws CloudException {
+        return getFile(parseFileLocation(fileUri), null);
+    }
+
+    @Override
+    public CloudFile getFile(String fileUri, ByteRange range) throws CloudException {
+        return getFile(parseFileLocation(fileUri), range);
+    }
+
+    @Override
+    public CloudFile getFile(FileLocation location) throws CloudException {
+        return getFile(location, null);
+    }
+
+    @Override
+    public CloudFile getFile(FileLocation location, ByteRange range) throws CloudException {
+        checkLocation(location);
+        Path data = dataPath(location.getBucket(), location.getKey());
+        FileChannel channel = null;
+        Lock lock = lockOf(location.getBucket(), location.getKey()).readLock();
+        lock.lock();
+        try {
+            channel = FileChannel.open(data, StandardOpenOption.READ);
+            long totalLength = channel.size();
+            long first = range == null ? 0 : range.getFirst();
+            long last = range == null || ! range.hasLast() ? totalLength - 1 : Math.min(range.getLast(), totalLength - 1);
+            if (range != null && first >= totalLength) {
+                throw new CloudException(String.format("range %s not satisfiable for file %s of length %d",
+                        range, location, totalLength));
+            }
+            channel.position(first);
+            InputStream is = Channels.newInputStream(channel);
+            if (range != null && last < totalLength - 1) {
+                is = ByteStreams.limit(is, last - first + 1);
+            }
+            CloudFile file = newCloudFile(location, data, totalLength)
+                .setInputStream(is)
+                .setContentLength(last - first + 1);
+            channel = null;
+            return file;
+        } catch (NoSuchFileException ex) {
+            throw new CloudException(String.format("file %s not found", location), ex);
+        } catch (IOException ex) {
+            throw new CloudException(String.format("Error getting file %s range %s", location, range), ex);
+        } finally {
+            lock.unlock();
+            closeQuietly(channel);
+        }
+    }
+
+    @Override
+    public CloudFile getFileIfChanged(String fileUri, String eTag) throws CloudException {
+        checkArgument(! Strings.isNullOrEmpty(eTag), "eTag is null or empty");
+        FileLocation location = parseFileLocation(fileUri);
+        CloudFile file = getFile(location, null);
+        if (eTag.equals(file.getETag())) {
+            Closeables.closeQuietly(file.getInputStream());
+            return null;
+        }
+        return file;
+    }
+
+    @Override
+    public CloudFile getFileMetadata(String fileUri) throws CloudException {
+        FileLocation location = parseFileLocation(fileUri);
+        Path data = dataPath(location.getBucket(), location.getKey());
+        Lock lock = lockOf(location.getBucket(), location.getKey()).readLock();
+        lock.lock();
+        try {
+            return newCloudFile(location, data, Files.size(data));
+        } catch (NoSuchFileException ex) {
+            return null;
+        } catch (IOException ex) {
+            throw new CloudException(String.format("Error getting metadata of file %s", location), ex);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean exists(String fileUri) throws CloudException {
+        FileLocation location = parseFileLocation(fileUri);
+        return Files.isRegularFile(dataPath(location.getBucket(), location.getKey()));
+    }
+
+    @Override
+    public CloudFile getFileTo(String fileUri, Path path) throws CloudException {
+        checkArgument(path != null, "path is null");
+        try {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            try {
+                return getFileTo(fileUri, channel);
+            } finally {
+                channel.close();
+            }
+        } catch (IOException ex) {
+            throw new CloudException(String.format("Error writing file %s to %s", fileUri, path), ex);
+        }
+    }
+
+    /**
+     * send the file to the channel with FileChannel.transferTo
+     */
+    @Override
+    public CloudFile getFileTo(String fileUri, WritableByteChannel channel) throws CloudException {
+        checkArgument(channel != null, "channel is null");
+        FileLocation location = parseFileLocation(fileUri);
+        Path data = dataPath(location.getBucket(), location.getKey());
+        FileChannel in = null;
+        try {
+            CloudFile file;
+            Lock lock = lockOf(location.getBucket(), location.getKey()).readLock();
+            lock.lock();
+            try {
+                in = FileChannel.open(data, StandardOpenOption.READ);
+                file = newCloudFile(location, data, in.size());
+            } finally {
+                lock.unlock();
+            }
+            ChannelTransfers.transfer(in, 0, file.getContentLength(), channel);
+            return file;
+        } catch (NoSuchFileException ex) {
+            throw new CloudException(String.format("file %s not found", location), ex);
+        } catch (IOException ex) {
+            throw new CloudException(String.format("Error writing file %s to channel", location), ex);
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    @Override
+    public void deleteFile(String fileUri) throws CloudException {
+        deleteFile(parseFileLocation(fileUri));
+    }
+
+    /**
+     * delete the file and its sidecar, directories left empty are removed. Deleting a missing file is
+     * not an error.
+     */
+    @Override
+    public void deleteFile(FileLocation location) throws CloudException {
+        checkLocation(location);
+        Path data = dataPath(location.getBucket(), location.getKey());
+        Path meta = metaPath(location.getBucket(), location.getKey());
+        Lock lock = lockOf(location.getBucket(), location.getKey()).writeLock();
+        lock.lock();
+        try {
+            Files.deleteIfExists(data);
+            Files.deleteIfExists(meta);
+        } catch (IOException ex) {
+            throw new CloudException(String.format("Error deleting file %s", location), ex);
+        } finally {
+            lock.unlock();
+        }
+        prune(data.getParent(), root.resolve(location.getBucket()));
+        prune(meta.getParent(), metaRoot.resolve(location.getBucket()));
+    }
+
+    @Override
+    public BatchResult deleteFiles(Collection<String> fileUris) throws CloudException {
+        checkArgument(fileUris != null, "fileUris is null");
+
+        BatchResult result = new BatchResult();
+        for (String fileUri : new LinkedHashSet<String>(fileUris)) {
+            try {
+                deleteFile(fileUri);
+                result.addSucceeded(fileUri);
+            } catch (IllegalArgumentException ex) {
+                result.addFailed(fileUri, new CloudException(ex.getMessage(), ex));
+            } catch (CloudException ex) {
+                result.addFailed(fileUri, ex);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * copy file by hard linking it to the new name, falling back to a copy where the file system has no
+     * hard links. Stored files are always replaced by a rename and never changed in place, so the names
+     * can share the file. The copy keeps the eTag of the source.
+     */
+    @Override
+    public String copyFile(String srcUri, String dstBucket, String dstFilename) throws CloudException {
+        FileLocation src = parseFileLocation(srcUri);
+        Path srcData = dataPath(src.getBucket(), src.getKey());
+        Path target = dataPath(dstBucket, dstFilename);
+        if (srcData.equals(target)) {
+            return src.toUri();
+        }
+        Path tmp = tmpDir.resolve("copy-" + UUID.randomUUID() + ".tmp");
+        List<Lock> held = lockBoth(src, dstBucket, dstFilename);
+        try {
+            try {
+                Files.createLink(tmp, srcData);
+            } catch (NoSuchFileException ex) {
+                throw ex;
+            } catch (UnsupportedOperationException | FileSystemException ex) {
+                Files.copy(srcData, tmp);
+            }
+            commit(tmp, target, metaPath(dstBucket, dstFilename), readMeta(metaPath(src.getBucket(), src.getKey())));
+            tmp = null;
+            return toUri(dstBucket, dstFilename);
+        } catch (NoSuchFileException ex) {
+            throw new CloudException(String.format("file %s not found", src), ex);
+        } catch (IOException ex) {
+            throw new CloudException(String.format("Error copying file %s to %s in bucket %s",
+                    src, dstFilename, dstBucket), ex);
+        } finally {
+            unlock(held);
+            delete(tmp);
+        }
+    }
+
+    /**
+     * move file with a rename, the file keeps its eTag
+     */
+    @Override
+    public String moveFile(String srcUri, String dstBucket, String dstFilename) throws CloudException {
+        FileLocation src = parseFileLocation(srcUri);
+        Path srcData = dataPath(src.getBucket(), src.getKey());
+        Path target = dataPath(dstBucket, dstFilename);
+        if (srcData.equals(target)) {
+            return src.toUri();
+        }
+        Path srcMeta = metaPath(src.getBucket(), src.getKey());
+        List<Lock> held = lockBoth(src, dstBucket, dstFilename);
+        try {
+            if (! Files.isRegularFile(srcData)) {
+                throw new CloudException(String.format("file %s not found", src));
+            }
+            commit(srcData, target, metaPath(dstBucket, dstFilename), readMeta(srcMeta));
+            Files.deleteIfExists(srcMeta);
+        } catch (IOException ex) {
+            throw new CloudException(String.format("Error moving file %s to %s in bucket %s",
+                    src, dstFilename, dstBucket), ex);
+        } finally {
+            unlock(held);
+        }
+        prune(srcData.getParent(), root.resolve(src.getBucket()));
+        prune(srcMeta.getParent(), metaRoot.resolve(src.getBucket()));
+        return toUri(dstBucket, dstFilename);
+    }
+
+    /**
+     * copy many files one after another, each copy is a hard link
+     */
+    @Override
+    public BatchResult copyFiles(Map<String, String> fileUris) throws CloudException {
+        checkArgument(fileUris != null, "fileUris is null");
+
+        BatchResult result = new BatchResult();
+        for (Map.Entry<String, String> entry : fileUris.entrySet()) {
+            try {
+                FileLocation dst = parseFileLocation(entry.getValue());
+                copyFile(entry.getKey(), dst.getBucket(), dst.getKey());
+                result.addSucceeded(entry.getKey());
+            } catch (IllegalArgumentException ex) {
+                result.addFailed(entry.getKey(), new CloudException(ex.getMessage(), ex));
+            } catch (CloudException ex) {
+                result.addFailed(entry.getKey(), ex);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * list files in a bucket in filename order. Only the directory of the prefix is walked, the listing is
+     * read when this is called.
+     */
+    @Override
+    public CloudFileIterator listFiles(final String bucket, String prefix) throws CloudException {
+        checkBucket(bucket);
+        final String keyPrefix = Strings.nullToEmpty(prefix);
+        final Path bucketDir = root.resolve(bucket);
+        Path start = bucketDir;
+        int slash = keyPrefix.lastIndexOf('/');
+        if (slash > 0 && isValidKey(keyPrefix.substring(0, slash))) {
+            start = bucketDir.resolve(keyPrefix.substring(0, slash));
+        }
+
+        final List<CloudFileSummary> files = new ArrayList<CloudFileSummary>();
+        if (Files.isDirectory(start)) {
+            try {
+                Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                        String key = toKey(bucketDir.relativize(file));
+                        if (attrs.isRegularFile() && key.startsWith(keyPrefix)) {
+                            Properties meta = readMeta(metaPath(bucket, key));
+                            files.add(new CloudFileSummary(toUri(bucket, key), attrs.size(),
+                                    eTagOf(meta, attrs.size(), attrs.lastModifiedTime().toMillis()),
+                                    attrs.lastModifiedTime().toMillis()));
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file, IOException ex) throws IOException {
+                        if (ex instanceof NoSuchFileException) {
+                            return FileVisitResult.CONTINUE;
+                        }
+                        throw ex;
+                    }
+                });
+            } catch (IOException ex) {
+                throw new CloudException(String.format("Error listing files in bucket %s with prefix %s",
+                        bucket, prefix), ex);
+            }
+        }
+        Collections.sort(files, new Comparator<CloudFileSummary>() {
+            @Override
+            public int compare(CloudFileSummary a, CloudFileSummary b) {
+                return a.getFileUri().compareTo(b.getFileUri());
+            }
+        });
+
+        final Iterator<CloudFileSummary> iterator = files.iterator();
+        return new CloudFileIterator() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public CloudFileSummary next() {
+                return iterator.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("remove");
+            }
+
+            @Override
+            public void close() {
+                //do nothing
+            }
+        };
+    }
+
+    @Override
+    public URL getExpiringUrl(String fileUri, long expirySeconds) throws CloudException {
+        return getExpiringUrl(parseFileLocation(fileUri), expirySeconds);
+    }
+
+    /**
+     * create url for a file served by FileSystemUrlHandler which will expire in specified seconds. The url
+     * is {urlBase}/{bucket}/{filename}?expires={epoch seconds}&signature={hmac}.
+     *
+     * @throws IllegalStateException if setUrlSigning was not called
+     */
+    @Override
+    public URL getExpiringUrl(FileLocation location, long expirySeconds) throws CloudException {
+        checkLocation(location);
+        checkArgument(expirySeconds > 0, "expirySeconds %s is not postive for file %s", expirySeconds, location);
+        String base = urlBase;
+        if (base == null) {
+            throw new IllegalStateException("url signing is not set for storage at " + root);
+        }
+        long expires = System.currentTimeMillis() / 1000 + expirySeconds;
+        StringBuilder url = new StringBuilder(base).append('/').append(encode(location.getBucket()));
+        for (String segment : location.getKey().split("/")) {
+            url.append('/').append(encode(segment));
+        }
+        url.append("?expires=").append(expires)
+            .append("&signature=").append(sign(location.getBucket(), location.getKey(), expires));
+        try {
+            return new URL(url.toString());
+        } catch (MalformedURLException ex) {
+            throw new CloudException(String.format("Error creating url for file %s", location), ex);
+        }
+    }
+
+    /**
+     * check a request for an expiring url
+     *
+     * @param bucket the bucket from the url path
+     * @param filename the decoded filename from the url path
+     * @param expires the expires parameter of the url, in epoch seconds
+     * @param signature the signature parameter of the url
+     * @return true if the url was made by this storage and has not expired
+     */
+    public boolean isValidUrl(String bucket, String filename, long expires, String signature) {
+        if (urlKey == null || signature == null || expires < System.currentTimeMillis() / 1000) {
+            return false;
+        }
+        return MessageDigest.isEqual(sign(bucket, filename, expires).getBytes(StandardCharsets.US_ASCII),
+                signature.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    String toUri(String bucket, String filename) {
+        return new FileLocation(scheme, region, bucket, filename).toUri();
+    }
+
+    private String sign(String bucket, String filename, long expires) {
+        try {
+            Mac mac = Mac.getInstance(HMAC);
+            mac.init(urlKey);
+            byte[] hmac = mac.doFinal((bucket + '/' + filename + '\n' + expires).getBytes(StandardCharsets.UTF_8));
+            return BaseEncoding.base16().lowerCase().encode(hmac);
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException(HMAC + " not available", ex);
+        }
+    }
+
+    private static String encode(String segment) {
+        try {
+            return URLEncoder.encode(segment, "UTF-8").replace("+", "%20");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private void checkLocation(FileLocation location) {
+        checkArgument(location != null, "location is null");
+        checkArgument(scheme.equals(location.getScheme()) && region.equals(location.getRegion()),
+                "fileUri %s not in this storage %s://%s", location, scheme, region);
+    }
+
+    private static void checkBucket(String bucket) {
+        checkArgument(! Strings.isNullOrEmpty(bucket), "bucket is null");
+        checkArgument(bucket.indexOf('/') < 0 && bucket.indexOf('\\') < 0 && bucket.charAt(0) != '.',
+                "bucket %s is not a valid directory name", bucket);
+    }
+
+    private static boolean isValidKey(String filename) {
+        if (Strings.isNullOrEmpty(filename) || filename.indexOf('\\') >= 0) {
+            return false;
+        }
+        for (String segment : filename.split("/", -1)) {
+            if (segment.isEmpty() || ".".equals(segment) || "..".equals(segment)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Path dataPath(String bucket, String filename) {
+        checkBucket(bucket);
+        checkArgument(isValidKey(filename), "filename %s is empty or has an empty, . or .. segment", filename);
+        return root.resolve(bucket).resolve(filename);
+    }
+
+    private Path metaPath(String bucket, String filename) {
+        return metaRoot.resolve(bucket).resolve(filename);
+    }
+
+    private static String toKey(Path relative) {
+        StringBuilder key = new StringBuilder();
+        for (Path name : relative) {
+            if (key.length() > 0) {
+                key.append('/');
+            }
+            key.append(name.toString());
+        }
+        return key.toString();
+    }
+
+    private long receive(InputStream is, FileChannel out) throws IOException {
+        if (! (is instanceof FileInputStream)) {
+            return ChannelTransfers.copy(is, out);
+        }
+        FileChannel in = ((FileInputStream) is).getChannel();
+        long remaining = in.size() - in.position();
+        long total = 0;
+        while (total < remaining) {
+            long n = out.transferFrom(in, total, remaining - total);
+            if (n <= 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * write the sidecar, then rename the data file into place, under the lock of the key
+     */
+    private void commit(Path tmp, Path target, String bucket, String filename, String contentType,
+            Map<String, String> metaData) throws IOException {
+        Properties meta = new Properties();
+        if (contentType != null) {
+            meta.setProperty(CONTENT_TYPE_KEY, contentType);
+        }
+        meta.setProperty(ETAG_KEY, UUID.randomUUID().toString().replace("-", ""));
+        if (metaData != null) {
+            for (Map.Entry<String, String> entry : metaData.entrySet()) {
+                meta.setProperty(USER_META_PREFIX + entry.getKey(), entry.getValue());
+            }
+        }
+        Lock lock = lockOf(bucket, filename).writeLock();
+        lock.lock();
+        try {
+            commit(tmp, target, metaPath(bucket, filename), meta);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * replace the sidecar and the data file of a key, the caller holds the write lock of the key
+     */
+    private void commit(Path tmp, Path target, Path metaFile, Properties meta) throws IOException {
+        Files.createDirectories(metaFile.getParent());
+        Path metaTmp = Files.createTempFile(tmpDir, "meta-", ".tmp");
+        try {
+            OutputStream os = Files.newOutputStream(metaTmp);
+            try {
+                meta.store(os, null);
+            } finally {
+                os.close();
+            }
+            Files.move(metaTmp, metaFile, StandardCopyOption.ATOMIC_MOVE);
+            metaTmp = null;
+        } finally {
+            delete(metaTmp);
+        }
+
+        Files.createDirectories(target.getParent());
+        Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private ReadWriteLock lockOf(String bucket, String filename) {
+        return locks.get(bucket + "/" + filename);
+    }
+
+    /**
+     * take the write locks of the source and destination of a copy or move, in the stripe order so two
+     * copies in opposite directions do not deadlock
+     */
+    private List<Lock> lockBoth(FileLocation src, String dstBucket, String dstFilename) {
+        List<Lock> held = new ArrayList<Lock>(2);
+        for (ReadWriteLock lock : locks.bulkGet(Arrays.asList(src.getBucket() + "/" + src.getKey(),
+                dstBucket + "/" + dstFilename))) {
+            lock.writeLock().lock();
+            held.add(lock.writeLock());
+        }
+        return held;
+    }
+
+    private static void unlock(List<Lock> held) {
+        for (int i = held.size() - 1; i >= 0; i--) {
+            held.get(i).unlock();
+        }
+    }
+
+    private CloudFile newCloudFile(FileLocation location, Path data, long length) throws IOException {
+        Properties meta = readMeta(metaPath(location.getBucket(), location.getKey()));
+        Map<String, String> userMeta = new HashMap<String, String>();
+        for (String name : meta.stringPropertyNames()) {
+            if (name.startsWith(USER_META_PREFIX)) {
+                userMeta.put(name.substring(USER_META_PREFIX.length()), meta.getProperty(name));
+            }
+        }
+        return new CloudFile()
+            .setContentType(meta.getProperty(CONTENT_TYPE_KEY))
+            .setContentLength(length)
+            .setTotalLength(length)
+            .setETag(eTagOf(meta, length, Files.getLastModifiedTime(data).toMillis()))
+            .setMetaData(userMeta);
+    }
+
+    private static Properties readMeta(Path metaFile) throws IOException {
+        Properties meta = new Properties();
+        try {
+            InputStream is = Files.newInputStream(metaFile);
+            try {
+                meta.load(is);
+            } finally {
+                is.close();
+            }
+        } catch (NoSuchFileException ex) {
+            //file stored without this storage, defaults are used
+        }
+        return meta;
+    }
+
+    private static String eTagOf(Properties meta, long length, long lastModified) {
+        String eTag = meta.getProperty(ETAG_KEY);
+        return eTag != null ? eTag : Long.toHexString(length) + "-" + Long.toHexString(lastModified);
+    }
+
+    /**
+     * remove empty directories from dir up to but not including stop
+     */
+    private static void prune(Path dir, Path stop) {
+        while (dir != null && dir.startsWith(stop) && ! dir.equals(stop)) {
+            try {
+                Files.deleteIfExists(dir);
+            } catch (DirectoryNotEmptyException ex) {
+                return;
+            } catch (IOException ex) {
+                log.warn("Error removing empty directory " + dir, ex);
+                return;
+            }
+            dir = dir.getParent();
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                log.warn("Error closing file channel", ex);
+            }
+        }
+    }
+
+    private static void delete(Path path) {
+        if (path == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException ex) {
+            log.warn("Error deleting temporary file " + path, ex);
+        }
+    }
+
+    /**
+     * stream of openForWrite writing to a temporary file
+     */
+    private class FileOutputStream extends CloudOutputStream {
+
+        private final Path target;
+        private final String bucket;
+        private final String filename;
+        private final String contentType;
+        private final Map<String, String> metaData;
+        private final Path tmp;
+        private final FileChannel channel;
+        private final OutputStream out;
+
+        FileOutputStream(Path target, String bucket, String filename, String contentType,
+                Map<String, String> metaData) throws IOException {
+            this.target = target;
+            this.bucket = bucket;
+            this.filename = filename;
+            this.contentType = contentType;
+            this.metaData = metaData;
+            this.tmp = Files.createTempFile(tmpDir, "store-", ".tmp");
+            this.channel = FileChannel.open(tmp, StandardOpenOption.WRITE);
+            this.out = new BufferedOutputStream(Channels.newOutputStream(channel), ChannelTransfers.BUFFER_SIZE);
+        }
+
+        @Override
+        protected void writeBytes(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        protected String complete() throws CloudException {
+            boolean committed = false;
+            try {
+                out.flush();
+                if (syncOnStore) {
+                    channel.force(true);
+                }
+                channel.close();
+                commit(tmp, target, bucket, filename, contentType, metaData);
+                committed = true;
+                return toUri(bucket, filename);
+            } catch (IOException ex) {
+                throw new CloudException(String.format("Error storing file %s type %s in bucket %s",
+                        filename, contentType, bucket), ex);
+            } finally {
+                if (! committed) {
+                    discard();
+                }
+            }
+        }
+
+        @Override
+        protected void discard() {
+            closeQuietly(channel);
+            delete(tmp);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.file.NoSuchFileException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * serves the expiring urls of a FileSystemCloudStorage from the JDK http server. Register it at the path
+ * of the urlBase given to setUrlSigning, e.g.
+ * server.createContext("/files", new FileSystemUrlHandler(storage)). Answers GET and HEAD, 403 for urls
+ * with a bad signature or past their expiry and 404 for missing files.
+ */
+public class FileSystemUrlHandler implements HttpHandler {
+
+    private static final Log log = LogFactory.getLog(FileSystemUrlHandler.class);
+
+    private final FileSystemCloudStorage storage;
+
+    /**
+     * @param storage the storage that signed the urls, required
+     */
+    public FileSystemUrlHandler(FileSystemCloudStorage storage) {
+        checkArgument(storage != null, "storage is null");
+        this.storage = storage;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            if (! "GET".equals(method) && ! "HEAD".equals(method)) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            String path = exchange.getRequestURI().getRawPath().substring(exchange.getHttpContext().getPath().length());
+            int slash = path.indexOf('/', 1);
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            if (! path.startsWith("/") || slash < 0 || ! query.containsKey("expires")) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            String bucket = decode(path.substring(1, slash));
+            String filename = decode(path.substring(slash + 1));
+            long expires;
+            try {
+                expires = Long.parseLong(query.get("expires"));
+            } catch (NumberFormatException ex) {
+                exchange.sendResponseHeaders(403, -1);
+                return;
+            }
+            if (! storage.isValidUrl(bucket, filename, expires, query.get("signature"))) {
+                exchange.sendResponseHeaders(403, -1);
+                return;
+            }
+
+            CloudFile file;
+            try {
+                file = storage.getFile(storage.toUri(bucket, filename));
+            } catch (IllegalArgumentException ex) {
+                file = null;
+            } catch (CloudException ex) {
+                if (! (ex.getCause() instanceof NoSuchFileException)) {
+                    throw ex;
+                }
+                file = null;
+            }
+            if (file == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+
+            InputStream is = file.getInputStream();
+            try {
+                if (file.getContentType() != null) {
+                    exchange.getResponseHeaders().set("Content-Type", file.getContentType());
+                }
+                exchange.getResponseHeaders().set("ETag", "\"" + file.getETag() + "\"");
+                if ("HEAD".equals(method)) {
+                    exchange.getResponseHeaders().set("Content-Length", Long.toString(file.getContentLength()));
+                    exchange.sendResponseHeaders(200, -1);
+                    return;
+                }
+                exchange.sendResponseHeaders(200, file.getContentLength() == 0 ? -1 : file.getContentLength());
+                if (file.getContentLength() > 0) {
+                    ChannelTransfers.copy(is, Channels.newChannel(exchange.getResponseBody()));
+                }
+            } finally {
+                is.close();
+            }
+        } catch (CloudException ex) {
+            log.warn("Error serving " + exchange.getRequestURI(), ex);
+            throw new IOException(ex.getMessage(), ex);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<String, String>();
+        if (query == null) {
+            return params;
+        }
+        for (String param : query.split("&")) {
+            int eq = param.indexOf('=');
+            if (eq > 0) {
+                params.put(decode(param.substring(0, eq)), decode(param.substring(eq + 1)));
+            }
+        }
+        return params;
+    }
+
+    private static String decode(String s) throws UnsupportedEncodingException {
+        return URLDecoder.decode(s.replace("+", "%2B"), "UTF-8");
+    }
+}
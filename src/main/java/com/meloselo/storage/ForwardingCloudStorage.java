@@ -0,0 +1,196 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Map;
+
+import com.google.common.io.Closeables;
+
+/**
+ * CloudStorage forwarding all calls to another CloudStorage. Decorators extend this and override the
+ * operations they change. storeFileFrom, openForWrite and getFileTo are not forwarded, they go through
+ * storeFile and getFile of this storage so decorators see them.
+ */
+public abstract class ForwardingCloudStorage implements CloudStorage {
+
+    private final CloudStorage delegate;
+
+    /**
+     * @param delegate the storage to forward calls to, required
+     */
+    protected ForwardingCloudStorage(CloudStorage delegate) {
+        checkArgument(delegate != null, "delegate storage is null");
+        this.delegate = delegate;
+    }
+
+    /**
+     * @return the storage calls are forwarded to
+     */
+    protected CloudStorage delegate() {
+        return delegate;
+    }
+
+    @Deprecated
+    @Override
+    public Map<String, String> parseFileUri(String fileUri) {
+        return delegate.parseFileUri(fileUri);
+    }
+
+    @Override
+    public FileLocation parseFileLocation(String fileUri) {
+        return delegate.parseFileLocation(fileUri);
+    }
+
+    @Override
+    public String storeFile(String bucket, InputStream is, String filename, String contentType,
+            long contentLength, Map<String, String> metaData) throws CloudException {
+        return delegate.storeFile(bucket, is, filename, contentType, contentLength, metaData);
+    }
+
+    @Override
+    public String storeFileFrom(String bucket, Path path, String filename, String contentType,
+            Map<String, String> metaData) throws CloudException {
+        checkArgument(path != null, "path is null");
+        InputStream is = null;
+        try {
+            is = Files.newInputStream(path);
+            return storeFile(bucket, is, filename, contentType, Files.size(path), metaData);
+        } catch (IOException ex) {
+            throw new CloudException(String.format("Error reading file %s to store in bucket %s", path, bucket), ex);
+        } finally {
+            Closeables.closeQuietly(is);
+        }
+    }
+
+    /**
+     * the file is written to a temporary file and stored with storeFileFrom on close
+     */
+    @Override
+    public CloudOutputStream openForWrite(String bucket, String filename, String contentType,
+            Map<String, String> metaData) throws CloudException {
+        return new SpooledCloudOutputStream(this, bucket, filename, contentType, metaData);
+    }
+
+    @Override
+    public CloudFile getFile(String fileUri) throws CloudException {
+        return delegate.getFile(fileUri);
+    }
+
+    @Override
+    public CloudFile getFileTo(String fileUri, Path path) throws CloudException {
+        checkArgument(path != null, "path is null");
+        try {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            try {
+                return getFileTo(fileUri, channel);
+            } finally {
+                channel.close();
+            }
+        } catch (IOException ex) {
+            throw new CloudException(String.format("Error writing file %s to %s", fileUri, path), ex);
+        }
+    }
+
+    @Override
+    public CloudFile getFileTo(String fileUri, WritableByteChannel channel) throws CloudException {
+        checkArgument(channel != null, "channel is null");
+        CloudFile file = getFile(fileUri);
+        InputStream is = file.getInputStream();
+        try {
+            ChannelTransfers.copy(is, channel);
+        } catch (IOException ex) {
+            throw new CloudException(String.format("Error writing file %s to channel", fileUri), ex);
+        } finally {
+            Closeables.closeQuietly(is);
+        }
+        return file.setInputStream(null);
+    }
+
+    @Override
+    public CloudFile getFile(String fileUri, ByteRange range) throws CloudException {
+        return delegate.getFile(fileUri, range);
+    }
+
+    @Override
+    public CloudFile getFileIfChanged(String fileUri, String eTag) throws CloudException {
+        return delegate.getFileIfChanged(fileUri, eTag);
+    }
+
+    @Override
+    public CloudFile getFileMetadata(String fileUri) throws CloudException {
+        return delegate.getFileMetadata(fileUri);
+    }
+
+    @Override
+    public boolean exists(String fileUri) throws CloudException {
+        return delegate.exists(fileUri);
+    }
+
+    @Override
+    public CloudFile getFile(FileLocation location) throws CloudException {
+        return delegate.getFile(location);
+    }
+
+    @Override
+    public CloudFile getFile(FileLocation location, ByteRange range) throws CloudException {
+        return delegate.getFile(location, range);
+    }
+
+    @Override
+    public void deleteFile(String fileUri) throws CloudException {
+        delegate.deleteFile(fileUri);
+    }
+
+    @Override
+    public void deleteFile(FileLocation location) throws CloudException {
+        delegate.deleteFile(location);
+    }
+
+    @Override
+    public BatchResult deleteFiles(Collection<String> fileUris) throws CloudException {
+        return delegate.deleteFiles(fileUris);
+    }
+
+    @Override
+    public String copyFile(String srcUri, String dstBucket, String dstFilename) throws CloudException {
+        return delegate.copyFile(srcUri, dstBucket, dstFilename);
+    }
+
+    @Override
+    public String moveFile(String srcUri, String dstBucket, String dstFilename) throws CloudException {
+        return delegate.moveFile(srcUri, dstBucket, dstFilename);
+    }
+
+    @Override
+    public BatchResult copyFiles(Map<String, String> fileUris) throws CloudException {
+        return delegate.copyFiles(fileUris);
+    }
+
+    @Override
+    public CloudFileIterator listFiles(String bucket, String prefix) throws CloudException {
+        return delegate.listFiles(bucket, prefix);
+    }
+
+    @Override
+    public URL getExpiringUrl(String fileUri, long expirySeconds) throws CloudException {
+        return delegate.getExpiringUrl(fileUri, expirySeconds);
+    }
+
+    @Override
+    public URL getExpiringUrl(FileLocation location, long expirySeconds) throws CloudException {
+        return delegate.getExpiringUrl(location, expirySeconds);
+    }
+}
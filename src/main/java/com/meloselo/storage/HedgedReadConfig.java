@@ -0,0 +1,111 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * settings for hedged GETs done by S3CloudStorage. If the response to a GET has not started within the
+ * delayPercentile of recent GET latencies a second identical GET is sent and whichever answers first is
+ * used. Hedges are limited to budgetPercent of GETs so a slow S3 does not get twice the load.
+ */
+public class HedgedReadConfig {
+
+    private double delayPercentile = 95;
+    private long minDelayMillis = 10;
+    private long maxDelayMillis = 1000;
+    private int minSamples = 100;
+    private double budgetPercent = 5;
+
+    public HedgedReadConfig() {
+        //do nothing
+    }
+
+    /**
+     * @return the percentile of GET latencies to wait for before hedging
+     */
+    public double getDelayPercentile() {
+        return delayPercentile;
+    }
+
+    /**
+     * @param delayPercentile the percentile of GET latencies to wait for before hedging, from 50 to 100
+     * @return this object
+     */
+    public HedgedReadConfig setDelayPercentile(double delayPercentile) {
+        checkArgument(delayPercentile >= 50 && delayPercentile <= 100, "delayPercentile %s not in 50..100",
+                delayPercentile);
+        this.delayPercentile = delayPercentile;
+        return this;
+    }
+
+    /**
+     * @return the smallest delay before hedging in milliseconds
+     */
+    public long getMinDelayMillis() {
+        return minDelayMillis;
+    }
+
+    /**
+     * @param minDelayMillis the smallest delay before hedging in milliseconds
+     * @return this object
+     */
+    public HedgedReadConfig setMinDelayMillis(long minDelayMillis) {
+        checkArgument(minDelayMillis >= 0, "minDelayMillis %s is negative", minDelayMillis);
+        this.minDelayMillis = minDelayMillis;
+        return this;
+    }
+
+    /**
+     * @return the largest delay before hedging in milliseconds, also used until minSamples GETs were timed
+     */
+    public long getMaxDelayMillis() {
+        return maxDelayMillis;
+    }
+
+    /**
+     * @param maxDelayMillis the largest delay before hedging in milliseconds
+     * @return this object
+     */
+    public HedgedReadConfig setMaxDelayMillis(long maxDelayMillis) {
+        checkArgument(maxDelayMillis > 0, "maxDelayMillis %s is not positive", maxDelayMillis);
+        this.maxDelayMillis = maxDelayMillis;
+        return this;
+    }
+
+    /**
+     * @return the number of GETs timed before the delay follows the percentile
+     */
+    public int getMinSamples() {
+        return minSamples;
+    }
+
+    /**
+     * @param minSamples the number of GETs timed before the delay follows the percentile
+     * @return this object
+     */
+    public HedgedReadConfig setMinSamples(int minSamples) {
+        checkArgument(minSamples >= 0, "minSamples %s is negative", minSamples);
+        this.minSamples = minSamples;
+        return this;
+    }
+
+    /**
+     * @return the most hedged GETs sent as a percentage of GETs
+     */
+    public double getBudgetPercent() {
+        return budgetPercent;
+    }
+
+    /**
+     * @param budgetPercent the most hedged GETs sent as a percentage of GETs, from 0 to 100
+     * @return this object
+     */
+    public HedgedReadConfig setBudgetPercent(double budgetPercent) {
+        checkArgument(budgetPercent >= 0 && budgetPercent <= 100, "budgetPercent %s not in 0..100",
+                budgetPercent);
+        this.budgetPercent = budgetPercent;
+        return this;
+    }
+}
@@ -0,0 +1,548 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.io.CountingInputStream;
+
+/**
+ * CloudStorage reporting the timing, outcome and bytes transferred of every call to a CloudStorageListener,
+ * e.g. CloudMetrics. The time of getFile is the time until the stream is returned, the download is reported
+ * separately when the stream is read to the end or closed. storeFileFrom, openForWrite and getFileTo are
+ * forwarded to the delegate as they are, so its parallel transfers of files and streams are kept, and are
+ * reported under their own operation. Errors thrown by the listener are logged and do not fail the call.
+ */
+public class InstrumentedCloudStorage extends ForwardingCloudStorage {
+
+    private static final Log log = LogFactory.getLog(InstrumentedCloudStorage.class);
+
+    private final CloudStorageListener listener;
+
+    /**
+     * @param delegate the storage to instrument, required
+     * @param listener the listener to report calls to, required
+     */
+    public InstrumentedCloudStorage(CloudStorage delegate, CloudStorageListener listener) {
+        super(delegate);
+        checkArgument(listener != null, "listener is null");
+        this.listener = listener;
+    }
+
+    /**
+     * @return the listener calls are reported to
+     */
+    public CloudStorageListener getListener() {
+        return listener;
+    }
+
+    @Override
+    public String storeFile(String bucket, InputStream is, String filename, String contentType,
+            long contentLength, Map<String, String> metaData) throws CloudException {
+        long start = start(CloudOperation.STORE_FILE, bucket);
+        CountingInputStream counting = is == null ? null : new CountingInputStream(is);
+        try {
+            String fileUri = delegate().storeFile(bucket, counting, filename, contentType, contentLength,
+                    metaData);
+            long nanos = System.nanoTime() - start;
+            complete(CloudOperation.STORE_FILE, bucket, nanos, null);
+            transfer(CloudOperation.STORE_FILE, bucket, counting == null ? 0 : counting.getCount(), nanos);
+            return fileUri;
+        } catch (Throwable ex) {
+            complete(CloudOperation.STORE_FILE, bucket, System.nanoTime() - start, ex);
+            throw ex;
+        }
+    }
+
+    @Override
+    public String storeFileFrom(String bucket, Path path, String filename, String contentType,
+            Map<String, String> metaData) throws CloudException {
+        long start = start(CloudOperation.STORE_FILE_FROM, bucket);
+        try {
+            String fileUri = delegate().storeFileFrom(bucket, path, filename, contentType, metaData);
+            long nanos = System.nanoTime() - start;
+            complete(CloudOperation.STORE_FILE_FROM, bucket, nanos, null);
+            transfer(CloudOperation.STORE_FILE_FROM, bucket, sizeOf(path), nanos);
+            return fileUri;
+        } catch (Throwable ex) {
+            complete(CloudOperation.STORE_FILE_FROM, bucket, System.nanoTime() - start, ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * open a stream to store a file, the call is reported from open until the stream is closed or aborted
+     */
+    @Override
+    public CloudOutputStream openForWrite(String bucket, String filename, String contentType,
+            Map<String, String> metaData) throws CloudException {
+        long start = start(CloudOperation.OPEN_FOR_WRITE, bucket);
+        try {
+            return new TransferOutputStream(delegate().openForWrite(bucket, filename, contentType, metaData),
+                    bucket, filename, start);
+        } catch (Throwable ex) {
+            complete(CloudOperation.OPEN_FOR_WRITE, bucket, System.nanoTime() - start, ex);
+            throw ex;
+        }
+    }
+
+    @Override
+    public CloudFile getFile(String fileUri) throws CloudException {
+        String bucket = bucketOf(fileUri);
+        long start = start(CloudOperation.GET_FILE, bucket);
+        try {
+            return download(CloudOperation.GET_FILE, bucket, start, delegate().getFile(fileUri));
+        } catch (Throwable ex) {
+            complete(CloudOperation.GET_FILE, bucket, System.nanoTime() - start, ex);
+            throw ex;
+        }
+    }
+
+    @Override
+    public CloudFile getFile(String fileUri, ByteRange range) throws CloudException {
+        String bucket = bucketOf(fileUri);
+        long start = start(CloudOperation.GET_FILE, bucket);
+        try {
+            return download(CloudOperation.GET_FILE, bucket, start, delegate().getFile(fileUri, range));
+        } catch (Throwable ex) {
+            complete(CloudOperation.GET_FILE, bucket, System.nanoTime() - start, ex);
+            throw ex;
+        }
+    }
+
+    @Override
+    public CloudFile getFile(FileLocation location) throws CloudException {
+        String bucket = location.getBucket();
+        long start = start(CloudOperation.GET_FILE, bucket);
+        try {
+            return download(CloudOperation.GET_FILE, bucket, start, delegate().getFile(location));
+        } catch (Throwable ex) {
+            complete(CloudOperation.GET_FILE, bucket, System.nanoTime() - start, ex);
+            throw ex;
+        }
+    }
+
+    @Override
+    public CloudFile getFile(FileLocation location, ByteRange range) throws CloudException {
+        String bucket = location.getBucket();
+        long start = start(CloudOperation.GET_FILE, bucket);
+        try {
+            return download(CloudOperation.GET_FILE, bucket, start, delegate().getFile(location, range));
+        } catch (Throwable ex) {
+            complete(CloudOperation.GET_FILE, bucket, System.nanoTime() - start, ex);
+            throw ex;
+        }
+    }
+
+    @Override
+    public CloudFile getFileTo(String fileUri, Path path) throws CloudException {
+        String bucket = bucketOf(fileUri);
+        long start = start(CloudOperation.GET_FILE_TO, bucket);
+        try {
+            return received(bucket, start, delegate().getFileTo(fileUri, path));
+        } catch (Throwable ex) {
+            complete(CloudOperation.GET_FILE_TO, bucket, System.nanoTime() - start, ex);
+            throw ex;
+        }
+    }
+
+    @Override
+    public CloudFile getFileTo(String fileUri, WritableByteChannel channel) throws CloudException {
+        String bucket = bucketOf(fileUri);
+        long start = start(CloudOperation.GET_FILE_TO, bucket);
+        try {
+            return received(bucket, start, delegate().getFileTo(fileUri, channel));
+        } catch (Throwable ex) {
+            complete(CloudOperation.GET_FILE_TO, bucket, System.nanoTime() - start, ex);
+            throw ex;
+        }
+    }
+
+    @Override
+    public CloudFile getFileIfChanged(String fileUri, String eTag) throws CloudException {
+        String bucket = bucketOf(fileUri);
+        long start = start(CloudOperation.GET_FILE_IF_CHANGED, bucket);
+        try {
+            return download(CloudOperation.GET_FILE_IF_CHANGED, bucket, start,
+                    delegate().getFileIfChanged(fileUri, eTag));
+        } catch (Throwable ex) {
+            complete(CloudOperation.GET_FILE_IF_CHANGED, bucket, System.nanoTime() - start, ex);
+            throw ex;
+        }
+    }
+
+    @Override
+    public CloudFile getFileMetadata(String fileUri) throws CloudException {
+        String bucket = bucketOf(fileUri);
+        long start = start(CloudOperation.GET_FILE_METADATA, bucket);
+        try {
+            CloudFile file = delegate().getFileMetadata(fileUri);
+            complete(CloudOperation.GET_FILE_METADATA, bucket, System.nanoTime() - start, null);
+            return file;
+        } catch (Throwable ex) {
+            complete(CloudOperation.GET_FILE_METADATA, bucket, System.nanoTime() - start, ex);
+            throw ex;
+        }
+    }
+
+    @Override
+    public boolean exists(String fileUri) throws CloudException {
+        String bucket = bucketOf(fileUri);
+        long start = start(CloudOperation.EXISTS, bucket);
+        try {
+            boolean exists = delegate().exists(fileUri);
+            complete(CloudOperation.EXISTS, bucket, System.nanoTime() - start, null);
+            return exists;
+        } catch (Throwable ex) {
+            complete(CloudOperation.EXISTS, bucket, System.nanoTime() - start, ex);
+            throw ex;
+        }
+    }
+
+    @Override
+    public void deleteFile(String fileUri) throws CloudException {
+        String bucket = bucketOf(fileUri);
+        long start = start(CloudOperation.DELETE_FILE, bucket);
+        try {
+            delegate().deleteFile(fileUri);
+            complete(CloudOperation.DELETE_FILE, bucket, System.nanoTime() - start, null);
+        } catch (Throwable ex) {
+            complete(CloudOperation.DELETE_FILE, bucket, System.nanoTime() - start, ex);
+            throw ex;
+        }
+    }
+
+    @Override
+    public void deleteFile(FileLocation location) throws CloudException {
+        String bucket = location.getBucket();
+        long start = start(CloudOperation.DELETE_FILE, bucket);
+        try {
+            delegate().deleteFile(location);
+            complete(CloudOperation.DELETE_FILE, bucket, System.nanoTime() - start, null);
+        } catch (Throwable ex) {
+            complete(CloudOperation.DELETE_FILE, bucket, System.nanoTime() - start, ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * delete many files, reported as one call spanning buckets. Per file failures in the result do not
+     * count as an error of the call.
+     */
+    @Override
+    public BatchResult deleteFiles(Collection<String> fileUris) throws CloudException {
+        long start = start(CloudOperation.DELETE_FILES, null);
+        try {
+            BatchResult result = delegate().deleteFiles(fileUris);
+            complete(CloudOperation.DELETE_FILES, null, System.nanoTime() - start, null);
+            return result;
+        } catch (Throwable ex) {
+            complete(CloudOperation.DELETE_FILES, null, System.nanoTime() - start, ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * copy file, reported against the destination bucket
+     */
+    @Override
+    public String copyFile(String srcUri, String dstBucket, String dstFilename) throws CloudException {
+        long start = start(CloudOperation.COPY_FILE, dstBucket);
+        try {
+            String fileUri = delegate().copyFile(srcUri, dstBucket, dstFilename);
+            complete(CloudOperation.COPY_FILE, dstBucket, System.nanoTime() - start, null);
+            return fileUri;
+        } catch (Throwable ex) {
+            complete(CloudOperation.COPY_FILE, dstBucket, System.nanoTime() - start, ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * move file, reported against the destination bucket
+     */
+    @Override
+    public String moveFile(String srcUri, String dstBucket, String dstFilename) throws CloudException {
+        long start = start(CloudOperation.MOVE_FILE, dstBucket);
+        try {
+            String fileUri = delegate().moveFile(srcUri, dstBucket, dstFilename);
+            complete(CloudOperation.MOVE_FILE, dstBucket, System.nanoTime() - start, null);
+            return fileUri;
+        } catch (Throwable ex) {
+            complete(CloudOperation.MOVE_FILE, dstBucket, System.nanoTime() - start, ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * copy many files, reported as one call spanning buckets like deleteFiles
+     */
+    @Override
+    public BatchResult copyFiles(Map<String, String> fileUris) throws CloudException {
+        long start = start(CloudOperation.COPY_FILES, null);
+        try {
+            BatchResult result = delegate().copyFiles(fileUris);
+            complete(CloudOperation.COPY_FILES, null, System.nanoTime() - start, null);
+            return result;
+        } catch (Throwable ex) {
+            complete(CloudOperation.COPY_FILES, null, System.nanoTime() - start, ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * list files, the time reported is the time until the first page is fetched
+     */
+    @Override
+    public CloudFileIterator listFiles(String bucket, String prefix) throws CloudException {
+        long start = start(CloudOperation.LIST_FILES, bucket);
+        try {
+            CloudFileIterator files = delegate().listFiles(bucket, prefix);
+            complete(CloudOperation.LIST_FILES, bucket, System.nanoTime() - start, null);
+            return files;
+        } catch (Throwable ex) {
+            complete(CloudOperation.LIST_FILES, bucket, System.nanoTime() - start, ex);
+            throw ex;
+        }
+    }
+
+    @Override
+    public URL getExpiringUrl(String fileUri, long expirySeconds) throws CloudException {
+        String bucket = bucketOf(fileUri);
+        long start = start(CloudOperation.GET_EXPIRING_URL, bucket);
+        try {
+            URL url = delegate().getExpiringUrl(fileUri, expirySeconds);
+            complete(CloudOperation.GET_EXPIRING_URL, bucket, System.nanoTime() - start, null);
+            return url;
+        } catch (Throwable ex) {
+            complete(CloudOperation.GET_EXPIRING_URL, bucket, System.nanoTime() - start, ex);
+            throw ex;
+        }
+    }
+
+    @Override
+    public URL getExpiringUrl(FileLocation location, long expirySeconds) throws CloudException {
+        String bucket = location.getBucket();
+        long start = start(CloudOperation.GET_EXPIRING_URL, bucket);
+        try {
+            URL url = delegate().getExpiringUrl(location, expirySeconds);
+            complete(CloudOperation.GET_EXPIRING_URL, bucket, System.nanoTime() - start, null);
+            return url;
+        } catch (Throwable ex) {
+            complete(CloudOperation.GET_EXPIRING_URL, bucket, System.nanoTime() - start, ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * complete a download call and wrap the stream of the file to report the transfer
+     */
+    private CloudFile download(CloudOperation operation, String bucket, long start, CloudFile file) {
+        complete(operation, bucket, System.nanoTime() - start, null);
+        if (file != null && file.getInputStream() != null) {
+            file.setInputStream(new TransferInputStream(file.getInputStream(), operation, bucket, start));
+        }
+        return file;
+    }
+
+    /**
+     * complete a getFileTo call, the whole file has been transferred when it returns
+     */
+    private CloudFile received(String bucket, long start, CloudFile file) {
+        long nanos = System.nanoTime() - start;
+        complete(CloudOperation.GET_FILE_TO, bucket, nanos, null);
+        transfer(CloudOperation.GET_FILE_TO, bucket, file == null ? 0 : Math.max(0, file.getContentLength()), nanos);
+        return file;
+    }
+
+    /**
+     * @return the size of a stored local file, 0 if it can not be read any more
+     */
+    private static long sizeOf(Path path) {
+        try {
+            return Files.size(path);
+        } catch (IOException ex) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return the bucket of fileUri, null if it can not be parsed so the call fails in the delegate
+     */
+    private String bucketOf(String fileUri) {
+        try {
+            return delegate().parseFileLocation(fileUri).getBucket();
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    private long start(CloudOperation operation, String bucket) {
+        try {
+            listener.onStart(operation, bucket);
+        } catch (RuntimeException ex) {
+            log.warn(String.format("listener failed on start of %s", operation), ex);
+        }
+        return System.nanoTime();
+    }
+
+    private void complete(CloudOperation operation, String bucket, long nanos, Throwable error) {
+        try {
+            listener.onComplete(operation, bucket, nanos, error);
+        } catch (RuntimeException ex) {
+            log.warn(String.format("listener failed on completion of %s", operation), ex);
+        }
+    }
+
+    private void transfer(CloudOperation operation, String bucket, long bytes, long nanos) {
+        try {
+            listener.onTransfer(operation, bucket, bytes, nanos);
+        } catch (RuntimeException ex) {
+            log.warn(String.format("listener failed on transfer of %s", operation), ex);
+        }
+    }
+
+    /**
+     * counts the bytes read and reports them once, at end of stream or close whichever comes first
+     */
+    private class TransferInputStream extends FilterInputStream {
+
+        private final CloudOperation operation;
+        private final String bucket;
+        private final long start;
+        private final AtomicBoolean reported = new AtomicBoolean();
+        private long count;
+
+        TransferInputStream(InputStream in, CloudOperation operation, String bucket, long start) {
+            super(in);
+            this.operation = operation;
+            this.bucket = bucket;
+            this.start = start;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b < 0) {
+                report();
+            } else {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, len);
+            if (read < 0) {
+                report();
+            } else {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                in.close();
+            } finally {
+                report();
+            }
+        }
+
+        private void report() {
+            if (reported.compareAndSet(false, true)) {
+                transfer(operation, bucket, count, System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * counts the bytes written and reports the call when the stream is closed or aborted, an aborted stream
+     * is reported without a transfer
+     */
+    private class TransferOutputStream extends CloudOutputStream {
+
+        private final CloudOutputStream out;
+        private final String bucket;
+        private final String filename;
+        private final long start;
+        private long count;
+        private Throwable failure;
+
+        TransferOutputStream(CloudOutputStream out, String bucket, String filename, long start) {
+            this.out = out;
+            this.bucket = bucket;
+            this.filename = filename;
+            this.start = start;
+        }
+
+        @Override
+        protected void writeBytes(byte[] b, int off, int len) throws IOException {
+            try {
+                out.write(b, off, len);
+            } catch (IOException | RuntimeException ex) {
+                failure = ex;
+                throw ex;
+            }
+            count += len;
+        }
+
+        @Override
+        protected String complete() throws CloudException {
+            try {
+                out.close();
+            } catch (IOException ex) {
+                InstrumentedCloudStorage.this.complete(CloudOperation.OPEN_FOR_WRITE, bucket,
+                        System.nanoTime() - start, ex);
+                if (ex.getCause() instanceof CloudException) {
+                    throw (CloudException) ex.getCause();
+                }
+                throw new CloudException(String.format("Error storing file %s in bucket %s", filename, bucket), ex);
+            } catch (RuntimeException ex) {
+                InstrumentedCloudStorage.this.complete(CloudOperation.OPEN_FOR_WRITE, bucket,
+                        System.nanoTime() - start, ex);
+                throw ex;
+            }
+            long nanos = System.nanoTime() - start;
+            InstrumentedCloudStorage.this.complete(CloudOperation.OPEN_FOR_WRITE, bucket, nanos, null);
+            transfer(CloudOperation.OPEN_FOR_WRITE, bucket, count, nanos);
+            return out.getFileUri();
+        }
+
+        @Override
+        protected void discard() {
+            out.abort();
+            InstrumentedCloudStorage.this.complete(CloudOperation.OPEN_FOR_WRITE, bucket,
+                    System.nanoTime() - start, failure);
+        }
+    }
+}
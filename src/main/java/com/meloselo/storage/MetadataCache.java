@@ -0,0 +1,104 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+/**
+ * size bounded cache of file metadata with a time to live, also remembers files which do not exist.
+ * Only changes made through the owning storage invalidate entries, changes made elsewhere are seen
+ * once the entry expires.
+ */
+class MetadataCache {
+
+    private static final Metadata MISSING = new Metadata(null);
+
+    private final Cache<String, Metadata> cache;
+
+    MetadataCache(long maximumSize, long ttlSeconds) {
+        checkArgument(maximumSize > 0, "maximumSize %s is not positive", maximumSize);
+        checkArgument(ttlSeconds > 0, "ttlSeconds %s is not positive", ttlSeconds);
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * @return the cached metadata, or null if the file is not in the cache
+     */
+    Metadata get(String bucket, String filename) {
+        return cache.getIfPresent(key(bucket, filename));
+    }
+
+    /**
+     * @param file the metadata of the file, null if the file does not exist
+     */
+    void put(String bucket, String filename, CloudFile file) {
+        cache.put(key(bucket, filename), file == null ? MISSING : new Metadata(file));
+    }
+
+    void invalidate(String bucket, String filename) {
+        cache.invalidate(key(bucket, filename));
+    }
+
+    CacheStats stats() {
+        return cache.stats();
+    }
+
+    private static String key(String bucket, String filename) {
+        return new StringBuilder(bucket.length() + filename.length() + 1)
+            .append(bucket).append('/').append(filename).toString();
+    }
+
+    static class Metadata {
+
+        private final String contentType;
+        private final long contentLength;
+        private final String eTag;
+        private final Map<String, String> metaData;
+        private final boolean exists;
+
+        Metadata(CloudFile file) {
+            this.exists = file != null;
+            this.contentType = exists ? file.getContentType() : null;
+            this.contentLength = exists ? file.getContentLength() : 0;
+            this.eTag = exists ? file.getETag() : null;
+            this.metaData = exists && file.getMetaData() != null
+                    ? Collections.unmodifiableMap(new HashMap<String, String>(file.getMetaData())) : null;
+        }
+
+        /**
+         * @return true if the file exists
+         */
+        boolean exists() {
+            return exists;
+        }
+
+        /**
+         * @return a new CloudFile without stream with the cached metadata, null if the file does not exist
+         */
+        CloudFile toCloudFile() {
+            if (! exists) {
+                return null;
+            }
+            return new CloudFile()
+                .setContentType(contentType)
+                .setContentLength(contentLength)
+                .setTotalLength(contentLength)
+                .setETag(eTag)
+                .setMetaData(metaData);
+        }
+    }
+}
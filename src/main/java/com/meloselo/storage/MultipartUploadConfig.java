@@ -0,0 +1,82 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * settings for multipart uploads done by S3CloudStorage. Parts are read from the source stream into a
+ * fixed number of reusable buffers, so at most partSize * maxPartBuffers bytes are held in memory
+ * no matter how large the uploaded file is.
+ */
+public class MultipartUploadConfig {
+
+    /** the smallest part size S3 accepts for all but the last part */
+    public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+
+    /** the default multipart threshold, also the largest single put S3CloudStorage retries without multipart */
+    public static final long DEFAULT_MULTIPART_THRESHOLD = 16 * 1024 * 1024;
+
+    private int partSize = 8 * 1024 * 1024;
+    private long multipartThreshold = DEFAULT_MULTIPART_THRESHOLD;
+    private int maxPartBuffers = 8;
+
+    public MultipartUploadConfig() {
+        //do nothing
+    }
+
+    /**
+     * @return the size of each part buffer in bytes
+     */
+    public int getPartSize() {
+        return partSize;
+    }
+
+    /**
+     * @param partSize the size of each part buffer in bytes, at least MIN_PART_SIZE
+     * @return this object
+     */
+    public MultipartUploadConfig setPartSize(int partSize) {
+        checkArgument(partSize >= MIN_PART_SIZE, "partSize %s is less than %s", partSize, MIN_PART_SIZE);
+        this.partSize = partSize;
+        return this;
+    }
+
+    /**
+     * @return the contentLength at or above which files are uploaded in parts
+     */
+    public long getMultipartThreshold() {
+        return multipartThreshold;
+    }
+
+    /**
+     * files with unknown contentLength are always uploaded in parts once they outgrow one part.
+     *
+     * @param multipartThreshold the contentLength at or above which files are uploaded in parts
+     * @return this object
+     */
+    public MultipartUploadConfig setMultipartThreshold(long multipartThreshold) {
+        checkArgument(multipartThreshold > 0, "multipartThreshold %s is not positive", multipartThreshold);
+        this.multipartThreshold = multipartThreshold;
+        return this;
+    }
+
+    /**
+     * @return the number of part buffers shared by all uploads
+     */
+    public int getMaxPartBuffers() {
+        return maxPartBuffers;
+    }
+
+    /**
+     * @param maxPartBuffers the number of part buffers shared by all uploads, bounds memory and the
+     *      number of parts in flight
+     * @return this object
+     */
+    public MultipartUploadConfig setMaxPartBuffers(int maxPartBuffers) {
+        checkArgument(maxPartBuffers > 0, "maxPartBuffers %s is not positive", maxPartBuffers);
+        this.maxPartBuffers = maxPartBuffers;
+        return this;
+    }
+}
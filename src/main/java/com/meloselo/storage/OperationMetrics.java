@@ -0,0 +1,86 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * lock free counters of one operation, for all buckets or one bucket
+ */
+class OperationMetrics {
+
+    private final CloudOperation operation;
+    private final String bucket;
+    private final long createdNanos = System.nanoTime();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong inFlight = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final ConcurrentMap<String, AtomicLong> errorsByCause = new ConcurrentHashMap<String, AtomicLong>();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong transferNanos = new AtomicLong();
+
+    OperationMetrics(CloudOperation operation, String bucket) {
+        this.operation = operation;
+        this.bucket = bucket;
+    }
+
+    void start() {
+        inFlight.incrementAndGet();
+    }
+
+    void complete(long nanos, String cause) {
+        inFlight.decrementAndGet();
+        latency.record(nanos);
+        if (cause != null) {
+            errors.incrementAndGet();
+            AtomicLong counter = errorsByCause.get(cause);
+            if (counter == null) {
+                AtomicLong created = new AtomicLong();
+                counter = errorsByCause.putIfAbsent(cause, created);
+                if (counter == null) {
+                    counter = created;
+                }
+            }
+            counter.incrementAndGet();
+        }
+    }
+
+    void transfer(long count, long nanos) {
+        bytes.addAndGet(count);
+        transferNanos.addAndGet(nanos);
+    }
+
+    long getInFlight() {
+        return inFlight.get();
+    }
+
+    long getErrors() {
+        return errors.get();
+    }
+
+    LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    OperationStats snapshot() {
+        Map<String, Long> causes = new HashMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : errorsByCause.entrySet()) {
+            causes.put(entry.getKey(), entry.getValue().get());
+        }
+        long transferred = bytes.get();
+        long busyNanos = transferNanos.get();
+        long upNanos = System.nanoTime() - createdNanos;
+        return new OperationStats(operation.name(), bucket, latency.getCount(), errors.get(), inFlight.get(),
+                latency.getMean(), latency.getValueAtPercentile(50), latency.getValueAtPercentile(90),
+                latency.getValueAtPercentile(99), latency.getValueAtPercentile(99.9), latency.getMax(),
+                transferred,
+                upNanos <= 0 ? 0 : transferred * 1e9 / upNanos,
+                busyNanos <= 0 ? 0 : transferred * 1e9 / busyNanos,
+                causes);
+    }
+}
@@ -0,0 +1,177 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import java.beans.ConstructorProperties;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * point in time view of the metrics of one operation, for all buckets or one bucket. Latencies are in
+ * milliseconds, percentiles are accurate to about 3%.
+ */
+public class OperationStats {
+
+    private static final double NANOS_PER_MILLI = 1000000.0;
+
+    private final String operation;
+    private final String bucket;
+    private final long count;
+    private final long errors;
+    private final long inFlight;
+    private final double meanMillis;
+    private final double p50Millis;
+    private final double p90Millis;
+    private final double p99Millis;
+    private final double p999Millis;
+    private final double maxMillis;
+    private final long bytes;
+    private final double bytesPerSecond;
+    private final double transferBytesPerSecond;
+    private final Map<String, Long> errorsByCause;
+
+    OperationStats(String operation, String bucket, long count, long errors, long inFlight, double meanNanos,
+            long p50Nanos, long p90Nanos, long p99Nanos, long p999Nanos, long maxNanos, long bytes,
+            double bytesPerSecond, double transferBytesPerSecond, Map<String, Long> errorsByCause) {
+        this(operation, bucket, count, errors, inFlight, meanNanos / NANOS_PER_MILLI, p50Nanos / NANOS_PER_MILLI,
+                p90Nanos / NANOS_PER_MILLI, p99Nanos / NANOS_PER_MILLI, p999Nanos / NANOS_PER_MILLI,
+                maxNanos / NANOS_PER_MILLI, bytes, bytesPerSecond, transferBytesPerSecond, errorsByCause);
+    }
+
+    @ConstructorProperties({"operation", "bucket", "count", "errors", "inFlight", "meanMillis", "p50Millis",
+        "p90Millis", "p99Millis", "p999Millis", "maxMillis", "bytes", "bytesPerSecond", "transferBytesPerSecond",
+        "errorsByCause"})
+    public OperationStats(String operation, String bucket, long count, long errors, long inFlight,
+            double meanMillis, double p50Millis, double p90Millis, double p99Millis, double p999Millis,
+            double maxMillis, long bytes, double bytesPerSecond, double transferBytesPerSecond,
+            Map<String, Long> errorsByCause) {
+        this.operation = operation;
+        this.bucket = bucket;
+        this.count = count;
+        this.errors = errors;
+        this.inFlight = inFlight;
+        this.meanMillis = meanMillis;
+        this.p50Millis = p50Millis;
+        this.p90Millis = p90Millis;
+        this.p99Millis = p99Millis;
+        this.p999Millis = p999Millis;
+        this.maxMillis = maxMillis;
+        this.bytes = bytes;
+        this.bytesPerSecond = bytesPerSecond;
+        this.transferBytesPerSecond = transferBytesPerSecond;
+        this.errorsByCause = Collections.unmodifiableMap(errorsByCause);
+    }
+
+    /**
+     * @return the name of the CloudOperation
+     */
+    public String getOperation() {
+        return operation;
+    }
+
+    /**
+     * @return the bucket, CloudMetrics.ALL_BUCKETS for the totals of the operation
+     */
+    public String getBucket() {
+        return bucket;
+    }
+
+    /**
+     * @return the number of completed calls, including failed calls
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return the number of failed calls
+     */
+    public long getErrors() {
+        return errors;
+    }
+
+    /**
+     * @return the number of calls in progress
+     */
+    public long getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return the mean call latency
+     */
+    public double getMeanMillis() {
+        return meanMillis;
+    }
+
+    /**
+     * @return the median call latency
+     */
+    public double getP50Millis() {
+        return p50Millis;
+    }
+
+    /**
+     * @return the 90th percentile call latency
+     */
+    public double getP90Millis() {
+        return p90Millis;
+    }
+
+    /**
+     * @return the 99th percentile call latency
+     */
+    public double getP99Millis() {
+        return p99Millis;
+    }
+
+    /**
+     * @return the 99.9th percentile call latency
+     */
+    public double getP999Millis() {
+        return p999Millis;
+    }
+
+    /**
+     * @return the largest call latency
+     */
+    public double getMaxMillis() {
+        return maxMillis;
+    }
+
+    /**
+     * @return the number of bytes uploaded or downloaded
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the bytes transferred per second since the metrics were created
+     */
+    public double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * @return the mean bytes per second of a single transfer
+     */
+    public double getTransferBytesPerSecond() {
+        return transferBytesPerSecond;
+    }
+
+    /**
+     * @return the number of failed calls by cause, the S3 error code or the exception class name
+     */
+    public Map<String, Long> getErrorsByCause() {
+        return errorsByCause;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s %s count=%d errors=%d inFlight=%d mean=%.2fms p50=%.2fms p99=%.2fms max=%.2fms "
+                + "bytes=%d", operation, bucket, count, errors, inFlight, meanMillis, p50Millis, p99Millis, maxMillis,
+                bytes);
+    }
+}
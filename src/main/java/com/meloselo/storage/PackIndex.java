@@ -0,0 +1,266 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * immutable index of a pack written by PackingCloudStorage, the entries sorted by filename with their
+ * offset in the pack data object. Filenames are stored with the prefix they share with the previous
+ * filename removed.
+ */
+final class PackIndex {
+
+    private static final int MAGIC = 0x4d535031;
+
+    private static final Comparator<Entry> BY_FILENAME = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return a.filename.compareTo(b.filename);
+        }
+    };
+
+    private final long generation;
+    private final long dataLength;
+    private final Entry[] entries;
+    private final long liveBytes;
+
+    /**
+     * @param generation the generation of the data object, incremented by each compaction
+     * @param dataLength the length of the data object
+     * @param entries the entries, filenames must be unique
+     */
+    PackIndex(long generation, long dataLength, Collection<Entry> entries) {
+        this(generation, dataLength, sorted(entries));
+    }
+
+    private PackIndex(long generation, long dataLength, Entry[] entries) {
+        this.generation = generation;
+        this.dataLength = dataLength;
+        this.entries = entries;
+        long live = 0;
+        for (Entry entry : entries) {
+            live += entry.length;
+        }
+        this.liveBytes = live;
+    }
+
+    private static Entry[] sorted(Collection<Entry> entries) {
+        Entry[] result = entries.toArray(new Entry[entries.size()]);
+        Arrays.sort(result, BY_FILENAME);
+        return result;
+    }
+
+    long getGeneration() {
+        return generation;
+    }
+
+    long getDataLength() {
+        return dataLength;
+    }
+
+    /**
+     * @return the bytes of the data object still referenced by an entry
+     */
+    long getLiveBytes() {
+        return liveBytes;
+    }
+
+    int size() {
+        return entries.length;
+    }
+
+    List<Entry> entries() {
+        return Collections.unmodifiableList(Arrays.asList(entries));
+    }
+
+    /**
+     * @return the entry of filename, null if the pack has none
+     */
+    Entry find(String filename) {
+        int low = 0;
+        int high = entries.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = entries[mid].filename.compareTo(filename);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return entries[mid];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return this index without the entries of filenames, this object if it has none of them
+     */
+    PackIndex without(Collection<String> filenames) {
+        Set<String> removed = new HashSet<String>(filenames);
+        List<Entry> kept = new ArrayList<Entry>(entries.length);
+        for (Entry entry : entries) {
+            if (! removed.contains(entry.filename)) {
+                kept.add(entry);
+            }
+        }
+        return kept.size() == entries.length ? this
+                : new PackIndex(generation, dataLength, kept.toArray(new Entry[kept.size()]));
+    }
+
+    byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + entries.length * 64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(MAGIC);
+            out.writeLong(generation);
+            out.writeLong(dataLength);
+            out.writeInt(entries.length);
+            String previous = "";
+            for (Entry entry : entries) {
+                int shared = sharedPrefix(previous, entry.filename);
+                out.writeShort(shared);
+                out.writeUTF(entry.filename.substring(shared));
+                out.writeLong(entry.offset);
+                out.writeInt(entry.length);
+                writeNullable(out, entry.contentType);
+                out.writeUTF(entry.eTag);
+                out.writeShort(entry.metaData.size());
+                for (Map.Entry<String, String> meta : entry.metaData.entrySet()) {
+                    out.writeUTF(meta.getKey());
+                    out.writeUTF(meta.getValue());
+                }
+                previous = entry.filename;
+            }
+            out.flush();
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @throws IOException on read errors or if the stream does not hold a pack index
+     */
+    static PackIndex parse(InputStream is) throws IOException {
+        DataInputStream in = new DataInputStream(is);
+        if (in.readInt() != MAGIC) {
+            throw new IOException("not a pack index");
+        }
+        long generation = in.readLong();
+        long dataLength = in.readLong();
+        Entry[] entries = new Entry[in.readInt()];
+        String previous = "";
+        for (int i = 0; i < entries.length; i++) {
+            int shared = in.readUnsignedShort();
+            String filename = previous.substring(0, shared) + in.readUTF();
+            long offset = in.readLong();
+            int length = in.readInt();
+            String contentType = readNullable(in);
+            String eTag = in.readUTF();
+            int metaCount = in.readUnsignedShort();
+            Map<String, String> metaData = new HashMap<String, String>();
+            for (int j = 0; j < metaCount; j++) {
+                metaData.put(in.readUTF(), in.readUTF());
+            }
+            entries[i] = new Entry(filename, offset, length, contentType, eTag, metaData);
+            previous = filename;
+        }
+        return new PackIndex(generation, dataLength, entries);
+    }
+
+    private static int sharedPrefix(String a, String b) {
+        int max = Math.min(Math.min(a.length(), b.length()), 0xffff);
+        int i = 0;
+        while (i < max && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * one file in a pack
+     */
+    static final class Entry {
+
+        private final String filename;
+        private final long offset;
+        private final int length;
+        private final String contentType;
+        private final String eTag;
+        private final Map<String, String> metaData;
+
+        Entry(String filename, long offset, int length, String contentType, String eTag,
+                Map<String, String> metaData) {
+            this.filename = filename;
+            this.offset = offset;
+            this.length = length;
+            this.contentType = contentType;
+            this.eTag = eTag;
+            this.metaData = metaData == null ? Collections.<String, String>emptyMap()
+                    : Collections.unmodifiableMap(new HashMap<String, String>(metaData));
+        }
+
+        String getFilename() {
+            return filename;
+        }
+
+        long getOffset() {
+            return offset;
+        }
+
+        int getLength() {
+            return length;
+        }
+
+        String getETag() {
+            return eTag;
+        }
+
+        /**
+         * @return the same entry at another offset
+         */
+        Entry moveTo(long offset) {
+            return new Entry(filename, offset, length, contentType, eTag, metaData);
+        }
+
+        /**
+         * @return a new CloudFile without stream with the metadata of this entry
+         */
+        CloudFile toCloudFile() {
+            return new CloudFile()
+                .setContentType(contentType)
+                .setContentLength(length)
+                .setTotalLength(length)
+                .setETag(eTag)
+                .setMetaData(new HashMap<String, String>(metaData));
+        }
+    }
+}
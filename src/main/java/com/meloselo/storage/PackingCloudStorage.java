@@ -0,0 +1,878 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * CloudStorage storing small files in packs, one data object holding many files and an index object
+ * listing their offsets. Concurrent storeFile calls for the same bucket join one pack, which is stored
+ * once it holds maxPackBytes or maxPackEntries or lingerMillis after its first file, and each call
+ * returns once its pack is stored. A packed file has a pack://{region}/{bucket}/{packId}/{filename} uri
+ * and is read with one ranged GET of the data object, the index of the pack is cached. Files larger than
+ * maxEntrySize or of unknown length are stored in the delegate as they are.
+ *
+ * Deleting a packed file rewrites the index of its pack. Packs whose live files fill less than
+ * compactThreshold of their data object are compacted in the background into a data object of the next
+ * generation, readers holding the old index reload it when the old data object is gone. The index
+ * rewrites of one storage are serialized, storages in several processes deleting from the same pack may
+ * lose each others deletes.
+ *
+ * Packed files are not listed by listFiles, which lists the pack objects under PACK_PREFIX instead, and
+ * have no expiring urls.
+ */
+public class PackingCloudStorage extends ForwardingCloudStorage implements Closeable {
+
+    private static final Log log = LogFactory.getLog(PackingCloudStorage.class);
+
+    public static final String PACK_SCHEME = "pack";
+
+    /** the prefix of the keys of pack objects in each bucket */
+    public static final String PACK_PREFIX = ".packs/";
+
+    private static final String PACK_CONTENT_TYPE = "application/octet-stream";
+
+    private final String scheme;
+    private final ThreadPoolExecutor compactor;
+
+    private final Object lock = new Object();
+    private final Map<String, Batch> open = new HashMap<String, Batch>();
+    private final Object indexLock = new Object();
+    private final Set<String> compacting = Collections.synchronizedSet(new HashSet<String>());
+    private volatile Cache<String, PackIndex> indexes = newIndexCache(10000);
+
+    private volatile int maxEntrySize = 16 * 1024;
+    private volatile int maxPackBytes = 8 * 1024 * 1024;
+    private volatile int maxPackEntries = 4096;
+    private volatile long lingerMillis = 20;
+    private volatile double compactThreshold = 0.5;
+
+    private final AtomicLong packs = new AtomicLong();
+    private final AtomicLong packedFiles = new AtomicLong();
+    private final AtomicLong compactions = new AtomicLong();
+
+    /**
+     * @param delegate the S3 storage to store packs and large files in, required
+     */
+    public PackingCloudStorage(CloudStorage delegate) {
+        this(delegate, FileLocation.S3_SCHEME);
+    }
+
+    /**
+     * @param delegate the storage to store packs and large files in, required
+     * @param scheme the uri scheme of the delegate e.g. s3
+     */
+    public PackingCloudStorage(CloudStorage delegate, String scheme) {
+        super(delegate);
+        checkArgument(! Strings.isNullOrEmpty(scheme), "scheme is null or empty");
+        checkArgument(! PACK_SCHEME.equals(scheme), "scheme %s is the pack scheme", scheme);
+        this.scheme = scheme;
+        this.compactor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("pack-compact-%d").build());
+        this.compactor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @param maxEntrySize the largest file stored in a pack
+     * @return this object
+     */
+    public PackingCloudStorage setMaxEntrySize(int maxEntrySize) {
+        checkArgument(maxEntrySize >= 0, "maxEntrySize %s is negative", maxEntrySize);
+        this.maxEntrySize = maxEntrySize;
+        return this;
+    }
+
+    /**
+     * @param maxPackBytes the pack size at which a pack is stored without waiting for more files
+     * @return this object
+     */
+    public PackingCloudStorage setMaxPackBytes(int maxPackBytes) {
+        checkArgument(maxPackBytes > 0, "maxPackBytes %s is not positive", maxPackBytes);
+        this.maxPackBytes = maxPackBytes;
+        return this;
+    }
+
+    /**
+     * @param maxPackEntries the number of files at which a pack is stored without waiting for more files
+     * @return this object
+     */
+    public PackingCloudStorage setMaxPackEntries(int maxPackEntries) {
+        checkArgument(maxPackEntries > 0, "maxPackEntries %s is not positive", maxPackEntries);
+        this.maxPackEntries = maxPackEntries;
+        return this;
+    }
+
+    /**
+     * @param lingerMillis the time a pack waits for more files after its first one, 0 to store at once
+     * @return this object
+     */
+    public PackingCloudStorage setLingerMillis(long lingerMillis) {
+        checkArgument(lingerMillis >= 0, "lingerMillis %s is negative", lingerMillis);
+        this.lingerMillis = lingerMillis;
+        return this;
+    }
+
+    /**
+     * @param compactThreshold the fraction of the data object still in use below which a pack is compacted
+     * @return this object
+     */
+    public PackingCloudStorage setCompactThreshold(double compactThreshold) {
+        checkArgument(compactThreshold >= 0 && compactThreshold <= 1, "compactThreshold %s not in [0, 1]",
+                compactThreshold);
+        this.compactThreshold = compactThreshold;
+        return this;
+    }
+
+    /**
+     * @param indexCacheSize the number of pack indexes kept in memory, the cache is emptied
+     * @return this object
+     */
+    public PackingCloudStorage setIndexCacheSize(long indexCacheSize) {
+        checkArgument(indexCacheSize > 0, "indexCacheSize %s is not positive", indexCacheSize);
+        this.indexes = newIndexCache(indexCacheSize);
+        return this;
+    }
+
+    /**
+     * @return the number of packs stored
+     */
+    public long getPackCount() {
+        return packs.get();
+    }
+
+    /**
+     * @return the number of files stored in packs
+     */
+    public long getPackedCount() {
+        return packedFiles.get();
+    }
+
+    /**
+     * @return the number of packs compacted
+     */
+    public long getCompactionCount() {
+        return compactions.get();
+    }
+
+    /**
+     * stop compacting, packs left uncompacted are compacted after their next delete
+     */
+    @Override
+    public void close() {
+        compactor.shutdownNow();
+    }
+
+    @Override
+    public FileLocation parseFileLocation(String fileUri) {
+        return isPacked(fileUri) ? FileLocation.parse(fileUri) : super.parseFileLocation(fileUri);
+    }
+
+    /**
+     * store file, in a pack if its length is known and at most maxEntrySize
+     *
+     * @return the pack://{region}/{bucket}/{packId}/{filename} uri of a packed file, the uri given by the
+     *      delegate otherwise
+     */
+    @Override
+    public String storeFile(String bucket, InputStream is, String filename, String contentType,
+            long contentLength, Map<String, String> metaData) throws CloudException {
+        if (contentLength <= 0 || contentLength > maxEntrySize) {
+            return super.storeFile(bucket, is, filename, contentType, contentLength, metaData);
+        }
+        checkArgument(! Strings.isNullOrEmpty(bucket), "bucket is null");
+        checkArgument(is != null, "is, inputstream to store is null");
+        checkArgument(! Strings.isNullOrEmpty(filename), "filename is null");
+
+        byte[] data = new byte[(int) contentLength];
+        try {
+            ByteStreams.readFully(is, data);
+        } catch (IOException ex) {
+            throw new CloudException(String.format("Error reading file %s for bucket %s", filename, bucket), ex);
+        }
+
+        Batch batch = add(bucket, new Pending(filename, data, contentType, metaData));
+        return batch.await().toUri(filename);
+    }
+
+    @Override
+    public CloudFile getFile(String fileUri) throws CloudException {
+        return isPacked(fileUri) ? read(PackedFile.parse(fileUri), null) : super.getFile(fileUri);
+    }
+
+    @Override
+    public CloudFile getFile(String fileUri, ByteRange range) throws CloudException {
+        checkArgument(range != null, "range is null");
+        return isPacked(fileUri) ? read(PackedFile.parse(fileUri), range) : super.getFile(fileUri, range);
+    }
+
+    @Override
+    public CloudFile getFile(FileLocation location) throws CloudException {
+        checkArgument(location != null, "location is null");
+        return isPacked(location) ? read(PackedFile.of(location), null) : super.getFile(location);
+    }
+
+    @Override
+    public CloudFile getFile(FileLocation location, ByteRange range) throws CloudException {
+        checkArgument(location != null, "location is null");
+        checkArgument(range != null, "range is null");
+        return isPacked(location) ? read(PackedFile.of(location), range) : super.getFile(location, range);
+    }
+
+    @Override
+    public CloudFile getFileIfChanged(String fileUri, String eTag) throws CloudException {
+        if (! isPacked(fileUri)) {
+            return super.getFileIfChanged(fileUri, eTag);
+        }
+        PackedFile file = PackedFile.parse(fileUri);
+        PackIndex.Entry entry = find(file, index(file, false));
+        if (entry.getETag().equals(eTag)) {
+            return null;
+        }
+        return read(file, null);
+    }
+
+    @Override
+    public CloudFile getFileMetadata(String fileUri) throws CloudException {
+        if (! isPacked(fileUri)) {
+            return super.getFileMetadata(fileUri);
+        }
+        PackedFile file = PackedFile.parse(fileUri);
+        PackIndex index = index(file, false);
+        PackIndex.Entry entry = index == null ? null : index.find(file.filename);
+        return entry == null ? null : entry.toCloudFile();
+    }
+
+    @Override
+    public boolean exists(String fileUri) throws CloudException {
+        if (! isPacked(fileUri)) {
+            return super.exists(fileUri);
+        }
+        PackedFile file = PackedFile.parse(fileUri);
+        PackIndex index = index(file, false);
+        return index != null && index.find(file.filename) != null;
+    }
+
+    /**
+     * delete file, a packed file is removed from the index of its pack
+     */
+    @Override
+    public void deleteFile(String fileUri) throws CloudException {
+        if (isPacked(fileUri)) {
+            PackedFile file = PackedFile.parse(fileUri);
+            remove(file, Collections.singleton(file.filename));
+        } else {
+            super.deleteFile(fileUri);
+        }
+    }
+
+    @Override
+    public void deleteFile(FileLocation location) throws CloudException {
+        checkArgument(location != null, "location is null");
+        if (isPacked(location)) {
+            PackedFile file = PackedFile.of(location);
+            remove(file, Collections.singleton(file.filename));
+        } else {
+            super.deleteFile(location);
+        }
+    }
+
+    /**
+     * delete many files, the index of each pack is rewritten once
+     */
+    @Override
+    public BatchResult deleteFiles(Collection<String> fileUris) throws CloudException {
+        checkArgument(fileUris != null, "fileUris is null");
+
+        BatchResult result = new BatchResult();
+        List<String> others = new ArrayList<String>();
+        Map<String, List<PackedFile>> byPack = new LinkedHashMap<String, List<PackedFile>>();
+        for (String fileUri : fileUris) {
+            if (! isPacked(fileUri)) {
+                others.add(fileUri);
+                continue;
+            }
+            try {
+                PackedFile file = PackedFile.parse(fileUri);
+                List<PackedFile> files = byPack.get(file.packKey());
+                if (files == null) {
+                    files = new ArrayList<PackedFile>();
+                    byPack.put(file.packKey(), files);
+                }
+                files.add(file);
+            } catch (IllegalArgumentException ex) {
+                result.addFailed(fileUri, new CloudException(ex.getMessage(), ex));
+            }
+        }
+
+        for (List<PackedFile> files : byPack.values()) {
+            List<String> filenames = new ArrayList<String>(files.size());
+            for (PackedFile file : files) {
+                filenames.add(file.filename);
+            }
+            try {
+                remove(files.get(0), filenames);
+                for (PackedFile file : files) {
+                    result.addSucceeded(file.uri);
+                }
+            } catch (CloudException ex) {
+                for (PackedFile file : files) {
+                    result.addFailed(file.uri, ex);
+                }
+            }
+        }
+        if (! others.isEmpty()) {
+            result.addAll(super.deleteFiles(others));
+        }
+        return result;
+    }
+
+    /**
+     * copy file, a packed file is read and stored again, others are copied by the delegate
+     */
+    @Override
+    public String copyFile(String srcUri, String dstBucket, String dstFilename) throws CloudException {
+        if (! isPacked(srcUri)) {
+            return super.copyFile(srcUri, dstBucket, dstFilename);
+        }
+        CloudFile file = getFile(srcUri);
+        InputStream is = file.getInputStream();
+        try {
+            return storeFile(dstBucket, is, dstFilename, file.getContentType(), file.getContentLength(),
+                    file.getMetaData());
+        } finally {
+            Closeables.closeQuietly(is);
+        }
+    }
+
+    @Override
+    public String moveFile(String srcUri, String dstBucket, String dstFilename) throws CloudException {
+        if (! isPacked(srcUri)) {
+            return super.moveFile(srcUri, dstBucket, dstFilename);
+        }
+        String fileUri = copyFile(srcUri, dstBucket, dstFilename);
+        deleteFile(srcUri);
+        return fileUri;
+    }
+
+    @Override
+    public BatchResult copyFiles(Map<String, String> fileUris) throws CloudException {
+        checkArgument(fileUris != null, "fileUris is null");
+
+        BatchResult result = new BatchResult();
+        Map<String, String> others = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, String> copy : fileUris.entrySet()) {
+            if (! isPacked(copy.getKey())) {
+                others.put(copy.getKey(), copy.getValue());
+                continue;
+            }
+            try {
+                FileLocation dst = parseFileLocation(copy.getValue());
+                copyFile(copy.getKey(), dst.getBucket(), dst.getKey());
+                result.addSucceeded(copy.getKey());
+            } catch (IllegalArgumentException ex) {
+                result.addFailed(copy.getKey(), new CloudException(ex.getMessage(), ex));
+            } catch (CloudException ex) {
+                result.addFailed(copy.getKey(), ex);
+            }
+        }
+        if (! others.isEmpty()) {
+            result.addAll(super.copyFiles(others));
+        }
+        return result;
+    }
+
+    /**
+     * @throws CloudException for packed files, a url can not address part of an object
+     */
+    @Override
+    public URL getExpiringUrl(String fileUri, long expirySeconds) throws CloudException {
+        if (isPacked(fileUri)) {
+            throw new CloudException(String.format("packed file %s has no expiring url", fileUri));
+        }
+        return super.getExpiringUrl(fileUri, expirySeconds);
+    }
+
+    @Override
+    public URL getExpiringUrl(FileLocation location, long expirySeconds) throws CloudException {
+        checkArgument(location != null, "location is null");
+        if (isPacked(location)) {
+            throw new CloudException(String.format("packed file %s has no expiring url", location));
+        }
+        return super.getExpiringUrl(location, expirySeconds);
+    }
+
+    /**
+     * add a file to the open pack of its bucket, the caller adding the first file stores the pack
+     *
+     * @return the pack the file was added to, stored
+     */
+    private Batch add(String bucket, Pending pending) throws CloudException {
+        Batch batch;
+        boolean leader = false;
+        synchronized (lock) {
+            batch = open.get(bucket);
+            if (batch != null && batch.bytes + pending.data.length > maxPackBytes) {
+                seal(batch);
+                batch = null;
+            }
+            if (batch == null) {
+                batch = new Batch(bucket);
+                open.put(bucket, batch);
+                leader = true;
+            }
+            batch.add(pending);
+            if (batch.bytes >= maxPackBytes || batch.entries.size() >= maxPackEntries) {
+                seal(batch);
+            }
+        }
+        if (leader) {
+            linger(batch);
+            store(batch);
+        }
+        return batch;
+    }
+
+    /**
+     * wait for more files to join the pack, until it is sealed or lingerMillis passed
+     */
+    private void linger(Batch batch) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        synchronized (lock) {
+            try {
+                while (! batch.sealed) {
+                    long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    lock.wait(remaining);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            seal(batch);
+        }
+    }
+
+    /**
+     * close a pack to new files, called holding lock
+     */
+    private void seal(Batch batch) {
+        if (! batch.sealed) {
+            batch.sealed = true;
+            open.remove(batch.bucket);
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * store the data object and then the index of a sealed pack
+     */
+    private void store(Batch batch) {
+        String packId = UUID.randomUUID().toString().replace("-", "");
+        byte[] data = new byte[(int) batch.bytes];
+        List<PackIndex.Entry> entries = new ArrayList<PackIndex.Entry>(batch.entries.size());
+        int offset = 0;
+        for (Pending pending : batch.entries.values()) {
+            System.arraycopy(pending.data, 0, data, offset, pending.data.length);
+            entries.add(new PackIndex.Entry(pending.filename, offset, pending.data.length, pending.contentType,
+                    Hashing.md5().hashBytes(pending.data).toString(), pending.metaData));
+            offset += pending.data.length;
+        }
+        PackIndex index = new PackIndex(1, offset, entries);
+
+        String dataUri = null;
+        try {
+            dataUri = delegate().storeFile(batch.bucket, new ByteArrayInputStream(data, 0, offset),
+                    dataKey(packId, 1), PACK_CONTENT_TYPE, offset, null);
+            byte[] indexBytes = index.toBytes();
+            delegate().storeFile(batch.bucket, new ByteArrayInputStream(indexBytes), indexKey(packId),
+                    PACK_CONTENT_TYPE, indexBytes.length, null);
+            String region = delegate().parseFileLocation(dataUri).getRegion();
+            indexes.put(cacheKey(batch.bucket, packId), index);
+            packs.incrementAndGet();
+            packedFiles.addAndGet(entries.size());
+            batch.complete(region, packId);
+        } catch (CloudException | RuntimeException ex) {
+            if (dataUri != null) {
+                deleteQuietly(dataUri);
+            }
+            batch.fail(ex);
+        }
+    }
+
+    /**
+     * read a packed file with a ranged GET of the data object of its pack, reloading the index once if
+     * the data object was replaced by a compaction
+     */
+    private CloudFile read(PackedFile file, ByteRange range) throws CloudException {
+        PackIndex index = index(file, false);
+        boolean reloaded = false;
+        while (true) {
+            PackIndex.Entry entry = find(file, index);
+            long first = range == null ? 0 : range.getFirst();
+            long last = range == null || ! range.hasLast() ? entry.getLength() - 1
+                    : Math.min(range.getLast(), entry.getLength() - 1);
+            if (range != null && first >= entry.getLength()) {
+                throw new CloudException(String.format("range %s not satisfiable for file of length %d",
+                        range, entry.getLength()));
+            }
+            CloudFile result = entry.toCloudFile();
+            if (last < first) {
+                return result.setInputStream(new ByteArrayInputStream(new byte[0]));
+            }
+            try {
+                CloudFile data = delegate().getFile(file.dataUri(scheme, index.getGeneration()),
+                        ByteRange.of(entry.getOffset() + first, entry.getOffset() + last));
+                return result.setInputStream(data.getInputStream()).setContentLength(last - first + 1);
+            } catch (CloudException ex) {
+                PackIndex fresh = reloaded ? null : index(file, true);
+                reloaded = true;
+                if (fresh == null || fresh.getGeneration() == index.getGeneration()) {
+                    throw ex;
+                }
+                index = fresh;
+            }
+        }
+    }
+
+    private static PackIndex.Entry find(PackedFile file, PackIndex index) throws CloudException {
+        PackIndex.Entry entry = index == null ? null : index.find(file.filename);
+        if (entry == null) {
+            throw new CloudException(String.format("file %s not found", file.uri));
+        }
+        return entry;
+    }
+
+    /**
+     * @param reload true to fetch the index even if it is cached
+     * @return the index of the pack of file, null if the pack does not exist
+     */
+    private PackIndex index(PackedFile file, boolean reload) throws CloudException {
+        String key = cacheKey(file.bucket, file.packId);
+        Cache<String, PackIndex> cache = indexes;
+        PackIndex index = reload ? null : cache.getIfPresent(key);
+        if (index == null) {
+            index = load(file);
+            if (index == null) {
+                cache.invalidate(key);
+            } else {
+                cache.put(key, index);
+            }
+        }
+        return index;
+    }
+
+    private PackIndex load(PackedFile file) throws CloudException {
+        String indexUri = file.indexUri(scheme);
+        CloudFile indexFile;
+        try {
+            indexFile = delegate().getFile(indexUri);
+        } catch (CloudException ex) {
+            if (! delegate().exists(indexUri)) {
+                return null;
+            }
+            throw ex;
+        }
+        InputStream is = indexFile.getInputStream();
+        try {
+            return PackIndex.parse(is);
+        } catch (IOException ex) {
+            throw new CloudException(String.format("Error reading pack index %s", indexUri), ex);
+        } finally {
+            Closeables.closeQuietly(is);
+        }
+    }
+
+    /**
+     * remove files from the index of a pack, deleting the pack once it is empty
+     */
+    private void remove(PackedFile pack, Collection<String> filenames) throws CloudException {
+        synchronized (indexLock) {
+            PackIndex index = index(pack, true);
+            if (index == null) {
+                return;
+            }
+            PackIndex next = index.without(filenames);
+            if (next == index) {
+                return;
+            }
+            if (next.size() == 0) {
+                delegate().deleteFile(pack.indexUri(scheme));
+                indexes.invalidate(cacheKey(pack.bucket, pack.packId));
+                deleteQuietly(pack.dataUri(scheme, index.getGeneration()));
+                return;
+            }
+            writeIndex(pack, next);
+            if (next.getLiveBytes() < compactThreshold * next.getDataLength()) {
+                scheduleCompaction(pack);
+            }
+        }
+    }
+
+    private void writeIndex(PackedFile pack, PackIndex index) throws CloudException {
+        byte[] indexBytes = index.toBytes();
+        delegate().storeFile(pack.bucket, new ByteArrayInputStream(indexBytes), indexKey(pack.packId),
+                PACK_CONTENT_TYPE, indexBytes.length, null);
+        indexes.put(cacheKey(pack.bucket, pack.packId), index);
+    }
+
+    private void scheduleCompaction(final PackedFile pack) {
+        if (! compacting.add(pack.packKey())) {
+            return;
+        }
+        try {
+            compactor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        compact(pack);
+                    } catch (CloudException | RuntimeException ex) {
+                        log.warn(String.format("Error compacting pack %s in bucket %s", pack.packId, pack.bucket), ex);
+                    } finally {
+                        compacting.remove(pack.packKey());
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            compacting.remove(pack.packKey());
+        }
+    }
+
+    /**
+     * copy the live files of a pack into a data object of the next generation and switch the index to it.
+     * Files deleted while copying are dropped from the new index.
+     */
+    private void compact(PackedFile pack) throws CloudException {
+        PackIndex index = index(pack, true);
+        if (index == null || index.getLiveBytes() >= compactThreshold * index.getDataLength()) {
+            return;
+        }
+
+        byte[] old;
+        CloudFile file = delegate().getFile(pack.dataUri(scheme, index.getGeneration()));
+        InputStream is = file.getInputStream();
+        try {
+            old = ByteStreams.toByteArray(is);
+        } catch (IOException ex) {
+            throw new CloudException(String.format("Error reading pack %s in bucket %s", pack.packId, pack.bucket), ex);
+        } finally {
+            Closeables.closeQuietly(is);
+        }
+
+        byte[] data = new byte[(int) index.getLiveBytes()];
+        Map<String, PackIndex.Entry> moved = new HashMap<String, PackIndex.Entry>();
+        int offset = 0;
+        for (PackIndex.Entry entry : index.entries()) {
+            System.arraycopy(old, (int) entry.getOffset(), data, offset, entry.getLength());
+            moved.put(entry.getFilename(), entry.moveTo(offset));
+            offset += entry.getLength();
+        }
+        long generation = index.getGeneration() + 1;
+        String dataUri = delegate().storeFile(pack.bucket, new ByteArrayInputStream(data), dataKey(pack.packId,
+                generation), PACK_CONTENT_TYPE, data.length, null);
+
+        synchronized (indexLock) {
+            PackIndex current = index(pack, true);
+            if (current == null || current.getGeneration() != index.getGeneration()) {
+                deleteQuietly(dataUri);
+                return;
+            }
+            List<PackIndex.Entry> kept = new ArrayList<PackIndex.Entry>(current.size());
+            for (PackIndex.Entry entry : current.entries()) {
+                kept.add(moved.get(entry.getFilename()));
+            }
+            writeIndex(pack, new PackIndex(generation, data.length, kept));
+        }
+        deleteQuietly(pack.dataUri(scheme, index.getGeneration()));
+        compactions.incrementAndGet();
+    }
+
+    private void deleteQuietly(String fileUri) {
+        try {
+            delegate().deleteFile(fileUri);
+        } catch (CloudException | RuntimeException ex) {
+            log.warn("Error deleting pack object " + fileUri, ex);
+        }
+    }
+
+    private static boolean isPacked(String fileUri) {
+        return fileUri != null && fileUri.startsWith(PACK_SCHEME + "://");
+    }
+
+    private static boolean isPacked(FileLocation location) {
+        return PACK_SCHEME.equals(location.getScheme());
+    }
+
+    private static String indexKey(String packId) {
+        return PACK_PREFIX + packId;
+    }
+
+    private static String dataKey(String packId, long generation) {
+        return PACK_PREFIX + packId + "." + generation;
+    }
+
+    private static String cacheKey(String bucket, String packId) {
+        return bucket + "/" + packId;
+    }
+
+    private static Cache<String, PackIndex> newIndexCache(long size) {
+        return CacheBuilder.newBuilder().maximumSize(size).build();
+    }
+
+    /**
+     * a file to store in a pack
+     */
+    private static class Pending {
+
+        private final String filename;
+        private final byte[] data;
+        private final String contentType;
+        private final Map<String, String> metaData;
+
+        Pending(String filename, byte[] data, String contentType, Map<String, String> metaData) {
+            this.filename = filename;
+            this.data = data;
+            this.contentType = contentType;
+            this.metaData = metaData;
+        }
+    }
+
+    /**
+     * the files of one pack being collected and stored, a later file of the same name replaces an earlier
+     */
+    private static class Batch {
+
+        private final String bucket;
+        private final TreeMap<String, Pending> entries = new TreeMap<String, Pending>();
+        private long bytes;
+        private boolean sealed;
+        private boolean done;
+        private String region;
+        private String packId;
+        private Exception error;
+
+        Batch(String bucket) {
+            this.bucket = bucket;
+        }
+
+        void add(Pending pending) {
+            Pending old = entries.put(pending.filename, pending);
+            bytes += pending.data.length - (old == null ? 0 : old.data.length);
+        }
+
+        synchronized void complete(String region, String packId) {
+            this.region = region;
+            this.packId = packId;
+            done = true;
+            notifyAll();
+        }
+
+        synchronized void fail(Exception error) {
+            this.error = error;
+            done = true;
+            notifyAll();
+        }
+
+        /**
+         * wait until the pack is stored
+         *
+         * @return this object
+         * @throws CloudException if the pack could not be stored or interrupted while waiting
+         */
+        synchronized Batch await() throws CloudException {
+            try {
+                while (! done) {
+                    wait();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new CloudException(String.format("Interrupted waiting for pack of bucket %s", bucket), ex);
+            }
+            if (error != null) {
+                throw new CloudException(String.format("Error storing pack of bucket %s", bucket), error);
+            }
+            return this;
+        }
+
+        String toUri(String filename) {
+            return new FileLocation(PACK_SCHEME, region, bucket, packId + "/" + filename).toUri();
+        }
+    }
+
+    /**
+     * a packed file, parsed from its pack://{region}/{bucket}/{packId}/{filename} uri
+     */
+    private static class PackedFile {
+
+        private final String uri;
+        private final String region;
+        private final String bucket;
+        private final String packId;
+        private final String filename;
+
+        private PackedFile(FileLocation location) {
+            int slash = location.getKey().indexOf('/');
+            checkArgument(slash > 0 && slash < location.getKey().length() - 1,
+                    "fileUri %s not in pack://{region}/{bucket}/{packId}/{filename} format", location);
+            this.uri = location.toUri();
+            this.region = location.getRegion();
+            this.bucket = location.getBucket();
+            this.packId = location.getKey().substring(0, slash);
+            this.filename = location.getKey().substring(slash + 1);
+        }
+
+        static PackedFile parse(String fileUri) {
+            return new PackedFile(FileLocation.parse(fileUri));
+        }
+
+        static PackedFile of(FileLocation location) {
+            return new PackedFile(location);
+        }
+
+        String packKey() {
+            return cacheKey(bucket, packId);
+        }
+
+        String indexUri(String scheme) {
+            return new FileLocation(scheme, region, bucket, indexKey(packId)).toUri();
+        }
+
+        String dataUri(String scheme, long generation) {
+            return new FileLocation(scheme, region, bucket, dataKey(packId, generation)).toUri();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * one multipart upload part held in chunks borrowed from a PartBufferPool
+ */
+class PartBuffer {
+
+    private final PartBufferPool pool;
+    private final byte[][] chunks;
+    private final int chunkSize;
+    private final AtomicBoolean released = new AtomicBoolean();
+    private int length;
+
+    PartBuffer(PartBufferPool pool, byte[][] chunks) {
+        this.pool = pool;
+        this.chunks = chunks;
+        this.chunkSize = pool.getChunkSize();
+    }
+
+    /**
+     * @return the number of bytes this part can hold
+     */
+    long capacity() {
+        return (long) chunkSize * chunks.length;
+    }
+
+    /**
+     * @return the number of bytes in this part
+     */
+    int length() {
+        return length;
+    }
+
+    boolean isFull() {
+        return length == capacity();
+    }
+
+    /**
+     * read from the stream until this part is full or the stream ends
+     *
+     * @param is the stream to read
+     * @return the number of bytes read by this call
+     * @throws IOException on read errors
+     */
+    int fill(InputStream is) throws IOException {
+        int start = length;
+        while (! isFull()) {
+            byte[] chunk = chunks[length / chunkSize];
+            int offset = length % chunkSize;
+            int read = is.read(chunk, offset, chunkSize - offset);
+            if (read < 0) {
+                break;
+            }
+            length += read;
+        }
+        return length - start;
+    }
+
+    /**
+     * copy bytes into this part until it is full
+     *
+     * @return the number of bytes copied
+     */
+    int write(byte[] b, int off, int len) {
+        int start = length;
+        while (len > 0 && ! isFull()) {
+            byte[] chunk = chunks[length / chunkSize];
+            int offset = length % chunkSize;
+            int count = Math.min(len, chunkSize - offset);
+            System.arraycopy(b, off, chunk, offset, count);
+            length += count;
+            off += count;
+            len -= count;
+        }
+        return length - start;
+    }
+
+    /**
+     * @return a new stream over the bytes of this part, supports mark/reset so the client can retry
+     */
+    InputStream newInputStream() {
+        return new PartInputStream();
+    }
+
+    /**
+     * return the chunks to the pool, safe to call more than once
+     */
+    void release() {
+        if (released.compareAndSet(false, true)) {
+            pool.release(chunks);
+        }
+    }
+
+    private class PartInputStream extends InputStream {
+
+        private int position;
+        private int mark;
+
+        @Override
+        public int read() {
+            if (position >= length) {
+                return -1;
+            }
+            int b = chunks[position / chunkSize][position % chunkSize] & 0xff;
+            position++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (position >= length) {
+                return -1;
+            }
+            int offset = position % chunkSize;
+            int count = Math.min(Math.min(len, chunkSize - offset), length - position);
+            System.arraycopy(chunks[position / chunkSize], offset, b, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public long skip(long n) {
+            long count = Math.max(0, Math.min(n, length - position));
+            position += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return length - position;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readlimit) {
+            mark = position;
+        }
+
+        @Override
+        public synchronized void reset() {
+            position = mark;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * fixed size pool of byte[] chunks used as multipart upload buffers. Chunks are allocated lazily
+ * and reused, callers block in acquire until enough chunks are free.
+ */
+class PartBufferPool {
+
+    private final int chunkSize;
+    private final int maxChunks;
+    private final Semaphore permits;
+    private final ConcurrentLinkedQueue<byte[]> free = new ConcurrentLinkedQueue<byte[]>();
+
+    PartBufferPool(int chunkSize, int maxChunks) {
+        checkArgument(chunkSize > 0, "chunkSize %s is not positive", chunkSize);
+        checkArgument(maxChunks > 0, "maxChunks %s is not positive", maxChunks);
+        this.chunkSize = chunkSize;
+        this.maxChunks = maxChunks;
+        this.permits = new Semaphore(maxChunks, true);
+    }
+
+    int getChunkSize() {
+        return chunkSize;
+    }
+
+    int getMaxChunks() {
+        return maxChunks;
+    }
+
+    /**
+     * take count chunks from the pool, waiting for other parts to release them if needed
+     *
+     * @param count the number of chunks for the part
+     * @return an empty part buffer, must be released after use
+     * @throws InterruptedException if interrupted while waiting
+     */
+    PartBuffer acquire(int count) throws InterruptedException {
+        checkArgument(count > 0 && count <= maxChunks, "chunk count %s not in 1..%s", count, maxChunks);
+        permits.acquire(count);
+        byte[][] chunks = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            byte[] chunk = free.poll();
+            chunks[i] = chunk != null ? chunk : new byte[chunkSize];
+        }
+        return new PartBuffer(this, chunks);
+    }
+
+    void release(byte[][] chunks) {
+        for (byte[] chunk : chunks) {
+            free.offer(chunk);
+        }
+        permits.release(chunks.length);
+    }
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.HttpMethod;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * cache of presigned urls keyed by bucket, filename and http method. A cached url is handed out again
+ * while at least minRemainingRatio of the requested expiry is left on it, and never when it would
+ * stay valid longer than requested.
+ */
+public class PresignedUrlCache {
+
+    private final Cache<Key, Entry> cache;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private volatile double minRemainingRatio = 0.5;
+
+    /**
+     * @param maximumSize the maximum number of urls to keep
+     * @param maxAgeSeconds the number of seconds after which a url is evicted regardless of use
+     */
+    public PresignedUrlCache(long maximumSize, long maxAgeSeconds) {
+        checkArgument(maximumSize > 0, "maximumSize %s is not positive", maximumSize);
+        checkArgument(maxAgeSeconds > 0, "maxAgeSeconds %s is not positive", maxAgeSeconds);
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(maxAgeSeconds, TimeUnit.SECONDS)
+                .build();
+    }
+
+    /**
+     * @param minRemainingRatio the part of the requested expiry a cached url must still be valid for
+     * @return this object
+     */
+    public PresignedUrlCache setMinRemainingRatio(double minRemainingRatio) {
+        checkArgument(minRemainingRatio > 0 && minRemainingRatio <= 1,
+                "minRemainingRatio %s not in (0, 1]", minRemainingRatio);
+        this.minRemainingRatio = minRemainingRatio;
+        return this;
+    }
+
+    /**
+     * @param bucket the bucket name
+     * @param filename the filename
+     * @param method the http method the url is signed for
+     * @param expirySeconds the number of seconds the caller wants the url to be valid for
+     * @param nowMillis the current time in millis
+     * @return the cached url or null if none is usable
+     */
+    URL get(String bucket, String filename, HttpMethod method, long expirySeconds, long nowMillis) {
+        Entry entry = cache.getIfPresent(new Key(bucket, filename, method));
+        if (entry != null) {
+            long remaining = entry.expiresMillis - nowMillis;
+            long requested = expirySeconds * 1000;
+            if (remaining <= requested && remaining >= requested * minRemainingRatio) {
+                hits.incrementAndGet();
+                return entry.url;
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * @param bucket the bucket name
+     * @param filename the filename
+     * @param method the http method the url is signed for
+     * @param url the presigned url
+     * @param expiresMillis the time in millis the url expires at
+     */
+    void put(String bucket, String filename, HttpMethod method, URL url, long expiresMillis) {
+        cache.put(new Key(bucket, filename, method), new Entry(url, expiresMillis));
+    }
+
+    /**
+     * @return the number of lookups which returned a cached url
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of lookups which needed a new url
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of urls in the cache
+     */
+    public long size() {
+        return cache.size();
+    }
+
+    /**
+     * remove all urls from the cache
+     */
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    private static final class Key {
+
+        private final String bucket;
+        private final String filename;
+        private final HttpMethod method;
+        private final int hash;
+
+        Key(String bucket, String filename, HttpMethod method) {
+            this.bucket = bucket;
+            this.filename = filename;
+            this.method = method;
+            this.hash = (bucket.hashCode() * 31 + filename.hashCode()) * 31 + method.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (! (obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hash == other.hash && method == other.method && filename.equals(other.filename)
+                    && bucket.equals(other.bucket);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Entry {
+
+        private final URL url;
+        private final long expiresMillis;
+
+        Entry(URL url, long expiresMillis) {
+            this.url = url;
+            this.expiresMillis = expiresMillis;
+        }
+    }
+}
@@ -0,0 +1,532 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.regions.Region;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.google.common.base.Strings;
+import com.google.common.io.Closeables;
+
+/**
+ * CloudStorage over S3 in any region. Calls on a file uri are routed by the region in the
+ * s3://{region}/{bucket}/{filename} uri to an S3CloudStorage for that region, created on first use.
+ * Files are stored in the region set for their bucket with setBucketRegion, or the default region.
+ *
+ * Reads of a bucket with a read replica, e.g. a cross-region replicated copy nearer to this process, go to
+ * the replica and fall back to the source bucket if the file has not been replicated yet. Writes and
+ * deletes always go to the source bucket, and so do getFileMetadata and exists, which answer whether a
+ * file exists now.
+ */
+public class RegionRoutingCloudStorage implements CloudStorage {
+
+    /**
+     * creates the storage of a region
+     */
+    public interface StorageFactory {
+
+        /**
+         * @param region the region
+         * @return the storage for files in the region
+         */
+        S3CloudStorage create(Regions region);
+    }
+
+    private final StorageFactory factory;
+    private final Regions defaultRegion;
+    private final ConcurrentMap<Regions, S3CloudStorage> storages = new ConcurrentHashMap<Regions, S3CloudStorage>();
+    private final ConcurrentMap<String, Regions> bucketRegions = new ConcurrentHashMap<String, Regions>();
+    private final ConcurrentMap<String, Replica> readReplicas = new ConcurrentHashMap<String, Replica>();
+
+    /**
+     * routing storage creating the clients of all regions with the same credentials and client configuration.
+     * The storages of all regions share one transfer executor.
+     *
+     * @param credentials the AWSCredentials object for create, fetch, delete object, required
+     * @param urlGenCredentials the AWSCredentials object to generate urls for object, null to use credentials
+     * @param clientConfig the client configuration, e.g. connection pool size, null for the default
+     * @param defaultRegion the region to store files of buckets without a region set, required
+     */
+    public RegionRoutingCloudStorage(AWSCredentials credentials, AWSCredentials urlGenCredentials,
+            ClientConfiguration clientConfig, Regions defaultRegion) {
+        this(new DefaultStorageFactory(credentials, urlGenCredentials, clientConfig), defaultRegion);
+    }
+
+    /**
+     * @param factory the factory creating the storage of a region on first use, required
+     * @param defaultRegion the region to store files of buckets without a region set, required
+     */
+    public RegionRoutingCloudStorage(StorageFactory factory, Regions defaultRegion) {
+        checkArgument(factory != null, "storage factory is null");
+        checkArgument(defaultRegion != null, "default region is null");
+        this.factory = factory;
+        this.defaultRegion = defaultRegion;
+    }
+
+    /**
+     * @param bucket the bucket name
+     * @param region the region of the bucket, files stored in the bucket go to this region
+     * @return this object
+     */
+    public RegionRoutingCloudStorage setBucketRegion(String bucket, Regions region) {
+        checkArgument(! Strings.isNullOrEmpty(bucket), "bucket is null or empty");
+        checkArgument(region != null, "region is null");
+        bucketRegions.put(bucket, region);
+        return this;
+    }
+
+    /**
+     * read files of a bucket from a replica of it, e.g. a bucket in a nearer region the source bucket is
+     * replicated to. Files missing in the replica are read from the source bucket. getFileMetadata and exists
+     * always ask the source bucket.
+     * <p>
+     * S3 replication does not replicate deletes unless delete marker replication is enabled on the rule, and
+     * never replicates deletes of versions. A file deleted from the source bucket is then still served by
+     * getFile, getFileTo, getFileIfChanged and getExpiringUrl from the replica until it is deleted there too.
+     *
+     * @param bucket the source bucket name
+     * @param replicaRegion the region of the replica bucket
+     * @param replicaBucket the replica bucket name
+     * @return this object
+     */
+    public RegionRoutingCloudStorage addReadReplica(String bucket, Regions replicaRegion, String replicaBucket) {
+        checkArgument(! Strings.isNullOrEmpty(bucket), "bucket is null or empty");
+        checkArgument(replicaRegion != null, "replica region is null");
+        checkArgument(! Strings.isNullOrEmpty(replicaBucket), "replica bucket is null or empty");
+        readReplicas.put(bucket, new Replica(replicaRegion, replicaBucket));
+        return this;
+    }
+
+    /**
+     * @param bucket the source bucket name
+     * @return this object
+     */
+    public RegionRoutingCloudStorage removeReadReplica(String bucket) {
+        readReplicas.remove(bucket);
+        return this;
+    }
+
+    /**
+     * @param region the region
+     * @return the storage of the region, created if this is the first use of the region
+     */
+    public S3CloudStorage getStorage(Regions region) {
+        checkArgument(region != null, "region is null");
+        S3CloudStorage storage = storages.get(region);
+        if (storage == null) {
+            synchronized (storages) {
+                storage = storages.get(region);
+                if (storage == null) {
+                    storage = factory.create(region);
+                    checkArgument(storage != null, "storage factory returned null for region %s", region);
+                    storages.put(region, storage);
+                }
+            }
+        }
+        return storage;
+    }
+
+    @Deprecated
+    @Override
+    public Map<String, String> parseFileUri(String fileUri) {
+        FileLocation location = parseFileLocation(fileUri);
+
+        Map<String, String> fileInfo = new HashMap<String, String>();
+        fileInfo.put("region", location.getRegion());
+        fileInfo.put("bucket", location.getBucket());
+        fileInfo.put("filename", location.getKey());
+
+        return fileInfo;
+    }
+
+    /**
+     * parse fileUri to its location, the region must be the name of one of Regions
+     *
+     * @param fileUri the uri of file in s3://{region}/{bucket}/{filename} format
+     * @return the location with region, bucket and filename in uri
+     */
+    @Override
+    public FileLocation parseFileLocation(String fileUri) {
+        FileLocation location = FileLocation.parse(fileUri);
+        checkArgument(FileLocation.S3_SCHEME.equals(location.getScheme()),
+                "fileUri %s not in s3://{region}/{bucket}/{filename} format", fileUri);
+        regionOf(location);
+        return location;
+    }
+
+    /**
+     * store file in the region of the bucket
+     */
+    @Override
+    public String storeFile(String bucket, InputStream is, String filename, String contentType,
+            long contentLength, Map<String, String> metaData) throws CloudException {
+        checkArgument(! Strings.isNullOrEmpty(bucket), "bucket is null");
+        return getStorage(bucketRegion(bucket)).storeFile(bucket, is, filename, contentType, contentLength,
+                metaData);
+    }
+
+    @Override
+    public String storeFileFrom(String bucket, Path path, String filename, String contentType,
+            Map<String, String> metaData) throws CloudException {
+        checkArgument(! Strings.isNullOrEmpty(bucket), "bucket is null");
+        return getStorage(bucketRegion(bucket)).storeFileFrom(bucket, path, filename, contentType, metaData);
+    }
+
+    @Override
+    public CloudOutputStream openForWrite(String bucket, String filename, String contentType,
+            Map<String, String> metaData) throws CloudException {
+        checkArgument(! Strings.isNullOrEmpty(bucket), "bucket is null");
+        return getStorage(bucketRegion(bucket)).openForWrite(bucket, filename, contentType, metaData);
+    }
+
+    @Override
+    public CloudFile getFile(String fileUri) throws CloudException {
+        return getFile(parseFileLocation(fileUri));
+    }
+
+    @Override
+    public CloudFile getFileTo(String fileUri, Path path) throws CloudException {
+        FileLocation location = parseFileLocation(fileUri);
+        FileLocation replica = replicaOf(location);
+        if (replica != null) {
+            try {
+                return storageOf(replica).getFileTo(replica.toUri(), path);
+            } catch (CloudException ex) {
+                if (! isNotFound(ex)) {
+                    throw ex;
+                }
+            }
+        }
+        return storageOf(location).getFileTo(fileUri, path);
+    }
+
+    /**
+     * fetch file and write it to a channel. A missing file fails before anything is written, so the
+     * source bucket is read if the replica does not have the file yet.
+     */
+    @Override
+    public CloudFile getFileTo(String fileUri, WritableByteChannel channel) throws CloudException {
+        FileLocation location = parseFileLocation(fileUri);
+        FileLocation replica = replicaOf(location);
+        if (replica != null) {
+            try {
+                return storageOf(replica).getFileTo(replica.toUri(), channel);
+            } catch (CloudException ex) {
+                if (! isNotFound(ex)) {
+                    throw ex;
+                }
+            }
+        }
+        return storageOf(location).getFileTo(fileUri, channel);
+    }
+
+    @Override
+    public CloudFile getFile(String fileUri, ByteRange range) throws CloudException {
+        return getFile(parseFileLocation(fileUri), range);
+    }
+
+    @Override
+    public CloudFile getFile(FileLocation location) throws CloudException {
+        FileLocation replica = replicaOf(location);
+        if (replica != null) {
+            try {
+                return storageOf(replica).getFile(replica);
+            } catch (CloudException ex) {
+                if (! isNotFound(ex)) {
+                    throw ex;
+                }
+            }
+        }
+        return storageOf(location).getFile(location);
+    }
+
+    @Override
+    public CloudFile getFile(FileLocation location, ByteRange range) throws CloudException {
+        FileLocation replica = replicaOf(location);
+        if (replica != null) {
+            try {
+                return storageOf(replica).getFile(replica, range);
+            } catch (CloudException ex) {
+                if (! isNotFound(ex)) {
+                    throw ex;
+                }
+            }
+        }
+        return storageOf(location).getFile(location, range);
+    }
+
+    /**
+     * fetch file unless it still has the given eTag. Replicas keep the eTag of the source, so the replica
+     * is asked first.
+     */
+    @Override
+    public CloudFile getFileIfChanged(String fileUri, String eTag) throws CloudException {
+        FileLocation location = parseFileLocation(fileUri);
+        FileLocation replica = replicaOf(location);
+        if (replica != null) {
+            try {
+                return storageOf(replica).getFileIfChanged(replica.toUri(), eTag);
+            } catch (CloudException ex) {
+                if (! isNotFound(ex)) {
+                    throw ex;
+                }
+            }
+        }
+        return storageOf(location).getFileIfChanged(fileUri, eTag);
+    }
+
+    /**
+     * fetch the metadata of a file from the source bucket, a replica may still have files deleted from it
+     */
+    @Override
+    public CloudFile getFileMetadata(String fileUri) throws CloudException {
+        FileLocation location = parseFileLocation(fileUri);
+        return storageOf(location).getFileMetadata(fileUri);
+    }
+
+    @Override
+    public boolean exists(String fileUri) throws CloudException {
+        return getFileMetadata(fileUri) != null;
+    }
+
+    @Override
+    public void deleteFile(String fileUri) throws CloudException {
+        deleteFile(parseFileLocation(fileUri));
+    }
+
+    @Override
+    public void deleteFile(FileLocation location) throws CloudException {
+        storageOf(location).deleteFile(location);
+    }
+
+    /**
+     * delete many files, grouped by region and deleted by the storage of each region
+     */
+    @Override
+    public BatchResult deleteFiles(Collection<String> fileUris) throws CloudException {
+        checkArgument(fileUris != null, "fileUris is null");
+
+        BatchResult result = new BatchResult();
+        Map<Regions, List<String>> regionUris = new LinkedHashMap<Regions, List<String>>();
+        for (String fileUri : new LinkedHashSet<String>(fileUris)) {
+            try {
+                Regions region = regionOf(parseFileLocation(fileUri));
+                List<String> uris = regionUris.get(region);
+                if (uris == null) {
+                    uris = new ArrayList<String>();
+                    regionUris.put(region, uris);
+                }
+                uris.add(fileUri);
+            } catch (IllegalArgumentException ex) {
+                result.addFailed(fileUri, new CloudException(ex.getMessage(), ex));
+            }
+        }
+
+        for (Map.Entry<Regions, List<String>> entry : regionUris.entrySet()) {
+            result.addAll(getStorage(entry.getKey()).deleteFiles(entry.getValue()));
+        }
+        return result;
+    }
+
+    /**
+     * copy file with server side copy when the destination bucket is in the region of the source. A copy
+     * to another region is read from the source region and stored in the destination region.
+     */
+    @Override
+    public String copyFile(String srcUri, String dstBucket, String dstFilename) throws CloudException {
+        checkArgument(! Strings.isNullOrEmpty(dstBucket), "dstBucket is null");
+        FileLocation src = parseFileLocation(srcUri);
+        Regions dstRegion = bucketRegion(dstBucket);
+        if (regionOf(src) == dstRegion) {
+            return getStorage(dstRegion).copyFile(srcUri, dstBucket, dstFilename);
+        }
+        CloudFile file = storageOf(src).getFile(src);
+        InputStream is = file.getInputStream();
+        try {
+            return getStorage(dstRegion).storeFile(dstBucket, is, dstFilename, file.getContentType(),
+                    file.getContentLength(), file.getMetaData());
+        } finally {
+            Closeables.closeQuietly(is);
+        }
+    }
+
+    @Override
+    public String moveFile(String srcUri, String dstBucket, String dstFilename) throws CloudException {
+        checkArgument(! Strings.isNullOrEmpty(dstBucket), "dstBucket is null");
+        FileLocation src = parseFileLocation(srcUri);
+        Regions dstRegion = bucketRegion(dstBucket);
+        if (regionOf(src) == dstRegion) {
+            return getStorage(dstRegion).moveFile(srcUri, dstBucket, dstFilename);
+        }
+        String fileUri = copyFile(srcUri, dstBucket, dstFilename);
+        storageOf(src).deleteFile(src);
+        return fileUri;
+    }
+
+    /**
+     * copy many files, copies within a region are run by the storage of the region and copies between
+     * regions one at a time through the client
+     */
+    @Override
+    public BatchResult copyFiles(Map<String, String> fileUris) throws CloudException {
+        checkArgument(fileUris != null, "fileUris is null");
+
+        BatchResult result = new BatchResult();
+        Map<Regions, Map<String, String>> regionCopies = new LinkedHashMap<Regions, Map<String, String>>();
+        for (Map.Entry<String, String> entry : fileUris.entrySet()) {
+            try {
+                Regions region = regionOf(parseFileLocation(entry.getKey()));
+                FileLocation dst = parseFileLocation(entry.getValue());
+                if (region != regionOf(dst)) {
+                    copyFile(entry.getKey(), dst.getBucket(), dst.getKey());
+                    result.addSucceeded(entry.getKey());
+                    continue;
+                }
+                Map<String, String> copies = regionCopies.get(region);
+                if (copies == null) {
+                    copies = new LinkedHashMap<String, String>();
+                    regionCopies.put(region, copies);
+                }
+                copies.put(entry.getKey(), entry.getValue());
+            } catch (IllegalArgumentException ex) {
+                result.addFailed(entry.getKey(), new CloudException(ex.getMessage(), ex));
+            } catch (CloudException ex) {
+                result.addFailed(entry.getKey(), ex);
+            }
+        }
+
+        for (Map.Entry<Regions, Map<String, String>> entry : regionCopies.entrySet()) {
+            result.addAll(getStorage(entry.getKey()).copyFiles(entry.getValue()));
+        }
+        return result;
+    }
+
+    /**
+     * list files of a bucket in the region of the bucket, replicas are not used
+     */
+    @Override
+    public CloudFileIterator listFiles(String bucket, String prefix) throws CloudException {
+        checkArgument(! Strings.isNullOrEmpty(bucket), "bucket is null or empty");
+        return getStorage(bucketRegion(bucket)).listFiles(bucket, prefix);
+    }
+
+    /**
+     * create url for a file which will expire in specified seconds, pointing at the read replica of the
+     * bucket if there is one
+     */
+    @Override
+    public URL getExpiringUrl(String fileUri, long expirySeconds) throws CloudException {
+        return getExpiringUrl(parseFileLocation(fileUri), expirySeconds);
+    }
+
+    @Override
+    public URL getExpiringUrl(FileLocation location, long expirySeconds) throws CloudException {
+        FileLocation replica = replicaOf(location);
+        FileLocation target = replica == null ? location : replica;
+        return storageOf(target).getExpiringUrl(target, expirySeconds);
+    }
+
+    private Regions bucketRegion(String bucket) {
+        Regions region = bucketRegions.get(bucket);
+        return region == null ? defaultRegion : region;
+    }
+
+    private S3CloudStorage storageOf(FileLocation location) {
+        return getStorage(regionOf(location));
+    }
+
+    /**
+     * @return the location of the file in the read replica of its bucket, null if the bucket has none
+     */
+    private FileLocation replicaOf(FileLocation location) {
+        checkArgument(location != null, "location is null");
+        Replica replica = readReplicas.get(location.getBucket());
+        if (replica == null) {
+            return null;
+        }
+        return new FileLocation(replica.region.name(), replica.bucket, location.getKey());
+    }
+
+    private static Regions regionOf(FileLocation location) {
+        checkArgument(location != null, "location is null");
+        try {
+            return Regions.valueOf(location.getRegion().toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException(String.format("fileUri %s region %s is not an AWS region",
+                    location, location.getRegion()), ex);
+        }
+    }
+
+    private static boolean isNotFound(CloudException ex) {
+        return ex.getCause() instanceof AmazonServiceException
+                && ((AmazonServiceException) ex.getCause()).getStatusCode() == 404;
+    }
+
+    private static class Replica {
+
+        private final Regions region;
+        private final String bucket;
+
+        Replica(Regions region, String bucket) {
+            this.region = region;
+            this.bucket = bucket;
+        }
+    }
+
+    /**
+     * creates AmazonS3Client based storages from shared credentials and client configuration
+     */
+    private static class DefaultStorageFactory implements StorageFactory {
+
+        private final AWSCredentials credentials;
+        private final AWSCredentials urlGenCredentials;
+        private final ClientConfiguration clientConfig;
+        private ExecutorService transferExecutor;
+
+        DefaultStorageFactory(AWSCredentials credentials, AWSCredentials urlGenCredentials,
+                ClientConfiguration clientConfig) {
+            checkArgument(credentials != null, "aws credentials is null");
+            this.credentials = credentials;
+            this.urlGenCredentials = urlGenCredentials == null ? credentials : urlGenCredentials;
+            this.clientConfig = clientConfig == null ? new ClientConfiguration() : clientConfig;
+        }
+
+        @Override
+        public synchronized S3CloudStorage create(Regions region) {
+            AmazonS3 s3 = new AmazonS3Client(credentials, clientConfig);
+            s3.setRegion(Region.getRegion(region));
+            AmazonS3 urlGenS3 = new AmazonS3Client(urlGenCredentials, clientConfig);
+            urlGenS3.setRegion(Region.getRegion(region));
+
+            S3CloudStorage storage = new S3CloudStorage(s3, urlGenS3, region);
+            if (transferExecutor == null) {
+                transferExecutor = storage.getTransferExecutor();
+            } else {
+                storage.setTransferExecutor(transferExecutor);
+            }
+            return storage;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+
+/**
+ * settings for retries of S3 requests done by S3CloudStorage on top of the retries of the AWS client.
+ * Requests failing with 503 SlowDown or another 5xx error are retried after a delay with decorrelated
+ * jitter: each delay is random between baseDelayMillis and three times the previous delay, capped at
+ * maxDelayMillis, so clients backing off together spread out instead of retrying in lockstep.
+ */
+public class RetryPolicy {
+
+    private int maxAttempts = 3;
+    private long baseDelayMillis = 50;
+    private long maxDelayMillis = 2000;
+
+    public RetryPolicy() {
+        //do nothing
+    }
+
+    /**
+     * @return the number of attempts of a request including the first
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * @param maxAttempts the number of attempts of a request including the first, 1 to not retry
+     * @return this object
+     */
+    public RetryPolicy setMaxAttempts(int maxAttempts) {
+        checkArgument(maxAttempts > 0, "maxAttempts %s is not positive", maxAttempts);
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    /**
+     * @return the smallest delay before a retry in milliseconds
+     */
+    public long getBaseDelayMillis() {
+        return baseDelayMillis;
+    }
+
+    /**
+     * @param baseDelayMillis the smallest delay before a retry in milliseconds
+     * @return this object
+     */
+    public RetryPolicy setBaseDelayMillis(long baseDelayMillis) {
+        checkArgument(baseDelayMillis > 0, "baseDelayMillis %s is not positive", baseDelayMillis);
+        this.baseDelayMillis = baseDelayMillis;
+        return this;
+    }
+
+    /**
+     * @return the largest delay before a retry in milliseconds
+     */
+    public long getMaxDelayMillis() {
+        return maxDelayMillis;
+    }
+
+    /**
+     * @param maxDelayMillis the largest delay before a retry in milliseconds
+     * @return this object
+     */
+    public RetryPolicy setMaxDelayMillis(long maxDelayMillis) {
+        checkArgument(maxDelayMillis > 0, "maxDelayMillis %s is not positive", maxDelayMillis);
+        this.maxDelayMillis = maxDelayMillis;
+        return this;
+    }
+
+    /**
+     * @param ex the error a request failed with
+     * @return true if the request may succeed when retried, i.e. S3 answered SlowDown or a 5xx error
+     */
+    public boolean isRetryable(AmazonClientException ex) {
+        if (! (ex instanceof AmazonServiceException)) {
+            return false;
+        }
+        AmazonServiceException serviceError = (AmazonServiceException) ex;
+        return serviceError.getStatusCode() >= 500 || "SlowDown".equals(serviceError.getErrorCode());
+    }
+
+    /**
+     * @param previousDelayMillis the delay before the previous retry, 0 before the first retry
+     * @return the delay before the next retry in milliseconds
+     */
+    public long nextDelayMillis(long previousDelayMillis) {
+        long base = Math.min(baseDelayMillis, maxDelayMillis);
+        long upper = Math.min(maxDelayMillis, Math.max(base, previousDelayMillis) * 3);
+        return upper == base ? base : ThreadLocalRandom.current().nextLong(base, upper + 1);
+    }
+}
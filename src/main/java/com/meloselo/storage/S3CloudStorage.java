@@ -5,38 +5,100 @@ package com.meloselo.storage;
 
 import static com.google.common.base.Preconditions.checkArgument;
 
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import org.joda.time.Duration;
-import org.joda.time.Instant;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.HttpMethod;
 import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.regions.Region;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.S3Object;
 import com.google.common.base.Strings;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.Iterables;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * @author roshan
  *
  */
-public class S3CloudStorage implements CloudStorage {
+public class S3CloudStorage implements CloudStorage, AsyncCloudStorage {
 
+    /** the maximum number of keys in one S3 multi-object delete request */
+    public static final int MAX_DELETE_KEYS = 1000;
+    
+    /** the largest object S3 copies with a single copy request */
+    public static final long MAX_SINGLE_COPY_SIZE = 5L * 1024 * 1024 * 1024;
+    
+    /** the bytes copied by each part copy of a multipart copy */
+    static final long COPY_PART_SIZE = 512L * 1024 * 1024;
+    
+    /** the number of listing entries buffered ahead of the reader by listFilesParallel */
+    static final int LIST_QUEUE_SIZE = 4000;
+    
     private AmazonS3 s3;
     private AmazonS3 urlGenS3;
     private Regions region;
-    private Pattern fileUriPattern;
+    private ExecutorService transferExecutor;
+    private MultipartUploadConfig multipartConfig;
+    private PartBufferPool partBufferPool;
+    private ChunkedDownloadConfig chunkedDownloadConfig;
+    private ExecutorAsyncCloudStorage async;
+    private volatile PresignedUrlCache presignedUrlCache;
+    private volatile MetadataCache metadataCache;
+    private volatile S3HedgedReader hedgedReader;
+    private volatile StreamReleaser streamReleaser;
+    private volatile ConcurrencyLimiter concurrencyLimiter;
+    private ExecutorService hedgeExecutor;
+    private int maxConcurrentCopies = 16;
+    private ExecutorService copyExecutor;
+    private ExecutorService listExecutor;
+    private final ConcurrentMap<CloudOperation, RetryPolicy> retryPolicies =
+            new ConcurrentHashMap<CloudOperation, RetryPolicy>();
     
     /**
      * class to store files on AWS S3
@@ -61,7 +123,320 @@ public class S3CloudStorage implements CloudStorage {
         urlGenS3.setRegion(Region.getRegion(region));
         
         this.region = region;
-        this.fileUriPattern = Pattern.compile("s3://([^/]+)/([^/]+)/([^/]+)");
+    }
+    
+    /**
+     * class to store files on AWS S3 using already configured clients, e.g. with a custom endpoint
+     * or ClientConfiguration
+     *  
+     * @param s3 the client to create, fetch, delete object, required
+     * @param urlGenS3 the client to generate urls for object, null to use s3
+     * @param region the AWS region the clients use, required
+     */
+    public S3CloudStorage(AmazonS3 s3, AmazonS3 urlGenS3, Regions region) {
+        checkArgument(s3 != null, "s3 client is null");
+        checkArgument(region != null, "aws region is null");
+        
+        this.s3 = s3;
+        this.urlGenS3 = urlGenS3 == null ? s3 : urlGenS3;
+        this.region = region;
+    }
+
+    /**
+     * set the executor used to transfer parts of files in parallel. If not set a pool of daemon
+     * threads is created on first use.
+     * 
+     * @param transferExecutor the executor for part transfers
+     * @return this object
+     */
+    public synchronized S3CloudStorage setTransferExecutor(ExecutorService transferExecutor) {
+        checkArgument(transferExecutor != null, "transferExecutor is null");
+        this.transferExecutor = transferExecutor;
+        return this;
+    }
+
+    /**
+     * set the number of copies copyFiles runs at once, takes effect before its first use
+     * 
+     * @param maxConcurrentCopies the number of concurrent copies
+     * @return this object
+     */
+    public synchronized S3CloudStorage setMaxConcurrentCopies(int maxConcurrentCopies) {
+        checkArgument(maxConcurrentCopies > 0, "maxConcurrentCopies %s is not positive", maxConcurrentCopies);
+        this.maxConcurrentCopies = maxConcurrentCopies;
+        return this;
+    }
+
+    /**
+     * enable multipart uploads in storeFile for large files and files of unknown length
+     * 
+     * @param multipartConfig the multipart settings, null to always upload with a single put
+     * @return this object
+     */
+    public synchronized S3CloudStorage setMultipartUploadConfig(MultipartUploadConfig multipartConfig) {
+        this.multipartConfig = multipartConfig;
+        this.partBufferPool = multipartConfig == null ? null 
+                : new PartBufferPool(multipartConfig.getPartSize(), multipartConfig.getMaxPartBuffers());
+        return this;
+    }
+
+    /**
+     * enable parallel chunked downloads in getFile
+     * 
+     * @param chunkedDownloadConfig the chunked download settings, null to download with a single GET
+     * @return this object
+     */
+    public synchronized S3CloudStorage setChunkedDownloadConfig(ChunkedDownloadConfig chunkedDownloadConfig) {
+        this.chunkedDownloadConfig = chunkedDownloadConfig;
+        return this;
+    }
+
+    /**
+     * set the executor for the async operations of this storage. If not set virtual threads are used
+     * when available, otherwise a pool of ExecutorAsyncCloudStorage.DEFAULT_MAX_IN_FLIGHT daemon threads.
+     * 
+     * @param asyncExecutor the executor for async operations
+     * @param maxInFlight the maximum number of async operations in flight, further operations are queued
+     * @return this object
+     */
+    public synchronized S3CloudStorage setAsyncExecutor(ExecutorService asyncExecutor, int maxInFlight) {
+        this.async = new ExecutorAsyncCloudStorage(this, asyncExecutor, maxInFlight);
+        return this;
+    }
+
+    /**
+     * cache urls from getExpiringUrl so repeated requests for a file reuse a url while enough of its
+     * validity remains
+     * 
+     * @param presignedUrlCache the url cache, null to sign a new url on every call
+     * @return this object
+     */
+    public S3CloudStorage setPresignedUrlCache(PresignedUrlCache presignedUrlCache) {
+        this.presignedUrlCache = presignedUrlCache;
+        return this;
+    }
+
+    /**
+     * @return the url cache or null if urls are not cached
+     */
+    public PresignedUrlCache getPresignedUrlCache() {
+        return presignedUrlCache;
+    }
+
+    /**
+     * cache results of getFileMetadata and exists for a limited time. Files stored or deleted through
+     * this storage are invalidated right away, changes made by other clients are seen after ttlSeconds.
+     * 
+     * @param maximumSize the maximum number of files to keep metadata of, 0 to disable the cache
+     * @param ttlSeconds the number of seconds to keep metadata of a file
+     * @return this object
+     */
+    public S3CloudStorage setMetadataCache(long maximumSize, long ttlSeconds) {
+        this.metadataCache = maximumSize == 0 ? null : new MetadataCache(maximumSize, ttlSeconds);
+        return this;
+    }
+
+    /**
+     * retry S3 requests of an operation failing with 503 SlowDown or another 5xx error, on top of the
+     * retries of the AWS client. Applies to GET_FILE, GET_FILE_IF_CHANGED, GET_FILE_METADATA, EXISTS through
+     * GET_FILE_METADATA, DELETE_FILE, DELETE_FILES and STORE_FILE. Stores are retried for the parts of
+     * multipart uploads, puts of local files and single puts of known length up to the multipart threshold
+     * from streams supporting mark and reset.
+     * 
+     * @param operation the operation
+     * @param retryPolicy the retry settings, null to not retry
+     * @return this object
+     */
+    public S3CloudStorage setRetryPolicy(CloudOperation operation, RetryPolicy retryPolicy) {
+        checkArgument(operation != null, "operation is null");
+        if (retryPolicy == null) {
+            retryPolicies.remove(operation);
+        } else {
+            retryPolicies.put(operation, retryPolicy);
+        }
+        return this;
+    }
+
+    /**
+     * @param operation the operation
+     * @return the retry settings of the operation, null if its requests are not retried
+     */
+    public RetryPolicy getRetryPolicy(CloudOperation operation) {
+        return retryPolicies.get(operation);
+    }
+
+    /**
+     * hedge GETs of getFile and getFileIfChanged which are slower than a percentile of earlier GETs
+     * 
+     * @param hedgedReadConfig the hedging settings, null to send a single GET
+     * @return this object
+     */
+    public synchronized S3CloudStorage setHedgedReadConfig(HedgedReadConfig hedgedReadConfig) {
+        if (hedgedReadConfig == null) {
+            this.hedgedReader = null;
+        } else {
+            if (hedgeExecutor == null) {
+                hedgeExecutor = Executors.newCachedThreadPool(
+                        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("s3-get-%d").build());
+            }
+            this.hedgedReader = new S3HedgedReader(s3, hedgeExecutor, hedgedReadConfig);
+        }
+        return this;
+    }
+
+    /**
+     * @return the number of hedged GETs sent, 0 if GETs are not hedged
+     */
+    public long getHedgeCount() {
+        S3HedgedReader reader = hedgedReader;
+        return reader == null ? 0 : reader.getHedgeCount();
+    }
+
+    /**
+     * @return the number of hedged GETs that answered first, 0 if GETs are not hedged
+     */
+    public long getHedgeWinCount() {
+        S3HedgedReader reader = hedgedReader;
+        return reader == null ? 0 : reader.getHedgeWinCount();
+    }
+
+    /**
+     * @return the hit and miss statistics of the metadata cache, or null if metadata is not cached
+     */
+    public CacheStats getMetadataCacheStats() {
+        MetadataCache cache = metadataCache;
+        return cache == null ? null : cache.stats();
+    }
+
+    /**
+     * release the http connections of file streams left unread or not closed, and optionally open them
+     * only on the first read, see StreamReleaseConfig
+     * 
+     * @param streamReleaseConfig the release settings, null to return the streams of the S3 client
+     * @return this object
+     */
+    public synchronized S3CloudStorage setStreamReleaseConfig(StreamReleaseConfig streamReleaseConfig) {
+        StreamReleaser old = streamReleaser;
+        streamReleaser = streamReleaseConfig == null ? null : new StreamReleaser(streamReleaseConfig);
+        if (old != null) {
+            old.shutdown();
+        }
+        return this;
+    }
+
+    /**
+     * @return the number of file streams holding an http connection, 0 if streams are not released
+     */
+    public int getOpenStreamCount() {
+        StreamReleaser releaser = streamReleaser;
+        return releaser == null ? 0 : releaser.getOpenCount();
+    }
+
+    /**
+     * @return the number of file streams garbage collected without close, 0 if streams are not released
+     */
+    public long getLeakedStreamCount() {
+        StreamReleaser releaser = streamReleaser;
+        return releaser == null ? 0 : releaser.getLeakedCount();
+    }
+
+    /**
+     * @return the number of connections released from idle file streams, 0 if streams are not released
+     */
+    public long getIdleReleasedStreamCount() {
+        StreamReleaser releaser = streamReleaser;
+        return releaser == null ? 0 : releaser.getIdleReleasedCount();
+    }
+
+    /**
+     * limit concurrent S3 requests per bucket and key prefix, adapting the limit to SlowDown answers and
+     * read latency, see ConcurrencyLimitConfig. Applies to the requests of storeFile and storeFileFrom with
+     * a single put, getFile, getFileIfChanged, getFileMetadata, deleteFile, deleteFiles and copyFile with a
+     * single copy, including the ranged GETs of chunked downloads, each attempt of a retried request taking
+     * its own slot. Parts of multipart uploads and copies are limited by the transfer executor instead.
+     *
+     * @param concurrencyLimitConfig the limit settings, null to not limit requests
+     * @return this object
+     */
+    public S3CloudStorage setConcurrencyLimitConfig(ConcurrencyLimitConfig concurrencyLimitConfig) {
+        this.concurrencyLimiter = concurrencyLimitConfig == null ? null
+                : new ConcurrencyLimiter(concurrencyLimitConfig);
+        return this;
+    }
+
+    /**
+     * @param operation the operation
+     * @param bucket the S3 bucket name
+     * @param filename the file name
+     * @return the current limit of concurrent requests of the operation on the file, 0 if requests are not
+     *      limited
+     */
+    public int getConcurrencyLimit(CloudOperation operation, String bucket, String filename) {
+        ConcurrencyLimiter limiter = concurrencyLimiter;
+        return limiter == null ? 0 : limiter.getLimit(operation, bucket, filename);
+    }
+
+    /**
+     * @return the number of requests S3 answered with SlowDown, 0 if requests are not limited
+     */
+    public long getThrottledCount() {
+        ConcurrencyLimiter limiter = concurrencyLimiter;
+        return limiter == null ? 0 : limiter.getThrottledCount();
+    }
+
+    /**
+     * @return the number of requests failed after waiting queueTimeoutMillis for a slot, 0 if requests are
+     *      not limited
+     */
+    public long getQueueTimeoutCount() {
+        ConcurrencyLimiter limiter = concurrencyLimiter;
+        return limiter == null ? 0 : limiter.getQueueTimeoutCount();
+    }
+
+    synchronized ExecutorAsyncCloudStorage getAsync() {
+        if (async == null) {
+            async = new ExecutorAsyncCloudStorage(this, ExecutorAsyncCloudStorage.DEFAULT_MAX_IN_FLIGHT);
+        }
+        return async;
+    }
+
+    /**
+     * @return the executor running the copies of copyFiles, separate from the transfer executor which
+     *      runs their part copies
+     */
+    private synchronized ExecutorService getCopyExecutor() {
+        if (copyExecutor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(maxConcurrentCopies, maxConcurrentCopies,
+                    60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("s3-copy-%d").build());
+            executor.allowCoreThreadTimeOut(true);
+            copyExecutor = executor;
+        }
+        return copyExecutor;
+    }
+
+    /**
+     * @return the executor running the listings of listFilesParallel, separate from the transfer executor
+     *      as listings wait for their reader
+     */
+    private synchronized ExecutorService getListExecutor() {
+        if (listExecutor == null) {
+            listExecutor = Executors.newCachedThreadPool(
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("s3-list-%d").build());
+        }
+        return listExecutor;
+    }
+
+    synchronized ExecutorService getTransferExecutor() {
+        if (transferExecutor == null) {
+            int threads = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("s3-transfer-%d").build());
+            executor.allowCoreThreadTimeOut(true);
+            transferExecutor = executor;
+        }
+        return transferExecutor;
     }
 
     /**
@@ -69,24 +444,45 @@ public class S3CloudStorage implements CloudStorage {
      * 
      * @param fileUri the uri of file in s3://{region}/{bucket}/{filename} format
      * @return Map<String, String> with keys region, bucket and filename mapped to values in uri 
+     * @deprecated use parseFileLocation
      */
+    @Deprecated
     @Override
     public Map<String, String> parseFileUri(String fileUri) {
-        checkArgument(! Strings.isNullOrEmpty(fileUri), "file uri is empty");
-        
-        Matcher matcher = fileUriPattern.matcher(fileUri);
-        checkArgument(matcher.matches(), "fileUri %s not in s3://{region}/{bucket}/{filename} format", fileUri);
+        FileLocation location = parseFileLocation(fileUri);
         
         Map<String, String> fileInfo = new HashMap<String, String>();
-        fileInfo.put("region", matcher.group(1));
-        fileInfo.put("bucket", matcher.group(2));
-        fileInfo.put("filename", matcher.group(3));
+        fileInfo.put("region", location.getRegion());
+        fileInfo.put("bucket", location.getBucket());
+        fileInfo.put("filename", location.getKey());
         
         return fileInfo;
     }
     
     /**
-     * store file in AWS S3 bucket
+     * parse fileUri to its location. The filename may contain '/'.
+     * 
+     * @param fileUri the uri of file in s3://{region}/{bucket}/{filename} format
+     * @return the location with region, bucket and filename in uri 
+     */
+    @Override
+    public FileLocation parseFileLocation(String fileUri) {
+        FileLocation location = FileLocation.parse(fileUri);
+        checkArgument(FileLocation.S3_SCHEME.equals(location.getScheme()),
+                "fileUri %s not in s3://{region}/{bucket}/{filename} format", fileUri);
+        return location;
+    }
+    
+    private void checkLocation(FileLocation location) {
+        checkArgument(location != null, "location is null");
+        checkArgument(FileLocation.S3_SCHEME.equals(location.getScheme()) 
+                && region.name().equalsIgnoreCase(location.getRegion()), 
+                "fileUri %s not same as this storage region %s", location, region);
+    }
+    
+    /**
+     * store file in AWS S3 bucket. If multipart uploads are enabled files of unknown contentLength or 
+     * contentLength at or above the multipart threshold are uploaded in parallel parts.
      * 
      * @param bucket the S3 bucket name
      * @param is the file InputStream
@@ -109,22 +505,138 @@ public class S3CloudStorage implements CloudStorage {
             if (contentType != null) {
                 objMeta.setContentType(contentType);
             }
-            if (contentLength > 0) {
-                objMeta.setContentLength(contentLength);
-            }
             if (metaData != null) {
                 objMeta.setUserMetadata(metaData);
             }
             
-            s3.putObject(bucket, filename, is, objMeta);
+            PartBufferPool pool;
+            long multipartThreshold;
+            synchronized (this) {
+                pool = partBufferPool;
+                multipartThreshold = multipartConfig == null ? MultipartUploadConfig.DEFAULT_MULTIPART_THRESHOLD
+                        : multipartConfig.getMultipartThreshold();
+            }
+            if (pool != null && (contentLength <= 0 || contentLength >= multipartThreshold)) {
+                new S3MultipartUpload(s3, pool, getTransferExecutor(), bucket, filename, objMeta)
+                    .setRetryPolicy(retryPolicies.get(CloudOperation.STORE_FILE))
+                    .upload(is, contentLength);
+            } else {
+                if (contentLength > 0) {
+                    objMeta.setContentLength(contentLength);
+                }
+                putObject(bucket, filename, is, contentLength <= multipartThreshold ? contentLength : 0, objMeta);
+            }
+            
+            invalidateMetadata(bucket, filename);
+            return new FileLocation(region.name(), bucket, filename).toUri();
+        } catch (AmazonClientException ex) {
+            throw new CloudException(String.format("Error storing file %s type %s in bucket %s region %s",
+                    filename, contentType, bucket, region), ex);
+        }
+    }
+    
+    /**
+     * store a local file in AWS S3 bucket. If multipart uploads are enabled files at or above the multipart
+     * threshold are uploaded in parallel parts read by the S3 client straight from their range of the file,
+     * without part buffers.
+     * 
+     * @param bucket the S3 bucket name
+     * @param path the local file
+     * @param filename the name to store the file as
+     * @param contentType the contentType for file
+     * @param metaData additional meta data to attach to file
+     * @return file uri after storage in format s3://{region}/{bucket}/{filename}
+     * @throws CloudException on AWS Service/Client errors or if the local file can not be read
+     */
+    @Override
+    public String storeFileFrom(final String bucket, Path path, final String filename, String contentType,
+            Map<String, String> metaData) throws CloudException {
+        checkArgument(! Strings.isNullOrEmpty(bucket), "bucket is null");
+        checkArgument(path != null, "path is null");
+        checkArgument(! Strings.isNullOrEmpty(filename), "filename is null");
+        
+        final ObjectMetadata objMeta = new ObjectMetadata();
+        if (contentType != null) {
+            objMeta.setContentType(contentType);
+        }
+        if (metaData != null) {
+            objMeta.setUserMetadata(metaData);
+        }
+        
+        try {
+            final File file = path.toFile();
+            long contentLength = Files.size(path);
+            PartBufferPool pool;
+            long multipartThreshold;
+            synchronized (this) {
+                pool = partBufferPool;
+                multipartThreshold = multipartConfig == null ? 0 : multipartConfig.getMultipartThreshold();
+            }
+            if (pool != null && contentLength >= multipartThreshold) {
+                new S3MultipartUpload(s3, pool, getTransferExecutor(), bucket, filename, objMeta)
+                    .setRetryPolicy(retryPolicies.get(CloudOperation.STORE_FILE))
+                    .uploadFile(file, contentLength);
+            } else {
+                objMeta.setContentLength(contentLength);
+                execute(CloudOperation.STORE_FILE, bucket, filename, new S3Call<Void>() {
+                    @Override
+                    public Void call() {
+                        s3.putObject(new PutObjectRequest(bucket, filename, file).withMetadata(objMeta));
+                        return null;
+                    }
+                });
+            }
             
-            return String.format("s3://%s/%s/%s", region.name(), bucket, filename);
+            invalidateMetadata(bucket, filename);
+            return new FileLocation(region.name(), bucket, filename).toUri();
+        } catch (IOException ex) {
+            throw new CloudException(String.format("Error reading file %s to store in bucket %s", path, bucket), ex);
         } catch (AmazonClientException ex) {
             throw new CloudException(String.format("Error storing file %s type %s in bucket %s region %s",
                     filename, contentType, bucket, region), ex);
         }
     }
     
+    /**
+     * open a stream to store a file in AWS S3 bucket as it is written. If multipart uploads are enabled each
+     * part is uploaded on the transfer executor as soon as it is full while the caller writes the next, at
+     * most maxPartBuffers parts of all uploads are held in memory and writes block until a buffer is free.
+     * Files which fit in one part are stored with a single put on close. If multipart uploads are not enabled
+     * the file is written to a temporary file and stored on close.
+     * 
+     * @param bucket the S3 bucket name
+     * @param filename the name to store the file as
+     * @param contentType the contentType for file
+     * @param metaData additional meta data to attach to file
+     * @return the stream to write the file to, must be closed or aborted
+     * @throws CloudException if the temporary file can not be created
+     */
+    @Override
+    public CloudOutputStream openForWrite(String bucket, String filename, String contentType,
+            Map<String, String> metaData) throws CloudException {
+        checkArgument(! Strings.isNullOrEmpty(bucket), "bucket is null");
+        checkArgument(! Strings.isNullOrEmpty(filename), "filename is null");
+        
+        PartBufferPool pool;
+        synchronized (this) {
+            pool = partBufferPool;
+        }
+        if (pool == null) {
+            return new SpooledCloudOutputStream(this, bucket, filename, contentType, metaData);
+        }
+        
+        ObjectMetadata objMeta = new ObjectMetadata();
+        if (contentType != null) {
+            objMeta.setContentType(contentType);
+        }
+        if (metaData != null) {
+            objMeta.setUserMetadata(metaData);
+        }
+        return new S3OutputStream(bucket, filename,
+                new S3MultipartUpload(s3, pool, getTransferExecutor(), bucket, filename, objMeta)
+                    .setRetryPolicy(retryPolicies.get(CloudOperation.STORE_FILE)));
+    }
+    
     /**
      * fetch file using file uri. Care must be taken to consume and close the input stream from 
      * return object as soon as possible. the S3 client will keep http resources open
@@ -136,130 +648,832 @@ public class S3CloudStorage implements CloudStorage {
      */
     @Override
     public CloudFile getFile(String fileUri) throws CloudException {
-        Map<String, String> fileInfo = parseFileUri(fileUri);
-        
-        String fileregion = fileInfo.get("region");
-        String filebucket = fileInfo.get("bucket");
-        String filename = fileInfo.get("filename");
-        
-        checkArgument(region.name().equalsIgnoreCase(fileregion), "fileUri %s not same as this storage region %s",
-                fileUri, region);
-        
-        return getFile(filebucket, filename);
+        return getFile(parseFileLocation(fileUri));
     }
     
     /**
-     * fetch file using bucket and filename. Care must be taken to consume and close the input stream from 
-     * return object as soon as possible. the S3 client will keep http resources open
-     * until the input stream is consumed.
+     * fetch file using its location. Care must be taken to consume and close the input stream from 
+     * return object as soon as possible.
      * 
-     * @param bucket the bucket name
-     * @param filename the file name
+     * @param location the location of file in this storage region
      * @return the CloudFile object with file input stream and file metadata 
      * @throws CloudException on AWS Service/Client errors
      */
-    public CloudFile getFile(String bucket, String filename) throws CloudException {
-        checkArgument(! Strings.isNullOrEmpty(bucket), "bucket is null or empty");
-        checkArgument(! Strings.isNullOrEmpty(filename), "filename is null or empty");
-        
-        try {
-            S3Object object = s3.getObject(bucket, filename);
-            if (object == null) {
-                throw new CloudException(String.format("null object found for bucket %s filename %s in region %s",
-                        bucket, filename, region));
-            }
-            
-            return new CloudFile()
-                .setInputStream(object.getObjectContent())
-                .setContentType(object.getObjectMetadata().getContentType())
-                .setContentLength(object.getObjectMetadata().getContentLength())
-                .setMetaData(object.getObjectMetadata().getUserMetadata());
-        } catch (AmazonClientException ex) {
-            throw new CloudException(String.format("Error getting file for bucket %s filename %s in region %s",
-                    bucket, filename, region), ex);
-        }
+    @Override
+    public CloudFile getFile(FileLocation location) throws CloudException {
+        checkLocation(location);
+        return getFile(location.getBucket(), location.getKey(), null);
     }
     
     /**
-     * delete file using file uri in s3://{region}/{bucket}/{filename} format
+     * fetch part of a file using file uri. Care must be taken to consume and close the input stream from 
+     * return object as soon as possible.
      * 
-     * @param fileUri the uri of the file to delete
+     * @param fileUri the uri of file in s3://{region}/{bucket}/{filename} format
+     * @param range the byte range to read
+     * @return the CloudFile object with input stream of the range and file metadata 
      * @throws CloudException on AWS Service/Client errors
      */
     @Override
-    public void deleteFile(String fileUri) throws CloudException {
-        Map<String, String> fileInfo = parseFileUri(fileUri);
-        
-        String fileregion = fileInfo.get("region");
-        String filebucket = fileInfo.get("bucket");
-        String filename = fileInfo.get("filename");
-        
-        checkArgument(region.name().equalsIgnoreCase(fileregion), "fileUri %s not same as this storage region %s",
-                fileUri, region);
-        
-        deleteFile(filebucket, filename);
+    public CloudFile getFile(String fileUri, ByteRange range) throws CloudException {
+        return getFile(parseFileLocation(fileUri), range);
     }
     
     /**
-     * delete file using bucket and filename 
+     * fetch part of a file using its location. Care must be taken to consume and close the input stream
+     * from return object as soon as possible.
      * 
-     * @param bucket the bucket name
-     * @param filename the file name to delete
+     * @param location the location of file in this storage region
+     * @param range the byte range to read
+     * @return the CloudFile object with input stream of the range and file metadata 
      * @throws CloudException on AWS Service/Client errors
      */
-    public void deleteFile(String bucket, String filename) throws CloudException {
-        checkArgument(! Strings.isNullOrEmpty(bucket), "bucket is null or empty");
-        checkArgument(! Strings.isNullOrEmpty(filename), "filename is null or empty");
-        
-        try {
-            s3.deleteObject(bucket, filename);
-        } catch (AmazonClientException ex) {
-            throw new CloudException(String.format("Error getting file for bucket %s filename %s in region %s",
-                    bucket, filename, region), ex);
-        }
+    @Override
+    public CloudFile getFile(FileLocation location, ByteRange range) throws CloudException {
+        checkArgument(range != null, "range is null");
+        checkLocation(location);
+        return getFile(location.getBucket(), location.getKey(), range);
     }
     
     /**
-     * create url for a file which will expire in specified seconds.
+     * fetch file using file uri and write it to a local file, replacing its content. If chunked downloads
+     * are enabled the chunks are fetched in parallel and each written straight to its position in the file.
      * 
      * @param fileUri the uri of file in s3://{region}/{bucket}/{filename} format
-     * @param expirySeconds the number of seconds after which this url will expire
-     * @return the url
-     * @throws CloudException on AWS Service/Client errors
+     * @param path the local file to write
+     * @return the CloudFile object with file metadata and no input stream
+     * @throws CloudException on AWS Service/Client errors or if the local file can not be written
      */
     @Override
-    public URL getExpiringUrl(String fileUri, long expirySeconds) throws CloudException {
-        Map<String, String> fileInfo = parseFileUri(fileUri);
-        
-        String fileregion = fileInfo.get("region");
-        String filebucket = fileInfo.get("bucket");
-        String filename = fileInfo.get("filename");
-        
-        checkArgument(region.name().equalsIgnoreCase(fileregion), "fileUri %s not same as this storage region %s",
-                fileUri, region);
-        
-        return getExpiringUrl(filebucket, filename, expirySeconds);
+    public CloudFile getFileTo(String fileUri, Path path) throws CloudException {
+        checkArgument(path != null, "path is null");
+        try {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            try {
+                return getFileTo(fileUri, channel);
+            } finally {
+                channel.close();
+            }
+        } catch (IOException ex) {
+            throw new CloudException(String.format("Error writing file %s to %s", fileUri, path), ex);
+        }
     }
     
     /**
-     * create url for a file which will expire in specified seconds.
+     * fetch file using file uri and write it to a channel. If chunked downloads are enabled and the channel
+     * is a FileChannel the chunks are fetched in parallel and written at their position from the current
+     * position of the channel, which is moved to the end of the file written.
      * 
-     * @param bucket the bucket name
-     * @param filename the filename
-     * @param expirySeconds the number of seconds after which this url will expire
-     * @return the url
-     * @throws CloudException on AWS Service/Client errors
+     * @param fileUri the uri of file in s3://{region}/{bucket}/{filename} format
+     * @param channel the channel to write the file to, not closed
+     * @return the CloudFile object with file metadata and no input stream
+     * @throws CloudException on AWS Service/Client errors or if the channel can not be written
      */
-    public URL getExpiringUrl(String bucket, String filename, long expirySeconds) throws CloudException {
-        checkArgument(! Strings.isNullOrEmpty(bucket), "bucket is null or empty");
-        checkArgument(! Strings.isNullOrEmpty(filename), "filename is null or empty");
-        checkArgument(expirySeconds > 0, "expirySeconds %d is not postive for bucket %s filename %s", 
-                expirySeconds, bucket, filename);
+    @Override
+    public CloudFile getFileTo(String fileUri, WritableByteChannel channel) throws CloudException {
+        checkArgument(channel != null, "channel is null");
+        FileLocation location = parseFileLocation(fileUri);
+        checkLocation(location);
+        String bucket = location.getBucket();
+        String filename = location.getKey();
         
-        Date expiry = Instant.now().plus(Duration.standardSeconds(expirySeconds)).toDate();
+        ChunkedDownloadConfig chunked;
+        synchronized (this) {
+            chunked = channel instanceof FileChannel ? chunkedDownloadConfig : null;
+        }
         
         try {
-            return urlGenS3.generatePresignedUrl(bucket, filename, expiry, HttpMethod.GET);
+            GetObjectRequest request = new GetObjectRequest(bucket, filename);
+            if (chunked != null) {
+                request.setRange(0, chunked.getChunkSize() - 1);
+            }
+            S3Object object;
+            try {
+                object = getObject(CloudOperation.GET_FILE, request);
+            } catch (AmazonS3Exception ex) {
+                if (ex.getStatusCode() != 416) {
+                    throw ex;
+                }
+                //empty files can not be read with a range
+                chunked = null;
+                object = getObject(CloudOperation.GET_FILE, new GetObjectRequest(bucket, filename));
+            }
+            if (object == null) {
+                throw new CloudException(String.format("null object found for bucket %s filename %s in region %s",
+                        bucket, filename, region));
+            }
+            
+            ObjectMetadata objMeta = object.getObjectMetadata();
+            long totalLength = objMeta.getInstanceLength();
+            InputStream is = object.getObjectContent();
+            try {
+                if (chunked == null) {
+                    ChannelTransfers.copy(is, channel);
+                } else {
+                    FileChannel file = (FileChannel) channel;
+                    long base = file.position();
+                    long next = ChannelTransfers.copy(is, file, base);
+                    if (next < totalLength) {
+                        downloadChunks(bucket, filename, objMeta.getETag(), file, base, next, totalLength,
+                                chunked);
+                    }
+                    file.position(base + totalLength);
+                }
+            } finally {
+                is.close();
+            }
+            
+            return new CloudFile()
+                .setContentType(objMeta.getContentType())
+                .setContentLength(totalLength)
+                .setTotalLength(totalLength)
+                .setETag(objMeta.getETag())
+                .setMetaData(objMeta.getUserMetadata());
+        } catch (IOException ex) {
+            throw new CloudException(String.format("Error writing file for bucket %s filename %s to channel",
+                    bucket, filename), ex);
+        } catch (AmazonClientException ex) {
+            throw new CloudException(String.format("Error getting file for bucket %s filename %s in region %s",
+                    bucket, filename, region), ex);
+        }
+    }
+    
+    /**
+     * fetch the chunks of a file from first on in parallel, at most maxChunksAhead at a time, writing each
+     * at its position in the file
+     */
+    private void downloadChunks(String bucket, String filename, String eTag, final FileChannel file,
+            final long base, long first, long totalLength, ChunkedDownloadConfig chunked) throws CloudException {
+        final S3ChunkFetcher fetcher = new S3ChunkFetcher(bucket, filename, eTag);
+        CompletionService<Void> chunks = new ExecutorCompletionService<Void>(getTransferExecutor());
+        List<Future<Void>> submitted = new ArrayList<Future<Void>>();
+        int running = 0;
+        try {
+            for (long start = first; start < totalLength || running > 0; ) {
+                if (start < totalLength && running < chunked.getMaxChunksAhead()) {
+                    final long chunkFirst = start;
+                    final long chunkLast = Math.min(totalLength, start + chunked.getChunkSize()) - 1;
+                    submitted.add(chunks.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            fetcher.fetchTo(chunkFirst, chunkLast, file, base + chunkFirst);
+                            return null;
+                        }
+                    }));
+                    running++;
+                    start = chunkLast + 1;
+                } else {
+                    chunks.take().get();
+                    running--;
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CloudException(String.format("Interrupted downloading file %s", filename), ex);
+        } catch (ExecutionException ex) {
+            throw new CloudException(String.format("Error downloading chunk of bucket %s filename %s",
+                    bucket, filename), ex.getCause());
+        } finally {
+            //not interrupted, an interrupt would close the caller's channel
+            for (Future<Void> future : submitted) {
+                future.cancel(false);
+            }
+        }
+    }
+    
+    /**
+     * fetch file using file uri unless it still has the given eTag. Care must be taken to consume and
+     * close the input stream from return object as soon as possible.
+     * 
+     * @param fileUri the uri of file in s3://{region}/{bucket}/{filename} format
+     * @param eTag the eTag of the version of the file the caller has
+     * @return the CloudFile object with file input stream and file metadata, or null if not changed
+     * @throws CloudException on AWS Service/Client errors
+     */
+    @Override
+    public CloudFile getFileIfChanged(String fileUri, String eTag) throws CloudException {
+        checkArgument(! Strings.isNullOrEmpty(eTag), "eTag is null or empty");
+        FileLocation location = parseFileLocation(fileUri);
+        checkLocation(location);
+        
+        try {
+            S3Object object = getObject(CloudOperation.GET_FILE_IF_CHANGED,
+                    new GetObjectRequest(location.getBucket(), location.getKey()).withNonmatchingETagConstraint(eTag));
+            if (object == null) {
+                return null;
+            }
+            ObjectMetadata objMeta = object.getObjectMetadata();
+            CloudFile file = new CloudFile()
+                .setInputStream(object.getObjectContent())
+                .setContentType(objMeta.getContentType())
+                .setContentLength(objMeta.getContentLength())
+                .setTotalLength(objMeta.getContentLength())
+                .setETag(objMeta.getETag())
+                .setMetaData(objMeta.getUserMetadata());
+            StreamReleaser releaser = streamReleaser;
+            if (releaser != null) {
+                file.setInputStream(releaser.manage(file.getInputStream(),
+                        new S3Opener(location.getBucket(), location.getKey(), 0, file.getContentLength() - 1,
+                                file.getETag()),
+                        location.toUri(), file.getContentLength()));
+            }
+            return file;
+        } catch (AmazonClientException ex) {
+            throw new CloudException(String.format("Error getting changed file for bucket %s filename %s in region %s",
+                    location.getBucket(), location.getKey(), region), ex);
+        }
+    }
+    
+    /**
+     * fetch only the metadata of a file with a HEAD request, served from the metadata cache if enabled
+     * 
+     * @param fileUri the uri of file in s3://{region}/{bucket}/{filename} format
+     * @return the CloudFile object with file metadata and no input stream, or null if the file does not exist
+     * @throws CloudException on AWS Service/Client errors
+     */
+    @Override
+    public CloudFile getFileMetadata(String fileUri) throws CloudException {
+        FileLocation location = parseFileLocation(fileUri);
+        checkLocation(location);
+        return getFileMetadata(location.getBucket(), location.getKey());
+    }
+    
+    /**
+     * check if a file exists with a HEAD request, served from the metadata cache if enabled
+     * 
+     * @param fileUri the uri of file in s3://{region}/{bucket}/{filename} format
+     * @return true if the file exists
+     * @throws CloudException on AWS Service/Client errors
+     */
+    @Override
+    public boolean exists(String fileUri) throws CloudException {
+        return getFileMetadata(fileUri) != null;
+    }
+    
+    /**
+     * fetch only the metadata of a file with a HEAD request, served from the metadata cache if enabled
+     * 
+     * @param bucket the bucket name
+     * @param filename the file name
+     * @return the CloudFile object with file metadata and no input stream, or null if the file does not exist
+     * @throws CloudException on AWS Service/Client errors
+     */
+    public CloudFile getFileMetadata(final String bucket, final String filename) throws CloudException {
+        checkArgument(! Strings.isNullOrEmpty(bucket), "bucket is null or empty");
+        checkArgument(! Strings.isNullOrEmpty(filename), "filename is null or empty");
+        
+        MetadataCache cache = metadataCache;
+        if (cache != null) {
+            MetadataCache.Metadata cached = cache.get(bucket, filename);
+            if (cached != null) {
+                return cached.toCloudFile();
+            }
+        }
+        
+        CloudFile file;
+        try {
+            file = headObject(bucket, filename);
+        } catch (AmazonServiceException ex) {
+            if (ex.getStatusCode() != 404) {
+                throw new CloudException(String.format("Error getting metadata for bucket %s filename %s in region %s",
+                        bucket, filename, region), ex);
+            }
+            file = null;
+        } catch (AmazonClientException ex) {
+            throw new CloudException(String.format("Error getting metadata for bucket %s filename %s in region %s",
+                    bucket, filename, region), ex);
+        }
+        
+        if (cache != null) {
+            cache.put(bucket, filename, file);
+        }
+        return file;
+    }
+    
+    /**
+     * fetch the metadata of a file with a HEAD request, bypassing the metadata cache
+     */
+    private CloudFile headObject(final String bucket, final String filename) {
+        ObjectMetadata objMeta = execute(CloudOperation.GET_FILE_METADATA, bucket, filename,
+                new S3Call<ObjectMetadata>() {
+            @Override
+            public ObjectMetadata call() {
+                return s3.getObjectMetadata(bucket, filename);
+            }
+        });
+        return new CloudFile()
+            .setContentType(objMeta.getContentType())
+            .setContentLength(objMeta.getContentLength())
+            .setTotalLength(objMeta.getContentLength())
+            .setETag(objMeta.getETag())
+            .setMetaData(objMeta.getUserMetadata());
+    }
+    
+    private void invalidateMetadata(String bucket, String filename) {
+        MetadataCache cache = metadataCache;
+        if (cache != null) {
+            cache.invalidate(bucket, filename);
+        }
+    }
+    
+    /**
+     * fetch file using bucket and filename. Care must be taken to consume and close the input stream from 
+     * return object as soon as possible. the S3 client will keep http resources open
+     * until the input stream is consumed.
+     * 
+     * @param bucket the bucket name
+     * @param filename the file name
+     * @return the CloudFile object with file input stream and file metadata 
+     * @throws CloudException on AWS Service/Client errors
+     */
+    public CloudFile getFile(String bucket, String filename) throws CloudException {
+        return getFile(bucket, filename, null);
+    }
+    
+    /**
+     * fetch file or part of file using bucket and filename. If chunked downloads are enabled the file is
+     * fetched with parallel ranged GETs. Care must be taken to consume and close the input stream from 
+     * return object as soon as possible. With a StreamReleaseConfig set, a stream left unread gives its
+     * connection back after the idle timeout and reads the rest of the same version of the file when read
+     * again, failing if the file changed meanwhile.
+     * 
+     * @param bucket the bucket name
+     * @param filename the file name
+     * @param range the byte range to read, null to read the whole file
+     * @return the CloudFile object with file input stream and file metadata 
+     * @throws CloudException on AWS Service/Client errors
+     */
+    public CloudFile getFile(String bucket, String filename, ByteRange range) throws CloudException {
+        checkArgument(! Strings.isNullOrEmpty(bucket), "bucket is null or empty");
+        checkArgument(! Strings.isNullOrEmpty(filename), "filename is null or empty");
+        
+        StreamReleaser releaser = streamReleaser;
+        if (releaser == null) {
+            return fetch(bucket, filename, range, null);
+        }
+        if (releaser.isLazyOpen()) {
+            return getFileLazily(releaser, bucket, filename, range);
+        }
+        CloudFile file = fetch(bucket, filename, range, null);
+        long first = range == null ? 0 : range.getFirst();
+        return file.setInputStream(releaser.manage(file.getInputStream(),
+                new S3Opener(bucket, filename, first, first + file.getContentLength() - 1, file.getETag()),
+                bucket + "/" + filename, file.getContentLength()));
+    }
+    
+    /**
+     * fetch the metadata of a file, its stream sends the GET on the first read. The HEAD bypasses the
+     * metadata cache as the GET is pinned to its eTag, and a missing file fails with the 404 as cause like
+     * an eager getFile.
+     */
+    private CloudFile getFileLazily(StreamReleaser releaser, String bucket, String filename, ByteRange range)
+            throws CloudException {
+        CloudFile file;
+        try {
+            file = headObject(bucket, filename);
+        } catch (AmazonClientException ex) {
+            throw new CloudException(String.format("Error getting file for bucket %s filename %s in region %s",
+                    bucket, filename, region), ex);
+        }
+        long totalLength = file.getContentLength();
+        long first = range == null ? 0 : range.getFirst();
+        if (range != null && first >= totalLength) {
+            throw new CloudException(String.format("range %s not satisfiable for file of length %d",
+                    range, totalLength));
+        }
+        long last = range == null || ! range.hasLast() ? totalLength - 1 : Math.min(range.getLast(), totalLength - 1);
+        return file
+            .setContentLength(last - first + 1)
+            .setTotalLength(totalLength)
+            .setInputStream(releaser.manage(null, new S3Opener(bucket, filename, first, last, file.getETag()),
+                    bucket + "/" + filename, last - first + 1));
+    }
+    
+    /**
+     * fetch file or part of file
+     * 
+     * @param eTag the eTag the file must have, null for any
+     */
+    private CloudFile fetch(String bucket, String filename, ByteRange range, String eTag) throws CloudException {
+        ChunkedDownloadConfig chunked;
+        synchronized (this) {
+            chunked = chunkedDownloadConfig;
+        }
+        
+        long first = range == null ? 0 : range.getFirst();
+        long last = range == null || ! range.hasLast() ? -1 : range.getLast();
+        try {
+            GetObjectRequest request = new GetObjectRequest(bucket, filename);
+            if (chunked != null) {
+                long chunkLast = first + chunked.getChunkSize() - 1;
+                request.setRange(first, last >= 0 ? Math.min(last, chunkLast) : chunkLast);
+            } else if (range != null) {
+                request.setRange(first, last >= 0 ? last : Long.MAX_VALUE - 1);
+            }
+            if (eTag != null) {
+                request.withMatchingETagConstraint(eTag);
+            }
+            
+            S3Object object;
+            try {
+                object = getObject(CloudOperation.GET_FILE, request);
+            } catch (AmazonS3Exception ex) {
+                if (ex.getStatusCode() != 416 || range != null) {
+                    throw ex;
+                }
+                //empty files can not be read with a range
+                request = new GetObjectRequest(bucket, filename);
+                object = getObject(CloudOperation.GET_FILE, request);
+            }
+            if (object == null && eTag != null) {
+                throw new CloudException(String.format("file changed during download for bucket %s filename %s",
+                        bucket, filename));
+            }
+            if (object == null) {
+                throw new CloudException(String.format("null object found for bucket %s filename %s in region %s",
+                        bucket, filename, region));
+            }
+            
+            ObjectMetadata objMeta = object.getObjectMetadata();
+            long totalLength = objMeta.getInstanceLength();
+            long contentLength = objMeta.getContentLength();
+            InputStream is = object.getObjectContent();
+            if (chunked != null && request.getRange() != null) {
+                long end = last >= 0 ? Math.min(last, totalLength - 1) : totalLength - 1;
+                long next = first + contentLength;
+                if (next <= end) {
+                    is = new ChunkedInputStream(is, new S3ChunkFetcher(bucket, filename, objMeta.getETag()),
+                            getTransferExecutor(), next, end, chunked.getChunkSize(), chunked.getMaxChunksAhead());
+                    contentLength = end - first + 1;
+                }
+            }
+            
+            return new CloudFile()
+                .setInputStream(is)
+                .setContentType(objMeta.getContentType())
+                .setContentLength(contentLength)
+                .setTotalLength(totalLength)
+                .setETag(objMeta.getETag())
+                .setMetaData(objMeta.getUserMetadata());
+        } catch (AmazonClientException ex) {
+            throw new CloudException(String.format("Error getting file for bucket %s filename %s range %s in region %s",
+                    bucket, filename, range, region), ex);
+        }
+    }
+    
+    /**
+     * delete file using file uri in s3://{region}/{bucket}/{filename} format
+     * 
+     * @param fileUri the uri of the file to delete
+     * @throws CloudException on AWS Service/Client errors
+     */
+    @Override
+    public void deleteFile(String fileUri) throws CloudException {
+        deleteFile(parseFileLocation(fileUri));
+    }
+    
+    /**
+     * delete file using its location
+     * 
+     * @param location the location of the file to delete in this storage region
+     * @throws CloudException on AWS Service/Client errors
+     */
+    @Override
+    public void deleteFile(FileLocation location) throws CloudException {
+        checkLocation(location);
+        deleteFile(location.getBucket(), location.getKey());
+    }
+    
+    /**
+     * delete file using bucket and filename 
+     * 
+     * @param bucket the bucket name
+     * @param filename the file name to delete
+     * @throws CloudException on AWS Service/Client errors
+     */
+    public void deleteFile(final String bucket, final String filename) throws CloudException {
+        checkArgument(! Strings.isNullOrEmpty(bucket), "bucket is null or empty");
+        checkArgument(! Strings.isNullOrEmpty(filename), "filename is null or empty");
+        
+        try {
+            execute(CloudOperation.DELETE_FILE, bucket, filename, new S3Call<Void>() {
+                @Override
+                public Void call() {
+                    s3.deleteObject(bucket, filename);
+                    return null;
+                }
+            });
+            invalidateMetadata(bucket, filename);
+        } catch (AmazonClientException ex) {
+            throw new CloudException(String.format("Error getting file for bucket %s filename %s in region %s",
+                    bucket, filename, region), ex);
+        }
+    }
+    
+    /**
+     * delete many files using file uris in s3://{region}/{bucket}/{filename} format. Files are grouped by
+     * bucket and deleted with multi-object delete requests of up to MAX_DELETE_KEYS keys, run in parallel
+     * on the transfer executor.
+     * 
+     * @param fileUris the uris of the files to delete
+     * @return the uris deleted and the uris failed with their error
+     * @throws CloudException if interrupted while waiting for the deletes
+     */
+    @Override
+    public BatchResult deleteFiles(Collection<String> fileUris) throws CloudException {
+        checkArgument(fileUris != null, "fileUris is null");
+        
+        BatchResult result = new BatchResult();
+        Map<String, Map<String, String>> bucketKeys = new LinkedHashMap<String, Map<String, String>>();
+        for (String fileUri : new LinkedHashSet<String>(fileUris)) {
+            try {
+                FileLocation location = parseFileLocation(fileUri);
+                checkLocation(location);
+                
+                Map<String, String> keys = bucketKeys.get(location.getBucket());
+                if (keys == null) {
+                    keys = new LinkedHashMap<String, String>();
+                    bucketKeys.put(location.getBucket(), keys);
+                }
+                keys.put(location.getKey(), fileUri);
+            } catch (IllegalArgumentException ex) {
+                result.addFailed(fileUri, new CloudException(ex.getMessage(), ex));
+            }
+        }
+        
+        List<Future<BatchResult>> batches = new ArrayList<Future<BatchResult>>();
+        for (Map.Entry<String, Map<String, String>> entry : bucketKeys.entrySet()) {
+            for (List<Map.Entry<String, String>> batch 
+                    : Iterables.partition(entry.getValue().entrySet(), MAX_DELETE_KEYS)) {
+                batches.add(getTransferExecutor().submit(new DeleteBatch(entry.getKey(), batch)));
+            }
+        }
+        
+        try {
+            for (Future<BatchResult> batch : batches) {
+                result.addAll(batch.get());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CloudException("Interrupted deleting files", ex);
+        } catch (ExecutionException ex) {
+            throw new CloudException("Error deleting files", ex.getCause());
+        }
+        return result;
+    }
+    
+    /**
+     * copy a file with S3 server side copy, the bytes do not pass through the client. Files larger than
+     * MAX_SINGLE_COPY_SIZE are copied with parallel part copies on the transfer executor.
+     * 
+     * @param srcUri the uri of the file to copy in s3://{region}/{bucket}/{filename} format, in the region
+     *      of this storage
+     * @param dstBucket the S3 bucket name to copy to
+     * @param dstFilename the name to store the copy as
+     * @return file uri of the copy in format s3://{region}/{bucket}/{filename}
+     * @throws CloudException on AWS Service/Client errors
+     */
+    @Override
+    public String copyFile(String srcUri, String dstBucket, String dstFilename) throws CloudException {
+        FileLocation src = parseFileLocation(srcUri);
+        checkLocation(src);
+        return copyFile(src.getBucket(), src.getKey(), dstBucket, dstFilename);
+    }
+    
+    /**
+     * copy a file with S3 server side copy, see copyFile(srcUri, dstBucket, dstFilename)
+     * 
+     * @param srcBucket the bucket of the file to copy
+     * @param srcFilename the name of the file to copy
+     * @param dstBucket the S3 bucket name to copy to
+     * @param dstFilename the name to store the copy as
+     * @return file uri of the copy in format s3://{region}/{bucket}/{filename}
+     * @throws CloudException on AWS Service/Client errors
+     */
+    public String copyFile(final String srcBucket, final String srcFilename, final String dstBucket,
+            final String dstFilename) throws CloudException {
+        checkArgument(! Strings.isNullOrEmpty(srcBucket), "srcBucket is null or empty");
+        checkArgument(! Strings.isNullOrEmpty(srcFilename), "srcFilename is null or empty");
+        checkArgument(! Strings.isNullOrEmpty(dstBucket), "dstBucket is null or empty");
+        checkArgument(! Strings.isNullOrEmpty(dstFilename), "dstFilename is null or empty");
+        
+        try {
+            ObjectMetadata srcMeta = execute(CloudOperation.COPY_FILE, srcBucket, srcFilename,
+                    new S3Call<ObjectMetadata>() {
+                @Override
+                public ObjectMetadata call() {
+                    return s3.getObjectMetadata(srcBucket, srcFilename);
+                }
+            });
+            if (srcMeta.getContentLength() > MAX_SINGLE_COPY_SIZE) {
+                ObjectMetadata objMeta = new ObjectMetadata();
+                if (srcMeta.getContentType() != null) {
+                    objMeta.setContentType(srcMeta.getContentType());
+                }
+                if (srcMeta.getContentEncoding() != null) {
+                    objMeta.setContentEncoding(srcMeta.getContentEncoding());
+                }
+                if (srcMeta.getCacheControl() != null) {
+                    objMeta.setCacheControl(srcMeta.getCacheControl());
+                }
+                if (srcMeta.getContentDisposition() != null) {
+                    objMeta.setContentDisposition(srcMeta.getContentDisposition());
+                }
+                objMeta.setUserMetadata(srcMeta.getUserMetadata());
+                new S3MultipartUpload(s3, null, getTransferExecutor(), dstBucket, dstFilename, objMeta)
+                    .copy(srcBucket, srcFilename, srcMeta.getContentLength(), COPY_PART_SIZE);
+            } else {
+                execute(CloudOperation.COPY_FILE, dstBucket, dstFilename, new S3Call<Void>() {
+                    @Override
+                    public Void call() {
+                        s3.copyObject(new CopyObjectRequest(srcBucket, srcFilename, dstBucket, dstFilename));
+                        return null;
+                    }
+                });
+            }
+            
+            invalidateMetadata(dstBucket, dstFilename);
+            return new FileLocation(region.name(), dstBucket, dstFilename).toUri();
+        } catch (AmazonClientException ex) {
+            throw new CloudException(String.format("Error copying file %s in bucket %s to %s in bucket %s region %s",
+                    srcFilename, srcBucket, dstFilename, dstBucket, region), ex);
+        }
+    }
+    
+    /**
+     * move a file with S3 server side copy and a delete of the source, S3 has no rename
+     * 
+     * @param srcUri the uri of the file to move in s3://{region}/{bucket}/{filename} format, in the region
+     *      of this storage
+     * @param dstBucket the S3 bucket name to move to
+     * @param dstFilename the name to store the file as
+     * @return file uri after the move in format s3://{region}/{bucket}/{filename}
+     * @throws CloudException on AWS Service/Client errors, the source is not deleted if the copy failed
+     */
+    @Override
+    public String moveFile(String srcUri, String dstBucket, String dstFilename) throws CloudException {
+        FileLocation src = parseFileLocation(srcUri);
+        checkLocation(src);
+        if (src.getBucket().equals(dstBucket) && src.getKey().equals(dstFilename)) {
+            return src.toUri();
+        }
+        String fileUri = copyFile(src.getBucket(), src.getKey(), dstBucket, dstFilename);
+        deleteFile(src.getBucket(), src.getKey());
+        return fileUri;
+    }
+    
+    /**
+     * copy many files with S3 server side copy, at most maxConcurrentCopies at once
+     * 
+     * @param fileUris the uris of the files to copy mapped to the uris to copy them to, all in the region
+     *      of this storage
+     * @return the source uris copied and the source uris failed with their error
+     * @throws CloudException if interrupted while waiting for the copies
+     */
+    @Override
+    public BatchResult copyFiles(Map<String, String> fileUris) throws CloudException {
+        checkArgument(fileUris != null, "fileUris is null");
+        
+        BatchResult result = new BatchResult();
+        Map<String, Future<String>> copies = new LinkedHashMap<String, Future<String>>();
+        for (Map.Entry<String, String> entry : fileUris.entrySet()) {
+            final FileLocation src;
+            final FileLocation dst;
+            try {
+                src = parseFileLocation(entry.getKey());
+                dst = parseFileLocation(entry.getValue());
+                checkLocation(src);
+                checkLocation(dst);
+            } catch (IllegalArgumentException ex) {
+                result.addFailed(entry.getKey(), new CloudException(ex.getMessage(), ex));
+                continue;
+            }
+            copies.put(entry.getKey(), getCopyExecutor().submit(new Callable<String>() {
+                @Override
+                public String call() throws CloudException {
+                    return copyFile(src.getBucket(), src.getKey(), dst.getBucket(), dst.getKey());
+                }
+            }));
+        }
+        
+        try {
+            for (Map.Entry<String, Future<String>> copy : copies.entrySet()) {
+                try {
+                    copy.getValue().get();
+                    result.addSucceeded(copy.getKey());
+                } catch (ExecutionException ex) {
+                    result.addFailed(copy.getKey(), ex.getCause() instanceof CloudException 
+                            ? (CloudException) ex.getCause() : new CloudException(ex.getCause()));
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            for (Future<String> copy : copies.values()) {
+                copy.cancel(false);
+            }
+            throw new CloudException("Interrupted copying files", ex);
+        }
+        return result;
+    }
+    
+    /**
+     * list files in an S3 bucket whose names start with prefix. The next page of the listing is fetched
+     * on the transfer executor while the caller reads the current one.
+     * 
+     * @param bucket the S3 bucket name
+     * @param prefix the filename prefix, null or empty to list all files
+     * @return iterator over the files in key order, close it if not read to the end
+     * @throws CloudException on AWS Service/Client errors fetching the first page
+     */
+    @Override
+    public CloudFileIterator listFiles(String bucket, String prefix) throws CloudException {
+        checkArgument(! Strings.isNullOrEmpty(bucket), "bucket is null or empty");
+        
+        return new S3ListingIterator(s3, getTransferExecutor(), region.name(), new ListObjectsRequest()
+            .withBucketName(bucket)
+            .withPrefix(Strings.emptyToNull(prefix)));
+    }
+    
+    /**
+     * list files in an S3 bucket whose names start with prefix, splitting the keyspace at the first 
+     * delimiter after the prefix and listing the resulting prefixes in parallel on a listing executor.
+     * Use for large buckets with keys spread over many prefixes, e.g. {userid}/{filename}.
+     * 
+     * @param bucket the S3 bucket name
+     * @param prefix the filename prefix, null or empty to list all files
+     * @param delimiter the delimiter to split the keyspace at, e.g. /
+     * @param parallelism the number of prefixes listed at a time
+     * @return iterator over the files in no particular order, close it if not read to the end
+     */
+    public CloudFileIterator listFilesParallel(String bucket, String prefix, String delimiter, int parallelism) {
+        checkArgument(! Strings.isNullOrEmpty(bucket), "bucket is null or empty");
+        checkArgument(! Strings.isNullOrEmpty(delimiter), "delimiter is null or empty");
+        checkArgument(parallelism > 0, "parallelism %s is not positive", parallelism);
+        
+        return new S3ParallelListingIterator(s3, getListExecutor(), region.name(), bucket, 
+                Strings.emptyToNull(prefix), delimiter, parallelism, LIST_QUEUE_SIZE);
+    }
+    
+    /**
+     * create url for a file which will expire in specified seconds.
+     * 
+     * @param fileUri the uri of file in s3://{region}/{bucket}/{filename} format
+     * @param expirySeconds the number of seconds after which this url will expire
+     * @return the url
+     * @throws CloudException on AWS Service/Client errors
+     */
+    @Override
+    public URL getExpiringUrl(String fileUri, long expirySeconds) throws CloudException {
+        return getExpiringUrl(parseFileLocation(fileUri), expirySeconds);
+    }
+    
+    /**
+     * create url for a file which will expire in specified seconds.
+     * 
+     * @param location the location of file in this storage region
+     * @param expirySeconds the number of seconds after which this url will expire
+     * @return the url
+     * @throws CloudException on AWS Service/Client errors
+     */
+    @Override
+    public URL getExpiringUrl(FileLocation location, long expirySeconds) throws CloudException {
+        checkLocation(location);
+        return getExpiringUrl(location.getBucket(), location.getKey(), expirySeconds);
+    }
+    
+    /**
+     * create url for a file which will expire in specified seconds. If a url cache is set a cached url
+     * may be returned which expires sooner, but never later, than requested.
+     * 
+     * @param bucket the bucket name
+     * @param filename the filename
+     * @param expirySeconds the number of seconds after which this url will expire
+     * @return the url
+     * @throws CloudException on AWS Service/Client errors
+     */
+    public URL getExpiringUrl(String bucket, String filename, long expirySeconds) throws CloudException {
+        checkArgument(! Strings.isNullOrEmpty(bucket), "bucket is null or empty");
+        checkArgument(! Strings.isNullOrEmpty(filename), "filename is null or empty");
+        checkArgument(expirySeconds > 0, "expirySeconds %d is not postive for bucket %s filename %s", 
+                expirySeconds, bucket, filename);
+        
+        PresignedUrlCache cache = presignedUrlCache;
+        long now = System.currentTimeMillis();
+        if (cache != null) {
+            URL url = cache.get(bucket, filename, HttpMethod.GET, expirySeconds, now);
+            if (url != null) {
+                return url;
+            }
+        }
+        
+        long expiresMillis = now + expirySeconds * 1000;
+        try {
+            URL url = urlGenS3.generatePresignedUrl(bucket, filename, new Date(expiresMillis), HttpMethod.GET);
+            if (cache != null) {
+                cache.put(bucket, filename, HttpMethod.GET, url, expiresMillis);
+            }
+            return url;
         } catch (AmazonClientException ex) {
             throw new CloudException(
                     String.format("Error fetching expiring url for bucket %s filename %s in region %s",
@@ -267,4 +1481,339 @@ public class S3CloudStorage implements CloudStorage {
         }
     }
     
+    /**
+     * put an object with a single request. Retried as set for STORE_FILE if its length is known, which
+     * callers only pass for lengths up to the multipart threshold, and the stream supports mark and reset.
+     * The S3 client closes the stream it is given, so it gets a stream that can not be closed or marked
+     * and the stream of the caller is reset for the next attempt.
+     * 
+     * @param retryLength the length of the object if it may be retried, 0 or less to send it once
+     */
+    private void putObject(final String bucket, final String filename, final InputStream is, long retryLength,
+            final ObjectMetadata objMeta) {
+        RetryPolicy policy = retryPolicies.get(CloudOperation.STORE_FILE);
+        if (policy == null || retryLength <= 0 || retryLength >= Integer.MAX_VALUE || ! is.markSupported()) {
+            execute(CloudOperation.STORE_FILE, null, bucket, filename, new S3Call<Void>() {
+                @Override
+                public Void call() {
+                    s3.putObject(bucket, filename, is, objMeta);
+                    return null;
+                }
+            });
+            return;
+        }
+        is.mark((int) retryLength + 1);
+        execute(CloudOperation.STORE_FILE, policy, bucket, filename, new S3Call<Void>() {
+            private boolean sent;
+            
+            @Override
+            public Void call() {
+                if (sent) {
+                    try {
+                        is.reset();
+                    } catch (IOException ex) {
+                        throw new AmazonClientException("Error resetting stream to retry put", ex);
+                    }
+                }
+                sent = true;
+                s3.putObject(bucket, filename, new UnclosableInputStream(is), objMeta);
+                return null;
+            }
+        });
+    }
+    
+    /**
+     * get an object, hedged if hedging is enabled and retried as set for the operation
+     */
+    private S3Object getObject(CloudOperation operation, final GetObjectRequest request) {
+        return execute(operation, request.getBucketName(), request.getKey(), new S3Call<S3Object>() {
+            @Override
+            public S3Object call() {
+                S3HedgedReader reader = hedgedReader;
+                return reader == null ? s3.getObject(request) : reader.getObject(request);
+            }
+        });
+    }
+    
+    /**
+     * run an S3 request, retrying it with decorrelated jitter as set for the operation
+     */
+    private <T> T execute(CloudOperation operation, String bucket, String key, S3Call<T> call) {
+        return execute(operation, retryPolicies.get(operation), bucket, key, call);
+    }
+    
+    /**
+     * run an S3 request, retrying it with decorrelated jitter as set by policy. Each attempt waits for a slot
+     * under the concurrency limit of the bucket and key if concurrency is limited, but not the delays between
+     * attempts.
+     */
+    private <T> T execute(CloudOperation operation, RetryPolicy policy, String bucket, String key, S3Call<T> call) {
+        long delayMillis = 0;
+        for (int attempt = 1; ; attempt++) {
+            ConcurrencyLimiter limiter = concurrencyLimiter;
+            ConcurrencyLimiter.Permit permit = limiter == null ? null : limiter.acquire(operation, bucket, key);
+            AmazonClientException failure = null;
+            try {
+                return call.call();
+            } catch (AmazonClientException ex) {
+                failure = ex;
+            } finally {
+                if (permit != null) {
+                    permit.release(failure);
+                }
+            }
+            if (policy == null || attempt >= policy.getMaxAttempts() || ! policy.isRetryable(failure)) {
+                throw failure;
+            }
+            delayMillis = policy.nextDelayMillis(delayMillis);
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw failure;
+            }
+        }
+    }
+    
+    @Override
+    public ListenableFuture<String> storeFileAsync(String bucket, InputStream is, String filename,
+            String contentType, long contentLength, Map<String, String> metaData) {
+        return getAsync().storeFileAsync(bucket, is, filename, contentType, contentLength, metaData);
+    }
+    
+    @Override
+    public ListenableFuture<CloudFile> getFileAsync(String fileUri) {
+        return getAsync().getFileAsync(fileUri);
+    }
+    
+    @Override
+    public ListenableFuture<Void> deleteFileAsync(String fileUri) {
+        return getAsync().deleteFileAsync(fileUri);
+    }
+    
+    @Override
+    public ListenableFuture<URL> getExpiringUrlAsync(String fileUri, long expirySeconds) {
+        return getAsync().getExpiringUrlAsync(fileUri, expirySeconds);
+    }
+    
+    /**
+     * a single S3 request, run again on retries
+     */
+    private interface S3Call<T> {
+        
+        T call() throws AmazonClientException;
+    }
+    
+    /**
+     * stream of openForWrite sending full parts as the caller writes
+     */
+    private class S3OutputStream extends CloudOutputStream {
+
+        private final String bucket;
+        private final String filename;
+        private final S3MultipartUpload upload;
+
+        S3OutputStream(String bucket, String filename, S3MultipartUpload upload) {
+            this.bucket = bucket;
+            this.filename = filename;
+            this.upload = upload;
+        }
+
+        @Override
+        protected void writeBytes(byte[] b, int off, int len) throws IOException {
+            try {
+                upload.write(b, off, len);
+            } catch (CloudException ex) {
+                throw new IOException(ex.getMessage(), ex);
+            }
+        }
+
+        @Override
+        protected String complete() throws CloudException {
+            upload.finish();
+            invalidateMetadata(bucket, filename);
+            return new FileLocation(region.name(), bucket, filename).toUri();
+        }
+
+        @Override
+        protected void discard() {
+            upload.cancel();
+        }
+    }
+    
+    /**
+     * deletes one multi-object delete batch of a bucket, reports failures instead of throwing them
+     */
+    private class DeleteBatch implements Callable<BatchResult> {
+        
+        private final String bucket;
+        private final List<Map.Entry<String, String>> keyUris;
+        
+        DeleteBatch(String bucket, List<Map.Entry<String, String>> keyUris) {
+            this.bucket = bucket;
+            this.keyUris = keyUris;
+        }
+        
+        @Override
+        public BatchResult call() {
+            List<KeyVersion> keys = new ArrayList<KeyVersion>(keyUris.size());
+            for (Map.Entry<String, String> keyUri : keyUris) {
+                keys.add(new KeyVersion(keyUri.getKey()));
+            }
+            
+            BatchResult result = new BatchResult();
+            Map<String, DeleteError> errors = new HashMap<String, DeleteError>();
+            final DeleteObjectsRequest request = new DeleteObjectsRequest(bucket).withKeys(keys).withQuiet(true);
+            try {
+                execute(CloudOperation.DELETE_FILES, bucket, null, new S3Call<Void>() {
+                    @Override
+                    public Void call() {
+                        s3.deleteObjects(request);
+                        return null;
+                    }
+                });
+            } catch (MultiObjectDeleteException ex) {
+                for (DeleteError error : ex.getErrors()) {
+                    errors.put(error.getKey(), error);
+                }
+            } catch (AmazonClientException ex) {
+                CloudException error = new CloudException(String.format(
+                        "Error deleting %d files in bucket %s in region %s", keys.size(), bucket, region), ex);
+                for (Map.Entry<String, String> keyUri : keyUris) {
+                    result.addFailed(keyUri.getValue(), error);
+                }
+                return result;
+            }
+            
+            for (Map.Entry<String, String> keyUri : keyUris) {
+                DeleteError error = errors.get(keyUri.getKey());
+                if (error == null) {
+                    invalidateMetadata(bucket, keyUri.getKey());
+                    result.addSucceeded(keyUri.getValue());
+                } else {
+                    result.addFailed(keyUri.getValue(), new CloudException(String.format(
+                            "Error deleting file for bucket %s filename %s in region %s: %s %s",
+                            bucket, keyUri.getKey(), region, error.getCode(), error.getMessage())));
+                }
+            }
+            return result;
+        }
+    }
+    
+    /**
+     * fetches chunks of one version of a file, fails if the file changes during the download
+     */
+    private class S3ChunkFetcher implements ChunkedInputStream.ChunkFetcher {
+        
+        private final String bucket;
+        private final String filename;
+        private final String eTag;
+        
+        S3ChunkFetcher(String bucket, String filename, String eTag) {
+            this.bucket = bucket;
+            this.filename = filename;
+            this.eTag = eTag;
+        }
+        
+        @Override
+        public byte[] fetch(long first, long last) throws Exception {
+            InputStream is = open(first, last);
+            try {
+                byte[] chunk = new byte[(int) (last - first + 1)];
+                ByteStreams.readFully(is, chunk);
+                return chunk;
+            } finally {
+                is.close();
+            }
+        }
+        
+        /**
+         * fetch a chunk and write it to a file at position
+         */
+        void fetchTo(long first, long last, FileChannel file, long position) throws Exception {
+            InputStream is = open(first, last);
+            try {
+                long written = ChannelTransfers.copy(is, file, position);
+                if (written != last - first + 1) {
+                    throw new CloudException(String.format("read %d bytes of range %d-%d of bucket %s filename %s",
+                            written, first, last, bucket, filename));
+                }
+            } finally {
+                is.close();
+            }
+        }
+        
+        private InputStream open(long first, long last) throws CloudException {
+            GetObjectRequest request = new GetObjectRequest(bucket, filename).withRange(first, last);
+            if (eTag != null) {
+                request.withMatchingETagConstraint(eTag);
+            }
+            S3Object object = getObject(CloudOperation.GET_FILE, request);
+            if (object == null) {
+                throw new CloudException(String.format("file changed during download for bucket %s filename %s",
+                        bucket, filename));
+            }
+            return object.getObjectContent();
+        }
+    }
+    
+    /**
+     * opens the rest of a released file stream with a ranged GET of the same version of the file
+     */
+    private class S3Opener implements StreamReleaser.Opener {
+        
+        private final String bucket;
+        private final String filename;
+        private final long first;
+        private final long last;
+        private final String eTag;
+        
+        S3Opener(String bucket, String filename, long first, long last, String eTag) {
+            this.bucket = bucket;
+            this.filename = filename;
+            this.first = first;
+            this.last = last;
+            this.eTag = eTag;
+        }
+        
+        @Override
+        public InputStream open(long position) throws IOException {
+            try {
+                return fetch(bucket, filename, ByteRange.of(first + position, last), eTag).getInputStream();
+            } catch (CloudException ex) {
+                throw new IOException(ex.getMessage(), ex);
+            }
+        }
+    }
+    
+    /**
+     * stream given to the S3 client for a put that may be retried, close and mark do not reach the stream
+     * of the caller
+     */
+    private static class UnclosableInputStream extends FilterInputStream {
+        
+        UnclosableInputStream(InputStream in) {
+            super(in);
+        }
+        
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+        
+        @Override
+        public void mark(int readlimit) {
+            //do nothing
+        }
+        
+        @Override
+        public void reset() throws IOException {
+            throw new IOException("mark not supported");
+        }
+        
+        @Override
+        public void close() {
+            //do nothing, the caller closes the stream
+        }
+    }
 }
@@ -0,0 +1,220 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * sends GETs for S3CloudStorage, hedging those slower than the configured percentile of earlier GETs.
+ * The response that loses the race is aborted when it arrives so its connection is not kept open.
+ */
+class S3HedgedReader {
+
+    /** hedge budget is kept in thousandths of a hedge */
+    private static final long HEDGE_COST = 1000;
+    /** the most hedges that can be saved up while GETs are fast */
+    private static final long MAX_BUDGET = 10 * HEDGE_COST;
+    /** the number of GETs timed between updates of the delay */
+    private static final int DELAY_UPDATE_INTERVAL = 64;
+
+    private final AmazonS3 s3;
+    private final ListeningExecutorService executor;
+    private final double delayPercentile;
+    private final long minDelayNanos;
+    private final long maxDelayNanos;
+    private final int minSamples;
+    private final long budgetPerGet;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong budget = new AtomicLong(HEDGE_COST);
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+    private volatile long delayNanos;
+
+    S3HedgedReader(AmazonS3 s3, ExecutorService executor, HedgedReadConfig config) {
+        this.s3 = s3;
+        this.executor = MoreExecutors.listeningDecorator(executor);
+        this.delayPercentile = config.getDelayPercentile();
+        this.minDelayNanos = TimeUnit.MILLISECONDS.toNanos(config.getMinDelayMillis());
+        this.maxDelayNanos = Math.max(minDelayNanos, TimeUnit.MILLISECONDS.toNanos(config.getMaxDelayMillis()));
+        this.minSamples = config.getMinSamples();
+        this.budgetPerGet = Math.round(config.getBudgetPercent() / 100 * HEDGE_COST);
+        this.delayNanos = maxDelayNanos;
+    }
+
+    /**
+     * @return the latencies of GETs until the response started, hedges included
+     */
+    LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * @return the number of hedged GETs sent
+     */
+    long getHedgeCount() {
+        return hedges.get();
+    }
+
+    /**
+     * @return the number of hedged GETs that answered before the GET they hedged
+     */
+    long getHedgeWinCount() {
+        return hedgeWins.get();
+    }
+
+    /**
+     * get an object, sending a second GET if the first is slow
+     *
+     * @param request the request, not used after this returns
+     * @return the object, null if a constraint on the request was not met
+     * @throws AmazonClientException the error of the last GET to fail if all failed
+     */
+    S3Object getObject(GetObjectRequest request) throws AmazonClientException {
+        addBudget();
+        Race race = new Race();
+        race.start(copyOf(request), false);
+        try {
+            try {
+                return race.winner.get(delayNanos, TimeUnit.NANOSECONDS);
+            } catch (TimeoutException ex) {
+                if (! tryHedge()) {
+                    return race.winner.get();
+                }
+            }
+            hedges.incrementAndGet();
+            race.start(copyOf(request), true);
+            return race.winner.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            race.cancel();
+            throw new AmazonClientException("Interrupted waiting for GET of " + request.getKey(), ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof AmazonClientException) {
+                throw (AmazonClientException) ex.getCause();
+            }
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new AmazonClientException("Error in GET of " + request.getKey(), ex.getCause());
+        }
+    }
+
+    private void addBudget() {
+        long current;
+        while ((current = budget.get()) < MAX_BUDGET
+                && ! budget.compareAndSet(current, Math.min(MAX_BUDGET, current + budgetPerGet))) {
+            // retry
+        }
+    }
+
+    private boolean tryHedge() {
+        long current;
+        while ((current = budget.get()) >= HEDGE_COST) {
+            if (budget.compareAndSet(current, current - HEDGE_COST)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void record(long nanos) {
+        latency.record(nanos);
+        long count = latency.getCount();
+        if (count >= minSamples && count % DELAY_UPDATE_INTERVAL == 0) {
+            long percentile = latency.getValueAtPercentile(delayPercentile);
+            delayNanos = Math.max(minDelayNanos, Math.min(maxDelayNanos, percentile));
+        }
+    }
+
+    static GetObjectRequest copyOf(GetObjectRequest request) {
+        GetObjectRequest copy = new GetObjectRequest(request.getBucketName(), request.getKey(),
+                request.getVersionId());
+        long[] range = request.getRange();
+        if (range != null) {
+            copy.setRange(range[0], range[1]);
+        }
+        if (request.getMatchingETagConstraints() != null) {
+            copy.setMatchingETagConstraints(new ArrayList<String>(request.getMatchingETagConstraints()));
+        }
+        if (request.getNonmatchingETagConstraints() != null) {
+            copy.setNonmatchingETagConstraints(new ArrayList<String>(request.getNonmatchingETagConstraints()));
+        }
+        copy.setModifiedSinceConstraint(request.getModifiedSinceConstraint());
+        copy.setUnmodifiedSinceConstraint(request.getUnmodifiedSinceConstraint());
+        copy.setResponseHeaders(request.getResponseHeaders());
+        return copy;
+    }
+
+    private static void abort(S3Object object) {
+        if (object != null) {
+            object.getObjectContent().abort();
+        }
+    }
+
+    /**
+     * the GETs for one object, the first response completes winner and later responses are aborted.
+     * The winner fails once all GETs started failed.
+     */
+    private class Race {
+
+        private final SettableFuture<S3Object> winner = SettableFuture.create();
+        private final AtomicInteger pending = new AtomicInteger();
+
+        void start(final GetObjectRequest request, final boolean hedge) {
+            pending.incrementAndGet();
+            final long start = System.nanoTime();
+            ListenableFuture<S3Object> get = executor.submit(new Callable<S3Object>() {
+                @Override
+                public S3Object call() {
+                    return s3.getObject(request);
+                }
+            });
+            Futures.addCallback(get, new FutureCallback<S3Object>() {
+                @Override
+                public void onSuccess(S3Object object) {
+                    record(System.nanoTime() - start);
+                    pending.decrementAndGet();
+                    if (! winner.set(object)) {
+                        abort(object);
+                    } else if (hedge) {
+                        hedgeWins.incrementAndGet();
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable error) {
+                    if (pending.decrementAndGet() == 0) {
+                        winner.setException(error);
+                    }
+                }
+            }, MoreExecutors.directExecutor());
+        }
+
+        /**
+         * give up on the GETs, responses still arriving are aborted
+         */
+        void cancel() {
+            winner.cancel(false);
+        }
+    }
+}
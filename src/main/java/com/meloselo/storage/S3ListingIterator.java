@@ -0,0 +1,110 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * iterates over the pages of an S3 object listing, fetching the next page in the background while the
+ * caller processes the current one. At most two pages are held in memory.
+ */
+class S3ListingIterator implements CloudFileIterator {
+
+    private final AmazonS3 s3;
+    private final ExecutorService executor;
+    private final String region;
+
+    private Iterator<S3ObjectSummary> page;
+    private Future<ObjectListing> next;
+
+    /**
+     * fetch the first page of the listing
+     *
+     * @throws CloudException on AWS Service/Client errors fetching the first page
+     */
+    S3ListingIterator(AmazonS3 s3, ExecutorService executor, String region, ListObjectsRequest request)
+            throws CloudException {
+        this.s3 = s3;
+        this.executor = executor;
+        this.region = region;
+        try {
+            show(s3.listObjects(request));
+        } catch (AmazonClientException ex) {
+            throw new CloudException(String.format("Error listing files for bucket %s prefix %s in region %s",
+                    request.getBucketName(), request.getPrefix(), region), ex);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (! page.hasNext()) {
+            if (next == null) {
+                return false;
+            }
+            try {
+                show(next.get());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new UncheckedCloudException(new CloudException("Interrupted listing files", ex));
+            } catch (ExecutionException ex) {
+                next = null;
+                throw new UncheckedCloudException(new CloudException("Error listing files", ex.getCause()));
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public CloudFileSummary next() {
+        if (! hasNext()) {
+            throw new NoSuchElementException();
+        }
+        S3ObjectSummary summary = page.next();
+        return toSummary(region, summary);
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("remove");
+    }
+
+    @Override
+    public void close() {
+        if (next != null) {
+            next.cancel(true);
+            next = null;
+        }
+        page = Collections.<S3ObjectSummary>emptyIterator();
+    }
+
+    static CloudFileSummary toSummary(String region, S3ObjectSummary summary) {
+        return new CloudFileSummary(
+                new FileLocation(region, summary.getBucketName(), summary.getKey()).toUri(),
+                summary.getSize(),
+                summary.getETag(),
+                summary.getLastModified() == null ? 0 : summary.getLastModified().getTime());
+    }
+
+    private void show(final ObjectListing listing) {
+        page = listing.getObjectSummaries().iterator();
+        next = ! listing.isTruncated() ? null : executor.submit(new Callable<ObjectListing>() {
+            @Override
+            public ObjectListing call() {
+                return s3.listNextBatchOfObjects(listing);
+            }
+        });
+    }
+}
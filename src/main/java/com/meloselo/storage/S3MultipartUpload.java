@@ -0,0 +1,527 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * uploads one InputStream, or the bytes given to write, to S3 as a multipart upload. The calling thread
+ * reads the stream into pooled part buffers and the parts are sent in parallel on the executor. The number
+ * of parts in flight is bounded by the pool, so the caller blocks on reading when the network can not
+ * keep up. Parts and single puts are read again from their buffer or file on each attempt, so they are
+ * retried as set by the retry policy. Also copies large objects within S3 with parallel part copies.
+ */
+class S3MultipartUpload {
+
+    /** the maximum number of parts in one S3 multipart upload */
+    static final int MAX_PARTS = 10000;
+
+    /** the largest part S3 copies with one part copy */
+    static final long MAX_COPY_PART_SIZE = 5L * 1024 * 1024 * 1024;
+
+    /** parts of uploads with unknown length grow after every PARTS_PER_STEP parts */
+    static final int PARTS_PER_STEP = 2000;
+
+    private static final Log log = LogFactory.getLog(S3MultipartUpload.class);
+
+    private final AmazonS3 s3;
+    private final PartBufferPool pool;
+    private final ExecutorService executor;
+    private final String bucket;
+    private final String filename;
+    private final ObjectMetadata objMeta;
+
+    private final List<Future<PartETag>> parts = new ArrayList<Future<PartETag>>();
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    private volatile RetryPolicy retryPolicy;
+    private String uploadId;
+    private PartBuffer writePart;
+    private int writePartNumber;
+
+    S3MultipartUpload(AmazonS3 s3, PartBufferPool pool, ExecutorService executor, String bucket,
+            String filename, ObjectMetadata objMeta) {
+        this.s3 = s3;
+        this.pool = pool;
+        this.executor = executor;
+        this.bucket = bucket;
+        this.filename = filename;
+        this.objMeta = objMeta;
+    }
+
+    /**
+     * @param retryPolicy the retries of part uploads and single puts, null to send them once
+     * @return this object
+     */
+    S3MultipartUpload setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        return this;
+    }
+
+    /**
+     * upload the stream. Streams which fit in the first part are sent with a single put, so small
+     * files of unknown length are never buffered by the S3 client.
+     *
+     * @param is the file InputStream
+     * @param contentLength the contentLength of file, or 0 or less if unknown
+     * @throws CloudException on AWS Service/Client errors or when reading the stream fails
+     */
+    void upload(InputStream is, long contentLength) throws CloudException {
+        PartBuffer part = null;
+        try {
+            long total = 0;
+            int partNumber = 1;
+            part = pool.acquire(chunksPerPart(contentLength, partNumber));
+            total += part.fill(is);
+            if (! part.isFull()) {
+                putSingle(part, contentLength);
+                return;
+            }
+
+            uploadId = s3.initiateMultipartUpload(
+                    new InitiateMultipartUploadRequest(bucket, filename, objMeta)).getUploadId();
+            while (true) {
+                submit(part, partNumber);
+                part = null;
+                if (total == contentLength) {
+                    break;
+                }
+                checkFailure();
+                partNumber++;
+                if (partNumber > MAX_PARTS) {
+                    throw new CloudException(String.format("file %s in bucket %s needs more than %d parts",
+                            filename, bucket, MAX_PARTS));
+                }
+                part = pool.acquire(chunksPerPart(contentLength, partNumber));
+                int read = part.fill(is);
+                if (read == 0) {
+                    break;
+                }
+                total += read;
+                if (! part.isFull()) {
+                    submit(part, partNumber);
+                    part = null;
+                    break;
+                }
+            }
+
+            if (contentLength > 0 && total != contentLength) {
+                throw new CloudException(String.format("read %d bytes for file %s in bucket %s, expected %d",
+                        total, filename, bucket, contentLength));
+            }
+
+            complete();
+        } catch (IOException ex) {
+            throw new CloudException(String.format("Error reading file %s for bucket %s", filename, bucket), ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CloudException(String.format("Interrupted uploading file %s to bucket %s",
+                    filename, bucket), ex);
+        } catch (ExecutionException ex) {
+            throw new CloudException(String.format("Error uploading part of file %s to bucket %s",
+                    filename, bucket), ex.getCause());
+        } catch (AmazonClientException ex) {
+            throw new CloudException(String.format("Error uploading file %s to bucket %s", filename, bucket), ex);
+        } finally {
+            if (part != null) {
+                part.release();
+            }
+            if (uploadId != null) {
+                abort();
+            }
+        }
+    }
+
+    /**
+     * upload a local file, the parts are read by the S3 client straight from their region of the file in
+     * parallel on the executor, no part buffers are used
+     *
+     * @param file the local file
+     * @param contentLength the length of file
+     * @throws CloudException on AWS Service/Client errors
+     */
+    void uploadFile(File file, long contentLength) throws CloudException {
+        long partSize = Math.max(pool.getChunkSize(), (contentLength + MAX_PARTS - 1) / MAX_PARTS);
+        try {
+            uploadId = s3.initiateMultipartUpload(
+                    new InitiateMultipartUploadRequest(bucket, filename, objMeta)).getUploadId();
+            int partNumber = 1;
+            for (long offset = 0; offset < contentLength; offset += partSize) {
+                checkFailure();
+                submit(new UploadPartRequest()
+                        .withBucketName(bucket)
+                        .withKey(filename)
+                        .withUploadId(uploadId)
+                        .withPartNumber(partNumber++)
+                        .withFile(file)
+                        .withFileOffset(offset)
+                        .withPartSize(Math.min(partSize, contentLength - offset)));
+            }
+
+            complete();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CloudException(String.format("Interrupted uploading file %s to bucket %s",
+                    filename, bucket), ex);
+        } catch (ExecutionException ex) {
+            throw new CloudException(String.format("Error uploading part of file %s to bucket %s",
+                    filename, bucket), ex.getCause());
+        } catch (AmazonClientException ex) {
+            throw new CloudException(String.format("Error uploading file %s to bucket %s", filename, bucket), ex);
+        } finally {
+            if (uploadId != null) {
+                abort();
+            }
+        }
+    }
+
+    /**
+     * copy an object in S3 with parallel part copies on the executor, the bytes do not pass through the
+     * client. No part buffers are used.
+     *
+     * @param srcBucket the bucket of the object to copy
+     * @param srcKey the key of the object to copy
+     * @param contentLength the length of the object
+     * @param partSize the bytes copied by each part copy, at most MAX_COPY_PART_SIZE
+     * @throws CloudException on AWS Service/Client errors
+     */
+    void copy(final String srcBucket, final String srcKey, long contentLength, long partSize)
+            throws CloudException {
+        final long size = Math.max(partSize, (contentLength + MAX_PARTS - 1) / MAX_PARTS);
+        try {
+            uploadId = s3.initiateMultipartUpload(
+                    new InitiateMultipartUploadRequest(bucket, filename, objMeta)).getUploadId();
+            int partNumber = 1;
+            for (long offset = 0; offset < contentLength; offset += size) {
+                checkFailure();
+                final CopyPartRequest request = new CopyPartRequest()
+                        .withSourceBucketName(srcBucket)
+                        .withSourceKey(srcKey)
+                        .withDestinationBucketName(bucket)
+                        .withDestinationKey(filename)
+                        .withUploadId(uploadId)
+                        .withPartNumber(partNumber++)
+                        .withFirstByte(offset)
+                        .withLastByte(Math.min(offset + size, contentLength) - 1);
+                parts.add(executor.submit(new Callable<PartETag>() {
+                    @Override
+                    public PartETag call() throws Exception {
+                        try {
+                            if (failure.get() != null) {
+                                throw new CloudException("copy already failed");
+                            }
+                            return s3.copyPart(request).getPartETag();
+                        } catch (Exception ex) {
+                            failure.compareAndSet(null, ex);
+                            throw ex;
+                        }
+                    }
+                }));
+            }
+            complete();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CloudException(String.format("Interrupted copying %s/%s to file %s in bucket %s",
+                    srcBucket, srcKey, filename, bucket), ex);
+        } catch (ExecutionException ex) {
+            throw new CloudException(String.format("Error copying part of %s/%s to file %s in bucket %s",
+                    srcBucket, srcKey, filename, bucket), ex.getCause());
+        } catch (AmazonClientException ex) {
+            throw new CloudException(String.format("Error copying %s/%s to file %s in bucket %s",
+                    srcBucket, srcKey, filename, bucket), ex);
+        } finally {
+            if (uploadId != null) {
+                abort();
+            }
+        }
+    }
+
+    /**
+     * add bytes to an upload written by the caller. A full part is sent on the executor once the next
+     * byte is written, so the caller fills the next part while earlier parts upload. Writes block while
+     * all part buffers of the pool are in use.
+     *
+     * @throws CloudException on AWS Service/Client errors, the upload is aborted
+     */
+    void write(byte[] b, int off, int len) throws CloudException {
+        boolean done = false;
+        try {
+            while (len > 0) {
+                if (writePart != null && writePart.isFull()) {
+                    sendWritePart();
+                }
+                if (writePart == null) {
+                    checkFailure();
+                    writePartNumber++;
+                    if (writePartNumber > MAX_PARTS) {
+                        throw new CloudException(String.format("file %s in bucket %s needs more than %d parts",
+                                filename, bucket, MAX_PARTS));
+                    }
+                    writePart = pool.acquire(chunksPerPart(0, writePartNumber));
+                }
+                int count = writePart.write(b, off, len);
+                off += count;
+                len -= count;
+            }
+            done = true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CloudException(String.format("Interrupted uploading file %s to bucket %s",
+                    filename, bucket), ex);
+        } catch (AmazonClientException ex) {
+            throw new CloudException(String.format("Error uploading file %s to bucket %s", filename, bucket), ex);
+        } finally {
+            if (! done) {
+                cancel();
+            }
+        }
+    }
+
+    /**
+     * complete an upload written with write. Files which fit in the first part are sent with a single put.
+     *
+     * @throws CloudException on AWS Service/Client errors
+     */
+    void finish() throws CloudException {
+        try {
+            if (uploadId == null) {
+                PartBuffer part = writePart != null ? writePart : pool.acquire(1);
+                writePart = null;
+                putSingle(part, 0);
+                return;
+            }
+            if (writePart != null) {
+                submit(writePart, writePartNumber);
+                writePart = null;
+            }
+            complete();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CloudException(String.format("Interrupted uploading file %s to bucket %s",
+                    filename, bucket), ex);
+        } catch (ExecutionException ex) {
+            throw new CloudException(String.format("Error uploading part of file %s to bucket %s",
+                    filename, bucket), ex.getCause());
+        } catch (AmazonClientException ex) {
+            throw new CloudException(String.format("Error uploading file %s to bucket %s", filename, bucket), ex);
+        } finally {
+            cancel();
+        }
+    }
+
+    /**
+     * give up on an upload written with write, safe to call more than once
+     */
+    void cancel() {
+        if (writePart != null) {
+            writePart.release();
+            writePart = null;
+        }
+        if (uploadId != null) {
+            abort();
+            uploadId = null;
+        }
+    }
+
+    /**
+     * @return the number of pool chunks that make up the given part
+     */
+    int chunksPerPart(long contentLength, int partNumber) throws CloudException {
+        long chunkSize = pool.getChunkSize();
+        long chunks;
+        if (contentLength > 0) {
+            long perPart = (contentLength + MAX_PARTS - 1) / MAX_PARTS;
+            chunks = Math.max(1, (perPart + chunkSize - 1) / chunkSize);
+        } else {
+            chunks = 1L << Math.min(4, (partNumber - 1) / PARTS_PER_STEP);
+        }
+        long maxChunks = Math.min(pool.getMaxChunks(), Integer.MAX_VALUE / chunkSize);
+        if (contentLength <= 0) {
+            return (int) Math.min(chunks, maxChunks);
+        }
+        if (chunks > maxChunks) {
+            throw new CloudException(String.format(
+                    "contentLength %d of file %s needs parts of %d buffers, only %d available",
+                    contentLength, filename, chunks, maxChunks));
+        }
+        return (int) chunks;
+    }
+
+    private void putSingle(PartBuffer part, long contentLength) throws CloudException {
+        try {
+            if (contentLength > 0 && part.length() != contentLength) {
+                throw new CloudException(String.format("read %d bytes for file %s in bucket %s, expected %d",
+                        part.length(), filename, bucket, contentLength));
+            }
+            ObjectMetadata putMeta = objMeta.clone();
+            putMeta.setContentLength(part.length());
+            long delayMillis = 0;
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    s3.putObject(bucket, filename, part.newInputStream(), putMeta);
+                    return;
+                } catch (AmazonClientException ex) {
+                    delayMillis = retryDelay(ex, attempt, delayMillis);
+                }
+            }
+        } finally {
+            part.release();
+        }
+    }
+
+    /**
+     * send a part, read from the start of its buffer or its range of the file on each attempt
+     *
+     * @param part the buffer of the part, null if the request reads a file
+     */
+    private PartETag uploadPart(UploadPartRequest request, PartBuffer part) {
+        long delayMillis = 0;
+        for (int attempt = 1; ; attempt++) {
+            if (part != null) {
+                request.setInputStream(part.newInputStream());
+            }
+            try {
+                return s3.uploadPart(request).getPartETag();
+            } catch (AmazonClientException ex) {
+                if (failure.get() != null) {
+                    throw ex;
+                }
+                delayMillis = retryDelay(ex, attempt, delayMillis);
+            }
+        }
+    }
+
+    /**
+     * wait before the next attempt of a failed request
+     *
+     * @return the delay waited
+     * @throws AmazonClientException the error if it is not retried
+     */
+    private long retryDelay(AmazonClientException error, int attempt, long previousDelayMillis) {
+        RetryPolicy policy = retryPolicy;
+        if (policy == null || attempt >= policy.getMaxAttempts() || ! policy.isRetryable(error)) {
+            throw error;
+        }
+        long delayMillis = policy.nextDelayMillis(previousDelayMillis);
+        try {
+            Thread.sleep(delayMillis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw error;
+        }
+        return delayMillis;
+    }
+
+    private void sendWritePart() {
+        if (uploadId == null) {
+            uploadId = s3.initiateMultipartUpload(
+                    new InitiateMultipartUploadRequest(bucket, filename, objMeta)).getUploadId();
+        }
+        PartBuffer part = writePart;
+        writePart = null;
+        submit(part, writePartNumber);
+    }
+
+    private void complete() throws InterruptedException, ExecutionException {
+        List<PartETag> partETags = new ArrayList<PartETag>(parts.size());
+        for (Future<PartETag> future : parts) {
+            partETags.add(future.get());
+        }
+        s3.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, filename, uploadId, partETags));
+        uploadId = null;
+    }
+
+    private void submit(final PartBuffer part, final int partNumber) {
+        try {
+            parts.add(executor.submit(new Callable<PartETag>() {
+                @Override
+                public PartETag call() throws Exception {
+                    try {
+                        if (failure.get() != null) {
+                            throw new CloudException("upload already failed");
+                        }
+                        return uploadPart(new UploadPartRequest()
+                                .withBucketName(bucket)
+                                .withKey(filename)
+                                .withUploadId(uploadId)
+                                .withPartNumber(partNumber)
+                                .withPartSize(part.length()), part);
+                    } catch (Exception ex) {
+                        failure.compareAndSet(null, ex);
+                        throw ex;
+                    } finally {
+                        part.release();
+                    }
+                }
+            }));
+        } catch (RuntimeException ex) {
+            part.release();
+            throw ex;
+        }
+    }
+
+    private void submit(final UploadPartRequest request) {
+        parts.add(executor.submit(new Callable<PartETag>() {
+            @Override
+            public PartETag call() throws Exception {
+                try {
+                    if (failure.get() != null) {
+                        throw new CloudException("upload already failed");
+                    }
+                    return uploadPart(request, null);
+                } catch (Exception ex) {
+                    failure.compareAndSet(null, ex);
+                    throw ex;
+                }
+            }
+        }));
+    }
+
+    private void checkFailure() throws CloudException {
+        Throwable t = failure.get();
+        if (t != null) {
+            throw new CloudException(String.format("Error uploading part of file %s to bucket %s",
+                    filename, bucket), t);
+        }
+    }
+
+    private void abort() {
+        failure.compareAndSet(null, new CloudException("upload aborted"));
+        for (Future<PartETag> future : parts) {
+            try {
+                Uninterruptibles.getUninterruptibly(future);
+            } catch (ExecutionException ex) {
+                //part failed, nothing left to wait for
+            }
+        }
+        try {
+            s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, filename, uploadId));
+        } catch (AmazonClientException ex) {
+            log.warn(String.format("Error aborting upload %s of file %s in bucket %s",
+                    uploadId, filename, bucket), ex);
+        }
+    }
+}
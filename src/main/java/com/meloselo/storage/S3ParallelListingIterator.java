@@ -0,0 +1,252 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * lists a keyspace split at the first delimiter after the prefix. The common prefixes are listed in
+ * parallel and their entries handed to the caller through a bounded queue, so memory stays constant
+ * however many files are listed. Entries are not returned in key order.
+ * <p>
+ * No task waits for a free slot: the top listing queues the common prefixes it finds and starts workers up
+ * to parallelism, each worker lists queued prefixes until none are left. The top listing suspends itself
+ * while parallelism prefixes are queued and the worker taking the queue below that resumes it.
+ */
+class S3ParallelListingIterator implements CloudFileIterator {
+
+    /** a producer waiting this long for the caller to take an entry gives up */
+    static final long STALL_TIMEOUT_SECONDS = 300;
+
+    private static final Object END = new Object();
+
+    private final AmazonS3 s3;
+    private final ExecutorService executor;
+    private final String region;
+    private final String bucket;
+    private final int parallelism;
+    private final BlockingQueue<Object> queue;
+    private final AtomicInteger running = new AtomicInteger(1);
+
+    // guarded by this
+    private final Deque<String> pending = new ArrayDeque<String>();
+    private int workers;
+    private ObjectListing suspendedTop;
+
+    private volatile boolean closed;
+    private volatile CloudException failure;
+    private Object nextItem;
+    private boolean done;
+
+    /**
+     * @param parallelism the number of prefixes listed at a time
+     * @param queueSize the number of entries buffered ahead of the caller
+     */
+    S3ParallelListingIterator(AmazonS3 s3, ExecutorService executor, String region, String bucket,
+            final String prefix, final String delimiter, int parallelism, int queueSize) {
+        this.s3 = s3;
+        this.executor = executor;
+        this.region = region;
+        this.bucket = bucket;
+        this.parallelism = parallelism;
+        this.queue = new ArrayBlockingQueue<Object>(queueSize);
+
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                listTop(prefix, delimiter);
+            }
+        });
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (nextItem != null) {
+            return true;
+        }
+        if (done) {
+            return false;
+        }
+        Object item = null;
+        try {
+            while (item == null) {
+                CloudException error = failure;
+                if (error != null) {
+                    done = true;
+                    throw new UncheckedCloudException(error);
+                }
+                item = queue.poll(1, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedCloudException(new CloudException("Interrupted listing files", ex));
+        }
+        if (item == END) {
+            done = true;
+            return false;
+        }
+        nextItem = item;
+        return true;
+    }
+
+    @Override
+    public CloudFileSummary next() {
+        if (! hasNext()) {
+            throw new NoSuchElementException();
+        }
+        CloudFileSummary summary = (CloudFileSummary) nextItem;
+        nextItem = null;
+        return summary;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("remove");
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        done = true;
+        queue.clear();
+    }
+
+    private void listTop(String prefix, String delimiter) {
+        try {
+            listTop(s3.listObjects(new ListObjectsRequest()
+                .withBucketName(bucket)
+                .withPrefix(prefix)
+                .withDelimiter(delimiter)));
+        } catch (Exception ex) {
+            fail(prefix, ex);
+        }
+    }
+
+    /**
+     * list the pages of the top listing from listing on, until done or parallelism prefixes are queued
+     */
+    private void listTop(ObjectListing listing) throws InterruptedException, CloudException {
+        while (true) {
+            publish(listing);
+            running.addAndGet(listing.getCommonPrefixes().size());
+            synchronized (this) {
+                pending.addAll(listing.getCommonPrefixes());
+                startWorkers();
+                if (listing.isTruncated() && ! closed && pending.size() >= parallelism) {
+                    suspendedTop = listing;
+                    return;
+                }
+            }
+            if (! listing.isTruncated() || closed) {
+                break;
+            }
+            listing = s3.listNextBatchOfObjects(listing);
+        }
+        finish();
+    }
+
+    private synchronized void startWorkers() {
+        while (workers < parallelism && workers < pending.size() && ! closed) {
+            workers++;
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            });
+        }
+    }
+
+    /**
+     * list queued prefixes until none are left, resuming the top listing when the queue runs low
+     */
+    private void work() {
+        while (true) {
+            String prefix;
+            synchronized (this) {
+                prefix = closed ? null : pending.poll();
+                if (prefix == null) {
+                    workers--;
+                    return;
+                }
+                if (suspendedTop != null && pending.size() < parallelism) {
+                    final ObjectListing listing = suspendedTop;
+                    suspendedTop = null;
+                    executor.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                listTop(s3.listNextBatchOfObjects(listing));
+                            } catch (Exception ex) {
+                                fail(listing.getPrefix(), ex);
+                            }
+                        }
+                    });
+                }
+            }
+            listPrefix(prefix);
+        }
+    }
+
+    private void listPrefix(String prefix) {
+        try {
+            ObjectListing listing = s3.listObjects(new ListObjectsRequest()
+                .withBucketName(bucket)
+                .withPrefix(prefix));
+            while (true) {
+                publish(listing);
+                if (! listing.isTruncated() || closed) {
+                    break;
+                }
+                listing = s3.listNextBatchOfObjects(listing);
+            }
+            finish();
+        } catch (Exception ex) {
+            fail(prefix, ex);
+        }
+    }
+
+    private void publish(ObjectListing listing) throws InterruptedException, CloudException {
+        for (S3ObjectSummary summary : listing.getObjectSummaries()) {
+            put(S3ListingIterator.toSummary(region, summary));
+        }
+    }
+
+    private void finish() throws InterruptedException, CloudException {
+        if (running.decrementAndGet() == 0) {
+            put(END);
+        }
+    }
+
+    private void fail(String prefix, Exception ex) {
+        if (closed) {
+            return;
+        }
+        failure = new CloudException(String.format("Error listing files for bucket %s prefix %s in region %s",
+                bucket, prefix, region), ex);
+        closed = true;
+        queue.clear();
+    }
+
+    private void put(Object item) throws InterruptedException, CloudException {
+        long waited = 0;
+        while (! closed && ! queue.offer(item, 1, TimeUnit.SECONDS)) {
+            if (++waited > STALL_TIMEOUT_SECONDS) {
+                throw new CloudException("listing not read for " + STALL_TIMEOUT_SECONDS + " seconds");
+            }
+        }
+    }
+}
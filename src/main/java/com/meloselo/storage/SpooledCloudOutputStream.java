@@ -0,0 +1,87 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * CloudOutputStream writing to a temporary file which is stored with storeFileFrom on close. Used by
+ * storages that can not upload while the file is written.
+ */
+class SpooledCloudOutputStream extends CloudOutputStream {
+
+    private static final Log log = LogFactory.getLog(SpooledCloudOutputStream.class);
+
+    private final CloudStorage storage;
+    private final String bucket;
+    private final String filename;
+    private final String contentType;
+    private final Map<String, String> metaData;
+    private final Path spool;
+    private final OutputStream out;
+
+    SpooledCloudOutputStream(CloudStorage storage, String bucket, String filename, String contentType,
+            Map<String, String> metaData) throws CloudException {
+        this.storage = storage;
+        this.bucket = bucket;
+        this.filename = filename;
+        this.contentType = contentType;
+        this.metaData = metaData;
+        try {
+            this.spool = Files.createTempFile("cloud-", ".spool");
+        } catch (IOException ex) {
+            throw new CloudException(String.format("Error creating spool file for file %s in bucket %s",
+                    filename, bucket), ex);
+        }
+        try {
+            this.out = new BufferedOutputStream(Files.newOutputStream(spool), ChannelTransfers.BUFFER_SIZE);
+        } catch (IOException ex) {
+            delete();
+            throw new CloudException(String.format("Error opening spool file %s", spool), ex);
+        }
+    }
+
+    @Override
+    protected void writeBytes(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+    }
+
+    @Override
+    protected String complete() throws CloudException {
+        try {
+            out.close();
+            return storage.storeFileFrom(bucket, spool, filename, contentType, metaData);
+        } catch (IOException ex) {
+            throw new CloudException(String.format("Error writing spool file %s", spool), ex);
+        } finally {
+            delete();
+        }
+    }
+
+    @Override
+    protected void discard() {
+        try {
+            out.close();
+        } catch (IOException ex) {
+            //deleted below
+        }
+        delete();
+    }
+
+    private void delete() {
+        try {
+            Files.deleteIfExists(spool);
+        } catch (IOException ex) {
+            log.warn("Error deleting spool file " + spool, ex);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * settings for the streams of files fetched by S3CloudStorage. A stream not read for idleTimeoutMillis
+ * gives its http connection back and reopens it with a ranged GET on the next read. A stream garbage
+ * collected without being closed gives its connection back and is logged as leaked, with the stack of the
+ * getFile call that opened it if allocation sites are recorded. With lazyOpen getFile only fetches the
+ * metadata and the GET is sent on the first read.
+ */
+public class StreamReleaseConfig {
+
+    private long idleTimeoutMillis = 30 * 1000;
+    private boolean lazyOpen;
+    private boolean recordAllocationSite = true;
+
+    public StreamReleaseConfig() {
+        //do nothing
+    }
+
+    /**
+     * @return the time a stream may go unread before its connection is released in milliseconds
+     */
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    /**
+     * @param idleTimeoutMillis the time a stream may go unread before its connection is released in
+     *      milliseconds
+     * @return this object
+     */
+    public StreamReleaseConfig setIdleTimeoutMillis(long idleTimeoutMillis) {
+        checkArgument(idleTimeoutMillis > 0, "idleTimeoutMillis %s is not positive", idleTimeoutMillis);
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * @return true if getFile sends the GET on the first read of the stream
+     */
+    public boolean isLazyOpen() {
+        return lazyOpen;
+    }
+
+    /**
+     * @param lazyOpen true to fetch only metadata in getFile, with a HEAD request bypassing the metadata
+     *      cache, and send the GET on the first read of the stream
+     * @return this object
+     */
+    public StreamReleaseConfig setLazyOpen(boolean lazyOpen) {
+        this.lazyOpen = lazyOpen;
+        return this;
+    }
+
+    /**
+     * @return true if the stack of the call opening a stream is kept for leak logs
+     */
+    public boolean isRecordAllocationSite() {
+        return recordAllocationSite;
+    }
+
+    /**
+     * @param recordAllocationSite true to keep the stack of the call opening each stream for leak logs
+     * @return this object
+     */
+    public StreamReleaseConfig setRecordAllocationSite(boolean recordAllocationSite) {
+        this.recordAllocationSite = recordAllocationSite;
+        return this;
+    }
+}
@@ -0,0 +1,331 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * hands out file streams whose source, the stream holding an http connection, can be taken away. Each
+ * stream reads through a Tracker, a phantom reference to the stream which owns the source. A reaper
+ * thread releases the source of trackers not read for idleTimeoutMillis and of trackers whose stream was
+ * garbage collected without close. A stream without source opens a new one at its position on the next
+ * read.
+ */
+class StreamReleaser {
+
+    private static final Log log = LogFactory.getLog(StreamReleaser.class);
+
+    /**
+     * opens the source of a stream
+     */
+    interface Opener {
+
+        /**
+         * @param position the number of bytes of the stream already read
+         * @return a stream of the bytes from position on
+         * @throws IOException if the source can not be opened
+         */
+        InputStream open(long position) throws IOException;
+    }
+
+    private final long idleTimeoutNanos;
+    private final boolean lazyOpen;
+    private final boolean recordAllocationSite;
+    private final ReferenceQueue<ManagedInputStream> queue = new ReferenceQueue<ManagedInputStream>();
+    private final Set<Tracker> trackers = Collections.newSetFromMap(new ConcurrentHashMap<Tracker, Boolean>());
+    private final ScheduledExecutorService reaper;
+
+    private final AtomicInteger open = new AtomicInteger();
+    private final AtomicLong leaked = new AtomicLong();
+    private final AtomicLong idleReleased = new AtomicLong();
+
+    StreamReleaser(StreamReleaseConfig config) {
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getIdleTimeoutMillis());
+        this.lazyOpen = config.isLazyOpen();
+        this.recordAllocationSite = config.isRecordAllocationSite();
+        this.reaper = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("stream-reaper-%d").build());
+        long periodMillis = Math.max(10, Math.min(1000, config.getIdleTimeoutMillis() / 2));
+        reaper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    reap();
+                } catch (RuntimeException ex) {
+                    log.warn("Error releasing file streams", ex);
+                }
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    boolean isLazyOpen() {
+        return lazyOpen;
+    }
+
+    /**
+     * @param source the opened source, null to open it on the first read
+     * @param opener opens the source again from a position
+     * @param name the name of the file for leak logs
+     * @param length the number of bytes of the stream
+     * @return the managed stream
+     */
+    InputStream manage(InputStream source, Opener opener, String name, long length) {
+        ManagedInputStream stream = new ManagedInputStream(opener, length);
+        Tracker tracker = new Tracker(stream, name,
+                recordAllocationSite ? new Throwable("stream of " + name + " opened here") : null);
+        stream.tracker = tracker;
+        trackers.add(tracker);
+        if (source != null) {
+            tracker.attach(source);
+        }
+        return stream;
+    }
+
+    /**
+     * stop the reaper, streams handed out keep working but are no longer released
+     */
+    void shutdown() {
+        reaper.shutdownNow();
+    }
+
+    /**
+     * @return the number of streams holding a source
+     */
+    int getOpenCount() {
+        return open.get();
+    }
+
+    /**
+     * @return the number of streams garbage collected without close
+     */
+    long getLeakedCount() {
+        return leaked.get();
+    }
+
+    /**
+     * @return the number of sources released because their stream was not read
+     */
+    long getIdleReleasedCount() {
+        return idleReleased.get();
+    }
+
+    void reap() {
+        Reference<? extends ManagedInputStream> ref;
+        while ((ref = queue.poll()) != null) {
+            Tracker tracker = (Tracker) ref;
+            if (trackers.remove(tracker)) {
+                leaked.incrementAndGet();
+                tracker.release();
+                if (tracker.allocationSite != null) {
+                    log.warn(String.format("stream of %s was not closed, connection released", tracker.name),
+                            tracker.allocationSite);
+                } else {
+                    log.warn(String.format("stream of %s was not closed, connection released. Enable "
+                            + "StreamReleaseConfig.recordAllocationSite to log where it was opened", tracker.name));
+                }
+            }
+        }
+        long before = System.nanoTime() - idleTimeoutNanos;
+        for (Tracker tracker : trackers) {
+            tracker.releaseIfIdle(before);
+        }
+    }
+
+    private static void abort(InputStream source) {
+        try {
+            if (source instanceof S3ObjectInputStream) {
+                ((S3ObjectInputStream) source).abort();
+            } else {
+                source.close();
+            }
+        } catch (IOException | RuntimeException ex) {
+            log.debug("Error releasing stream", ex);
+        }
+    }
+
+    /**
+     * the source of one stream, reachable from the set of trackers until the stream is closed
+     */
+    private class Tracker extends PhantomReference<ManagedInputStream> {
+
+        private final String name;
+        private final Throwable allocationSite;
+        private InputStream source;
+        private boolean reading;
+        private boolean closed;
+        private long lastUse = System.nanoTime();
+
+        Tracker(ManagedInputStream stream, String name, Throwable allocationSite) {
+            super(stream, queue);
+            this.name = name;
+            this.allocationSite = allocationSite;
+        }
+
+        /**
+         * start a read, the source is not released until done
+         *
+         * @return the source, null if it has to be opened
+         */
+        synchronized InputStream acquire() throws IOException {
+            if (closed) {
+                throw new IOException("stream closed");
+            }
+            reading = true;
+            return source;
+        }
+
+        synchronized void attach(InputStream source) {
+            this.source = source;
+            open.incrementAndGet();
+        }
+
+        synchronized void done() {
+            reading = false;
+            lastUse = System.nanoTime();
+        }
+
+        void releaseIfIdle(long before) {
+            InputStream released;
+            synchronized (this) {
+                if (reading || source == null || lastUse - before > 0) {
+                    return;
+                }
+                released = source;
+                source = null;
+            }
+            // counted before the open count drops so a caller seeing the stream released sees it counted
+            idleReleased.incrementAndGet();
+            open.decrementAndGet();
+            abort(released);
+        }
+
+        void release() {
+            InputStream released;
+            synchronized (this) {
+                released = source;
+                source = null;
+            }
+            if (released != null) {
+                open.decrementAndGet();
+                abort(released);
+            }
+        }
+
+        void close() throws IOException {
+            InputStream released;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                released = source;
+                source = null;
+            }
+            trackers.remove(this);
+            clear();
+            if (released != null) {
+                open.decrementAndGet();
+                released.close();
+            }
+        }
+    }
+
+    /**
+     * the stream handed out, reads the source of its tracker
+     */
+    private static class ManagedInputStream extends InputStream {
+
+        private final Opener opener;
+        private final long length;
+        private Tracker tracker;
+        private long position;
+
+        ManagedInputStream(Opener opener, long length) {
+            this.opener = opener;
+            this.length = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n;
+            while ((n = read(b, 0, 1)) == 0) {
+                // retry
+            }
+            return n < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            InputStream source = tracker.acquire();
+            try {
+                if (source == null) {
+                    if (position >= length) {
+                        return -1;
+                    }
+                    source = opener.open(position);
+                    tracker.attach(source);
+                }
+                int read = source.read(b, off, len);
+                if (read > 0) {
+                    position += read;
+                }
+                return read;
+            } finally {
+                tracker.done();
+            }
+        }
+
+        /**
+         * skip without reading if the source is not open
+         */
+        @Override
+        public long skip(long n) throws IOException {
+            InputStream source = tracker.acquire();
+            try {
+                long skipped = source == null ? Math.max(0, Math.min(n, length - position)) : source.skip(n);
+                position += skipped;
+                return skipped;
+            } finally {
+                tracker.done();
+            }
+        }
+
+        @Override
+        public int available() throws IOException {
+            InputStream source = tracker.acquire();
+            try {
+                return source == null ? 0 : source.available();
+            } finally {
+                tracker.done();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            tracker.close();
+        }
+    }
+}
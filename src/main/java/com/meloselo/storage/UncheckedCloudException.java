@@ -0,0 +1,21 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+/**
+ * wraps a CloudException where checked exceptions can not be thrown, e.g. from an Iterator
+ */
+public class UncheckedCloudException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public UncheckedCloudException(CloudException cause) {
+        super(cause.getMessage(), cause);
+    }
+
+    @Override
+    public synchronized CloudException getCause() {
+        return (CloudException) super.getCause();
+    }
+}
@@ -0,0 +1,930 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.AmazonServiceException;
+import com.google.common.base.Strings;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * CloudStorage returning from storeFile as soon as the file is written and synced to a local spool
+ * directory. Spooled files are uploaded to the delegate storage by background threads, failed uploads are
+ * retried with backoff until they succeed. Uploads failing with an error retrying can not fix, such as a
+ * 4xx answer or an invalid argument, are logged and their files moved to the failed directory of the
+ * spool. Files spooled by an earlier process are uploaded again on
+ * construction, so a stored file is not lost if the process dies before its upload.
+ *
+ * The uri returned by storeFile is the s3://{region}/{bucket}/{filename} uri the file will have once
+ * uploaded. Until then getFile, getFileMetadata and exists of the uri are served from the spool, listFiles
+ * and getExpiringUrl are not: a pending file is listed and its url answers once it is uploaded. The eTag
+ * of a pending file starts with "spool:" so it never matches the eTag of the uploaded file. storeFile
+ * reserves the length of the file in the spool before spooling it and blocks while that would take the spool
+ * over maxSpoolBytes. Files of unknown length are charged their length once spooled, so the spool may go
+ * over maxSpoolBytes by the files of unknown length being spooled.
+ */
+public class WriteBehindCloudStorage extends ForwardingCloudStorage implements Closeable {
+
+    private static final Log log = LogFactory.getLog(WriteBehindCloudStorage.class);
+
+    private static final String DATA_SUFFIX = ".data";
+    private static final String META_SUFFIX = ".meta";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String META_PREFIX = "meta.";
+    private static final String FAILED_DIR = "failed";
+    /** the prefix of the eTags of pending files, followed by the MD5 hex of their content */
+    private static final String PENDING_ETAG_PREFIX = "spool:";
+    private static final RetryPolicy RETRYABLE = new RetryPolicy();
+
+    private static final long MIN_RETRY_MILLIS = 1000;
+    private static final long MAX_RETRY_MILLIS = 60 * 1000;
+    /** the delay before retrying to upload a file while an older version of it is uploading */
+    private static final long ORDER_WAIT_MILLIS = 100;
+    private static final long DEFAULT_CLOSE_TIMEOUT_MILLIS = 30 * 1000;
+
+    private final Path spoolDir;
+    private final long maxSpoolBytes;
+    private final String region;
+    private final ScheduledThreadPoolExecutor uploader;
+    private volatile long closeTimeoutMillis = DEFAULT_CLOSE_TIMEOUT_MILLIS;
+
+    private final Object lock = new Object();
+    private final Map<String, Entry> pending = new HashMap<String, Entry>();
+    /** the entry uploading for each file uri, at most one version of a file uploads at a time */
+    private final Map<String, Entry> uploading = new HashMap<String, Entry>();
+    private long spooledBytes;
+
+    private final AtomicLong fileCounter = new AtomicLong();
+    private final AtomicLong uploaded = new AtomicLong();
+    private final AtomicLong failedUploads = new AtomicLong();
+    private final AtomicLong deadLetters = new AtomicLong();
+
+    /**
+     * @param delegate the storage to upload files to, required
+     * @param spoolDir the directory to spool files in, created if missing
+     * @param maxSpoolBytes the spool size at which storeFile blocks until uploads complete
+     * @param region the region name of the uris returned by storeFile, the region of the delegate
+     * @param uploadThreads the number of files uploaded in parallel
+     * @throws IOException if the spool directory can not be created or read
+     */
+    public WriteBehindCloudStorage(CloudStorage delegate, Path spoolDir, long maxSpoolBytes, String region,
+            int uploadThreads) throws IOException {
+        super(delegate);
+        checkArgument(spoolDir != null, "spoolDir is null");
+        checkArgument(maxSpoolBytes > 0, "maxSpoolBytes %s is not positive", maxSpoolBytes);
+        checkArgument(! Strings.isNullOrEmpty(region), "region is null or empty");
+        checkArgument(uploadThreads > 0, "uploadThreads %s is not positive", uploadThreads);
+        this.spoolDir = Files.createDirectories(spoolDir);
+        this.maxSpoolBytes = maxSpoolBytes;
+        this.region = region;
+        this.uploader = new ScheduledThreadPoolExecutor(uploadThreads,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("write-behind-%d").build());
+        //retries waiting for their delay are dropped on close, their files stay in the spool
+        this.uploader.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+
+        recover();
+    }
+
+    /**
+     * @param closeTimeoutMillis how long close waits for uploads in progress, 30 seconds by default
+     * @return this object
+     */
+    public WriteBehindCloudStorage setCloseTimeoutMillis(long closeTimeoutMillis) {
+        checkArgument(closeTimeoutMillis >= 0, "closeTimeoutMillis %s is negative", closeTimeoutMillis);
+        this.closeTimeoutMillis = closeTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * @return the number of files spooled and not yet uploaded
+     */
+    public int getPendingCount() {
+        synchronized (lock) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * @return the total size of spooled files
+     */
+    public long getSpooledBytes() {
+        synchronized (lock) {
+            return spooledBytes;
+        }
+    }
+
+    /**
+     * @return the number of files uploaded
+     */
+    public long getUploadedCount() {
+        return uploaded.get();
+    }
+
+    /**
+     * @return the number of failed upload attempts, each was retried unless it was dead lettered
+     */
+    public long getFailedUploadCount() {
+        return failedUploads.get();
+    }
+
+    /**
+     * @return the number of files given up on after an upload error retrying can not fix, their files are
+     *      kept in the failed directory of the spool
+     */
+    public long getDeadLetterCount() {
+        return deadLetters.get();
+    }
+
+    /**
+     * wait until all files spooled so far are uploaded
+     *
+     * @param timeout the longest time to wait
+     * @param unit the unit of timeout
+     * @return true if the spool is empty, false if the timeout passed first
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean flush(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (lock) {
+            while (! pending.isEmpty()) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    return false;
+                }
+                lock.wait(remaining);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * stop uploading and wait up to closeTimeoutMillis for uploads in progress, uploads still running
+     * then are interrupted. Files not yet uploaded stay in the spool and are uploaded by the next storage
+     * on it.
+     */
+    @Override
+    public void close() {
+        uploader.shutdown();
+        try {
+            if (! uploader.awaitTermination(closeTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                log.warn(String.format("Uploads still running after %dms, interrupting them", closeTimeoutMillis));
+                uploader.shutdownNow();
+            }
+        } catch (InterruptedException ex) {
+            uploader.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * spool file and schedule its upload
+     *
+     * @return the uri the file will have once uploaded
+     * @throws CloudException if the file can not be spooled or interrupted waiting for space in the spool
+     */
+    @Override
+    public String storeFile(String bucket, InputStream is, String filename, String contentType,
+            long contentLength, Map<String, String> metaData) throws CloudException {
+        checkArgument(! Strings.isNullOrEmpty(bucket), "bucket is null");
+        checkArgument(is != null, "is, inputstream to store is null");
+        checkArgument(! Strings.isNullOrEmpty(filename), "filename is null");
+        String fileUri = new FileLocation(region, bucket, filename).toUri();
+
+        long reserved = reserve(contentLength);
+        long id = fileCounter.incrementAndGet();
+        Path data = spoolDir.resolve(id + DATA_SUFFIX);
+        Entry entry = null;
+        try {
+            HashingInputStream hashing = new HashingInputStream(Hashing.md5(), is);
+            long length = write(hashing, data);
+            syncDirectory(spoolDir);
+            entry = new Entry(id, fileUri, bucket, filename, contentType, length, hashing.hash().toString(),
+                    metaData);
+            writeMeta(entry);
+            syncDirectory(spoolDir);
+        } catch (IOException ex) {
+            entry = null;
+            throw new CloudException(String.format("Error spooling file %s for bucket %s", filename, bucket), ex);
+        } finally {
+            if (entry == null) {
+                delete(data);
+                charge(-reserved);
+            }
+        }
+
+        charge(entry.length - reserved);
+        schedule(entry, 0);
+        return fileUri;
+    }
+
+    @Override
+    public CloudFile getFile(String fileUri) throws CloudException {
+        CloudFile file = openPending(fileUri, null);
+        return file != null ? file : delegate().getFile(fileUri);
+    }
+
+    @Override
+    public CloudFile getFile(String fileUri, ByteRange range) throws CloudException {
+        CloudFile file = openPending(fileUri, range);
+        return file != null ? file : delegate().getFile(fileUri, range);
+    }
+
+    @Override
+    public CloudFile getFile(FileLocation location) throws CloudException {
+        CloudFile file = openPending(location.toUri(), null);
+        return file != null ? file : delegate().getFile(location);
+    }
+
+    @Override
+    public CloudFile getFile(FileLocation location, ByteRange range) throws CloudException {
+        CloudFile file = openPending(location.toUri(), range);
+        return file != null ? file : delegate().getFile(location, range);
+    }
+
+    /**
+     * fetch file and write it to a channel, pending files are sent from the spool with transferTo
+     */
+    @Override
+    public CloudFile getFileTo(String fileUri, WritableByteChannel channel) throws CloudException {
+        Entry entry = lookup(fileUri);
+        if (entry != null) {
+            try {
+                FileChannel in = FileChannel.open(entry.dataPath(spoolDir), StandardOpenOption.READ);
+                try {
+                    ChannelTransfers.transfer(in, 0, entry.length, channel);
+                } finally {
+                    in.close();
+                }
+                return entry.toCloudFile();
+            } catch (NoSuchFileException ex) {
+                //uploaded and removed from the spool meanwhile
+            } catch (IOException ex) {
+                throw new CloudException(String.format("Error sending spool file of %s", fileUri), ex);
+            }
+        }
+        return super.getFileTo(fileUri, channel);
+    }
+
+    /**
+     * fetch file unless it still has the given eTag. The eTag of a pending file is its MD5 hex prefixed
+     * with "spool:", so a file fetched while pending is fetched again once uploaded.
+     */
+    @Override
+    public CloudFile getFileIfChanged(String fileUri, String eTag) throws CloudException {
+        Entry entry = lookup(fileUri);
+        if (entry != null) {
+            if (entry.pendingETag().equals(eTag)) {
+                return null;
+            }
+            CloudFile file = open(entry, null);
+            if (file != null) {
+                return file;
+            }
+        }
+        return delegate().getFileIfChanged(fileUri, eTag);
+    }
+
+    @Override
+    public CloudFile getFileMetadata(String fileUri) throws CloudException {
+        Entry entry = lookup(fileUri);
+        if (entry != null) {
+            return entry.toCloudFile();
+        }
+        return delegate().getFileMetadata(fileUri);
+    }
+
+    @Override
+    public boolean exists(String fileUri) throws CloudException {
+        return lookup(fileUri) != null || delegate().exists(fileUri);
+    }
+
+    /**
+     * list the uploaded files, pending files are listed once uploaded
+     */
+    @Override
+    public CloudFileIterator listFiles(String bucket, String prefix) throws CloudException {
+        return delegate().listFiles(bucket, prefix);
+    }
+
+    /**
+     * @return the url of the file in the delegate storage, for a pending file it answers once the file is
+     *      uploaded, use flush to wait for that
+     */
+    @Override
+    public URL getExpiringUrl(String fileUri, long expirySeconds) throws CloudException {
+        return delegate().getExpiringUrl(fileUri, expirySeconds);
+    }
+
+    /**
+     * @return the url of the file in the delegate storage, for a pending file it answers once the file is
+     *      uploaded, use flush to wait for that
+     */
+    @Override
+    public URL getExpiringUrl(FileLocation location, long expirySeconds) throws CloudException {
+        return delegate().getExpiringUrl(location, expirySeconds);
+    }
+
+    /**
+     * delete file, a pending upload of it is dropped
+     */
+    @Override
+    public void deleteFile(String fileUri) throws CloudException {
+        cancel(fileUri);
+        delegate().deleteFile(fileUri);
+    }
+
+    @Override
+    public void deleteFile(FileLocation location) throws CloudException {
+        cancel(location.toUri());
+        delegate().deleteFile(location);
+    }
+
+    @Override
+    public BatchResult deleteFiles(Collection<String> fileUris) throws CloudException {
+        for (String fileUri : fileUris) {
+            cancel(fileUri);
+        }
+        return delegate().deleteFiles(fileUris);
+    }
+
+    /**
+     * copy file, in the cloud unless the source or the destination is pending. Those are copied through
+     * the spool so the copy is ordered with the pending upload.
+     */
+    @Override
+    public String copyFile(String srcUri, String dstBucket, String dstFilename) throws CloudException {
+        checkArgument(! Strings.isNullOrEmpty(dstBucket), "dstBucket is null");
+        checkArgument(! Strings.isNullOrEmpty(dstFilename), "dstFilename is null");
+        if (lookup(srcUri) == null && lookup(new FileLocation(region, dstBucket, dstFilename).toUri()) == null) {
+            return delegate().copyFile(srcUri, dstBucket, dstFilename);
+        }
+        return spoolCopy(srcUri, dstBucket, dstFilename);
+    }
+
+    /**
+     * move file, in the cloud unless the source or the destination is pending
+     */
+    @Override
+    public String moveFile(String srcUri, String dstBucket, String dstFilename) throws CloudException {
+        checkArgument(! Strings.isNullOrEmpty(dstBucket), "dstBucket is null");
+        checkArgument(! Strings.isNullOrEmpty(dstFilename), "dstFilename is null");
+        String dstUri = new FileLocation(region, dstBucket, dstFilename).toUri();
+        if (lookup(srcUri) == null && lookup(dstUri) == null) {
+            return delegate().moveFile(srcUri, dstBucket, dstFilename);
+        }
+        if (dstUri.equals(srcUri)) {
+            return dstUri;
+        }
+        String fileUri = spoolCopy(srcUri, dstBucket, dstFilename);
+        deleteFile(srcUri);
+        return fileUri;
+    }
+
+    /**
+     * copy many files, the copies with no pending source or destination are sent to the cloud as one batch
+     */
+    @Override
+    public BatchResult copyFiles(Map<String, String> fileUris) throws CloudException {
+        checkArgument(fileUris != null, "fileUris is null");
+
+        BatchResult result = new BatchResult();
+        Map<String, String> remote = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, String> copy : fileUris.entrySet()) {
+            if (lookup(copy.getKey()) == null && lookup(copy.getValue()) == null) {
+                remote.put(copy.getKey(), copy.getValue());
+                continue;
+            }
+            try {
+                FileLocation dst = parseFileLocation(copy.getValue());
+                spoolCopy(copy.getKey(), dst.getBucket(), dst.getKey());
+                result.addSucceeded(copy.getKey());
+            } catch (IllegalArgumentException ex) {
+                result.addFailed(copy.getKey(), new CloudException(ex.getMessage(), ex));
+            } catch (CloudException ex) {
+                result.addFailed(copy.getKey(), ex);
+            }
+        }
+        if (! remote.isEmpty()) {
+            result.addAll(delegate().copyFiles(remote));
+        }
+        return result;
+    }
+
+    /**
+     * copy a file by spooling it again under the new name
+     */
+    private String spoolCopy(String srcUri, String dstBucket, String dstFilename) throws CloudException {
+        CloudFile file = getFile(srcUri);
+        if (file == null) {
+            throw new CloudException(String.format("file %s not found", srcUri));
+        }
+        InputStream is = file.getInputStream();
+        try {
+            return storeFile(dstBucket, is, dstFilename, file.getContentType(), file.getContentLength(),
+                    file.getMetaData());
+        } finally {
+            Closeables.closeQuietly(is);
+        }
+    }
+
+    /**
+     * schedule the upload of files left in the spool, delete files whose spooling did not complete. New
+     * files are numbered after every file in the spool and its failed directory, so none is overwritten.
+     */
+    private void recover() throws IOException {
+        List<Path> metas = new ArrayList<Path>();
+        List<Path> stale = new ArrayList<Path>();
+        Path failedDir = spoolDir.resolve(FAILED_DIR);
+        if (Files.isDirectory(failedDir)) {
+            DirectoryStream<Path> failed = Files.newDirectoryStream(failedDir);
+            try {
+                for (Path path : failed) {
+                    seedCounter(path);
+                }
+            } finally {
+                failed.close();
+            }
+        }
+        DirectoryStream<Path> files = Files.newDirectoryStream(spoolDir);
+        try {
+            for (Path path : files) {
+                String name = path.getFileName().toString();
+                seedCounter(path);
+                if (name.endsWith(META_SUFFIX)) {
+                    metas.add(path);
+                } else if (name.endsWith(TEMP_SUFFIX)) {
+                    stale.add(path);
+                } else if (name.endsWith(DATA_SUFFIX)
+                        && ! Files.exists(spoolDir.resolve(name.replace(DATA_SUFFIX, META_SUFFIX)))) {
+                    stale.add(path);
+                }
+            }
+        } finally {
+            files.close();
+        }
+        for (Path path : stale) {
+            delete(path);
+        }
+
+        List<Entry> entries = new ArrayList<Entry>();
+        for (Path meta : metas) {
+            try {
+                entries.add(readMeta(meta));
+            } catch (IOException | RuntimeException ex) {
+                log.error(String.format("Error reading spool file %s, file is not uploaded", meta), ex);
+            }
+        }
+        //upload in the order the files were stored, so the latest version of a file wins
+        Collections.sort(entries);
+        for (Entry entry : entries) {
+            charge(entry.length);
+            schedule(entry, 0);
+        }
+        if (! entries.isEmpty()) {
+            log.info(String.format("Uploading %d files left in spool %s", entries.size(), spoolDir));
+        }
+    }
+
+    /**
+     * make fileCounter at least the id a spool file is named after
+     */
+    private void seedCounter(Path path) {
+        String name = path.getFileName().toString();
+        int dot = name.indexOf('.');
+        if (dot > 0) {
+            try {
+                long id = Long.parseLong(name.substring(0, dot));
+                fileCounter.set(Math.max(fileCounter.get(), id));
+            } catch (NumberFormatException ex) {
+                //not a spool file
+            }
+        }
+    }
+
+    /**
+     * wait until the spool has room for a file and reserve it, a file of unknown length waits until the
+     * spool is below maxSpoolBytes and reserves nothing
+     *
+     * @return the number of bytes reserved
+     */
+    private long reserve(long contentLength) throws CloudException {
+        long length = Math.max(0, contentLength);
+        synchronized (lock) {
+            try {
+                while (spooledBytes > 0 && (spooledBytes + length > maxSpoolBytes || spooledBytes >= maxSpoolBytes)) {
+                    lock.wait();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new CloudException("Interrupted waiting for space in spool", ex);
+            }
+            spooledBytes += length;
+            return length;
+        }
+    }
+
+    /**
+     * add bytes to the spool size, negative to give back a reservation
+     */
+    private void charge(long bytes) {
+        if (bytes == 0) {
+            return;
+        }
+        synchronized (lock) {
+            spooledBytes += bytes;
+            if (bytes < 0) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * make entry the pending version of its file and schedule its upload, its length is already charged
+     */
+    private void schedule(Entry entry, long delayMillis) {
+        synchronized (lock) {
+            Entry old = pending.put(entry.fileUri, entry);
+            if (old != null && uploading.get(entry.fileUri) != old) {
+                release(old);
+            }
+        }
+        retry(entry, delayMillis);
+    }
+
+    private void retry(final Entry entry, long delayMillis) {
+        try {
+            uploader.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    upload(entry);
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            log.debug(String.format("storage closed, %s left in spool", entry.fileUri));
+        }
+    }
+
+    private void upload(Entry entry) {
+        synchronized (lock) {
+            if (pending.get(entry.fileUri) != entry) {
+                //replaced by a newer version or deleted
+                return;
+            }
+            if (uploading.containsKey(entry.fileUri)) {
+                retry(entry, ORDER_WAIT_MILLIS);
+                return;
+            }
+            uploading.put(entry.fileUri, entry);
+        }
+
+        boolean done = false;
+        boolean dead = false;
+        try {
+            InputStream is = Files.newInputStream(entry.dataPath(spoolDir));
+            try {
+                delegate().storeFile(entry.bucket, is, entry.filename, entry.contentType, entry.length,
+                        entry.metaData);
+            } finally {
+                Closeables.closeQuietly(is);
+            }
+            uploaded.incrementAndGet();
+            done = true;
+        } catch (IOException | CloudException | RuntimeException ex) {
+            failedUploads.incrementAndGet();
+            if (isRetryable(ex)) {
+                entry.retryMillis = Math.min(MAX_RETRY_MILLIS, Math.max(MIN_RETRY_MILLIS, entry.retryMillis * 2));
+                log.warn(String.format("Error uploading spooled file %s, retrying in %dms", entry.fileUri,
+                        entry.retryMillis), ex);
+            } else {
+                dead = true;
+                log.error(String.format("Error uploading spooled file %s, not retrying, spool files moved to %s",
+                        entry.fileUri, spoolDir.resolve(FAILED_DIR)), ex);
+            }
+        }
+        if (done && entry.deleted) {
+            //deleted while uploading, delete again before a newer version may upload
+            try {
+                delegate().deleteFile(entry.fileUri);
+            } catch (CloudException ex) {
+                log.warn(String.format("Error deleting file %s deleted while uploading", entry.fileUri), ex);
+            }
+        }
+
+        synchronized (lock) {
+            uploading.remove(entry.fileUri);
+            boolean current = pending.get(entry.fileUri) == entry;
+            if (done || dead || ! current) {
+                if (current) {
+                    pending.remove(entry.fileUri);
+                }
+                if (dead && current) {
+                    deadLetter(entry);
+                }
+                release(entry);
+                lock.notifyAll();
+                return;
+            }
+        }
+        retry(entry, entry.retryMillis);
+    }
+
+    /**
+     * drop the pending upload of a file
+     */
+    private void cancel(String fileUri) {
+        synchronized (lock) {
+            Entry entry = pending.remove(fileUri);
+            if (entry == null) {
+                return;
+            }
+            entry.deleted = true;
+            if (uploading.get(fileUri) != entry) {
+                release(entry);
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * delete the spool files of an entry no longer pending, called holding lock
+     */
+    private void release(Entry entry) {
+        if (entry.released) {
+            return;
+        }
+        entry.released = true;
+        spooledBytes -= entry.length;
+        delete(entry.metaPath(spoolDir));
+        delete(entry.dataPath(spoolDir));
+    }
+
+    /**
+     * move the spool files of an entry given up on to the failed directory, called holding lock
+     */
+    private void deadLetter(Entry entry) {
+        deadLetters.incrementAndGet();
+        try {
+            Path failed = Files.createDirectories(spoolDir.resolve(FAILED_DIR));
+            Files.move(entry.dataPath(spoolDir), failed.resolve(entry.dataPath(spoolDir).getFileName()));
+            Files.move(entry.metaPath(spoolDir), failed.resolve(entry.metaPath(spoolDir).getFileName()));
+        } catch (IOException ex) {
+            log.error(String.format("Error moving spool files of %s to the failed directory", entry.fileUri), ex);
+        }
+    }
+
+    /**
+     * @return false for errors a later upload fails with again: invalid arguments, spool files gone and
+     *      answers of the cloud that RetryPolicy does not retry, like 403 or 404
+     */
+    private static boolean isRetryable(Exception ex) {
+        if (ex instanceof IllegalArgumentException || ex instanceof NoSuchFileException) {
+            return false;
+        }
+        Throwable cause = ex.getCause();
+        if (cause instanceof AmazonServiceException) {
+            return RETRYABLE.isRetryable((AmazonServiceException) cause);
+        }
+        return true;
+    }
+
+    private Entry lookup(String fileUri) {
+        synchronized (lock) {
+            return pending.get(fileUri);
+        }
+    }
+
+    /**
+     * @return the pending file or null if the file is not pending
+     */
+    private CloudFile openPending(String fileUri, ByteRange range) throws CloudException {
+        Entry entry = lookup(fileUri);
+        return entry == null ? null : open(entry, range);
+    }
+
+    /**
+     * @return the spooled file or null if it was uploaded and removed from the spool meanwhile
+     */
+    private CloudFile open(Entry entry, ByteRange range) throws CloudException {
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(entry.dataPath(spoolDir), StandardOpenOption.READ);
+            long first = 0;
+            long length = entry.length;
+            if (range != null) {
+                if (range.getFirst() >= entry.length) {
+                    throw new CloudException(String.format("range %s not satisfiable for file of length %d",
+                            range, entry.length));
+                }
+                long last = range.hasLast() ? Math.min(range.getLast(), entry.length - 1) : entry.length - 1;
+                first = range.getFirst();
+                length = last - first + 1;
+                channel.position(first);
+            }
+            InputStream is = ByteStreams.limit(Channels.newInputStream(channel), length);
+            channel = null;
+            return entry.toCloudFile()
+                .setInputStream(is)
+                .setContentLength(length);
+        } catch (NoSuchFileException ex) {
+            return null;
+        } catch (IOException ex) {
+            throw new CloudException(String.format("Error reading spool file of %s", entry.fileUri), ex);
+        } finally {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ex) {
+                    log.debug("error closing spool file channel", ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes written, the file is synced to disk before returning
+     */
+    private static long write(InputStream is, Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        try {
+            long length = ByteStreams.copy(is, Channels.newOutputStream(channel));
+            channel.force(true);
+            return length;
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * write the meta file of an entry, once it exists the entry is committed to the spool
+     */
+    private void writeMeta(Entry entry) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("fileUri", entry.fileUri);
+        properties.setProperty("bucket", entry.bucket);
+        properties.setProperty("filename", entry.filename);
+        properties.setProperty("length", Long.toString(entry.length));
+        properties.setProperty("eTag", entry.md5);
+        if (entry.contentType != null) {
+            properties.setProperty("contentType", entry.contentType);
+        }
+        if (entry.metaData != null) {
+            for (Map.Entry<String, String> meta : entry.metaData.entrySet()) {
+                properties.setProperty(META_PREFIX + meta.getKey(), meta.getValue());
+            }
+        }
+
+        Path temp = spoolDir.resolve(entry.id + META_SUFFIX + TEMP_SUFFIX);
+        FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        try {
+            OutputStream os = Channels.newOutputStream(channel);
+            properties.store(os, null);
+            os.flush();
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+        Files.move(temp, entry.metaPath(spoolDir), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * sync the entries of a directory to disk, so files created or renamed in it survive a crash. Some
+     * platforms, Windows among them, can not open a directory and are left to their file system.
+     */
+    private static void syncDirectory(Path dir) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(dir, StandardOpenOption.READ);
+        } catch (AccessDeniedException ex) {
+            return;
+        }
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static Entry readMeta(Path path) throws IOException {
+        Properties properties = new Properties();
+        InputStream is = Files.newInputStream(path);
+        try {
+            properties.load(is);
+        } finally {
+            is.close();
+        }
+        String name = path.getFileName().toString();
+        long id = Long.parseLong(name.substring(0, name.length() - META_SUFFIX.length()));
+
+        Map<String, String> metaData = null;
+        for (String key : properties.stringPropertyNames()) {
+            if (key.startsWith(META_PREFIX)) {
+                if (metaData == null) {
+                    metaData = new HashMap<String, String>();
+                }
+                metaData.put(key.substring(META_PREFIX.length()), properties.getProperty(key));
+            }
+        }
+        return new Entry(id, properties.getProperty("fileUri"), properties.getProperty("bucket"),
+                properties.getProperty("filename"), properties.getProperty("contentType"),
+                Long.parseLong(properties.getProperty("length")), properties.getProperty("eTag"), metaData);
+    }
+
+    private static void delete(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException ex) {
+            log.warn(String.format("Error deleting spool file %s", path), ex);
+        }
+    }
+
+    private static class Entry implements Comparable<Entry> {
+
+        private final long id;
+        private final String fileUri;
+        private final String bucket;
+        private final String filename;
+        private final String contentType;
+        private final long length;
+        private final String md5;
+        private final Map<String, String> metaData;
+        private long retryMillis;
+        private boolean released;
+        private volatile boolean deleted;
+
+        Entry(long id, String fileUri, String bucket, String filename, String contentType, long length,
+                String md5, Map<String, String> metaData) {
+            this.id = id;
+            this.fileUri = fileUri;
+            this.bucket = bucket;
+            this.filename = filename;
+            this.contentType = contentType;
+            this.length = length;
+            this.md5 = md5;
+            this.metaData = metaData == null ? null
+                    : Collections.unmodifiableMap(new HashMap<String, String>(metaData));
+        }
+
+        Path dataPath(Path spoolDir) {
+            return spoolDir.resolve(id + DATA_SUFFIX);
+        }
+
+        Path metaPath(Path spoolDir) {
+            return spoolDir.resolve(id + META_SUFFIX);
+        }
+
+        CloudFile toCloudFile() {
+            return new CloudFile()
+                .setContentType(contentType)
+                .setContentLength(length)
+                .setTotalLength(length)
+                .setETag(pendingETag())
+                .setMetaData(metaData);
+        }
+
+        String pendingETag() {
+            return PENDING_ETAG_PREFIX + md5;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            return id < other.id ? -1 : (id == other.id ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.amazonaws.regions.Regions;
+import com.google.common.io.ByteStreams;
+
+public class ChunkedInputStreamTest {
+
+    private static final int CHUNK_SIZE = 1000;
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private LocalS3Server server;
+    private S3CloudStorage storage;
+    private byte[] data;
+    private String fileUri;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LocalS3Server();
+        storage = new S3CloudStorage(server.newClient(), null, Regions.US_EAST_1)
+            .setChunkedDownloadConfig(new ChunkedDownloadConfig().setChunkSize(CHUNK_SIZE).setMaxChunksAhead(2));
+        data = new byte[10 * CHUNK_SIZE];
+        new Random(42).nextBytes(data);
+        fileUri = storage.storeFile("bucket", new ByteArrayInputStream(data), "chunked.bin",
+                "application/octet-stream", data.length, null);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    @Test(timeout = 10000)
+    public void testChunksAreReadInOrderWithBoundedReadAhead() throws Exception {
+        CloudFile file = storage.getFile(fileUri);
+        assertEquals("contentLength", data.length, file.getContentLength());
+        try (InputStream in = file.getInputStream()) {
+            // the first chunk and two chunks ahead
+            awaitRangedGets(3);
+            Thread.sleep(100);
+            assertEquals("ranged GETs before reading", 3, server.countRequests("GET", null));
+
+            byte[] head = new byte[CHUNK_SIZE + 1];
+            ByteStreams.readFully(in, head);
+            assertArrayEquals("head", Arrays.copyOf(data, head.length), head);
+            awaitRangedGets(4);
+            Thread.sleep(100);
+            assertEquals("ranged GETs after the first chunk", 4, server.countRequests("GET", null));
+
+            byte[] rest = ByteStreams.toByteArray(in);
+            assertArrayEquals("rest", Arrays.copyOfRange(data, head.length, data.length), rest);
+        }
+
+        List<String> ranges = new ArrayList<String>();
+        for (String request : server.getRequestLog()) {
+            if (request.startsWith("GET ")) {
+                ranges.add(request.substring(request.indexOf("Range: ") + "Range: ".length()));
+            }
+        }
+        List<String> expected = new ArrayList<String>();
+        for (int first = 0; first < data.length; first += CHUNK_SIZE) {
+            expected.add("bytes=" + first + "-" + (first + CHUNK_SIZE - 1));
+        }
+        Collections.sort(ranges);
+        Collections.sort(expected);
+        assertEquals("ranges", expected, ranges);
+    }
+
+    @Test(timeout = 10000)
+    public void testRangeIsReadInChunks() throws Exception {
+        CloudFile file = storage.getFile(fileUri, ByteRange.of(1500, 4499));
+        assertEquals("contentLength", 3000, file.getContentLength());
+        assertEquals("totalLength", data.length, file.getTotalLength());
+        try (InputStream in = file.getInputStream()) {
+            assertArrayEquals("range", Arrays.copyOfRange(data, 1500, 4500), ByteStreams.toByteArray(in));
+        }
+        assertEquals("ranged GETs", 3, server.countRequests("GET", null));
+    }
+
+    @Test(timeout = 10000)
+    public void testRangeWithoutChunks() throws Exception {
+        storage.setChunkedDownloadConfig(null);
+        CloudFile file = storage.getFile(fileUri, ByteRange.from(data.length - 10));
+        try (InputStream in = file.getInputStream()) {
+            assertArrayEquals("tail", Arrays.copyOfRange(data, data.length - 10, data.length),
+                    ByteStreams.toByteArray(in));
+        }
+        assertEquals("GETs", 1, server.countRequests("GET", null));
+
+        try {
+            storage.getFile(fileUri, ByteRange.from(data.length));
+            fail("range past the end accepted");
+        } catch (CloudException ex) {
+            // expected
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testChunksAreWrittenToFile() throws Exception {
+        Path target = tmp.newFile("target").toPath();
+        Files.write(target, new byte[2 * data.length]);
+        CloudFile file = storage.getFileTo(fileUri, target);
+        assertEquals("contentLength", data.length, file.getContentLength());
+        assertNull("input stream", file.getInputStream());
+        assertArrayEquals("file", data, Files.readAllBytes(target));
+        assertEquals("ranged GETs", 10, server.countRequests("GET", null));
+    }
+
+    @Test(timeout = 10000)
+    public void testChunksAreWrittenFromChannelPosition() throws Exception {
+        Path target = tmp.newFile("target").toPath();
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] {1, 2, 3}));
+            storage.getFileTo(fileUri, channel);
+            assertEquals("position", 3 + data.length, channel.position());
+        }
+        byte[] written = Files.readAllBytes(target);
+        assertArrayEquals("head", new byte[] {1, 2, 3}, Arrays.copyOf(written, 3));
+        assertArrayEquals("file", data, Arrays.copyOfRange(written, 3, written.length));
+
+        // other channels are written in order from a single GET
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        storage.getFileTo(fileUri, Channels.newChannel(bos));
+        assertArrayEquals("stream", data, bos.toByteArray());
+        assertEquals("GETs", 11, server.countRequests("GET", null));
+    }
+
+    private void awaitRangedGets(int count) throws InterruptedException {
+        while (server.countRequests("GET", null) < count) {
+            Thread.sleep(5);
+        }
+    }
+}
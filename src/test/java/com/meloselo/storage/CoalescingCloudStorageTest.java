@@ -0,0 +1,145 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.io.ByteStreams;
+
+public class CoalescingCloudStorageTest {
+
+    private static final int BLOCK_SIZE = ChannelTransfers.BUFFER_SIZE;
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private Path root;
+    private Path spillDir;
+    private final AtomicInteger gets = new AtomicInteger();
+    private CoalescingCloudStorage storage;
+    private byte[] data;
+    private String fileUri;
+
+    @Before
+    public void setUp() throws Exception {
+        root = tmp.getRoot().toPath();
+        spillDir = Files.createDirectory(root.resolve("spill"));
+        CloudStorage counting = new ForwardingCloudStorage(
+                new FileSystemCloudStorage(Files.createDirectory(root.resolve("store"))).setSyncOnStore(false)) {
+            @Override
+            public CloudFile getFile(String fileUri) throws CloudException {
+                gets.incrementAndGet();
+                return super.getFile(fileUri);
+            }
+        };
+        storage = new CoalescingCloudStorage(counting).setMaxMemoryBytes(BLOCK_SIZE).setSpillDir(spillDir);
+        data = new byte[4 * BLOCK_SIZE + 123];
+        new Random(42).nextBytes(data);
+        fileUri = storage.storeFile("bucket", new ByteArrayInputStream(data), "big.bin",
+                "application/octet-stream", data.length, null);
+    }
+
+    @Test
+    public void testConcurrentReadersShareOneFetch() throws Exception {
+        List<InputStream> streams = new ArrayList<InputStream>();
+        streams.add(storage.getFile(fileUri).getInputStream());
+        // read past the memory buffer into the spill file before the others join
+        byte[] head = new byte[2 * BLOCK_SIZE];
+        ByteStreams.readFully(streams.get(0), head);
+        assertEquals("spill files", 1, countSpillFiles());
+
+        for (int i = 0; i < 3; i++) {
+            CloudFile file = storage.getFile(fileUri);
+            assertEquals("contentLength", data.length, file.getContentLength());
+            streams.add(file.getInputStream());
+        }
+        assertEquals("GETs", 1, gets.get());
+        assertEquals("fetches", 1, storage.getFetchCount());
+        assertEquals("coalesced", 3, storage.getCoalescedCount());
+
+        ExecutorService executor = Executors.newFixedThreadPool(streams.size());
+        try {
+            List<Future<byte[]>> reads = new ArrayList<Future<byte[]>>();
+            for (final InputStream in : streams) {
+                reads.add(executor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws IOException {
+                        try {
+                            return ByteStreams.toByteArray(in);
+                        } finally {
+                            in.close();
+                        }
+                    }
+                }));
+            }
+            byte[] rest = reads.get(0).get(10, TimeUnit.SECONDS);
+            assertEquals("first reader rest", data.length - head.length, rest.length);
+            for (int i = 1; i < reads.size(); i++) {
+                assertArrayEquals("late joiner " + i + " read from offset 0", data,
+                        reads.get(i).get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals("GETs", 1, gets.get());
+        assertEquals("in flight", 0, storage.getInFlightCount());
+        assertEquals("spill files", 0, countSpillFiles());
+    }
+
+    @Test
+    public void testLastCloseDeletesSpillFile() throws Exception {
+        InputStream first = storage.getFile(fileUri).getInputStream();
+        ByteStreams.readFully(first, new byte[2 * BLOCK_SIZE]);
+        InputStream second = storage.getFile(fileUri).getInputStream();
+        byte[] head = new byte[BLOCK_SIZE + 10];
+        ByteStreams.readFully(second, head);
+        assertArrayEquals("head", Arrays.copyOf(data, head.length), head);
+        assertEquals("in flight", 1, storage.getInFlightCount());
+
+        first.close();
+        assertEquals("spill files after first close", 1, countSpillFiles());
+        assertEquals("in flight after first close", 1, storage.getInFlightCount());
+
+        second.close();
+        assertEquals("spill files after last close", 0, countSpillFiles());
+        assertEquals("in flight after last close", 0, storage.getInFlightCount());
+
+        try (InputStream in = storage.getFile(fileUri).getInputStream()) {
+            assertArrayEquals("refetched", data, ByteStreams.toByteArray(in));
+        }
+        assertEquals("GETs", 2, gets.get());
+    }
+
+    private int countSpillFiles() throws IOException {
+        int count = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(spillDir)) {
+            for (Path file : files) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
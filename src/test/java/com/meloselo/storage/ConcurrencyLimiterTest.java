@@ -0,0 +1,70 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+
+public class ConcurrencyLimiterTest {
+
+    @Test
+    public void testThrottlingShrinksLimitOncePerRoundTrip() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(new ConcurrencyLimitConfig()
+                .setInitialLimit(10).setBackoffRatio(0.5));
+        List<ConcurrencyLimiter.Permit> permits = new ArrayList<ConcurrencyLimiter.Permit>();
+        for (int i = 0; i < 4; i++) {
+            permits.add(limiter.acquire(CloudOperation.STORE_FILE, "bucket", "key" + i));
+        }
+        for (ConcurrencyLimiter.Permit permit : permits) {
+            permit.release(slowDown());
+        }
+        assertEquals("limit", 5, limiter.getLimit(CloudOperation.STORE_FILE, "bucket", "key"));
+        assertEquals("read limit", 10, limiter.getLimit(CloudOperation.GET_FILE, "bucket", "key"));
+        assertEquals("throttled", 4, limiter.getThrottledCount());
+
+        limiter.acquire(CloudOperation.DELETE_FILE, "bucket", "key").release(slowDown());
+        assertEquals("limit after next round trip", 2, limiter.getLimit(CloudOperation.STORE_FILE, "bucket", "key"));
+    }
+
+    @Test
+    public void testUsedLimitGrows() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(new ConcurrencyLimitConfig().setInitialLimit(2));
+        for (int i = 0; i < 10; i++) {
+            ConcurrencyLimiter.Permit first = limiter.acquire(CloudOperation.GET_FILE, "bucket", "key");
+            ConcurrencyLimiter.Permit second = limiter.acquire(CloudOperation.GET_FILE, "bucket", "key");
+            first.release(null);
+            second.release(null);
+        }
+        assertTrue("limit grew", limiter.getLimit(CloudOperation.GET_FILE, "bucket", "key") > 2);
+    }
+
+    @Test
+    public void testFullLimitTimesOut() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(new ConcurrencyLimitConfig()
+                .setInitialLimit(1).setQueueTimeoutMillis(10).setPrefixLength(1));
+        limiter.acquire(CloudOperation.STORE_FILE, "bucket", "a1");
+        limiter.acquire(CloudOperation.STORE_FILE, "bucket", "b1").release(null);
+        try {
+            limiter.acquire(CloudOperation.STORE_FILE, "bucket", "a2");
+            fail("acquired over the limit");
+        } catch (AmazonClientException ex) {
+            //expected
+        }
+        assertEquals("queue timeouts", 1, limiter.getQueueTimeoutCount());
+    }
+
+    private static AmazonServiceException slowDown() {
+        AmazonServiceException ex = new AmazonServiceException("Please reduce your request rate.");
+        ex.setStatusCode(503);
+        ex.setErrorCode("SlowDown");
+        return ex;
+    }
+}
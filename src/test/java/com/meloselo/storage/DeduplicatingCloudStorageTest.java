@@ -0,0 +1,101 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+
+public class DeduplicatingCloudStorageTest {
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private Path root;
+    private DeduplicatingCloudStorage storage;
+
+    @Before
+    public void setUp() throws IOException {
+        root = tmp.getRoot().toPath();
+        FileSystemCloudStorage fs = new FileSystemCloudStorage(root).setSyncOnStore(false);
+        storage = new DeduplicatingCloudStorage(fs, FileSystemCloudStorage.FS_SCHEME,
+                FileSystemCloudStorage.LOCAL_REGION).setMinFileSize(16);
+    }
+
+    @Test
+    public void testSameContentIsStoredOnce() throws Exception {
+        byte[] data = content(1000);
+        String first = storage.storeFile("bucket", new ByteArrayInputStream(data), "a", "text/plain", -1,
+                Collections.singletonMap("userid", "1"));
+        String second = storage.storeFile("bucket", new ByteArrayInputStream(data), "b", "text/plain",
+                data.length, Collections.singletonMap("userid", "2"));
+        assertEquals("uploads", 1, storage.getUploadCount());
+        assertEquals("deduplicated", 1, storage.getDeduplicatedCount());
+        assertEquals("deduplicated bytes", data.length, storage.getDeduplicatedBytes());
+
+        CloudFile file = storage.getFile(second);
+        assertArrayEquals("content", data, read(file.getInputStream()));
+        assertEquals("contentLength", data.length, file.getContentLength());
+        assertEquals("metaData", Collections.singletonMap("userid", "2"), file.getMetaData());
+        assertEquals("eTag", Hashing.md5().hashBytes(data).toString(), file.getETag());
+        assertNull("unchanged file returned", storage.getFileIfChanged(first, file.getETag()));
+
+        CloudFile range = storage.getFile(first, ByteRange.of(10, 19));
+        assertArrayEquals("range", Arrays.copyOfRange(data, 10, 20), read(range.getInputStream()));
+    }
+
+    @Test
+    public void testSmallFileIsStoredAsIs() throws Exception {
+        String fileUri = storage.storeFile("bucket", new ByteArrayInputStream(new byte[] {1, 2}), "small", null,
+                2, null);
+        assertArrayEquals("content", new byte[] {1, 2}, read(storage.getFile(fileUri).getInputStream()));
+        assertEquals("uploads", 0, storage.getUploadCount());
+    }
+
+    @Test
+    public void testCorruptContentFailsRead() throws Exception {
+        byte[] data = content(100);
+        String fileUri = storage.storeFile("bucket", new ByteArrayInputStream(data), "a", null, data.length, null);
+        Path contentPath = root.resolve("bucket").resolve(".cas")
+                .resolve(Hashing.sha256().hashBytes(data).toString());
+        data[50]++;
+        Files.write(contentPath, data);
+        try {
+            read(storage.getFile(fileUri).getInputStream());
+            fail("corrupt content read");
+        } catch (IOException ex) {
+            //expected
+        }
+    }
+
+    private static byte[] content(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        return data;
+    }
+
+    private static byte[] read(InputStream is) throws IOException {
+        try {
+            return ByteStreams.toByteArray(is);
+        } finally {
+            is.close();
+        }
+    }
+}
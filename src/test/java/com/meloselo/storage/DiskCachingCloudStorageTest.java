@@ -0,0 +1,162 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.io.ByteStreams;
+
+public class DiskCachingCloudStorageTest {
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private final AtomicInteger gets = new AtomicInteger();
+    private final AtomicInteger revalidations = new AtomicInteger();
+    private FileSystemCloudStorage fs;
+    private Path cacheDir;
+    private DiskCachingCloudStorage storage;
+
+    @Before
+    public void setUp() throws IOException {
+        fs = new FileSystemCloudStorage(tmp.newFolder("store").toPath()).setSyncOnStore(false);
+        CloudStorage counting = new ForwardingCloudStorage(fs) {
+            @Override
+            public CloudFile getFile(String fileUri) throws CloudException {
+                gets.incrementAndGet();
+                return super.getFile(fileUri);
+            }
+
+            @Override
+            public CloudFile getFileIfChanged(String fileUri, String eTag) throws CloudException {
+                revalidations.incrementAndGet();
+                return super.getFileIfChanged(fileUri, eTag);
+            }
+        };
+        cacheDir = tmp.getRoot().toPath().resolve("cache");
+        storage = new DiskCachingCloudStorage(counting, cacheDir, 250);
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsedBytes() throws Exception {
+        String a = fs.storeFile("bucket", new ByteArrayInputStream(content(100, 'a')), "a", "text/plain", 100, null);
+        String b = fs.storeFile("bucket", new ByteArrayInputStream(content(100, 'b')), "b", "text/plain", 100, null);
+        String c = fs.storeFile("bucket", new ByteArrayInputStream(content(100, 'c')), "c", "text/plain", 100, null);
+        read(a);
+        read(b);
+        assertEquals("cached bytes", 200, storage.getCachedBytes());
+        assertArrayEquals("hit", content(100, 'a'), read(a));
+        assertEquals("hits", 1, storage.getHitCount());
+
+        // b is the least recently used and goes to make room for c
+        assertArrayEquals("c", content(100, 'c'), read(c));
+        assertEquals("entries", 2, storage.getEntryCount());
+        assertEquals("cached bytes", 200, storage.getCachedBytes());
+        assertEquals("cache files", 2, countCacheFiles());
+        assertEquals("gets before", 3, gets.get());
+        read(a);
+        assertEquals("a still cached", 3, gets.get());
+        assertArrayEquals("b refetched", content(100, 'b'), read(b));
+        assertEquals("b evicted", 4, gets.get());
+    }
+
+    @Test
+    public void testStaleEntryIsRevalidatedWithETag() throws Exception {
+        storage.setRevalidateAfterMillis(0);
+        String fileUri = fs.storeFile("bucket", new ByteArrayInputStream(content(50, 'a')), "f", "text/plain",
+                50, null);
+        read(fileUri);
+        Thread.sleep(5);
+        assertArrayEquals("unchanged", content(50, 'a'), read(fileUri));
+        assertEquals("revalidations", 1, revalidations.get());
+        assertEquals("gets", 1, gets.get());
+        assertEquals("hits", 1, storage.getHitCount());
+
+        fs.storeFile("bucket", new ByteArrayInputStream(content(60, 'b')), "f", "text/plain", 60, null);
+        Thread.sleep(5);
+        assertArrayEquals("changed", content(60, 'b'), read(fileUri));
+        assertEquals("revalidations", 2, revalidations.get());
+        assertEquals("cached bytes", 60, storage.getCachedBytes());
+    }
+
+    @Test
+    public void testStoreWritesThroughAndDeleteInvalidates() throws Exception {
+        String fileUri = storage.storeFile("bucket", new ByteArrayInputStream(content(80, 'a')), "f",
+                "text/plain", 80, null);
+        assertArrayEquals("written through", content(80, 'a'), read(fileUri));
+        assertEquals("gets", 0, gets.get());
+
+        storage.storeFile("bucket", new ByteArrayInputStream(content(90, 'b')), "f", "text/plain", 90, null);
+        assertArrayEquals("replaced", content(90, 'b'), read(fileUri));
+        assertEquals("cache files", 1, countCacheFiles());
+
+        storage.deleteFile(fileUri);
+        assertEquals("entries", 0, storage.getEntryCount());
+        assertEquals("cache files", 0, countCacheFiles());
+        assertFalse("deleted", storage.exists(fileUri));
+    }
+
+    @Test
+    public void testStaleWrittenThroughEntryIsRefetched() throws Exception {
+        storage.setRevalidateAfterMillis(0);
+        String fileUri = storage.storeFile("bucket", new ByteArrayInputStream(content(80, 'a')), "f",
+                "text/plain", 80, null);
+        fs.storeFile("bucket", new ByteArrayInputStream(content(70, 'b')), "f", "text/plain", 70, null);
+        Thread.sleep(5);
+        assertArrayEquals("refetched", content(70, 'b'), read(fileUri));
+        assertEquals("revalidations", 0, revalidations.get());
+        assertEquals("gets", 1, gets.get());
+    }
+
+    @Test
+    public void testLargeFilesBypassCache() throws Exception {
+        storage.setMaxEntrySize(64);
+        String stored = storage.storeFile("bucket", new ByteArrayInputStream(content(100, 'a')), "stored",
+                "text/plain", 100, null);
+        String fetched = fs.storeFile("bucket", new ByteArrayInputStream(content(100, 'b')), "fetched",
+                "text/plain", 100, null);
+        assertArrayEquals("stored", content(100, 'a'), read(stored));
+        assertArrayEquals("fetched", content(100, 'b'), read(fetched));
+        assertArrayEquals("fetched again", content(100, 'b'), read(fetched));
+        assertEquals("gets", 3, gets.get());
+        assertEquals("entries", 0, storage.getEntryCount());
+        assertEquals("cache files", 0, countCacheFiles());
+    }
+
+    private byte[] read(String fileUri) throws Exception {
+        try (InputStream in = storage.getFile(fileUri).getInputStream()) {
+            return ByteStreams.toByteArray(in);
+        }
+    }
+
+    private int countCacheFiles() throws IOException {
+        int count = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(cacheDir)) {
+            for (Path file : files) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static byte[] content(int length, char fill) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte) fill);
+        return data;
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+public class ExecutorAsyncCloudStorageTest {
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private final CountDownLatch proceed = new CountDownLatch(1);
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger maxRunning = new AtomicInteger();
+    private ExecutorService executor;
+    private CloudStorage blocking;
+
+    @Before
+    public void setUp() throws Exception {
+        executor = Executors.newCachedThreadPool();
+        // deletes run until proceed is counted down, ignoring interrupts
+        blocking = new ForwardingCloudStorage(new FileSystemCloudStorage(tmp.getRoot().toPath())) {
+            @Override
+            public void deleteFile(String fileUri) throws CloudException {
+                int now = running.incrementAndGet();
+                while (true) {
+                    int max = maxRunning.get();
+                    if (now <= max || maxRunning.compareAndSet(max, now)) {
+                        break;
+                    }
+                }
+                Uninterruptibles.awaitUninterruptibly(proceed);
+                running.decrementAndGet();
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        proceed.countDown();
+        executor.shutdownNow();
+    }
+
+    @Test(timeout = 10000)
+    public void testSubmitBeyondLimitDoesNotBlock() throws Exception {
+        ExecutorAsyncCloudStorage async = new ExecutorAsyncCloudStorage(blocking, executor, 2);
+        List<ListenableFuture<Void>> futures = new ArrayList<ListenableFuture<Void>>();
+        for (int i = 0; i < 10; i++) {
+            futures.add(async.deleteFileAsync("fs://local/bucket/file-" + i));
+        }
+        assertEquals("in flight", 2, async.getInFlight());
+        assertEquals("queued", 8, async.getQueued());
+
+        proceed.countDown();
+        for (ListenableFuture<Void> future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+        assertTrue("more than 2 running", maxRunning.get() <= 2);
+        assertEquals("queued after completion", 0, async.getQueued());
+    }
+
+    @Test(timeout = 10000)
+    public void testCancelWhileQueuedReleasesSlot() throws Exception {
+        ExecutorAsyncCloudStorage async = new ExecutorAsyncCloudStorage(blocking, executor, 1);
+        ListenableFuture<Void> first = async.deleteFileAsync("fs://local/bucket/first");
+        for (int i = 0; i < 5; i++) {
+            assertTrue("queued operation not cancelled",
+                    async.deleteFileAsync("fs://local/bucket/queued-" + i).cancel(false));
+        }
+
+        proceed.countDown();
+        first.get(5, TimeUnit.SECONDS);
+        async.deleteFileAsync("fs://local/bucket/after").get(5, TimeUnit.SECONDS);
+        assertEquals("queued", 0, async.getQueued());
+    }
+
+    @Test(timeout = 10000)
+    public void testCancelWhileRunningKeepsSlotUntilReturn() throws Exception {
+        ExecutorAsyncCloudStorage async = new ExecutorAsyncCloudStorage(blocking, executor, 1);
+        ListenableFuture<Void> cancelled = async.deleteFileAsync("fs://local/bucket/cancelled");
+        while (running.get() == 0) {
+            Thread.sleep(1);
+        }
+        assertTrue("running operation not cancelled", cancelled.cancel(true));
+
+        ListenableFuture<Void> next = async.deleteFileAsync("fs://local/bucket/next");
+        assertEquals("in flight after cancel", 1, async.getInFlight());
+        assertEquals("queued after cancel", 1, async.getQueued());
+
+        proceed.countDown();
+        next.get(5, TimeUnit.SECONDS);
+        assertEquals("max running", 1, maxRunning.get());
+    }
+}
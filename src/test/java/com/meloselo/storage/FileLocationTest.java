@@ -0,0 +1,49 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class FileLocationTest {
+
+    @Test
+    public void testParse() {
+        FileLocation location = FileLocation.parse("s3://US_EAST_1/mybucket/qa.file");
+        assertEquals("scheme not equal", "s3", location.getScheme());
+        assertEquals("region not equal", "US_EAST_1", location.getRegion());
+        assertEquals("bucket not equal", "mybucket", location.getBucket());
+        assertEquals("key not equal", "qa.file", location.getKey());
+        assertEquals("uri not equal", "s3://US_EAST_1/mybucket/qa.file", location.toUri());
+    }
+
+    @Test
+    public void testParseKeyWithSlash() {
+        FileLocation location = FileLocation.parse("s3://US_EAST_1/mybucket/a/b/c.jpg");
+        assertEquals("bucket not equal", "mybucket", location.getBucket());
+        assertEquals("key not equal", "a/b/c.jpg", location.getKey());
+    }
+
+    @Test
+    public void testToUri() {
+        FileLocation location = new FileLocation("US_WEST_2", "mybucket", "a/b.txt");
+        assertEquals("uri not equal", "s3://US_WEST_2/mybucket/a/b.txt", location.toUri());
+        assertEquals("parsed location not equal", location, FileLocation.parse(location.toUri()));
+    }
+
+    @Test
+    public void testParseInvalid() {
+        String[] invalid = {"", "s3:/US_EAST_1/b/k", "://r/b/k", "s3://", "s3://r", "s3://r/b", "s3://r/b/",
+            "s3:///b/k", "s3://r//k", "US_EAST_1/mybucket/file"};
+        for (String fileUri : invalid) {
+            try {
+                FileLocation.parse(fileUri);
+                fail("parsed invalid uri " + fileUri);
+            } catch (IllegalArgumentException ex) {
+                //expected
+            }
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.io.ByteStreams;
+
+public class FileSystemCloudStorageTest {
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private Path root;
+    private FileSystemCloudStorage storage;
+
+    @Before
+    public void setUp() throws IOException {
+        root = tmp.getRoot().toPath();
+        storage = new FileSystemCloudStorage(root).setSyncOnStore(false);
+    }
+
+    @Test
+    public void testStoreGetDelete() throws Exception {
+        byte[] data = "hello world".getBytes(StandardCharsets.UTF_8);
+        String fileUri = storage.storeFile("bucket", new ByteArrayInputStream(data), "dir/hello.txt", "text/plain",
+                data.length, Collections.singletonMap("userid", "42"));
+        assertEquals("fileUri", "fs://local/bucket/dir/hello.txt", fileUri);
+
+        CloudFile file = storage.getFile(fileUri);
+        assertArrayEquals("content", data, read(file.getInputStream()));
+        assertEquals("contentType", "text/plain", file.getContentType());
+        assertEquals("contentLength", data.length, file.getContentLength());
+        assertEquals("metaData", "42", file.getMetaData().get("userid"));
+        assertNull("unchanged file returned", storage.getFileIfChanged(fileUri, file.getETag()));
+
+        CloudFile range = storage.getFile(fileUri, ByteRange.of(6, 100));
+        assertEquals("range", "world", new String(read(range.getInputStream()), StandardCharsets.UTF_8));
+        assertEquals("totalLength", data.length, range.getTotalLength());
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        storage.getFileTo(fileUri, java.nio.channels.Channels.newChannel(bos));
+        assertArrayEquals("channel content", data, bos.toByteArray());
+
+        storage.deleteFile(fileUri);
+        assertFalse("file exists after delete", storage.exists(fileUri));
+        assertNull("metadata after delete", storage.getFileMetadata(fileUri));
+        assertFalse("empty directory left", Files.exists(root.resolve("bucket").resolve("dir")));
+    }
+
+    @Test
+    public void testReplaceChangesETag() throws Exception {
+        String fileUri = storage.storeFile("bucket", new ByteArrayInputStream(new byte[] {1}), "a", null, 1, null);
+        String eTag = storage.getFileMetadata(fileUri).getETag();
+        CloudOutputStream os = storage.openForWrite("bucket", "a", null, null);
+        os.write(new byte[] {2, 3});
+        os.close();
+        assertEquals("fileUri", fileUri, os.getFileUri());
+        CloudFile file = storage.getFileIfChanged(fileUri, eTag);
+        assertNotNull("changed file not returned", file);
+        assertArrayEquals("content", new byte[] {2, 3}, read(file.getInputStream()));
+    }
+
+    @Test
+    public void testCopyAndMove() throws Exception {
+        byte[] data = "copy me".getBytes(StandardCharsets.UTF_8);
+        String srcUri = storage.storeFile("bucket", new ByteArrayInputStream(data), "src", "text/plain",
+                data.length, Collections.singletonMap("userid", "42"));
+        String eTag = storage.getFileMetadata(srcUri).getETag();
+
+        String copyUri = storage.copyFile(srcUri, "other", "dir/copy");
+        assertEquals("copy uri", "fs://local/other/dir/copy", copyUri);
+        CloudFile copy = storage.getFile(copyUri);
+        assertArrayEquals("copy content", data, read(copy.getInputStream()));
+        assertEquals("copy eTag", eTag, copy.getETag());
+        assertEquals("copy metaData", "42", copy.getMetaData().get("userid"));
+
+        storage.deleteFile(srcUri);
+        assertArrayEquals("copy content after source delete", data, read(storage.getFile(copyUri).getInputStream()));
+
+        String movedUri = storage.moveFile(copyUri, "bucket", "moved");
+        assertFalse("source exists after move", storage.exists(copyUri));
+        assertFalse("empty directory left", Files.exists(root.resolve("other").resolve("dir")));
+        assertEquals("moved contentType", "text/plain", storage.getFileMetadata(movedUri).getContentType());
+
+        BatchResult result = storage.copyFiles(Collections.singletonMap(srcUri, "fs://local/bucket/x"));
+        assertEquals("failed copies", 1, result.getFailed().size());
+    }
+
+    @Test
+    public void testListFiles() throws Exception {
+        for (String name : Arrays.asList("b/2", "a", "b/1", "c/1")) {
+            storage.storeFile("bucket", new ByteArrayInputStream(new byte[0]), name, null, 0, null);
+        }
+        assertEquals("all", Arrays.asList("a", "b/1", "b/2", "c/1"), list(null));
+        assertEquals("prefix", Arrays.asList("b/1", "b/2"), list("b/"));
+        assertEquals("no match", Collections.emptyList(), list("d"));
+    }
+
+    @Test
+    public void testExpiringUrl() throws Exception {
+        storage.setUrlSigning("http://localhost:8080/files", "secret".getBytes(StandardCharsets.UTF_8));
+        URL url = storage.getExpiringUrl("fs://local/bucket/a b/c", 60);
+        assertEquals("path", "/files/bucket/a%20b/c", url.getPath());
+        String query = url.getQuery();
+        long expires = Long.parseLong(query.substring("expires=".length(), query.indexOf('&')));
+        String signature = query.substring(query.indexOf("signature=") + "signature=".length());
+        assertTrue("valid url rejected", storage.isValidUrl("bucket", "a b/c", expires, signature));
+        assertFalse("other file accepted", storage.isValidUrl("bucket", "a b/d", expires, signature));
+        assertFalse("later expiry accepted", storage.isValidUrl("bucket", "a b/c", expires + 1, signature));
+        assertFalse("expired url accepted", storage.isValidUrl("bucket", "a b/c", 1, signature));
+    }
+
+    @Test
+    public void testRejectsEscapingFilename() throws Exception {
+        try {
+            storage.storeFile("bucket", new ByteArrayInputStream(new byte[0]), "../x", null, 0, null);
+            fail("filename with .. accepted");
+        } catch (IllegalArgumentException ex) {
+            //expected
+        }
+    }
+
+    private List<String> list(String prefix) throws CloudException {
+        List<String> names = new ArrayList<String>();
+        CloudFileIterator files = storage.listFiles("bucket", prefix);
+        try {
+            while (files.hasNext()) {
+                names.add(storage.parseFileLocation(files.next().getFileUri()).getKey());
+            }
+        } finally {
+            files.close();
+        }
+        return names;
+    }
+
+    @Test
+    public void testConcurrentStoresKeepDataAndMetadataTogether() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Void>> writers = new ArrayList<Future<Void>>();
+            for (int w = 0; w < 3; w++) {
+                final String version = Integer.toString(w);
+                writers.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        byte[] data = version.getBytes(StandardCharsets.UTF_8);
+                        for (int i = 0; i < 200; i++) {
+                            storage.storeFile("bucket", new ByteArrayInputStream(data), "key", "text/plain", 0,
+                                    Collections.singletonMap("version", version));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (int i = 0; i < 500; i++) {
+                try {
+                    CloudFile file = storage.getFile("fs://local/bucket/key");
+                    assertEquals("data and metadata of different stores", file.getMetaData().get("version"),
+                            new String(read(file.getInputStream()), StandardCharsets.UTF_8));
+                } catch (CloudException ex) {
+                    //not stored yet
+                }
+            }
+            for (Future<Void> writer : writers) {
+                writer.get();
+            }
+            CloudFile file = storage.getFile("fs://local/bucket/key");
+            assertEquals("last store", file.getMetaData().get("version"),
+                    new String(read(file.getInputStream()), StandardCharsets.UTF_8));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static byte[] read(InputStream is) throws IOException {
+        try {
+            return ByteStreams.toByteArray(is);
+        } finally {
+            is.close();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class InstrumentedCloudStorageTest {
+
+    private static final byte[] DATA = "instrumented content".getBytes(StandardCharsets.UTF_8);
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private final AtomicInteger storeFileCalls = new AtomicInteger();
+    private final AtomicInteger getFileCalls = new AtomicInteger();
+    private final CloudMetrics metrics = new CloudMetrics();
+    private InstrumentedCloudStorage storage;
+
+    @Before
+    public void setUp() throws Exception {
+        // counts the calls the spooling defaults of ForwardingCloudStorage would make
+        CloudStorage counting = new ForwardingCloudStorage(
+                new FileSystemCloudStorage(tmp.newFolder("store").toPath()).setSyncOnStore(false)) {
+            @Override
+            public String storeFile(String bucket, InputStream is, String filename, String contentType,
+                    long contentLength, Map<String, String> metaData) throws CloudException {
+                storeFileCalls.incrementAndGet();
+                return super.storeFile(bucket, is, filename, contentType, contentLength, metaData);
+            }
+
+            @Override
+            public CloudFile getFile(String fileUri) throws CloudException {
+                getFileCalls.incrementAndGet();
+                return super.getFile(fileUri);
+            }
+
+            @Override
+            public String storeFileFrom(String bucket, Path path, String filename, String contentType,
+                    Map<String, String> metaData) throws CloudException {
+                return delegate().storeFileFrom(bucket, path, filename, contentType, metaData);
+            }
+
+            @Override
+            public CloudOutputStream openForWrite(String bucket, String filename, String contentType,
+                    Map<String, String> metaData) throws CloudException {
+                return delegate().openForWrite(bucket, filename, contentType, metaData);
+            }
+
+            @Override
+            public CloudFile getFileTo(String fileUri, Path path) throws CloudException {
+                return delegate().getFileTo(fileUri, path);
+            }
+
+            @Override
+            public CloudFile getFileTo(String fileUri, WritableByteChannel channel) throws CloudException {
+                return delegate().getFileTo(fileUri, channel);
+            }
+        };
+        storage = new InstrumentedCloudStorage(counting, metrics);
+    }
+
+    @Test
+    public void testFileTransfersAreForwardedAndReported() throws Exception {
+        Path source = tmp.newFile("source").toPath();
+        Files.write(source, DATA);
+        String fileUri = storage.storeFileFrom("bucket", source, "from-path", "text/plain", null);
+
+        CloudOutputStream out = storage.openForWrite("bucket", "streamed", "text/plain", null);
+        out.write(DATA);
+        out.close();
+        assertEquals("streamed uri", "fs://local/bucket/streamed", out.getFileUri());
+
+        Path target = tmp.getRoot().toPath().resolve("target");
+        assertEquals("contentLength", DATA.length, storage.getFileTo(fileUri, target).getContentLength());
+        assertArrayEquals("file", DATA, Files.readAllBytes(target));
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        storage.getFileTo(out.getFileUri(), Channels.newChannel(bos));
+        assertArrayEquals("channel", DATA, bos.toByteArray());
+
+        assertEquals("storeFile calls", 0, storeFileCalls.get());
+        assertEquals("getFile calls", 0, getFileCalls.get());
+        assertStats(CloudOperation.STORE_FILE_FROM, 1, DATA.length);
+        assertStats(CloudOperation.OPEN_FOR_WRITE, 1, DATA.length);
+        assertStats(CloudOperation.GET_FILE_TO, 2, 2 * DATA.length);
+        assertEquals("store file", 0, metrics.getStats(CloudOperation.STORE_FILE).getCount());
+        assertEquals("get file", 0, metrics.getStats(CloudOperation.GET_FILE).getCount());
+    }
+
+    @Test
+    public void testAbortedStreamIsReportedWithoutTransfer() throws Exception {
+        CloudOutputStream out = storage.openForWrite("bucket", "aborted", "text/plain", null);
+        out.write(DATA);
+        assertEquals("in flight", 1, metrics.getStats(CloudOperation.OPEN_FOR_WRITE).getInFlight());
+        out.abort();
+        assertNull("aborted uri", out.getFileUri());
+        assertStats(CloudOperation.OPEN_FOR_WRITE, 1, 0);
+        assertFalse("aborted file stored", storage.exists("fs://local/bucket/aborted"));
+    }
+
+    private void assertStats(CloudOperation operation, long count, long bytes) {
+        OperationStats stats = metrics.getStats(operation);
+        assertEquals(operation + " count", count, stats.getCount());
+        assertEquals(operation + " errors", 0, stats.getErrors());
+        assertEquals(operation + " in flight", 0, stats.getInFlight());
+        assertEquals(operation + " bytes", bytes, stats.getBytes());
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBucketBounds() {
+        long[] values = {0, 1, 31, 32, 33, 63, 64, 65, 1000, 123456789L, (1L << 40) - 1};
+        for (long value : values) {
+            int index = LatencyHistogram.index(value);
+            assertTrue("lower bound above " + value, LatencyHistogram.lowerBound(index) <= value);
+            assertTrue("upper bound below " + value, LatencyHistogram.upperBound(index) >= value);
+            assertTrue("bucket of " + value + " too wide",
+                    LatencyHistogram.upperBound(index) - LatencyHistogram.lowerBound(index) <= value / 32);
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals("empty percentile not 0", 0, histogram.getValueAtPercentile(99));
+        for (long i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000);
+        }
+        assertEquals("count not equal", 1000, histogram.getCount());
+        assertEquals("max not equal", 1000000, histogram.getMax());
+        assertEquals("mean not equal", 500500, histogram.getMean(), 0.001);
+        assertEquals("p50 not within 3%", 500000, histogram.getValueAtPercentile(50), 500000 * 0.03);
+        assertEquals("p99 not within 3%", 990000, histogram.getValueAtPercentile(99), 990000 * 0.03);
+        assertEquals("p100 not max", 1000000, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void testMetricsErrorsByCause() {
+        CloudMetrics metrics = new CloudMetrics();
+        metrics.onStart(CloudOperation.GET_FILE, "mybucket");
+        assertEquals("in flight not counted", 1, metrics.getInFlight());
+        metrics.onComplete(CloudOperation.GET_FILE, "mybucket", 1000,
+                new CloudException("failed", new IllegalStateException()));
+        metrics.onTransfer(CloudOperation.GET_FILE, "mybucket", 100, 1000);
+
+        OperationStats stats = metrics.getStats(CloudOperation.GET_FILE, "mybucket");
+        assertEquals("in flight not released", 0, stats.getInFlight());
+        assertEquals("errors not equal", 1, stats.getErrors());
+        assertEquals("cause not counted", Long.valueOf(1), stats.getErrorsByCause().get("IllegalStateException"));
+        assertEquals("bytes not equal", 100, stats.getBytes());
+        assertEquals("total not equal", 1, metrics.getStats(CloudOperation.GET_FILE).getCount());
+    }
+}
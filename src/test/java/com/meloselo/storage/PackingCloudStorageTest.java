@@ -0,0 +1,143 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.io.ByteStreams;
+
+public class PackingCloudStorageTest {
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private Path root;
+    private FileSystemCloudStorage fs;
+    private PackingCloudStorage storage;
+
+    @Before
+    public void setUp() throws IOException {
+        root = tmp.getRoot().toPath();
+        fs = new FileSystemCloudStorage(root).setSyncOnStore(false);
+        storage = new PackingCloudStorage(fs, FileSystemCloudStorage.FS_SCHEME).setLingerMillis(200);
+    }
+
+    @After
+    public void tearDown() {
+        storage.close();
+    }
+
+    @Test
+    public void testConcurrentStoresShareAPack() throws Exception {
+        List<String> fileUris = storeConcurrently(20);
+        assertEquals("packs", 1, storage.getPackCount());
+        assertEquals("packed files", 20, storage.getPackedCount());
+        for (int i = 0; i < fileUris.size(); i++) {
+            String fileUri = fileUris.get(i);
+            assertTrue("not a pack uri " + fileUri, fileUri.startsWith("pack://local/bucket/"));
+            assertTrue("uri does not end with filename", fileUri.endsWith("/dir/file-" + i));
+            CloudFile file = storage.getFile(fileUri);
+            assertEquals("content", "content of file " + i, read(file.getInputStream()));
+            assertEquals("contentType", "text/plain", file.getContentType());
+            assertEquals("metaData", Integer.toString(i), file.getMetaData().get("userid"));
+            assertNull("unchanged file returned", storage.getFileIfChanged(fileUri, file.getETag()));
+        }
+        CloudFile range = storage.getFile(fileUris.get(3), ByteRange.of(11, 100));
+        assertEquals("range", "file 3", read(range.getInputStream()));
+    }
+
+    @Test
+    public void testLargeFileIsNotPacked() throws Exception {
+        byte[] data = new byte[100];
+        String fileUri = storage.setMaxEntrySize(10).storeFile("bucket", new ByteArrayInputStream(data), "large",
+                null, data.length, null);
+        assertEquals("fileUri", "fs://local/bucket/large", fileUri);
+        assertEquals("packs", 0, storage.getPackCount());
+    }
+
+    @Test
+    public void testUnknownLengthIsNotPacked() throws Exception {
+        byte[] data = "content of unknown length".getBytes(StandardCharsets.UTF_8);
+        String fileUri = storage.storeFile("bucket", new ByteArrayInputStream(data), "unknown", null, 0, null);
+        assertEquals("fileUri", "fs://local/bucket/unknown", fileUri);
+        assertEquals("content", "content of unknown length", read(storage.getFile(fileUri).getInputStream()));
+        assertEquals("packs", 0, storage.getPackCount());
+    }
+
+    @Test
+    public void testDeleteAndCompact() throws Exception {
+        List<String> fileUris = storeConcurrently(10);
+        PackingCloudStorage other = new PackingCloudStorage(fs, FileSystemCloudStorage.FS_SCHEME);
+        try {
+            assertTrue("file not found by another storage", other.exists(fileUris.get(9)));
+
+            storage.deleteFiles(fileUris.subList(0, 8));
+            assertFalse("deleted file exists", storage.exists(fileUris.get(0)));
+            for (int i = 0; i < 100 && storage.getCompactionCount() == 0; i++) {
+                Thread.sleep(50);
+            }
+            assertEquals("compactions", 1, storage.getCompactionCount());
+            assertEquals("content read with stale index", "content of file 9",
+                    read(other.getFile(fileUris.get(9)).getInputStream()));
+
+            storage.deleteFiles(fileUris.subList(8, 10));
+            assertFalse("empty pack left", Files.exists(root.resolve("bucket").resolve(".packs")));
+        } finally {
+            other.close();
+        }
+    }
+
+    private List<String> storeConcurrently(int count) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(count);
+        try {
+            List<Future<String>> stores = new ArrayList<Future<String>>();
+            for (int i = 0; i < count; i++) {
+                final int n = i;
+                stores.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws CloudException {
+                        byte[] data = ("content of file " + n).getBytes(StandardCharsets.UTF_8);
+                        return storage.storeFile("bucket", new ByteArrayInputStream(data), "dir/file-" + n,
+                                "text/plain", data.length, Collections.singletonMap("userid", Integer.toString(n)));
+                    }
+                }));
+            }
+            List<String> fileUris = new ArrayList<String>();
+            for (Future<String> store : stores) {
+                fileUris.add(store.get());
+            }
+            return fileUris;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static String read(InputStream is) throws IOException {
+        try {
+            return new String(ByteStreams.toByteArray(is), StandardCharsets.UTF_8);
+        } finally {
+            is.close();
+        }
+    }
+}
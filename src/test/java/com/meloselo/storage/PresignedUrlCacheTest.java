@@ -0,0 +1,89 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.URL;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.HttpMethod;
+import com.amazonaws.regions.Regions;
+
+public class PresignedUrlCacheTest {
+
+    private LocalS3Server server;
+    private PresignedUrlCache cache;
+    private S3CloudStorage storage;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new LocalS3Server();
+        cache = new PresignedUrlCache(100, 3600);
+        storage = new S3CloudStorage(server.newClient(), null, Regions.US_EAST_1).setPresignedUrlCache(cache);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    @Test
+    public void testUrlIsReusedForSameFile() throws Exception {
+        URL url = storage.getExpiringUrl("s3://US_EAST_1/bucket/file", 600);
+        assertSame("reused", url, storage.getExpiringUrl("s3://US_EAST_1/bucket/file", 600));
+        // still valid for more than half of the shorter expiry, and not longer than it
+        assertSame("shorter expiry", url, storage.getExpiringUrl("s3://US_EAST_1/bucket/file", 601));
+        assertNotEquals("other file", url, storage.getExpiringUrl("s3://US_EAST_1/bucket/other", 600));
+        assertEquals("hits", 2, cache.getHitCount());
+        assertEquals("misses", 2, cache.getMissCount());
+        assertEquals("size", 2, cache.size());
+        assertEquals("signing makes no requests", 0, server.getRequestLog().size());
+    }
+
+    @Test
+    public void testUrlIsNotReusedBeyondRequestedExpiry() throws Exception {
+        URL url = storage.getExpiringUrl("bucket", "file", 600);
+        URL shorter = storage.getExpiringUrl("bucket", "file", 60);
+        assertNotEquals("url valid longer than requested", url, shorter);
+        assertSame("replaced by the shorter url", shorter, storage.getExpiringUrl("bucket", "file", 60));
+        assertEquals("hits", 1, cache.getHitCount());
+    }
+
+    @Test
+    public void testUrlIsNotReusedBelowMinRemainingRatio() {
+        URL url = newUrl("file");
+        cache.put("bucket", "file", HttpMethod.GET, url, 100000);
+        assertSame("half left", url, cache.get("bucket", "file", HttpMethod.GET, 100, 50000));
+        assertNull("less than half left", cache.get("bucket", "file", HttpMethod.GET, 100, 50001));
+        assertNull("other method", cache.get("bucket", "file", HttpMethod.PUT, 100, 50000));
+        assertNull("longer than requested", cache.get("bucket", "file", HttpMethod.GET, 40, 50000));
+
+        cache.setMinRemainingRatio(0.9);
+        assertNull("below ratio", cache.get("bucket", "file", HttpMethod.GET, 100, 50000));
+        assertSame("above ratio", url, cache.get("bucket", "file", HttpMethod.GET, 100, 10000));
+        assertEquals("hits", 2, cache.getHitCount());
+        assertEquals("misses", 4, cache.getMissCount());
+
+        cache.clear();
+        assertNull("cleared", cache.get("bucket", "file", HttpMethod.GET, 100, 50000));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMinRemainingRatioIsChecked() {
+        cache.setMinRemainingRatio(0);
+    }
+
+    private static URL newUrl(String filename) {
+        try {
+            return new URL("https://bucket.s3.amazonaws.com/" + filename);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.regions.Regions;
+import com.google.common.io.ByteStreams;
+
+/**
+ * routing between two LocalS3Servers standing in for the US_EAST_1 and US_WEST_2 regions
+ */
+public class RegionRoutingCloudStorageTest {
+
+    private final List<Regions> created = new ArrayList<Regions>();
+    private LocalS3Server east;
+    private LocalS3Server west;
+    private RegionRoutingCloudStorage storage;
+
+    @Before
+    public void setUp() throws IOException {
+        east = new LocalS3Server();
+        west = new LocalS3Server();
+        storage = new RegionRoutingCloudStorage(new RegionRoutingCloudStorage.StorageFactory() {
+            @Override
+            public S3CloudStorage create(Regions region) {
+                created.add(region);
+                LocalS3Server server = region == Regions.US_WEST_2 ? west : east;
+                return new S3CloudStorage(server.newClient(), null, region);
+            }
+        }, Regions.US_EAST_1).setBucketRegion("west", Regions.US_WEST_2);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        east.close();
+        west.close();
+    }
+
+    @Test
+    public void testFilesAreRoutedByBucketRegion() throws Exception {
+        assertEquals("created before use", 0, created.size());
+        String eastUri = store("east", "file", "east content");
+        String westUri = store("west", "file", "west content");
+        assertEquals("east uri", "s3://US_EAST_1/east/file", eastUri);
+        assertEquals("west uri", "s3://US_WEST_2/west/file", westUri);
+        assertTrue("stored in east", east.exists("east", "file"));
+        assertFalse("stored in west", west.exists("east", "file"));
+        assertTrue("west stored in west", west.exists("west", "file"));
+
+        assertEquals("east read", "east content", read(storage.getFile(eastUri)));
+        assertEquals("west read", "west content", read(storage.getFile(westUri)));
+        assertTrue("west exists", storage.exists(westUri));
+        assertEquals("created once per region", Arrays.asList(Regions.US_EAST_1, Regions.US_WEST_2), created);
+        assertSame("storage", storage.getStorage(Regions.US_WEST_2), storage.getStorage(Regions.US_WEST_2));
+
+        BatchResult result = storage.deleteFiles(Arrays.asList(eastUri, westUri, "s3://NOWHERE/east/file"));
+        assertEquals("deleted", Arrays.asList(eastUri, westUri), result.getSucceeded());
+        assertNotNull("unknown region", result.getFailed().get("s3://NOWHERE/east/file"));
+        assertFalse("east deleted", east.exists("east", "file"));
+        assertFalse("west deleted", west.exists("west", "file"));
+        assertEquals("created once per region", 2, created.size());
+    }
+
+    @Test
+    public void testCopyBetweenRegions() throws Exception {
+        String eastUri = store("east", "file", "copied content");
+        String westUri = storage.copyFile(eastUri, "west", "copy");
+        assertEquals("copy uri", "s3://US_WEST_2/west/copy", westUri);
+        assertEquals("copy", "copied content", read(storage.getFile(westUri)));
+
+        String movedUri = storage.moveFile(westUri, "east", "moved");
+        assertEquals("moved", "copied content", read(storage.getFile(movedUri)));
+        assertFalse("moved source", west.exists("west", "copy"));
+    }
+
+    @Test
+    public void testReadsGoToReplicaAndFallBackToSource() throws Exception {
+        storage.addReadReplica("east", Regions.US_WEST_2, "replica");
+        String replicatedUri = store("east", "replicated", "source content");
+        String pendingUri = store("east", "pending", "pending content");
+        storage.getStorage(Regions.US_WEST_2).storeFile("replica", new ByteArrayInputStream(
+                "replica content".getBytes(StandardCharsets.UTF_8)), "replicated", "text/plain", 15, null);
+
+        assertEquals("replica", "replica content", read(storage.getFile(replicatedUri)));
+        assertEquals("range from replica", "replica", read(storage.getFile(replicatedUri, ByteRange.of(0, 6))));
+        assertEquals("not replicated yet", "pending content", read(storage.getFile(pendingUri)));
+        assertTrue("url of replica", storage.getExpiringUrl(replicatedUri, 60).getPath().startsWith("/replica/"));
+
+        // existence is answered by the source
+        storage.deleteFile(replicatedUri);
+        assertFalse("exists after delete", storage.exists(replicatedUri));
+        assertEquals("deletes are not replicated", "replica content", read(storage.getFile(replicatedUri)));
+
+        storage.removeReadReplica("east");
+        try {
+            storage.getFile(replicatedUri);
+            fail("deleted file read without replica");
+        } catch (CloudException ex) {
+            // expected
+        }
+    }
+
+    private String store(String bucket, String filename, String text) throws CloudException {
+        byte[] content = text.getBytes(StandardCharsets.UTF_8);
+        return storage.storeFile(bucket, new ByteArrayInputStream(content), filename, "text/plain", content.length,
+                null);
+    }
+
+    private static String read(CloudFile file) throws IOException {
+        try (InputStream in = file.getInputStream()) {
+            return new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8);
+        }
+    }
+}
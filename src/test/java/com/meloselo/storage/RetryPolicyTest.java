@@ -0,0 +1,43 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+
+public class RetryPolicyTest {
+
+    @Test
+    public void testDelaysWithinBounds() {
+        RetryPolicy policy = new RetryPolicy().setBaseDelayMillis(10).setMaxDelayMillis(500);
+        long delay = 0;
+        for (int i = 0; i < 1000; i++) {
+            long next = policy.nextDelayMillis(delay);
+            assertTrue("delay " + next + " below base", next >= 10);
+            assertTrue("delay " + next + " above max", next <= 500);
+            assertTrue("delay " + next + " above three times previous " + delay, next <= Math.max(10, delay) * 3);
+            delay = next;
+        }
+    }
+
+    @Test
+    public void testRetryable() {
+        RetryPolicy policy = new RetryPolicy();
+        assertTrue("503 not retryable", policy.isRetryable(serviceError(503, "SlowDown")));
+        assertTrue("500 not retryable", policy.isRetryable(serviceError(500, "InternalError")));
+        assertFalse("404 retryable", policy.isRetryable(serviceError(404, "NoSuchKey")));
+        assertFalse("client error retryable", policy.isRetryable(new AmazonClientException("failed")));
+    }
+
+    private static AmazonServiceException serviceError(int statusCode, String errorCode) {
+        AmazonServiceException ex = new AmazonServiceException("failed");
+        ex.setStatusCode(statusCode);
+        ex.setErrorCode(errorCode);
+        return ex;
+    }
+}
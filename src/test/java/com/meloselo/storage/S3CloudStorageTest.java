@@ -0,0 +1,167 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.regions.Regions;
+
+/**
+ * S3CloudStorage against a LocalS3Server, CloudStorageTest runs against S3
+ */
+public class S3CloudStorageTest {
+
+    private LocalS3Server server;
+    private S3CloudStorage storage;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new LocalS3Server();
+        storage = new S3CloudStorage(server.newClient(), null, Regions.US_EAST_1);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    @Test
+    public void testDeleteFilesReportsFailuresPerKey() throws Exception {
+        String a = store("bucket", "a");
+        String b = store("bucket", "b");
+        String c = store("other", "c");
+        server.denyDelete("bucket", "b");
+
+        BatchResult result = storage.deleteFiles(Arrays.asList(a, b, c, "not a uri"));
+        assertEquals("succeeded", Arrays.asList(a, c), result.getSucceeded());
+        assertEquals("failed", 2, result.getFailed().size());
+        assertTrue("denied key error " + result.getFailed().get(b).getMessage(),
+                result.getFailed().get(b).getMessage().contains("AccessDenied"));
+        assertNotNull("invalid uri", result.getFailed().get("not a uri"));
+        assertEquals("one request per bucket", 2, server.countRequests("POST", "delete"));
+        assertFalse("a deleted", server.exists("bucket", "a"));
+        assertTrue("b kept", server.exists("bucket", "b"));
+        assertFalse("c deleted", server.exists("other", "c"));
+    }
+
+    @Test
+    public void testMetadataIsCachedAndInvalidatedOnChange() throws Exception {
+        storage.setMetadataCache(100, 3600);
+        String fileUri = store("bucket", "file");
+        assertEquals("contentLength", 4, storage.getFileMetadata(fileUri).getContentLength());
+        assertTrue("exists", storage.exists(fileUri));
+        assertEquals("HEADs", 1, server.countRequests("HEAD", null));
+
+        // changes made by another client are not seen until the entry expires
+        S3CloudStorage other = new S3CloudStorage(server.newClient(), null, Regions.US_EAST_1);
+        other.deleteFile(fileUri);
+        assertTrue("cached after delete elsewhere", storage.exists(fileUri));
+
+        store("bucket", "file", "changed");
+        assertEquals("contentLength after store", 7, storage.getFileMetadata(fileUri).getContentLength());
+        storage.deleteFile(fileUri);
+        assertFalse("exists after delete", storage.exists(fileUri));
+        store("bucket", "file");
+        storage.getFileMetadata(fileUri);
+        storage.deleteFiles(Arrays.asList(fileUri));
+        assertNull("metadata after deleteFiles", storage.getFileMetadata(fileUri));
+        assertEquals("HEADs", 5, server.countRequests("HEAD", null));
+        assertEquals("hits", 2, storage.getMetadataCacheStats().hitCount());
+    }
+
+    @Test
+    public void testMissingFilesAreCached() throws Exception {
+        storage.setMetadataCache(100, 3600);
+        assertFalse("exists", storage.exists("s3://US_EAST_1/bucket/missing"));
+        assertNull("metadata", storage.getFileMetadata("s3://US_EAST_1/bucket/missing"));
+        assertEquals("HEADs", 1, server.countRequests("HEAD", null));
+
+        String fileUri = store("bucket", "missing");
+        assertTrue("exists after store", storage.exists(fileUri));
+        assertEquals("HEADs", 2, server.countRequests("HEAD", null));
+
+        storage.setMetadataCache(0, 3600);
+        assertNull("stats without cache", storage.getMetadataCacheStats());
+        storage.exists(fileUri);
+        assertEquals("HEADs without cache", 3, server.countRequests("HEAD", null));
+    }
+
+    @Test
+    public void testPutIsRetriedWithPolicy() throws Exception {
+        storage = new S3CloudStorage(server.newClient(new ClientConfiguration().withMaxErrorRetry(0)), null,
+                Regions.US_EAST_1)
+            .setRetryPolicy(CloudOperation.STORE_FILE, new RetryPolicy().setBaseDelayMillis(1).setMaxDelayMillis(10));
+        server.failRequests("PUT", null, 1, 500, "InternalError");
+        String fileUri = store("bucket", "file", "retried content");
+        assertEquals("PUTs", 2, server.countRequests("PUT", null));
+        assertEquals("contentLength", 15, storage.getFileMetadata(fileUri).getContentLength());
+
+        // a stream which can not be reset is sent once
+        server.failRequests("PUT", null, 1, 500, "InternalError");
+        byte[] content = "sent once".getBytes(StandardCharsets.UTF_8);
+        try {
+            storage.storeFile("bucket", new FilterInputStream(new ByteArrayInputStream(content)) {
+                @Override
+                public boolean markSupported() {
+                    return false;
+                }
+            }, "once", "text/plain", content.length, null);
+            fail("failed put of a stream without mark succeeded");
+        } catch (CloudException ex) {
+            // expected
+        }
+        assertEquals("PUTs", 3, server.countRequests("PUT", null));
+    }
+
+    @Test
+    public void testRequestsAreRetriedOnlyOnServerErrors() throws Exception {
+        storage = new S3CloudStorage(server.newClient(new ClientConfiguration().withMaxErrorRetry(0)), null,
+                Regions.US_EAST_1)
+            .setRetryPolicy(CloudOperation.GET_FILE_METADATA,
+                    new RetryPolicy().setMaxAttempts(3).setBaseDelayMillis(1).setMaxDelayMillis(10));
+        String fileUri = store("bucket", "file");
+        server.failRequests("HEAD", null, 2, 503, "SlowDown");
+        assertTrue("exists", storage.exists(fileUri));
+        assertEquals("HEADs", 3, server.countRequests("HEAD", null));
+
+        server.failRequests("HEAD", null, 3, 503, "SlowDown");
+        try {
+            storage.exists(fileUri);
+            fail("exists succeeded after maxAttempts");
+        } catch (CloudException ex) {
+            // expected
+        }
+        assertEquals("HEADs", 6, server.countRequests("HEAD", null));
+
+        server.failRequests("HEAD", null, 1, 403, "AccessDenied");
+        try {
+            storage.exists(fileUri);
+            fail("exists succeeded on AccessDenied");
+        } catch (CloudException ex) {
+            // expected
+        }
+        assertEquals("HEADs", 7, server.countRequests("HEAD", null));
+    }
+
+    private String store(String bucket, String filename) throws CloudException {
+        return store(bucket, filename, filename);
+    }
+
+    private String store(String bucket, String filename, String text) throws CloudException {
+        byte[] content = text.getBytes(StandardCharsets.UTF_8);
+        return storage.storeFile(bucket, new ByteArrayInputStream(content), filename, "text/plain", content.length,
+                null);
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.regions.Regions;
+
+public class S3ListingIteratorTest {
+
+    private static final List<String> KEYS = Arrays.asList(
+            "a/1", "a/2", "a/3", "a/4", "b/1", "b/2", "b/3", "c", "d/1", "e/f/1");
+
+    private LocalS3Server server;
+    private S3CloudStorage storage;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LocalS3Server().setMaxKeys(3);
+        storage = new S3CloudStorage(server.newClient(), null, Regions.US_EAST_1);
+        for (String key : KEYS) {
+            byte[] content = key.getBytes("UTF-8");
+            storage.storeFile("bucket", new ByteArrayInputStream(content), key, "text/plain", content.length, null);
+        }
+        storage.storeFile("other", new ByteArrayInputStream(new byte[1]), "a/1", "text/plain", 1, null);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    @Test(timeout = 10000)
+    public void testPagesAreListedInKeyOrder() throws Exception {
+        List<CloudFileSummary> files = list(storage.listFiles("bucket", null));
+        assertEquals("keys", KEYS, keys(files));
+        assertEquals("list requests", 4, countListRequests());
+        assertEquals("uri", "s3://US_EAST_1/bucket/a/1", files.get(0).getFileUri());
+        assertEquals("size", 3, files.get(0).getSize());
+        assertNotNull("eTag", files.get(0).getETag());
+        assertTrue("lastModified", files.get(0).getLastModified() > 0);
+
+        assertEquals("prefix", Arrays.asList("b/1", "b/2", "b/3"), keys(list(storage.listFiles("bucket", "b/"))));
+        assertEquals("nothing", Collections.emptyList(), list(storage.listFiles("bucket", "x")));
+    }
+
+    @Test(timeout = 10000)
+    public void testFailedPageIsThrown() throws Exception {
+        server.failRequests("GET", "marker", 1, 403, "AccessDenied");
+        CloudFileIterator it = storage.listFiles("bucket", null);
+        try {
+            int count = 0;
+            while (it.hasNext()) {
+                it.next();
+                count++;
+            }
+            fail("listed " + count + " files with a failing page");
+        } catch (UncheckedCloudException ex) {
+            // expected
+        } finally {
+            it.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testPrefixesAreListedInParallel() throws Exception {
+        List<String> keys = keys(list(storage.listFilesParallel("bucket", null, "/", 2)));
+        Collections.sort(keys);
+        assertEquals("keys", KEYS, keys);
+
+        keys = keys(list(storage.listFilesParallel("bucket", "a/", "/", 2)));
+        Collections.sort(keys);
+        assertEquals("prefix", Arrays.asList("a/1", "a/2", "a/3", "a/4"), keys);
+    }
+
+    @Test(timeout = 10000)
+    public void testParallelListingWithSmallQueue() throws Exception {
+        server.delayRequests("GET", "prefix", 20);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            CloudFileIterator it = new S3ParallelListingIterator(server.newClient(), executor,
+                    Regions.US_EAST_1.name(), "bucket", null, "/", 3, 1);
+            List<String> keys = keys(list(it));
+            Collections.sort(keys);
+            assertEquals("keys", KEYS, keys);
+        } finally {
+            executor.shutdownNow();
+        }
+        assertTrue("parallel listings " + server.getMaxDelayedRequests(), server.getMaxDelayedRequests() >= 2);
+    }
+
+    @Test(timeout = 10000)
+    public void testClosedListingStops() throws Exception {
+        CloudFileIterator it = storage.listFilesParallel("bucket", null, "/", 2);
+        assertTrue("first", it.hasNext());
+        it.next();
+        it.close();
+        assertFalse("after close", it.hasNext());
+    }
+
+    private static List<CloudFileSummary> list(CloudFileIterator it) {
+        List<CloudFileSummary> files = new ArrayList<CloudFileSummary>();
+        try {
+            while (it.hasNext()) {
+                files.add(it.next());
+            }
+        } finally {
+            it.close();
+        }
+        return files;
+    }
+
+    private static List<String> keys(List<CloudFileSummary> files) {
+        List<String> keys = new ArrayList<String>();
+        for (CloudFileSummary file : files) {
+            keys.add(FileLocation.parse(file.getFileUri()).getKey());
+        }
+        return keys;
+    }
+
+    private int countListRequests() {
+        int count = 0;
+        for (String request : server.getRequestLog()) {
+            // path style listings target the bucket, with or without a trailing slash
+            if (request.matches("GET /bucket/?(\\?.*)?")) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,195 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.google.common.io.ByteStreams;
+
+public class S3MultipartUploadTest {
+
+    private static final int PART_SIZE = MultipartUploadConfig.MIN_PART_SIZE;
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private LocalS3Server server;
+    private S3CloudStorage storage;
+    private byte[] data;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new LocalS3Server();
+        storage = new S3CloudStorage(server.newClient(new ClientConfiguration().withMaxErrorRetry(0)), null,
+                Regions.US_EAST_1)
+            .setMultipartUploadConfig(new MultipartUploadConfig()
+                .setPartSize(PART_SIZE)
+                .setMultipartThreshold(PART_SIZE)
+                .setMaxPartBuffers(4));
+        data = new byte[2 * PART_SIZE + 123];
+        new Random(42).nextBytes(data);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    @Test
+    public void testKnownLengthIsUploadedInParts() throws Exception {
+        String fileUri = storage.storeFile("bucket", new ByteArrayInputStream(data), "big.bin",
+                "application/octet-stream", data.length, null);
+        assertEquals("uri", "s3://US_EAST_1/bucket/big.bin", fileUri);
+        assertEquals("initiates", 1, server.countRequests("POST", "uploads"));
+        assertEquals("parts", 3, server.countRequests("PUT", "partNumber"));
+        assertEquals("completes", 1, server.countRequests("POST", "uploadId"));
+        assertArrayEquals("content", data, read(fileUri));
+    }
+
+    @Test
+    public void testUnknownLengthIsUploadedInPartsOnceItOutgrowsOne() throws Exception {
+        String fileUri = storage.storeFile("bucket", new ByteArrayInputStream(data), "big.bin",
+                "application/octet-stream", 0, null);
+        assertEquals("parts", 3, server.countRequests("PUT", "partNumber"));
+        assertArrayEquals("content", data, read(fileUri));
+
+        byte[] small = "small file of unknown length".getBytes("UTF-8");
+        String smallUri = storage.storeFile("bucket", new ByteArrayInputStream(small), "small.txt", "text/plain",
+                0, null);
+        assertEquals("initiates", 1, server.countRequests("POST", "uploads"));
+        assertArrayEquals("small content", small, read(smallUri));
+    }
+
+    @Test
+    public void testFailedPartAbortsUpload() throws Exception {
+        server.failRequests("PUT", "partNumber", 1000, 403, "AccessDenied");
+        try {
+            storage.storeFile("bucket", new ByteArrayInputStream(data), "big.bin", "application/octet-stream",
+                    data.length, null);
+            fail("upload with failing parts succeeded");
+        } catch (CloudException ex) {
+            // expected
+        }
+        assertEquals("aborts", 1, server.countRequests("DELETE", "uploadId"));
+        assertEquals("completes", 0, server.countRequests("POST", "uploadId"));
+        assertEquals("open uploads", 0, server.getUploadCount());
+        assertFalse("stored", server.exists("bucket", "big.bin"));
+    }
+
+    @Test
+    public void testFailedPartIsRetriedWithPolicy() throws Exception {
+        storage.setRetryPolicy(CloudOperation.STORE_FILE,
+                new RetryPolicy().setBaseDelayMillis(1).setMaxDelayMillis(10));
+        server.failRequests("PUT", "partNumber", 2, 503, "SlowDown");
+        String fileUri = storage.storeFile("bucket", new ByteArrayInputStream(data), "big.bin",
+                "application/octet-stream", 0, null);
+        assertEquals("part attempts", 5, server.countRequests("PUT", "partNumber"));
+        assertEquals("aborts", 0, server.countRequests("DELETE", "uploadId"));
+        assertArrayEquals("content", data, read(fileUri));
+    }
+
+    @Test(timeout = 30000)
+    public void testLocalFilePartsAreUploadedInParallel() throws Exception {
+        Path source = tmp.newFile("source").toPath();
+        Files.write(source, data);
+        server.delayRequests("PUT", "partNumber", 200);
+        String fileUri = storage.storeFileFrom("bucket", source, "from-path.bin", "application/octet-stream", null);
+        assertEquals("parts", 3, server.countRequests("PUT", "partNumber"));
+        assertTrue("parts in flight " + server.getMaxDelayedRequests(), server.getMaxDelayedRequests() >= 2);
+        assertArrayEquals("content", data, read(fileUri));
+
+        Files.write(source, new byte[PART_SIZE - 1]);
+        storage.storeFileFrom("bucket", source, "small.bin", "application/octet-stream", null);
+        assertEquals("initiates", 1, server.countRequests("POST", "uploads"));
+        assertEquals("part size", PART_SIZE - 1, storage.getFileMetadata("bucket", "small.bin").getContentLength());
+    }
+
+    @Test(timeout = 30000)
+    public void testWrittenPartsAreUploadedWhileWriting() throws Exception {
+        server.delayRequests("PUT", "partNumber", 200);
+        CloudOutputStream out = storage.openForWrite("bucket", "streamed.bin", "application/octet-stream", null);
+        for (int off = 0; off < data.length; off += 1000) {
+            out.write(data, off, Math.min(1000, data.length - off));
+        }
+        out.close();
+        assertEquals("uri", "s3://US_EAST_1/bucket/streamed.bin", out.getFileUri());
+        assertEquals("parts", 3, server.countRequests("PUT", "partNumber"));
+        assertTrue("parts in flight " + server.getMaxDelayedRequests(), server.getMaxDelayedRequests() >= 2);
+        assertArrayEquals("content", data, read(out.getFileUri()));
+    }
+
+    @Test
+    public void testSmallWriteIsStoredWithSinglePut() throws Exception {
+        byte[] small = "small streamed file".getBytes("UTF-8");
+        CloudOutputStream out = storage.openForWrite("bucket", "small.txt", "text/plain", null);
+        out.write(small);
+        out.close();
+        assertEquals("initiates", 0, server.countRequests("POST", "uploads"));
+        assertEquals("PUTs", 1, server.countRequests("PUT", null));
+        assertArrayEquals("content", small, read(out.getFileUri()));
+        assertEquals("contentType", "text/plain", storage.getFileMetadata("bucket", "small.txt").getContentType());
+    }
+
+    @Test(timeout = 30000)
+    public void testAbortedWriteStoresNothing() throws Exception {
+        CloudOutputStream out = storage.openForWrite("bucket", "aborted.bin", "application/octet-stream", null);
+        out.write(data);
+        assertEquals("initiates", 1, server.countRequests("POST", "uploads"));
+        out.abort();
+        assertNull("uri", out.getFileUri());
+        assertEquals("aborts", 1, server.countRequests("DELETE", "uploadId"));
+        assertEquals("completes", 0, server.countRequests("POST", "uploadId"));
+        assertEquals("open uploads", 0, server.getUploadCount());
+        assertFalse("stored", server.exists("bucket", "aborted.bin"));
+        try {
+            out.write(1);
+            fail("write after abort accepted");
+        } catch (IOException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testPartsOfUnknownLengthGrow() throws Exception {
+        S3MultipartUpload upload = new S3MultipartUpload(null, new PartBufferPool(PART_SIZE, 16), null,
+                "bucket", "file", new ObjectMetadata());
+        assertEquals("first part", 1, upload.chunksPerPart(0, 1));
+        assertEquals("last part of first step", 1, upload.chunksPerPart(0, S3MultipartUpload.PARTS_PER_STEP));
+        assertEquals("second step", 2, upload.chunksPerPart(0, S3MultipartUpload.PARTS_PER_STEP + 1));
+        assertEquals("third step", 4, upload.chunksPerPart(0, 2 * S3MultipartUpload.PARTS_PER_STEP + 1));
+        assertEquals("last part", 16, upload.chunksPerPart(0, S3MultipartUpload.MAX_PARTS));
+
+        long length = 3L * PART_SIZE * S3MultipartUpload.MAX_PARTS;
+        assertEquals("known length", 3, upload.chunksPerPart(length, 1));
+        try {
+            new S3MultipartUpload(null, new PartBufferPool(PART_SIZE, 2), null, "bucket", "file",
+                    new ObjectMetadata()).chunksPerPart(length, 1);
+            fail("parts larger than the pool accepted");
+        } catch (CloudException ex) {
+            // expected
+        }
+    }
+
+    private byte[] read(String fileUri) throws Exception {
+        try (InputStream in = storage.getFile(fileUri).getInputStream()) {
+            return ByteStreams.toByteArray(in);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+
+public class StreamReleaserTest {
+
+    private static final byte[] DATA = "0123456789".getBytes();
+
+    private StreamReleaser releaser;
+    private final List<Long> opened = new ArrayList<Long>();
+
+    private final StreamReleaser.Opener opener = new StreamReleaser.Opener() {
+        @Override
+        public InputStream open(long position) {
+            opened.add(position);
+            return new ByteArrayInputStream(DATA, (int) position, DATA.length - (int) position);
+        }
+    };
+
+    @Before
+    public void setUp() {
+        releaser = new StreamReleaser(new StreamReleaseConfig().setIdleTimeoutMillis(1));
+    }
+
+    @After
+    public void tearDown() {
+        releaser.shutdown();
+    }
+
+    @Test
+    public void testIdleStreamReopensAtPosition() throws Exception {
+        InputStream is = releaser.manage(opener.open(0), opener, "file", DATA.length);
+        assertEquals("first byte", '0', is.read());
+        Thread.sleep(5);
+        releaser.reap();
+        assertEquals("open after idle", 0, releaser.getOpenCount());
+        assertEquals("idle released", 1, releaser.getIdleReleasedCount());
+
+        assertEquals("rest", "123456789", new String(ByteStreams.toByteArray(is)));
+        assertEquals("reopened at", Long.valueOf(1), opened.get(opened.size() - 1));
+        is.close();
+        assertEquals("open after close", 0, releaser.getOpenCount());
+    }
+
+    @Test
+    public void testLazyStreamSkipsWithoutOpening() throws Exception {
+        InputStream is = releaser.manage(null, opener, "file", DATA.length);
+        assertEquals("skipped", 4, is.skip(4));
+        assertTrue("opened before read", opened.isEmpty());
+        assertEquals("rest", "456789", new String(ByteStreams.toByteArray(is)));
+        assertEquals("opened at", Long.valueOf(4), opened.get(0));
+        is.close();
+        try {
+            is.read();
+            fail("read after close");
+        } catch (IOException ex) {
+            //expected
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.amazonaws.AmazonServiceException;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+public class WriteBehindCloudStorageTest {
+
+    private static final String REGION = "us-east-1";
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private final CountDownLatch proceed = new CountDownLatch(1);
+    private final Semaphore started = new Semaphore(0);
+    private volatile CloudException failure;
+    private FileSystemCloudStorage fs;
+    private CloudStorage uploads;
+    private Path spoolDir;
+    private WriteBehindCloudStorage storage;
+
+    @Before
+    public void setUp() throws Exception {
+        fs = new FileSystemCloudStorage(tmp.newFolder("store").toPath(), FileLocation.S3_SCHEME, REGION)
+            .setSyncOnStore(false);
+        // uploads fail with failure if set, else wait for proceed before storing
+        uploads = new ForwardingCloudStorage(fs) {
+            @Override
+            public String storeFile(String bucket, InputStream is, String filename, String contentType,
+                    long contentLength, Map<String, String> metaData) throws CloudException {
+                started.release();
+                if (failure != null) {
+                    throw failure;
+                }
+                Uninterruptibles.awaitUninterruptibly(proceed);
+                return super.storeFile(bucket, is, filename, contentType, contentLength, metaData);
+            }
+        };
+        spoolDir = tmp.getRoot().toPath().resolve("spool");
+        storage = new WriteBehindCloudStorage(uploads, spoolDir, 1000, REGION, 2);
+    }
+
+    @After
+    public void tearDown() {
+        proceed.countDown();
+        storage.close();
+    }
+
+    @Test(timeout = 10000)
+    public void testPendingFileIsServedFromSpool() throws Exception {
+        String fileUri = store("file", "pending content");
+        assertEquals("uri", "s3://us-east-1/bucket/file", fileUri);
+        assertTrue("exists", storage.exists(fileUri));
+        assertFalse("uploaded", fs.exists(fileUri));
+        assertEquals("content", "pending content", read(storage.getFile(fileUri)));
+        assertEquals("range", "content", read(storage.getFile(fileUri, ByteRange.of(8, 14))));
+
+        CloudFile metadata = storage.getFileMetadata(fileUri);
+        assertEquals("contentLength", 15, metadata.getContentLength());
+        assertTrue("pending eTag " + metadata.getETag(), metadata.getETag().startsWith("spool:"));
+        assertNull("unchanged", storage.getFileIfChanged(fileUri, metadata.getETag()));
+
+        proceed.countDown();
+        assertTrue("flushed", storage.flush(5, TimeUnit.SECONDS));
+        assertEquals("uploaded", "pending content", read(fs.getFile(fileUri)));
+        CloudFile uploaded = storage.getFileIfChanged(fileUri, metadata.getETag());
+        assertNotNull("pending eTag matched the uploaded file", uploaded);
+        assertEquals("refetched", "pending content", read(uploaded));
+        assertEquals("spool files", 0, countFiles(spoolDir));
+    }
+
+    @Test(timeout = 10000)
+    public void testReplacingPendingFileUploadsLatestVersion() throws Exception {
+        String fileUri = store("file", "first");
+        assertTrue("upload started", started.tryAcquire(5, TimeUnit.SECONDS));
+        store("file", "second");
+        store("file", "third");
+        assertEquals("pending", 1, storage.getPendingCount());
+        assertEquals("read", "third", read(storage.getFile(fileUri)));
+
+        proceed.countDown();
+        assertTrue("flushed", storage.flush(5, TimeUnit.SECONDS));
+        assertEquals("uploaded", "third", read(fs.getFile(fileUri)));
+        assertEquals("uploads", 2, storage.getUploadedCount());
+        assertEquals("spooled bytes", 0, storage.getSpooledBytes());
+        assertEquals("spool files", 0, countFiles(spoolDir));
+    }
+
+    @Test(timeout = 10000)
+    public void testDeleteWhileUploadingDeletesUploadedFile() throws Exception {
+        String fileUri = store("file", "deleted content");
+        assertTrue("upload started", started.tryAcquire(5, TimeUnit.SECONDS));
+        storage.deleteFile(fileUri);
+        assertFalse("exists after delete", storage.exists(fileUri));
+
+        proceed.countDown();
+        assertTrue("flushed", storage.flush(5, TimeUnit.SECONDS));
+        while (storage.getUploadedCount() == 0 || countFiles(spoolDir) > 0) {
+            Thread.sleep(5);
+        }
+        assertFalse("uploaded file not deleted", fs.exists(fileUri));
+        assertEquals("spooled bytes", 0, storage.getSpooledBytes());
+    }
+
+    @Test(timeout = 10000)
+    public void testStoreWaitsForSpoolSpace() throws Exception {
+        store("first", new byte[800]);
+        assertTrue("upload started", started.tryAcquire(5, TimeUnit.SECONDS));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<String> second = executor.submit(new Callable<String>() {
+                @Override
+                public String call() throws CloudException {
+                    return store("second", new byte[300]);
+                }
+            });
+            try {
+                second.get(200, TimeUnit.MILLISECONDS);
+                fail("store did not wait for the spool to drain");
+            } catch (TimeoutException ex) {
+                // expected, 800 + 300 is over maxSpoolBytes
+            }
+            assertEquals("spooled bytes", 800, storage.getSpooledBytes());
+
+            proceed.countDown();
+            assertEquals("second uri", "s3://us-east-1/bucket/second", second.get(5, TimeUnit.SECONDS));
+            assertTrue("flushed", storage.flush(5, TimeUnit.SECONDS));
+            assertEquals("second uploaded", 300, fs.getFileMetadata("s3://us-east-1/bucket/second")
+                .getContentLength());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testRejectedUploadsAreDeadLetteredWithoutOverwriting() throws Exception {
+        AmazonServiceException forbidden = new AmazonServiceException("Access Denied");
+        forbidden.setStatusCode(403);
+        failure = new CloudException("upload rejected", forbidden);
+
+        String fileUri = store("first", "first content");
+        assertTrue("flushed", storage.flush(5, TimeUnit.SECONDS));
+        assertEquals("dead letters", 1, storage.getDeadLetterCount());
+        assertFalse("exists", storage.exists(fileUri));
+        Path failedDir = spoolDir.resolve("failed");
+        assertEquals("failed files", 2, countFiles(failedDir));
+
+        // a storage on the same spool numbers its files after the dead letters
+        storage.close();
+        storage = new WriteBehindCloudStorage(uploads, spoolDir, 1000, REGION, 2);
+        store("second", "second content");
+        assertTrue("flushed", storage.flush(5, TimeUnit.SECONDS));
+        assertEquals("failed files", 4, countFiles(failedDir));
+        assertEquals("spool files", 0, countFiles(spoolDir));
+    }
+
+    @Test(timeout = 10000)
+    public void testSpooledFilesAreUploadedAfterRestart() throws Exception {
+        failure = new CloudException("connection reset", new IOException("connection reset"));
+        String fileUri = store("file", "spooled content");
+        assertTrue("upload attempted", started.tryAcquire(5, TimeUnit.SECONDS));
+        storage.close();
+        assertEquals("pending", 1, storage.getPendingCount());
+        // a crash while spooling leaves a temporary meta file and a data file without meta
+        Files.write(spoolDir.resolve("100.data"), new byte[10]);
+        Files.write(spoolDir.resolve("100.meta.tmp"), new byte[10]);
+
+        failure = null;
+        proceed.countDown();
+        storage = new WriteBehindCloudStorage(uploads, spoolDir, 1000, REGION, 2);
+        assertEquals("recovered", 1, storage.getPendingCount());
+        assertTrue("flushed", storage.flush(5, TimeUnit.SECONDS));
+        assertEquals("uploaded", "spooled content", read(fs.getFile(fileUri)));
+        assertEquals("spool files", 0, countFiles(spoolDir));
+    }
+
+    private String store(String filename, String content) throws CloudException {
+        return store(filename, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String store(String filename, byte[] content) throws CloudException {
+        return storage.storeFile("bucket", new ByteArrayInputStream(content), filename, "text/plain",
+                content.length, null);
+    }
+
+    private static String read(CloudFile file) throws IOException {
+        try (InputStream in = file.getInputStream()) {
+            return new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * @return the number of files in a directory, not counting directories
+     */
+    private static int countFiles(Path dir) throws IOException {
+        int count = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                if (Files.isRegularFile(file)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,845 @@
+/**
+ * Copyright(c) 2014 MeloSelo, Inc. All rights reserved
+ */
+package com.meloselo.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.S3ClientOptions;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * minimal in-process S3 compatible HTTP server for offline tests and benchmarks. Supports path style PUT,
+ * GET with Range and conditional headers, HEAD, DELETE, multi-object delete, multipart uploads and
+ * listings with prefix, marker and delimiter. Object bodies are kept in temporary files, signatures are
+ * not checked. Tests can fail or delay requests and inspect the requests received.
+ * <p>
+ * Speaks HTTP/1.1 over plain sockets rather than com.sun.net.httpserver, which rewrites the case of
+ * response header names and so hides the ETag header from the AWS client.
+ */
+public class LocalS3Server implements Closeable {
+
+    private static final Pattern PART_NUMBER = Pattern.compile("<PartNumber>(\\d+)</PartNumber>");
+    private static final Pattern DELETE_KEY = Pattern.compile("<Key>([^<]*)</Key>");
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor;
+    private final Path dataDir;
+    private final Map<String, StoredObject> objects = new ConcurrentHashMap<String, StoredObject>();
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<String, Upload>();
+    private final AtomicLong ids = new AtomicLong();
+    private final List<String> requestLog = Collections.synchronizedList(new ArrayList<String>());
+    private final List<RequestRule> rules = new CopyOnWriteArrayList<RequestRule>();
+    private final Set<String> deniedDeletes = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private volatile int maxKeys = 1000;
+
+    /**
+     * start the server on a free loopback port
+     *
+     * @throws IOException if the server can not be started
+     */
+    public LocalS3Server() throws IOException {
+        dataDir = Files.createTempDirectory("local-s3");
+        executor = Executors.newCachedThreadPool(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("local-s3-%d").build());
+        serverSocket = new ServerSocket(0, 256, InetAddress.getLoopbackAddress());
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        });
+    }
+
+    /**
+     * @return the http endpoint of the server
+     */
+    public String getEndpoint() {
+        return "http://127.0.0.1:" + serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return a new S3 client using path style requests against this server
+     */
+    public AmazonS3 newClient() {
+        return newClient(new ClientConfiguration().withMaxConnections(256));
+    }
+
+    /**
+     * @param config the client configuration, e.g. withMaxErrorRetry(0) to see every error
+     * @return a new S3 client using path style requests against this server
+     */
+    public AmazonS3 newClient(ClientConfiguration config) {
+        AmazonS3Client client = new AmazonS3Client(new BasicAWSCredentials("local", "local"), config);
+        client.setEndpoint(getEndpoint());
+        client.setS3ClientOptions(new S3ClientOptions().withPathStyleAccess(true));
+        return client;
+    }
+
+    /**
+     * @param maxKeys the most keys and common prefixes returned by one listing page, 1000 by default
+     * @return this object
+     */
+    public LocalS3Server setMaxKeys(int maxKeys) {
+        this.maxKeys = maxKeys;
+        return this;
+    }
+
+    /**
+     * answer the next count requests with method and, unless null, the query parameter with an error
+     *
+     * @param method the http method, e.g. PUT
+     * @param queryParam the query parameter the request must have, e.g. partNumber, null for any
+     * @param count the number of requests to fail
+     * @param status the http status of the error
+     * @param code the S3 error code, e.g. InternalError
+     */
+    public void failRequests(String method, String queryParam, int count, int status, String code) {
+        rules.add(new RequestRule(method, queryParam, count, status, code, 0));
+    }
+
+    /**
+     * hold requests with method and, unless null, the query parameter before answering them
+     *
+     * @param method the http method, e.g. PUT
+     * @param queryParam the query parameter the request must have, e.g. partNumber, null for any
+     * @param millis the time to hold each request
+     */
+    public void delayRequests(String method, String queryParam, long millis) {
+        rules.add(new RequestRule(method, queryParam, 0, 0, null, millis));
+    }
+
+    /**
+     * @return the largest number of requests held at once by delayRequests
+     */
+    public int getMaxDelayedRequests() {
+        int max = 0;
+        for (RequestRule rule : rules) {
+            max = Math.max(max, rule.maxInFlight.get());
+        }
+        return max;
+    }
+
+    /**
+     * fail the deletes of a key in multi-object delete requests with AccessDenied
+     *
+     * @param bucket the bucket name
+     * @param key the key
+     */
+    public void denyDelete(String bucket, String key) {
+        deniedDeletes.add(bucket + "/" + key);
+    }
+
+    /**
+     * @param bucket the bucket name
+     * @param key the key
+     * @return true if the object exists
+     */
+    public boolean exists(String bucket, String key) {
+        return objects.containsKey(bucket + "/" + key);
+    }
+
+    /**
+     * @return the number of multipart uploads neither completed nor aborted
+     */
+    public int getUploadCount() {
+        return uploads.size();
+    }
+
+    /**
+     * @return the requests received so far as "METHOD /path?query", followed by " Range: bytes=a-b" for
+     *      ranged requests
+     */
+    public List<String> getRequestLog() {
+        synchronized (requestLog) {
+            return new ArrayList<String>(requestLog);
+        }
+    }
+
+    /**
+     * @param method the http method
+     * @param queryParam the query parameter the request must have, null for any
+     * @return the number of requests received with method and query parameter
+     */
+    public int countRequests(String method, String queryParam) {
+        int count = 0;
+        synchronized (requestLog) {
+            for (String line : requestLog) {
+                if (line.startsWith(method + " ") && (queryParam == null || hasQueryParam(line, queryParam))) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private static boolean hasQueryParam(String line, String queryParam) {
+        int question = line.indexOf('?');
+        if (question < 0) {
+            return false;
+        }
+        int end = line.indexOf(' ', question);
+        for (String param : line.substring(question + 1, end < 0 ? line.length() : end).split("&")) {
+            if (param.equals(queryParam) || param.startsWith(queryParam + "=")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        executor.shutdownNow();
+        DirectoryStream<Path> files = Files.newDirectoryStream(dataDir);
+        try {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        } finally {
+            files.close();
+        }
+        Files.deleteIfExists(dataDir);
+    }
+
+    private void accept() {
+        while (! serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            } catch (IOException ex) {
+                // server closed
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+            Request request;
+            while ((request = Request.read(in)) != null) {
+                if ("100-continue".equalsIgnoreCase(request.header("Expect"))) {
+                    out.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+                }
+                requestLog.add(request.method + " " + request.target
+                        + (request.header("Range") == null ? "" : " Range: " + request.header("Range")));
+                Response response = new Response();
+                try {
+                    if (! applyRules(request, response)) {
+                        handle(request, response);
+                    }
+                } catch (RuntimeException ex) {
+                    response = error(500, "InternalError", String.valueOf(ex));
+                }
+                ByteStreams.copy(request.body, ByteStreams.nullOutputStream());
+                response.write(out, "HEAD".equals(request.method));
+                if ("close".equalsIgnoreCase(request.header("Connection"))) {
+                    break;
+                }
+            }
+        } catch (IOException ex) {
+            // client went away
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * @return true if a rule answered the request with an error
+     */
+    private boolean applyRules(Request request, Response response) {
+        for (RequestRule rule : rules) {
+            if (! rule.matches(request)) {
+                continue;
+            }
+            if (rule.delayMillis > 0) {
+                int inFlight = rule.inFlight.incrementAndGet();
+                while (true) {
+                    int max = rule.maxInFlight.get();
+                    if (inFlight <= max || rule.maxInFlight.compareAndSet(max, inFlight)) {
+                        break;
+                    }
+                }
+                Uninterruptibles.sleepUninterruptibly(rule.delayMillis, TimeUnit.MILLISECONDS);
+                rule.inFlight.decrementAndGet();
+            }
+            if (rule.failures.get() > 0 && rule.failures.getAndDecrement() > 0) {
+                response.copy(error(rule.status, rule.code, "failed by test"));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void handle(Request request, Response response) throws IOException {
+        String method = request.method;
+        int slash = request.path.indexOf('/', 1);
+        String bucket = decode(slash < 0 ? request.path.substring(1) : request.path.substring(1, slash));
+        String key = slash < 0 ? "" : decode(request.path.substring(slash + 1));
+        String objectKey = bucket + "/" + key;
+        Map<String, String> query = request.query;
+
+        if ("POST".equals(method) && query.containsKey("delete")) {
+            deleteObjects(request, response, bucket);
+        } else if ("POST".equals(method) && query.containsKey("uploads")) {
+            initiateUpload(request, response, bucket, key);
+        } else if ("POST".equals(method) && query.containsKey("uploadId")) {
+            completeUpload(request, response, bucket, key, objectKey, query.get("uploadId"));
+        } else if ("PUT".equals(method) && query.containsKey("uploadId")) {
+            uploadPart(request, response, query.get("uploadId"), Integer.parseInt(query.get("partNumber")));
+        } else if ("DELETE".equals(method) && query.containsKey("uploadId")) {
+            abortUpload(response, query.get("uploadId"));
+        } else if ("PUT".equals(method) && ! key.isEmpty()) {
+            putObject(request, response, objectKey);
+        } else if ("GET".equals(method) && key.isEmpty()) {
+            listObjects(response, bucket, query);
+        } else if (("GET".equals(method) || "HEAD".equals(method)) && ! key.isEmpty()) {
+            getObject(request, response, objectKey);
+        } else if ("DELETE".equals(method) && ! key.isEmpty()) {
+            deleteObject(objectKey);
+            response.status = 204;
+        } else {
+            response.copy(error(501, "NotImplemented", method + " " + request.path + " not supported"));
+        }
+    }
+
+    private void putObject(Request request, Response response, String objectKey) throws IOException {
+        StoredObject object = store(request);
+        StoredObject old = objects.put(objectKey, object);
+        if (old != null) {
+            Files.deleteIfExists(old.path);
+        }
+        response.headers.put("ETag", quote(object.eTag));
+    }
+
+    private void getObject(Request request, Response response, String objectKey) {
+        StoredObject object = objects.get(objectKey);
+        if (object == null) {
+            response.copy(error(404, "NoSuchKey", "The specified key does not exist."));
+            return;
+        }
+        String ifMatch = request.header("If-Match");
+        if (ifMatch != null && ! unquote(ifMatch).equals(object.eTag)) {
+            response.copy(error(412, "PreconditionFailed", "At least one of the preconditions failed."));
+            return;
+        }
+        response.headers.put("ETag", quote(object.eTag));
+        String ifNoneMatch = request.header("If-None-Match");
+        if (ifNoneMatch != null && unquote(ifNoneMatch).equals(object.eTag)) {
+            response.status = 304;
+            return;
+        }
+
+        long first = 0;
+        long last = object.length - 1;
+        String range = request.header("Range");
+        if (range != null) {
+            Matcher matcher = RANGE.matcher(range);
+            if (matcher.matches()) {
+                first = Long.parseLong(matcher.group(1));
+                if (! matcher.group(2).isEmpty()) {
+                    last = Math.min(last, Long.parseLong(matcher.group(2)));
+                }
+                if (first >= object.length) {
+                    response.copy(error(416, "InvalidRange", "The requested range is not satisfiable"));
+                    return;
+                }
+                response.status = 206;
+                response.headers.put("Content-Range", "bytes " + first + "-" + last + "/" + object.length);
+            }
+        }
+        response.headers.put("Content-Type", object.contentType == null ? "binary/octet-stream" : object.contentType);
+        response.headers.put("Last-Modified", httpDate(object.lastModified));
+        response.headers.put("Accept-Ranges", "bytes");
+        for (Map.Entry<String, String> entry : object.metaData.entrySet()) {
+            response.headers.put("x-amz-meta-" + entry.getKey(), entry.getValue());
+        }
+        response.file = object.path;
+        response.fileOffset = first;
+        response.contentLength = last - first + 1;
+    }
+
+    private void deleteObject(String objectKey) throws IOException {
+        StoredObject old = objects.remove(objectKey);
+        if (old != null) {
+            Files.deleteIfExists(old.path);
+        }
+    }
+
+    private void deleteObjects(Request request, Response response, String bucket) throws IOException {
+        StringBuilder errors = new StringBuilder();
+        Matcher matcher = DELETE_KEY.matcher(request.bodyString());
+        while (matcher.find()) {
+            String key = unescapeXml(matcher.group(1));
+            if (deniedDeletes.contains(bucket + "/" + key)) {
+                errors.append("<Error><Key>").append(escapeXml(key)).append("</Key><Code>AccessDenied</Code>")
+                    .append("<Message>Access Denied</Message></Error>");
+            } else {
+                deleteObject(bucket + "/" + key);
+            }
+        }
+        response.xml("<DeleteResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">" + errors + "</DeleteResult>");
+    }
+
+    private void listObjects(Response response, String bucket, Map<String, String> query) {
+        String prefix = query.containsKey("prefix") ? query.get("prefix") : "";
+        String marker = query.containsKey("marker") ? query.get("marker") : "";
+        String delimiter = query.get("delimiter");
+        int pageSize = query.containsKey("max-keys")
+                ? Math.min(maxKeys, Integer.parseInt(query.get("max-keys"))) : maxKeys;
+
+        TreeMap<String, StoredObject> keys = new TreeMap<String, StoredObject>();
+        for (Map.Entry<String, StoredObject> entry : objects.entrySet()) {
+            if (entry.getKey().startsWith(bucket + "/")) {
+                keys.put(entry.getKey().substring(bucket.length() + 1), entry.getValue());
+            }
+        }
+
+        StringBuilder contents = new StringBuilder();
+        StringBuilder commonPrefixes = new StringBuilder();
+        String last = null;
+        int count = 0;
+        boolean truncated = false;
+        for (Map.Entry<String, StoredObject> entry : keys.tailMap(marker, false).entrySet()) {
+            String key = entry.getKey();
+            if (! key.startsWith(prefix)) {
+                continue;
+            }
+            int split = delimiter == null || delimiter.isEmpty() ? -1 : key.indexOf(delimiter, prefix.length());
+            String commonPrefix = split < 0 ? null : key.substring(0, split + delimiter.length());
+            if (commonPrefix != null && (commonPrefix.equals(last) || commonPrefix.compareTo(marker) <= 0)) {
+                continue;
+            }
+            if (count == pageSize) {
+                truncated = true;
+                break;
+            }
+            count++;
+            if (commonPrefix != null) {
+                commonPrefixes.append("<CommonPrefixes><Prefix>").append(escapeXml(commonPrefix))
+                    .append("</Prefix></CommonPrefixes>");
+                last = commonPrefix;
+            } else {
+                StoredObject object = entry.getValue();
+                contents.append("<Contents><Key>").append(escapeXml(key)).append("</Key>")
+                    .append("<LastModified>").append(isoDate(object.lastModified)).append("</LastModified>")
+                    .append("<ETag>").append(quote(object.eTag)).append("</ETag>")
+                    .append("<Size>").append(object.length).append("</Size>")
+                    .append("<StorageClass>STANDARD</StorageClass></Contents>");
+                last = key;
+            }
+        }
+        response.xml("<ListBucketResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">"
+                + "<Name>" + escapeXml(bucket) + "</Name><Prefix>" + escapeXml(prefix) + "</Prefix>"
+                + "<Marker>" + escapeXml(marker) + "</Marker>"
+                + (truncated ? "<NextMarker>" + escapeXml(last) + "</NextMarker>" : "")
+                + "<MaxKeys>" + pageSize + "</MaxKeys>"
+                + (delimiter == null ? "" : "<Delimiter>" + escapeXml(delimiter) + "</Delimiter>")
+                + "<IsTruncated>" + truncated + "</IsTruncated>"
+                + contents + commonPrefixes + "</ListBucketResult>");
+    }
+
+    private void initiateUpload(Request request, Response response, String bucket, String key) {
+        String uploadId = "upload-" + ids.incrementAndGet();
+        uploads.put(uploadId, new Upload(request.header("Content-Type"), request.userMetaData()));
+        response.xml("<InitiateMultipartUploadResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">"
+                + "<Bucket>" + escapeXml(bucket) + "</Bucket><Key>" + escapeXml(key) + "</Key>"
+                + "<UploadId>" + uploadId + "</UploadId></InitiateMultipartUploadResult>");
+    }
+
+    private void uploadPart(Request request, Response response, String uploadId, int partNumber)
+            throws IOException {
+        Upload upload = uploads.get(uploadId);
+        if (upload == null) {
+            response.copy(error(404, "NoSuchUpload", "The specified upload does not exist."));
+            return;
+        }
+        StoredObject part = store(request);
+        StoredObject old = upload.parts.put(partNumber, part);
+        if (old != null) {
+            Files.deleteIfExists(old.path);
+        }
+        response.headers.put("ETag", quote(part.eTag));
+    }
+
+    private void completeUpload(Request request, Response response, String bucket, String key, String objectKey,
+            String uploadId) throws IOException {
+        Upload upload = uploads.remove(uploadId);
+        if (upload == null) {
+            response.copy(error(404, "NoSuchUpload", "The specified upload does not exist."));
+            return;
+        }
+        Map<Integer, StoredObject> parts = new TreeMap<Integer, StoredObject>();
+        Matcher matcher = PART_NUMBER.matcher(request.bodyString());
+        while (matcher.find()) {
+            int partNumber = Integer.parseInt(matcher.group(1));
+            parts.put(partNumber, upload.parts.get(partNumber));
+        }
+
+        Path path = dataDir.resolve("object-" + ids.incrementAndGet());
+        Hasher eTags = Hashing.md5().newHasher();
+        long length = 0;
+        FileChannel out = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        try {
+            for (StoredObject part : parts.values()) {
+                FileChannel in = FileChannel.open(part.path, StandardOpenOption.READ);
+                try {
+                    long position = 0;
+                    while (position < part.length) {
+                        position += in.transferTo(position, part.length - position, out);
+                    }
+                } finally {
+                    in.close();
+                }
+                length += part.length;
+                eTags.putBytes(BaseEncoding.base16().lowerCase().decode(part.eTag));
+            }
+        } finally {
+            out.close();
+        }
+        for (StoredObject part : upload.parts.values()) {
+            Files.deleteIfExists(part.path);
+        }
+
+        String eTag = eTags.hash().toString() + "-" + parts.size();
+        StoredObject old = objects.put(objectKey,
+                new StoredObject(path, length, eTag, upload.contentType, upload.metaData));
+        if (old != null) {
+            Files.deleteIfExists(old.path);
+        }
+        response.xml("<CompleteMultipartUploadResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">"
+                + "<Location>" + getEndpoint() + "/" + escapeXml(objectKey) + "</Location>"
+                + "<Bucket>" + escapeXml(bucket) + "</Bucket><Key>" + escapeXml(key) + "</Key>"
+                + "<ETag>" + quote(eTag) + "</ETag></CompleteMultipartUploadResult>");
+    }
+
+    private void abortUpload(Response response, String uploadId) throws IOException {
+        Upload upload = uploads.remove(uploadId);
+        if (upload != null) {
+            for (StoredObject part : upload.parts.values()) {
+                Files.deleteIfExists(part.path);
+            }
+        }
+        response.status = 204;
+    }
+
+    private StoredObject store(Request request) throws IOException {
+        Path path = dataDir.resolve("object-" + ids.incrementAndGet());
+        HashingInputStream hashing = new HashingInputStream(Hashing.md5(), request.body);
+        long length = Files.copy(hashing, path);
+        return new StoredObject(path, length, hashing.hash().toString(), request.header("Content-Type"),
+                request.userMetaData());
+    }
+
+    private Response error(int status, String code, String message) {
+        Response response = new Response();
+        response.status = status;
+        response.xml("<Error><Code>" + code + "</Code><Message>" + escapeXml(message)
+                + "</Message><RequestId>" + ids.incrementAndGet() + "</RequestId></Error>");
+        return response;
+    }
+
+    private static class StoredObject {
+
+        private final Path path;
+        private final long length;
+        private final String eTag;
+        private final String contentType;
+        private final Map<String, String> metaData;
+        private final long lastModified = System.currentTimeMillis();
+
+        StoredObject(Path path, long length, String eTag, String contentType, Map<String, String> metaData) {
+            this.path = path;
+            this.length = length;
+            this.eTag = eTag;
+            this.contentType = contentType;
+            this.metaData = metaData;
+        }
+    }
+
+    private static class Upload {
+
+        private final String contentType;
+        private final Map<String, String> metaData;
+        private final Map<Integer, StoredObject> parts = new ConcurrentHashMap<Integer, StoredObject>();
+
+        Upload(String contentType, Map<String, String> metaData) {
+            this.contentType = contentType;
+            this.metaData = metaData;
+        }
+    }
+
+    /**
+     * fails or delays requests with a method and query parameter
+     */
+    private static class RequestRule {
+
+        private final String method;
+        private final String queryParam;
+        private final AtomicInteger failures;
+        private final int status;
+        private final String code;
+        private final long delayMillis;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger maxInFlight = new AtomicInteger();
+
+        RequestRule(String method, String queryParam, int failures, int status, String code, long delayMillis) {
+            this.method = method;
+            this.queryParam = queryParam;
+            this.failures = new AtomicInteger(failures);
+            this.status = status;
+            this.code = code;
+            this.delayMillis = delayMillis;
+        }
+
+        boolean matches(Request request) {
+            return method.equals(request.method) && (queryParam == null || request.query.containsKey(queryParam));
+        }
+    }
+
+    private static class Request {
+
+        private String method;
+        private String target;
+        private String path;
+        private Map<String, String> query;
+        private final Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        private InputStream body;
+
+        /**
+         * @return the next request on the connection, null if the client closed it
+         */
+        static Request read(InputStream in) throws IOException {
+            String line = readLine(in);
+            if (line == null || line.isEmpty()) {
+                return null;
+            }
+            String[] parts = line.split(" ");
+            Request request = new Request();
+            request.method = parts[0];
+            request.target = parts[1];
+            int question = parts[1].indexOf('?');
+            request.path = question < 0 ? parts[1] : parts[1].substring(0, question);
+            request.query = parseQuery(question < 0 ? null : parts[1].substring(question + 1));
+            while (! (line = readLine(in)).isEmpty()) {
+                int colon = line.indexOf(':');
+                request.headers.put(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+            }
+            String length = request.header("Content-Length");
+            request.body = ByteStreams.limit(in, length == null ? 0 : Long.parseLong(length));
+            return request;
+        }
+
+        String header(String name) {
+            return headers.get(name);
+        }
+
+        String bodyString() throws IOException {
+            return new String(ByteStreams.toByteArray(body), StandardCharsets.UTF_8);
+        }
+
+        Map<String, String> userMetaData() {
+            Map<String, String> metaData = new HashMap<String, String>();
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                String name = header.getKey().toLowerCase(Locale.ENGLISH);
+                if (name.startsWith("x-amz-meta-")) {
+                    metaData.put(name.substring("x-amz-meta-".length()), header.getValue());
+                }
+            }
+            return metaData;
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b == -1) {
+                    if (line.size() == 0) {
+                        return null;
+                    }
+                    throw new EOFException("connection closed in request header");
+                }
+                if (b != '\r') {
+                    line.write(b);
+                }
+            }
+            return new String(line.toByteArray(), StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    private static class Response {
+
+        private int status = 200;
+        private final Map<String, String> headers = new LinkedHashMap<String, String>();
+        private byte[] body;
+        private Path file;
+        private long fileOffset;
+        private long contentLength;
+
+        void xml(String xml) {
+            body = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + xml).getBytes(StandardCharsets.UTF_8);
+            contentLength = body.length;
+            headers.put("Content-Type", "application/xml");
+        }
+
+        void copy(Response other) {
+            status = other.status;
+            headers.putAll(other.headers);
+            body = other.body;
+            contentLength = other.contentLength;
+        }
+
+        void write(OutputStream out, boolean head) throws IOException {
+            StringBuilder header = new StringBuilder(256)
+                .append("HTTP/1.1 ").append(status).append(' ').append(reason(status)).append("\r\n");
+            for (Map.Entry<String, String> entry : headers.entrySet()) {
+                header.append(entry.getKey()).append(": ").append(entry.getValue()).append("\r\n");
+            }
+            if (status != 204 && status != 304) {
+                header.append("Content-Length: ").append(contentLength).append("\r\n");
+            }
+            header.append("\r\n");
+            out.write(header.toString().getBytes(StandardCharsets.ISO_8859_1));
+            if (! head && body != null) {
+                out.write(body);
+            } else if (! head && file != null && contentLength > 0) {
+                out.flush();
+                FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+                try {
+                    WritableByteChannel target = Channels.newChannel(out);
+                    long position = fileOffset;
+                    long end = fileOffset + contentLength;
+                    while (position < end) {
+                        position += channel.transferTo(position, end - position, target);
+                    }
+                } finally {
+                    channel.close();
+                }
+            }
+            out.flush();
+        }
+
+        private static String reason(int status) {
+            switch (status) {
+                case 200: return "OK";
+                case 204: return "No Content";
+                case 206: return "Partial Content";
+                case 304: return "Not Modified";
+                case 404: return "Not Found";
+                case 403: return "Forbidden";
+                case 412: return "Precondition Failed";
+                case 416: return "Requested Range Not Satisfiable";
+                case 501: return "Not Implemented";
+                default: return "Error";
+            }
+        }
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) throws UnsupportedEncodingException {
+        Map<String, String> query = new HashMap<String, String>();
+        if (rawQuery == null) {
+            return query;
+        }
+        for (String param : rawQuery.split("&")) {
+            int eq = param.indexOf('=');
+            query.put(decode(eq < 0 ? param : param.substring(0, eq)), eq < 0 ? "" : decode(param.substring(eq + 1)));
+        }
+        return query;
+    }
+
+    private static String decode(String value) throws UnsupportedEncodingException {
+        return URLDecoder.decode(value.replace("+", "%2B"), "UTF-8");
+    }
+
+    private static String quote(String eTag) {
+        return "\"" + eTag + "\"";
+    }
+
+    private static String unquote(String eTag) {
+        return eTag.replace("\"", "");
+    }
+
+    private static String escapeXml(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    private static String unescapeXml(String value) {
+        return value.replace("&lt;", "<").replace("&gt;", ">").replace("&amp;", "&");
+    }
+
+    private static String isoDate(long millis) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ENGLISH);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(millis));
+    }
+
+    private static String httpDate(long millis) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.ENGLISH);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(millis));
+    }
+}